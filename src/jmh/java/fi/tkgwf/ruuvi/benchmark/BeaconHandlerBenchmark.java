@@ -0,0 +1,56 @@
+package fi.tkgwf.ruuvi.benchmark;
+
+import fi.tkgwf.ruuvi.bean.EnhancedRuuviMeasurement;
+import fi.tkgwf.ruuvi.bean.HCIData;
+import fi.tkgwf.ruuvi.bean.HCIPacket;
+import fi.tkgwf.ruuvi.handler.BeaconHandler;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Decoding the beacons of each data format from already parsed packets.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class BeaconHandlerBenchmark {
+
+    @Param
+    private Fixture fixture;
+
+    private final BeaconHandler handler = new BeaconHandler();
+    private HCIData hciData;
+    private HCIPacket packet;
+
+    @Setup
+    public void setup() {
+        hciData = fixture.hciData();
+        byte[] bytes = fixture.packet();
+        packet = new HCIPacket();
+        packet.wrap(bytes, bytes.length);
+    }
+
+    @Benchmark
+    public Optional<EnhancedRuuviMeasurement> handleHCIData() {
+        return handler.handle(hciData);
+    }
+
+    @Benchmark
+    public Optional<EnhancedRuuviMeasurement> handleHCIPacket() {
+        return handler.handle(packet);
+    }
+}
@@ -0,0 +1,53 @@
+package fi.tkgwf.ruuvi.benchmark;
+
+import fi.tkgwf.ruuvi.TestFixture;
+import fi.tkgwf.ruuvi.bean.EnhancedRuuviMeasurement;
+import fi.tkgwf.ruuvi.bean.HCIData;
+import fi.tkgwf.ruuvi.handler.BeaconHandler;
+import fi.tkgwf.ruuvi.utils.HCIParser;
+import fi.tkgwf.ruuvi.utils.MeasurementValueCalculator;
+import fi.tkgwf.ruuvi.utils.Utils;
+
+/**
+ * The recorded hcidump lines from {@link TestFixture} the benchmarks are run
+ * with, usable as JMH parameters.
+ */
+public enum Fixture {
+    DATA_FORMAT_3(TestFixture.getDataFormat3Message()),
+    DATA_FORMAT_5(TestFixture.getDataFormat5Message()),
+    IBEACON(TestFixture.getIBeaconMessage()),
+    EDDYSTONE_UID(TestFixture.getEddystoneUIDMessage()),
+    EDDYSTONE_TLM(TestFixture.getEddystoneTMLMessage());
+
+    private final String line;
+
+    Fixture(String line) {
+        this.line = line;
+    }
+
+    /**
+     * @return the line as printed by hcidump
+     */
+    public String line() {
+        return line;
+    }
+
+    /**
+     * @return the raw bytes of the packet, starting from the packet type byte
+     */
+    public byte[] packet() {
+        return Utils.hexToBytes(line.substring(2));
+    }
+
+    public HCIData hciData() {
+        return new HCIParser().readLine(line);
+    }
+
+    /**
+     * @return the measurement decoded from the packet with all the values
+     * calculated, or null if the packet is not a supported beacon
+     */
+    public EnhancedRuuviMeasurement measurement() {
+        return new BeaconHandler().handle(hciData()).map(MeasurementValueCalculator::calculateAllValues).orElse(null);
+    }
+}
@@ -0,0 +1,80 @@
+package fi.tkgwf.ruuvi.benchmark;
+
+import fi.tkgwf.ruuvi.TestFixture;
+import fi.tkgwf.ruuvi.bean.EnhancedRuuviMeasurement;
+import fi.tkgwf.ruuvi.strategy.LimitingStrategy;
+import fi.tkgwf.ruuvi.strategy.impl.DefaultDiscardingWithMotionSensitivityStrategy;
+import fi.tkgwf.ruuvi.strategy.impl.DiscardUntilEnoughTimeHasElapsedStrategy;
+import fi.tkgwf.ruuvi.utils.MeasurementValueCalculator;
+import fi.tkgwf.ruuvi.utils.Utils;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Processing the decoded measurements: calculating the extended values and
+ * applying the limiting strategies. The strategies see a rotating set of tags
+ * and a clock advancing 100 ms per measurement, so that both the discarding
+ * and the storing paths are exercised.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class MeasurementBenchmark {
+
+    private static final int TAGS = 64;
+
+    @Param({"DATA_FORMAT_3", "DATA_FORMAT_5"})
+    private Fixture fixture;
+
+    private final EnhancedRuuviMeasurement[] measurements = new EnhancedRuuviMeasurement[TAGS];
+    private LimitingStrategy discardUntilEnoughTimeHasElapsed;
+    private LimitingStrategy defaultWithMotionSensitivity;
+    private int index;
+    private long now;
+
+    @Setup
+    public void setup() {
+        for (int i = 0; i < TAGS; i++) {
+            measurements[i] = fixture.measurement();
+            measurements[i].setMac(Utils.macToString(0xAABBCCDD0000L + i));
+        }
+        TestFixture.setClockToMilliseconds(() -> now);
+        discardUntilEnoughTimeHasElapsed = new DiscardUntilEnoughTimeHasElapsedStrategy();
+        defaultWithMotionSensitivity = new DefaultDiscardingWithMotionSensitivityStrategy();
+    }
+
+    private EnhancedRuuviMeasurement next() {
+        now += 100;
+        index = (index + 1) & (TAGS - 1);
+        return measurements[index];
+    }
+
+    @Benchmark
+    public EnhancedRuuviMeasurement calculateAllValues() {
+        return MeasurementValueCalculator.calculateAllValues(next());
+    }
+
+    @Benchmark
+    public Optional<EnhancedRuuviMeasurement> discardUntilEnoughTimeHasElapsed() {
+        return discardUntilEnoughTimeHasElapsed.apply(next());
+    }
+
+    @Benchmark
+    public Optional<EnhancedRuuviMeasurement> defaultWithMotionSensitivity() {
+        return defaultWithMotionSensitivity.apply(next());
+    }
+}
@@ -0,0 +1,121 @@
+package fi.tkgwf.ruuvi.benchmark;
+
+import fi.tkgwf.ruuvi.bean.HCIData;
+import fi.tkgwf.ruuvi.bean.HCIPacket;
+import fi.tkgwf.ruuvi.utils.BtSnoopReader;
+import fi.tkgwf.ruuvi.utils.HCIParser;
+import fi.tkgwf.ruuvi.utils.HCIStreamParser;
+import fi.tkgwf.ruuvi.utils.Utils;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Reading the packets from the input: the line based hcidump parser and its
+ * building blocks, compared to the stream parser and the btsnoop reader.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class ParserBenchmark {
+
+    private static final int PACKETS_PER_INVOCATION = 1000;
+
+    @Param
+    private Fixture fixture;
+
+    private String line;
+    private String hex;
+    private byte[] packet;
+    private HCIParser parser;
+    private HCIPacket hciPacket;
+    private ByteArrayInputStream dump;
+    private ByteArrayInputStream capture;
+
+    @Setup
+    public void setup() throws IOException {
+        line = fixture.line();
+        hex = line.substring(2);
+        packet = fixture.packet();
+        parser = new HCIParser();
+        hciPacket = new HCIPacket();
+
+        StringBuilder lines = new StringBuilder();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.write(new byte[]{'b', 't', 's', 'n', 'o', 'o', 'p', 0});
+        out.writeInt(1);
+        out.writeInt(BtSnoopReader.DATALINK_HCI_UART);
+        for (int i = 0; i < PACKETS_PER_INVOCATION; i++) {
+            lines.append(line).append('\n');
+            out.writeInt(packet.length);
+            out.writeInt(packet.length);
+            out.writeInt(0x01); // received data
+            out.writeInt(0);
+            out.writeLong(0x00dcddb30f2f8000L);
+            out.write(packet);
+        }
+        dump = new ByteArrayInputStream(lines.toString().getBytes(StandardCharsets.US_ASCII));
+        capture = new ByteArrayInputStream(bytes.toByteArray());
+    }
+
+    @Benchmark
+    public HCIData readLine() {
+        return parser.readLine(line);
+    }
+
+    @Benchmark
+    public byte[] hexToBytes() {
+        return Utils.hexToBytes(hex);
+    }
+
+    @Benchmark
+    public String getMacFromLine() {
+        return Utils.getMacFromLine(line);
+    }
+
+    @Benchmark
+    public long wrapPacket() {
+        hciPacket.wrap(packet, packet.length);
+        return hciPacket.mac();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PACKETS_PER_INVOCATION)
+    public void streamParser(Blackhole blackhole) throws IOException {
+        dump.reset();
+        HCIStreamParser streamParser = new HCIStreamParser(dump);
+        while (streamParser.next() != HCIStreamParser.EOF) {
+            blackhole.consume(streamParser.packet()[streamParser.packetLength() - 1]);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PACKETS_PER_INVOCATION)
+    public void btSnoopReader(Blackhole blackhole) throws IOException {
+        capture.reset();
+        BtSnoopReader reader = new BtSnoopReader(capture);
+        while (reader.next() != BtSnoopReader.EOF) {
+            blackhole.consume(reader.packet()[reader.packetLength() - 1]);
+        }
+    }
+}
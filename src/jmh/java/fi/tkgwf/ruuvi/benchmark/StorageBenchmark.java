@@ -0,0 +1,72 @@
+package fi.tkgwf.ruuvi.benchmark;
+
+import fi.tkgwf.ruuvi.bean.EnhancedRuuviMeasurement;
+import fi.tkgwf.ruuvi.db.PrometheusExporter;
+import fi.tkgwf.ruuvi.utils.InfluxDBConverter;
+import fi.tkgwf.ruuvi.utils.Utils;
+import java.util.concurrent.TimeUnit;
+import org.influxdb.dto.Point;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Handing the measurements over to the storage: converting them to InfluxDB
+ * points and updating the Prometheus collectors, for a rotating set of tags.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class StorageBenchmark {
+
+    private static final int TAGS = 64;
+
+    @Param({"DATA_FORMAT_3", "DATA_FORMAT_5"})
+    private Fixture fixture;
+
+    private final EnhancedRuuviMeasurement[] measurements = new EnhancedRuuviMeasurement[TAGS];
+    private PrometheusExporter prometheusExporter;
+    private int index;
+
+    @Setup
+    public void setup() {
+        for (int i = 0; i < TAGS; i++) {
+            measurements[i] = fixture.measurement();
+            measurements[i].setMac(Utils.macToString(0xAABBCCDD0000L + i));
+            measurements[i].setTime(System.currentTimeMillis());
+        }
+        prometheusExporter = new PrometheusExporter(0); // any free port, nothing is scraping it
+    }
+
+    @TearDown
+    public void tearDown() {
+        prometheusExporter.close();
+    }
+
+    private EnhancedRuuviMeasurement next() {
+        index = (index + 1) & (TAGS - 1);
+        return measurements[index];
+    }
+
+    @Benchmark
+    public Point toInflux() {
+        return InfluxDBConverter.toInflux(next());
+    }
+
+    @Benchmark
+    public void prometheusExporterSave() {
+        prometheusExporter.save(next());
+    }
+}
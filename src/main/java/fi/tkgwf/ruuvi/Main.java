@@ -2,16 +2,37 @@ package fi.tkgwf.ruuvi;
 
 import fi.tkgwf.ruuvi.service.PersistenceService;
 import fi.tkgwf.ruuvi.bean.HCIData;
+import fi.tkgwf.ruuvi.bean.HCIPacket;
 import fi.tkgwf.ruuvi.config.Config;
+import fi.tkgwf.ruuvi.config.InputConfig;
 import fi.tkgwf.ruuvi.handler.BeaconHandler;
+import fi.tkgwf.ruuvi.metrics.CollectorMetrics;
+import fi.tkgwf.ruuvi.metrics.CollectorMetricsExporter;
+import fi.tkgwf.ruuvi.metrics.CollectorMetricsWriter;
+import fi.tkgwf.ruuvi.pipeline.Pipeline;
+import fi.tkgwf.ruuvi.utils.BtSnoopReader;
+import fi.tkgwf.ruuvi.utils.DataImporter;
+import fi.tkgwf.ruuvi.utils.HCIPacketSource;
 import fi.tkgwf.ruuvi.utils.HCIParser;
+import fi.tkgwf.ruuvi.utils.HCIStreamParser;
+import fi.tkgwf.ruuvi.utils.InfluxDataExporter;
 import fi.tkgwf.ruuvi.utils.InfluxDataMigrator;
-import fi.tkgwf.ruuvi.utils.MeasurementValueCalculator;
+import fi.tkgwf.ruuvi.utils.ReplayClock;
+import fi.tkgwf.ruuvi.utils.ReplayLineReader;
+import fi.tkgwf.ruuvi.utils.ReplayPacketSource;
 import fi.tkgwf.ruuvi.utils.Utils;
 import java.io.BufferedReader;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.log4j.Logger;
 import org.influxdb.InfluxDBIOException;
@@ -19,6 +40,11 @@ import org.influxdb.InfluxDBIOException;
 public class Main {
 
     private static final Logger LOG = Logger.getLogger(Main.class);
+    /**
+     * Milliseconds to wait for the other inputs to stop after one of them has
+     * failed
+     */
+    private static final long INPUT_STOP_TIMEOUT = 5000;
 
     private final BeaconHandler beaconHandler = new BeaconHandler();
 
@@ -26,9 +52,32 @@ public class Main {
         if (args.length >= 1 && args[0].equalsIgnoreCase("migrate")) {
             InfluxDataMigrator migrator = new InfluxDataMigrator();
             migrator.migrate();
+        } else if (args.length >= 1 && (args[0].equalsIgnoreCase("export") || args[0].equalsIgnoreCase("import"))) {
+            if (args.length < 2) {
+                LOG.error("Usage: " + args[0].toLowerCase() + " <file>");
+                System.exit(1);
+            }
+            boolean complete = args[0].equalsIgnoreCase("export")
+                ? new InfluxDataExporter().export(Paths.get(args[1]))
+                : new DataImporter().load(Paths.get(args[1]));
+            if (!complete) {
+                System.exit(1);
+            }
         } else {
+            // the metrics are served by the HTTP server of the prometheus storage method if there is one
+            CollectorMetricsExporter metricsExporter = Config.isMetricsEnabled()
+                ? new CollectorMetricsExporter(Config.isStorageMethod("prometheus") ? null : Config.getPrometheusHttpPort())
+                : null;
+            CollectorMetricsWriter metricsWriter = Config.getMetricsInfluxInterval() > 0 ? new CollectorMetricsWriter() : null;
             Main m = new Main();
-            if (!m.run()) {
+            boolean clean = m.run();
+            if (metricsWriter != null) {
+                metricsWriter.close();
+            }
+            if (metricsExporter != null) {
+                metricsExporter.close();
+            }
+            if (!clean) {
                 LOG.info("Unclean exit");
                 System.exit(1);
             }
@@ -38,19 +87,36 @@ public class Main {
                         // workaround. See: https://github.com/influxdata/influxdb-java/issues/359
     }
 
-    private BufferedReader startHciListeners() throws IOException {
-        String[] scan = Config.getScanCommand();
+    private InputStream startHciListeners(final InputConfig input, final List<Process> processes) throws IOException {
+        String[] scan = input.getScanCommand();
         if (scan.length > 0 && StringUtils.isNotBlank(scan[0])) {
             Process hcitool = new ProcessBuilder(scan).start();
             Runtime.getRuntime().addShutdownHook(new Thread(() -> hcitool.destroyForcibly()));
+            processes.add(hcitool);
             LOG.debug("Starting scan with: " + Arrays.toString(scan));
         } else {
             LOG.debug("Skipping scan command, scan command is blank.");
         }
-        Process hcidump = new ProcessBuilder(Config.getDumpCommand()).start();
-        Runtime.getRuntime().addShutdownHook(new Thread(() -> hcidump.destroyForcibly()));
-        LOG.debug("Starting dump with: " + Arrays.toString(Config.getDumpCommand()));
-        return new BufferedReader(new InputStreamReader(hcidump.getInputStream()));
+        String[] dump = input.getDumpCommand();
+        Process hcidump = null;
+        if (dump.length > 0 && StringUtils.isNotBlank(dump[0])) {
+            Process process = new ProcessBuilder(dump).start();
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> process.destroyForcibly()));
+            processes.add(process);
+            LOG.debug("Starting dump with: " + Arrays.toString(dump));
+            hcidump = process;
+        } else {
+            LOG.debug("Skipping dump command, dump command is blank.");
+        }
+        if (input.getFile() != null) {
+            // the dump command (if any) is expected to write into the file, such as a FIFO written by btmon
+            LOG.debug("Reading input from: " + input.getFile());
+            return new FileInputStream(input.getFile());
+        }
+        if (hcidump == null) {
+            throw new IOException("Neither dump command nor input file is configured for input " + input.getName());
+        }
+        return hcidump.getInputStream();
     }
 
     /**
@@ -59,31 +125,165 @@ public class Main {
      * @return true if the run ends gracefully, false in case of severe errors
      */
     public boolean run() {
-        BufferedReader reader;
+        List<InputConfig> inputs = Config.getInputs();
+        if (Config.getReplayClock() != null) {
+            return replay(inputs.get(0), Config.getReplayClock());
+        }
+        if (inputs.size() > 1) {
+            return runInputs(inputs);
+        }
+        InputConfig inputConfig = inputs.get(0);
+        InputStream input;
         try {
-            reader = startHciListeners();
+            input = startHciListeners(inputConfig, new ArrayList<>());
         } catch (IOException ex) {
             LOG.error("Failed to start hci processes", ex);
             return false;
         }
         LOG.info("BLE listener started successfully, waiting for data... \n " +
                 "If you don't get any data, check that you are able to run 'hcitool lescan' and 'hcidump --raw' without issues");
-        return run(reader);
+        // the same as with several inputs, so that the receiver and format of a named input are used
+        try (final PersistenceService persistenceService = new PersistenceService();
+             final Pipeline pipeline = Config.isPipelineEnabled() ? new Pipeline(persistenceService) : null) {
+            if (pipeline != null) {
+                pipeline.start();
+            }
+            return readInput(inputConfig, input, persistenceService, pipeline);
+        }
+    }
+
+    /**
+     * Reads several inputs at once, each in its own thread, and stores the
+     * measurements from all of them through one persistence service, and one
+     * pipeline if it's enabled. Returns when all the inputs have ended, or as
+     * soon as one of them ends due to an error, in which case the other inputs
+     * are stopped as well.
+     *
+     * @param inputs the inputs to read
+     * @return true if all the inputs ended gracefully
+     */
+    boolean runInputs(final List<InputConfig> inputs) {
+        List<Process> processes = new ArrayList<>();
+        List<InputStream> streams = new ArrayList<>();
+        try {
+            for (InputConfig input : inputs) {
+                streams.add(startHciListeners(input, processes));
+            }
+        } catch (IOException ex) {
+            LOG.error("Failed to start hci processes", ex);
+            processes.forEach(Process::destroyForcibly);
+            return false;
+        }
+        LOG.info("BLE listeners of " + inputs.size() + " inputs started successfully, waiting for data...");
+        BlockingQueue<Boolean> results = new LinkedBlockingQueue<>();
+        List<Thread> threads = new ArrayList<>();
+        boolean healthy = true;
+        try (final PersistenceService persistenceService = new PersistenceService();
+             final Pipeline pipeline = Config.isPipelineEnabled() ? new Pipeline(persistenceService) : null) {
+            if (pipeline != null) {
+                pipeline.start();
+            }
+            for (int i = 0; i < inputs.size(); i++) {
+                InputConfig input = inputs.get(i);
+                InputStream stream = streams.get(i);
+                Thread thread = new Thread(() -> {
+                    boolean result = false;
+                    try {
+                        result = readInput(input, stream, persistenceService, pipeline);
+                    } finally {
+                        LOG.info("Input " + input.getName() + " ended");
+                        results.add(result);
+                    }
+                }, "input-" + input.getName());
+                thread.setDaemon(true);
+                thread.start();
+                threads.add(thread);
+            }
+            for (int i = 0; i < inputs.size() && healthy; i++) {
+                healthy = results.take();
+            }
+            if (!healthy) {
+                // ending the dump commands ends the inputs reading their output
+                processes.forEach(Process::destroyForcibly);
+            }
+            for (Thread thread : threads) {
+                thread.join(INPUT_STOP_TIMEOUT);
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            LOG.warn("Interrupted while reading the inputs");
+            return false;
+        }
+        return healthy;
+    }
+
+    private boolean readInput(final InputConfig input, final InputStream stream, final PersistenceService persistenceService, final Pipeline pipeline) {
+        BeaconHandler handler = new BeaconHandler(input.getReceiver());
+        HCIPacketSource source;
+        if (!input.readsPackets()) {
+            return readLines(new BufferedReader(new InputStreamReader(stream)), persistenceService, handler);
+        } else if ("btsnoop".equals(input.getFormat())) {
+            source = new BtSnoopReader(stream);
+        } else {
+            source = new HCIStreamParser(stream);
+        }
+        if (pipeline != null) {
+            return submitPackets(source, input.getFormat(), pipeline, handler);
+        }
+        return readPackets(source, input.getFormat(), persistenceService, handler);
+    }
+
+    /**
+     * Replays a capture file of the input instead of listening to the
+     * bluetooth device. The pipeline is not used even if it's enabled, so that
+     * each packet is handled while the clock is at its capture time.
+     *
+     * @param input the input, of which only the file, format and receiver
+     * are used
+     * @param clock the clock to drive with the capture times
+     * @return true if the replay ends gracefully
+     */
+    boolean replay(final InputConfig input, final ReplayClock clock) {
+        if (input.getFile() == null) {
+            LOG.error("Replaying requires the capture file to be configured with input.file");
+            return false;
+        }
+        LOG.info("Replaying " + input.getFile());
+        BeaconHandler handler = new BeaconHandler(input.getReceiver());
+        long start = System.nanoTime();
+        boolean result;
+        try (final InputStream in = new FileInputStream(input.getFile());
+             final PersistenceService persistenceService = new PersistenceService()) {
+            if ("btsnoop".equals(input.getFormat())) {
+                result = readPackets(new ReplayPacketSource(new BtSnoopReader(in), clock), input.getFormat(), persistenceService, handler);
+            } else {
+                result = readLines(new ReplayLineReader(new InputStreamReader(in), clock), persistenceService, handler);
+            }
+        } catch (IOException ex) {
+            LOG.error("Failed to read the capture " + input.getFile(), ex);
+            return false;
+        }
+        LOG.info("Replayed " + input.getFile() + " in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+        return result;
     }
 
     boolean run(final BufferedReader reader) {
+        try (final PersistenceService persistenceService = new PersistenceService()) {
+            return readLines(reader, persistenceService, beaconHandler);
+        }
+    }
+
+    private boolean readLines(final BufferedReader reader, final PersistenceService persistenceService, final BeaconHandler beaconHandler) {
         HCIParser parser = new HCIParser();
         boolean dataReceived = false;
         boolean healthy = false;
-        try (final PersistenceService persistenceService = new PersistenceService()) {
+        try {
             String line, latestMAC = null;
+            long latestTime = 0;
+            boolean discarding = false;
             while ((line = reader.readLine()) != null) {
-                if (line.contains("device: disconnected")) {
-                    LOG.error(line + ": Either the bluetooth device was externally disabled or physically disconnected");
-                    healthy = false;
-                }
-                if (line.contains("No such device")) {
-                    LOG.error(line + ": Check that your bluetooth adapter is enabled and working properly");
+                CollectorMetrics.lineRead();
+                if (isDeviceError(line)) {
                     healthy = false;
                 }
                 if (!dataReceived) {
@@ -99,12 +299,22 @@ public class Main {
                     //Read in MAC address from first line
                     if (Utils.hasMacAddress(line)) {
                         latestMAC = Utils.getMacFromLine(line);
+                        //The clock is read once per packet, for both the check and the measurement
+                        latestTime = Config.isAllowedMAC(latestMAC) ? Config.getTimestampProvider().get() : 0;
+                        //Skip the whole packet, including the continuation lines, if the measurement would be discarded anyway
+                        discarding = Config.isAllowedMAC(latestMAC) && persistenceService.isDiscardable(latestMAC, latestTime);
+                    } else if (line.startsWith(">")) {
+                        latestTime = Config.getTimestampProvider().get();
+                        discarding = false;
                     }
                     //Apply Mac Address Filtering
-                    if (Config.isAllowedMAC(latestMAC)) {
+                    if (discarding) {
+                        healthy = true;
+                    } else if (Config.isAllowedMAC(latestMAC)) {
                         HCIData hciData = parser.readLine(line);
                         if (hciData != null) {
-                            beaconHandler.handle(hciData).map(MeasurementValueCalculator::calculateAllValues).ifPresent(persistenceService::store);
+                            final long time = latestTime;
+                            beaconHandler.handle(hciData).ifPresent(measurement -> persistenceService.submit(measurement, time));
                             latestMAC = null; // "reset" the mac to null to avoid misleading MAC addresses when an error happens *after* successfully reading a full packet
                             healthy = true;
                         }
@@ -129,4 +339,115 @@ public class Main {
         }
         return healthy;
     }
+
+    boolean run(final HCIPacketSource parser) {
+        if (Config.isPipelineEnabled()) {
+            return runPipeline(parser);
+        }
+        try (final PersistenceService persistenceService = new PersistenceService()) {
+            return readPackets(parser, Config.getInputFormat(), persistenceService, beaconHandler);
+        }
+    }
+
+    private boolean readPackets(final HCIPacketSource parser, final String format, final PersistenceService persistenceService, final BeaconHandler beaconHandler) {
+        HCIPacket packet = new HCIPacket();
+        boolean dataReceived = false;
+        boolean healthy = false;
+        try {
+            int event;
+            while ((event = parser.next()) != HCIPacketSource.EOF) {
+                if (event == HCIPacketSource.MESSAGE) {
+                    // anything that isn't a packet is either garbage at the beginning or an error message
+                    if (isDeviceError(parser.message())) {
+                        healthy = false;
+                    }
+                    continue;
+                }
+                CollectorMetrics.packetRead();
+                if (!dataReceived) {
+                    LOG.info("Successfully reading data from " + format);
+                    dataReceived = true;
+                    healthy = true;
+                }
+                if (!packet.wrap(parser.packet(), parser.packetLength())) {
+                    continue;
+                }
+                try {
+                    if (Config.isAllowedMAC(packet.macString())) {
+                        final long time = Config.getTimestampProvider().get();
+                        if (!persistenceService.isDiscardable(packet.macString(), time)) {
+                            beaconHandler.handle(packet).ifPresent(measurement -> persistenceService.submit(measurement, time));
+                        }
+                        healthy = true;
+                    }
+                } catch (InfluxDBIOException ex) {
+                    LOG.error("Database connection lost while attempting to save measurements to InfluxDB", ex);
+                    if (Config.exitOnInfluxDBIOException()) {
+                        return false;
+                    }
+                } catch (Exception ex) {
+                    LOG.warn("Uncaught exception while handling measurements from MAC address \"" + packet.macString() + "\", if this repeats and this is not a Ruuvitag, try blacklisting it", ex);
+                    LOG.debug("Offending packet: " + packet);
+                }
+            }
+        } catch (IOException ex) {
+            LOG.error("Uncaught exception while reading measurements", ex);
+            return false;
+        }
+        return healthy;
+    }
+
+    /**
+     * Reads the packets on the current thread and hands them over to a
+     * {@link Pipeline} which decodes and stores them in separate threads.
+     */
+    boolean runPipeline(final HCIPacketSource parser) {
+        try (final PersistenceService persistenceService = new PersistenceService();
+             final Pipeline pipeline = new Pipeline(persistenceService)) {
+            pipeline.start();
+            return submitPackets(parser, Config.getInputFormat(), pipeline, beaconHandler);
+        }
+    }
+
+    private boolean submitPackets(final HCIPacketSource parser, final String format, final Pipeline pipeline, final BeaconHandler beaconHandler) {
+        boolean dataReceived = false;
+        boolean healthy = false;
+        try {
+            int event;
+            while ((event = parser.next()) != HCIPacketSource.EOF) {
+                if (event == HCIPacketSource.MESSAGE) {
+                    if (isDeviceError(parser.message())) {
+                        healthy = false;
+                    }
+                    continue;
+                }
+                CollectorMetrics.packetRead();
+                if (!dataReceived) {
+                    LOG.info("Successfully reading data from " + format);
+                    dataReceived = true;
+                }
+                healthy = true;
+                pipeline.submit(parser.packet(), parser.packetLength(), beaconHandler);
+                if (pipeline.isFailed()) {
+                    return false;
+                }
+            }
+        } catch (IOException ex) {
+            LOG.error("Uncaught exception while reading measurements", ex);
+            return false;
+        }
+        return healthy;
+    }
+
+    private boolean isDeviceError(String line) {
+        if (line.contains("device: disconnected")) {
+            LOG.error(line + ": Either the bluetooth device was externally disabled or physically disconnected");
+            return true;
+        }
+        if (line.contains("No such device")) {
+            LOG.error(line + ": Check that your bluetooth adapter is enabled and working properly");
+            return true;
+        }
+        return false;
+    }
 }
@@ -0,0 +1,169 @@
+package fi.tkgwf.ruuvi.bean;
+
+import fi.tkgwf.ruuvi.utils.Utils;
+import java.util.Arrays;
+
+/**
+ * A flyweight view over a raw HCI packet, an alternative to {@link HCIData}
+ * that reads the fields directly from the backing byte array rather than
+ * copying them to objects. The same instance can be reused for any number of
+ * packets by wrapping each of them in turn, the accessors are only valid until
+ * the backing array is modified or another packet is wrapped.
+ */
+public class HCIPacket {
+
+    private static final int MAC_OFFSET = 7;
+    private static final int MAC_LENGTH = 6;
+    private static final int REPORTS_OFFSET = MAC_OFFSET + MAC_LENGTH;
+
+    private byte[] data;
+    private int end;
+    private int rssiOffset;
+    private String macString;
+
+    /**
+     * Wraps a packet, such as the ones decoded by
+     * {@link fi.tkgwf.ruuvi.utils.HCIPacketSource}.
+     *
+     * @param data buffer containing the packet, starting from the packet type
+     * byte
+     * @param length length of the packet in the buffer
+     * @return true if the packet is complete and long enough to contain a MAC
+     * address, false if the accessors should not be used
+     */
+    public boolean wrap(byte[] data, int length) {
+        this.data = data;
+        this.macString = null;
+        // the packet length is actually the length AFTER the length byte, which is the 3rd byte
+        if (length < REPORTS_OFFSET || length < (data[2] & 0xFF) + 3) {
+            this.end = 0;
+            this.rssiOffset = -1;
+            return false;
+        }
+        this.end = length;
+        int position = REPORTS_OFFSET;
+        for (int i = 0; i < numberOfReports() && position < end; i++) {
+            position += 1 + (data[position] & 0xFF); // Report length does not count the length byte itself
+        }
+        this.rssiOffset = position < end ? end - 1 : -1;
+        return true;
+    }
+
+    public int packetType() {
+        return data[0] & 0xFF;
+    }
+
+    public int eventCode() {
+        return data[1] & 0xFF;
+    }
+
+    public int packetLength() {
+        return data[2] & 0xFF;
+    }
+
+    public int subEvent() {
+        return data[3] & 0xFF;
+    }
+
+    public int numberOfReports() {
+        return data[4] & 0xFF;
+    }
+
+    public int eventType() {
+        return data[5] & 0xFF;
+    }
+
+    public int peerAddressType() {
+        return data[6] & 0xFF;
+    }
+
+    /**
+     * @return the 48-bit MAC address packed into the lowest bytes of a long
+     */
+    public long mac() {
+        long mac = 0;
+        for (int i = MAC_OFFSET + MAC_LENGTH - 1; i >= MAC_OFFSET; i--) { // the MAC is "backwards"
+            mac = mac << 8 | (data[i] & 0xFF);
+        }
+        return mac;
+    }
+
+    /**
+     * @return the MAC address in the same format as {@link HCIData#mac}. The
+     * string is created only once per wrapped packet
+     */
+    public String macString() {
+        if (macString == null) {
+            macString = Utils.macToString(mac());
+        }
+        return macString;
+    }
+
+    public boolean hasRssi() {
+        return rssiOffset >= 0;
+    }
+
+    /**
+     * @return the RSSI, only valid if {@link #hasRssi()} returns true
+     */
+    public int rssi() {
+        return data[rssiOffset];
+    }
+
+    /**
+     * Finds the first advertisement data (AD) structure of the given type.
+     *
+     * @param type the AD type
+     * @return offset of the data of the AD structure in the backing array (not
+     * including the length and type bytes), or -1 if there is no such AD
+     * structure. The length of the data is given by
+     * {@link #advertisementDataLength(int)}
+     */
+    public int findAdvertisementDataByType(int type) {
+        int report = REPORTS_OFFSET;
+        for (int i = 0; i < numberOfReports() && report < end; i++) {
+            int reportEnd = Math.min(end, report + 1 + (data[report] & 0xFF));
+            int ad = report + 1;
+            while (ad < reportEnd) {
+                int adLength = data[ad] & 0xFF; // AD length does not count the length byte itself
+                if (adLength > 0 && ad + 1 < reportEnd && (data[ad + 1] & 0xFF) == type) {
+                    return ad + 2;
+                }
+                ad += 1 + adLength;
+            }
+            report = reportEnd;
+        }
+        return -1;
+    }
+
+    /**
+     * @param offset offset returned by {@link #findAdvertisementDataByType(int)}
+     * @return the length of the AD data at the offset
+     */
+    public int advertisementDataLength(int offset) {
+        return Math.max(0, Math.min((data[offset - 2] & 0xFF) - 1, end - offset));
+    }
+
+    /**
+     * @return the backing array, for reading the AD data in place
+     */
+    public byte[] array() {
+        return data;
+    }
+
+    /**
+     * @param offset offset returned by {@link #findAdvertisementDataByType(int)}
+     * @return a copy of the AD data at the offset
+     */
+    public byte[] advertisementDataBytes(int offset) {
+        return Arrays.copyOfRange(data, offset, offset + advertisementDataLength(offset));
+    }
+
+    @Override
+    public String toString() {
+        if (end == 0) {
+            return "HCIPacket{}";
+        }
+        return "HCIPacket{" + "packetType=" + packetType() + ", eventCode=" + eventCode() + ", packetLength=" + packetLength() + ", subEvent=" + subEvent() + ", numberOfReports=" + numberOfReports() + ", eventType=" + eventType() + ", peerAddressType=" + peerAddressType() + ", mac=" + macString() + ", rssi=" + (hasRssi() ? rssi() : null) + '}';
+    }
+}
@@ -1,14 +1,25 @@
 package fi.tkgwf.ruuvi.config;
 
+import fi.tkgwf.ruuvi.db.CompositeDBConnection;
 import fi.tkgwf.ruuvi.db.DBConnection;
 import fi.tkgwf.ruuvi.db.DummyDBConnection;
+import fi.tkgwf.ruuvi.db.InfluxDB2Connection;
 import fi.tkgwf.ruuvi.db.InfluxDBConnection;
+import fi.tkgwf.ruuvi.db.InfluxDBHttpConnection;
 import fi.tkgwf.ruuvi.db.LegacyInfluxDBConnection;
+import fi.tkgwf.ruuvi.db.LocalDBConnection;
 import fi.tkgwf.ruuvi.db.PrometheusExporter;
+import fi.tkgwf.ruuvi.db.PrometheusSnapshotExporter;
+import fi.tkgwf.ruuvi.db.QueryApiServer;
+import fi.tkgwf.ruuvi.db.SpoolingDBConnection;
+import fi.tkgwf.ruuvi.pipeline.OverflowPolicy;
 import fi.tkgwf.ruuvi.strategy.LimitingStrategy;
+import fi.tkgwf.ruuvi.strategy.impl.ConcurrentDiscardUntilEnoughTimeHasElapsedStrategy;
 import fi.tkgwf.ruuvi.strategy.impl.DefaultDiscardingWithMotionSensitivityStrategy;
 import fi.tkgwf.ruuvi.strategy.impl.DiscardUntilEnoughTimeHasElapsedStrategy;
+import fi.tkgwf.ruuvi.strategy.impl.StripedLimitingStrategy;
 import fi.tkgwf.ruuvi.utils.InfluxDBConverter;
+import fi.tkgwf.ruuvi.utils.ReplayClock;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.tuple.Pair;
 import org.apache.log4j.Logger;
@@ -19,16 +30,22 @@ import java.io.IOException;
 import java.io.InputStreamReader;
 import java.net.URISyntaxException;
 import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Function;
 import java.util.function.Predicate;
 import java.util.function.Supplier;
@@ -57,8 +74,17 @@ public abstract class Config {
     private static boolean exitOnInfluxDBIOException;
     private static int influxBatchMaxSize;
     private static int influxBatchMaxTimeMs;
+    private static int influxHttpMaxInFlight;
+    private static String influxOrg;
+    private static String influxBucket;
+    private static String influxToken;
+    private static TimeUnit influxPrecision;
+    private static int influxHttpMaxRetries;
+    private static int influxHttpTimeout;
     private static long measurementUpdateLimit;
     private static String storageMethod;
+    private static int storageQueueSize;
+    private static OverflowPolicy storageOverflowPolicy;
     private static String storageValues;
     private static final Set<String> FILTER_INFLUXDB_FIELDS = new HashSet<>();
     private static Predicate<String> influxDbFieldFilter;
@@ -68,14 +94,46 @@ public abstract class Config {
     private static String receiver = ""; // used to tag received values with an identifier associated to this service
     private static String[] scanCommand;
     private static String[] dumpCommand;
+    private static String inputParser;
+    private static String inputFormat;
+    private static String inputFile;
+    private static List<InputConfig> inputs;
+    private static boolean pipelineEnabled;
+    private static int pipelineQueueSize;
+    private static OverflowPolicy pipelineOverflowPolicy;
     private static DBConnection dbConnection;
     private static Supplier<Long> timestampProvider;
+    private static ReplayClock replayClock;
     private static LimitingStrategy limitingStrategy;
     private static Double defaultWithMotionSensitivityStrategyThreshold;
     private static int defaultWithMotionSensitivityStrategyNumberOfPreviousMeasurementsToKeep;
+    private static long tagStateExpiry;
+    private static boolean limitingStrategyConcurrent;
+    private static boolean deduplicationEnabled;
+    private static long deduplicationWindow;
+    private static int deduplicationCapacity;
+    private static boolean spoolEnabled;
+    private static String spoolDirectory;
+    private static int spoolSegmentSize;
+    private static long spoolMaxSize;
+    private static int spoolBatchSize;
+    private static long spoolRetryInterval;
+    private static String localDirectory;
+    private static int localBlockSize;
+    private static long localFlushInterval;
+    private static int apiPort;
+    private static int apiCapacity;
     private static Map<String, TagProperties> tagProperties;
     private static Function<String, File> configFileFinder;
     private static int prometheusHttpPort;
+    private static boolean prometheusSnapshot;
+    private static long prometheusExpiry;
+    private static boolean metricsEnabled;
+    private static long metricsInfluxInterval;
+    private static String metricsInfluxMeasurement;
+    private static int migrationThreads;
+    private static long migrationChunkSize;
+    private static String migrationCheckpointFile;
 
     static {
         reload();
@@ -104,8 +162,17 @@ public abstract class Config {
         exitOnInfluxDBIOException = false;
         influxBatchMaxSize = 2000;
         influxBatchMaxTimeMs = 100;
+        influxHttpMaxInFlight = 2;
+        influxOrg = "";
+        influxBucket = "ruuvi";
+        influxToken = "";
+        influxPrecision = TimeUnit.MILLISECONDS;
+        influxHttpMaxRetries = 5;
+        influxHttpTimeout = 10000;
         measurementUpdateLimit = 9900;
         storageMethod = "influxdb";
+        storageQueueSize = 1024;
+        storageOverflowPolicy = OverflowPolicy.DROP;
         storageValues = "extended";
         FILTER_INFLUXDB_FIELDS.clear();
         influxDbFieldFilter = (s) -> true;
@@ -114,13 +181,45 @@ public abstract class Config {
         TAG_NAMES.clear();
         scanCommand = DEFAULT_SCAN_COMMAND.split(" ");
         dumpCommand = DEFAULT_DUMP_COMMAND.split(" ");
+        inputParser = "line";
+        inputFormat = "hcidump";
+        inputFile = null;
+        pipelineEnabled = false;
+        pipelineQueueSize = 1024;
+        pipelineOverflowPolicy = OverflowPolicy.DROP;
         dbConnection = null;
         timestampProvider = System::currentTimeMillis;
+        replayClock = null;
         limitingStrategy = new DiscardUntilEnoughTimeHasElapsedStrategy();
         defaultWithMotionSensitivityStrategyThreshold = 0.05;
         defaultWithMotionSensitivityStrategyNumberOfPreviousMeasurementsToKeep = 3;
+        tagStateExpiry = 3600000;
+        limitingStrategyConcurrent = false;
+        deduplicationEnabled = false;
+        deduplicationWindow = 1000;
+        deduplicationCapacity = 4096;
+        spoolEnabled = false;
+        spoolDirectory = "spool";
+        spoolSegmentSize = 16 * 1024 * 1024;
+        spoolMaxSize = 1024L * 1024 * 1024;
+        spoolBatchSize = 1000;
+        spoolRetryInterval = 5000;
+        localDirectory = "data";
+        localBlockSize = 1024;
+        localFlushInterval = 60000;
+        apiPort = 9156;
+        apiCapacity = 720;
         tagProperties = new HashMap<>();
         prometheusHttpPort = 9155;
+        prometheusSnapshot = false;
+        prometheusExpiry = 3600000;
+        metricsEnabled = false;
+        metricsInfluxInterval = 0;
+        metricsInfluxMeasurement = "ruuvi_collector";
+        migrationThreads = 4;
+        migrationChunkSize = 86400000;
+        migrationCheckpointFile = "migration.checkpoint";
+        inputs = Collections.singletonList(InputConfig.defaultValues()); // copies the defaults above
     }
 
     private static void readConfig() {
@@ -145,6 +244,8 @@ public abstract class Config {
         influxPassword = props.getProperty("influxPassword", influxPassword);
         measurementUpdateLimit = parseLong(props, "measurementUpdateLimit", measurementUpdateLimit);
         storageMethod = props.getProperty("storage.method", storageMethod);
+        storageQueueSize = parseInteger(props, "storage.queueSize", storageQueueSize);
+        storageOverflowPolicy = parseOverflowPolicy(props, "storage.overflowPolicy", storageOverflowPolicy);
         storageValues = props.getProperty("storage.values", storageValues);
         FILTER_INFLUXDB_FIELDS.addAll(parseFilterInfluxDbFields(props));
         influxDbFieldFilter = createInfluxDbFieldFilter();
@@ -153,21 +254,73 @@ public abstract class Config {
         receiver = props.getProperty("receiver", "");
         scanCommand = props.getProperty("command.scan", DEFAULT_SCAN_COMMAND).split(" ");
         dumpCommand = props.getProperty("command.dump", DEFAULT_DUMP_COMMAND).split(" ");
+        inputParser = props.getProperty("input.parser", inputParser);
+        inputFormat = props.getProperty("input.format", inputFormat);
+        inputFile = StringUtils.trimToNull(props.getProperty("input.file", inputFile));
+        inputs = parseInputs(props);
+        pipelineEnabled = parseBoolean(props, "pipeline.enabled", pipelineEnabled);
+        pipelineQueueSize = parseInteger(props, "pipeline.queueSize", pipelineQueueSize);
+        pipelineOverflowPolicy = parseOverflowPolicy(props, "pipeline.overflowPolicy", pipelineOverflowPolicy);
         influxRetentionPolicy = props.getProperty("influxRetentionPolicy", influxRetentionPolicy);
         influxGzip = parseBoolean(props, "influxGzip", influxGzip);
         influxBatch = parseBoolean(props, "influxBatch", influxBatch);
         exitOnInfluxDBIOException = parseBoolean(props, "exitOnInfluxDBIOException", exitOnInfluxDBIOException);
         influxBatchMaxSize = parseInteger(props, "influxBatchMaxSize", influxBatchMaxSize);
         influxBatchMaxTimeMs = parseInteger(props, "influxBatchMaxTime", influxBatchMaxTimeMs);
-        limitingStrategy = parseLimitingStrategy(props);
+        influxHttpMaxInFlight = parseInteger(props, "influxHttp.maxInFlight", influxHttpMaxInFlight);
+        influxOrg = props.getProperty("influxOrg", influxOrg);
+        influxBucket = props.getProperty("influxBucket", influxBucket);
+        influxToken = props.getProperty("influxToken", influxToken);
+        influxPrecision = parseInfluxPrecision(props);
+        influxHttpMaxRetries = parseInteger(props, "influxHttp.maxRetries", influxHttpMaxRetries);
+        influxHttpTimeout = parseInteger(props, "influxHttp.timeout", influxHttpTimeout);
+        tagStateExpiry = parseLong(props, "limitingStrategy.tagStateExpiry", tagStateExpiry);
         defaultWithMotionSensitivityStrategyThreshold = parseDouble(props, "limitingStrategy.defaultWithMotionSensitivity.threshold", defaultWithMotionSensitivityStrategyThreshold);
         defaultWithMotionSensitivityStrategyNumberOfPreviousMeasurementsToKeep = parseInteger(props, "limitingStrategy.defaultWithMotionSensitivity.numberOfMeasurementsToKeep", defaultWithMotionSensitivityStrategyNumberOfPreviousMeasurementsToKeep);
+        // several inputs limit the measurements from their own threads
+        limitingStrategyConcurrent = parseBoolean(props, "limitingStrategy.concurrent", limitingStrategyConcurrent) || inputs.size() > 1;
+        limitingStrategy = parseLimitingStrategy(props); // the strategies read their settings when created
         tagProperties = parseTagProperties(props);
+        deduplicationEnabled = parseBoolean(props, "deduplication.enabled", deduplicationEnabled);
+        deduplicationWindow = parseLong(props, "deduplication.window", deduplicationWindow);
+        deduplicationCapacity = parseInteger(props, "deduplication.capacity", deduplicationCapacity);
+        spoolEnabled = parseBoolean(props, "spool.enabled", spoolEnabled);
+        spoolDirectory = props.getProperty("spool.directory", spoolDirectory);
+        spoolSegmentSize = parseInteger(props, "spool.segmentSize", spoolSegmentSize);
+        spoolMaxSize = parseLong(props, "spool.maxSize", spoolMaxSize);
+        spoolBatchSize = parseInteger(props, "spool.batchSize", spoolBatchSize);
+        spoolRetryInterval = parseLong(props, "spool.retryInterval", spoolRetryInterval);
+        localDirectory = props.getProperty("local.directory", localDirectory);
+        localBlockSize = parseInteger(props, "local.blockSize", localBlockSize);
+        localFlushInterval = parseLong(props, "local.flushInterval", localFlushInterval);
+        apiPort = parseInteger(props, "api.port", apiPort);
+        apiCapacity = parseInteger(props, "api.capacity", apiCapacity);
         prometheusHttpPort = parseInteger(props, "prometheusHttpPort", prometheusHttpPort);
+        prometheusSnapshot = parsePrometheusMode(props);
+        prometheusExpiry = parseLong(props, "prometheus.expiry", prometheusExpiry);
+        metricsEnabled = parseBoolean(props, "metrics.enabled", metricsEnabled);
+        metricsInfluxInterval = parseLong(props, "metrics.influxInterval", metricsInfluxInterval);
+        metricsInfluxMeasurement = props.getProperty("metrics.influxMeasurement", metricsInfluxMeasurement);
+        migrationThreads = parseInteger(props, "migration.threads", migrationThreads);
+        migrationChunkSize = parseLong(props, "migration.chunkSize", migrationChunkSize);
+        migrationCheckpointFile = props.getProperty("migration.checkpointFile", migrationCheckpointFile);
+        if (parseBoolean(props, "replay.enabled", false)) {
+            replayClock = new ReplayClock(parseDouble(props, "replay.speed", 0));
+            timestampProvider = replayClock;
+        }
         validateConfig();
     }
 
     private static void validateConfig() {
+        if (pipelineEnabled && replayClock == null) {
+            for (InputConfig input : inputs) {
+                if (!input.readsPackets()) {
+                    throw new IllegalStateException("The pipeline can not be used with the line parser of the input \""
+                        + input.getName() + "\". Please set input.parser=stream or input.format=btsnoop, or set "
+                        + "pipeline.enabled=false.");
+                }
+            }
+        }
         if (FILTER_INFLUXDB_FIELDS.isEmpty()) {
             switch (storageValues) {
                 case "whitelist":
@@ -225,16 +378,101 @@ public abstract class Config {
         return p -> p.getLeft().substring(4, 16);
     }
 
+    private static List<InputConfig> parseInputs(final Properties props) {
+        final String value = props.getProperty("inputs");
+        if (StringUtils.isBlank(value)) {
+            return Collections.singletonList(InputConfig.defaultValues());
+        }
+        final List<InputConfig> result = new ArrayList<>();
+        for (String name : value.split(",")) {
+            name = name.trim();
+            if (name.isEmpty()) {
+                continue;
+            }
+            if (name.equals("parser") || name.equals("format") || name.equals("file")) {
+                throw new IllegalStateException("Invalid input name \"" + name + "\", it conflicts with the input." + name + " property");
+            }
+            final String prefix = "input." + name + ".";
+            final InputConfig.Builder builder = InputConfig.builder(name);
+            for (String key : props.stringPropertyNames()) {
+                if (key.startsWith(prefix)) {
+                    builder.add(key.substring(prefix.length()), props.getProperty(key));
+                }
+            }
+            result.add(builder.build());
+        }
+        return result;
+    }
+
     private static LimitingStrategy parseLimitingStrategy(final Properties props) {
         final String strategy = props.getProperty("limitingStrategy");
         if (strategy != null) {
             if ("defaultWithMotionSensitivity".equals(strategy)) {
-                return new DefaultDiscardingWithMotionSensitivityStrategy();
+                return createMotionSensitivityStrategy();
             }
         }
+        if (limitingStrategyConcurrent) {
+            return new ConcurrentDiscardUntilEnoughTimeHasElapsedStrategy();
+        }
         return new DiscardUntilEnoughTimeHasElapsedStrategy();
     }
 
+    static LimitingStrategy createMotionSensitivityStrategy() {
+        if (limitingStrategyConcurrent) {
+            return new StripedLimitingStrategy(DefaultDiscardingWithMotionSensitivityStrategy::new);
+        }
+        return new DefaultDiscardingWithMotionSensitivityStrategy();
+    }
+
+    private static TimeUnit parseInfluxPrecision(final Properties props) {
+        final String precision = props.getProperty("influxPrecision");
+        if (precision != null) {
+            switch (precision) {
+                case "s":
+                    return TimeUnit.SECONDS;
+                case "ms":
+                    return TimeUnit.MILLISECONDS;
+                case "us":
+                    return TimeUnit.MICROSECONDS;
+                case "ns":
+                    return TimeUnit.NANOSECONDS;
+                default:
+                    LOG.warn("Unknown influxPrecision value: " + precision);
+            }
+        }
+        return influxPrecision;
+    }
+
+    private static boolean parsePrometheusMode(final Properties props) {
+        final String mode = props.getProperty("prometheus.mode");
+        if (mode != null) {
+            switch (mode) {
+                case "gauges":
+                    return false;
+                case "snapshot":
+                    return true;
+                default:
+                    LOG.warn("Unknown prometheus.mode value: " + mode);
+            }
+        }
+        return prometheusSnapshot;
+    }
+
+    private static OverflowPolicy parseOverflowPolicy(final Properties props, final String key, final OverflowPolicy defaultPolicy) {
+        final String policy = props.getProperty(key);
+        if (policy != null) {
+            switch (policy) {
+                case "drop":
+                    return OverflowPolicy.DROP;
+                case "block":
+                    return OverflowPolicy.BLOCK;
+                default:
+                    LOG.warn("Unknown " + key + " value: " + policy);
+            }
+        }
+        return defaultPolicy;
+    }
+
     private static Collection<? extends String> parseFilterMacs(final Properties props) {
         return Optional.ofNullable(props.getProperty("filter.macs"))
             .map(value -> Arrays.stream(value.split(","))
@@ -355,14 +593,49 @@ public abstract class Config {
     }
 
     private static DBConnection createDBConnection() {
+        final String[] methods = StringUtils.split(storageMethod, ',');
+        if (methods.length <= 1) {
+            return spooled(createStorageConnection(storageMethod), Paths.get(spoolDirectory));
+        }
+        // each database has a spool of its own, so that a measurement is acknowledged only once that database has it
+        final Map<String, DBConnection> connections = new LinkedHashMap<>();
+        for (final String method : methods) {
+            final DBConnection connection = spooled(createStorageConnection(method.trim()), Paths.get(spoolDirectory, method.trim()));
+            if (connections.put(method.trim(), connection) != null) {
+                throw new IllegalArgumentException("Storage method given more than once: " + method.trim());
+            }
+        }
+        return new CompositeDBConnection(connections, storageQueueSize, storageOverflowPolicy);
+    }
+
+    private static DBConnection spooled(final DBConnection connection, final Path directory) {
+        if (spoolEnabled) {
+            LOG.info("Spooling measurements to disk in: " + directory);
+            return new SpoolingDBConnection(connection, directory);
+        }
+        return connection;
+    }
+
+    private static DBConnection createStorageConnection(final String storageMethod) {
         LOG.info("Creating database connection for storageMethod: " + storageMethod);
         switch (storageMethod) {
             case "influxdb":
                 return new InfluxDBConnection();
+            case "influxdb_http":
+                return new InfluxDBHttpConnection();
+            case "influxdb2":
+                return new InfluxDB2Connection();
             case "influxdb_legacy":
                 return new LegacyInfluxDBConnection();
             case "prometheus":
+                if (prometheusSnapshot) {
+                    return new PrometheusSnapshotExporter(getPrometheusHttpPort());
+                }
                 return new PrometheusExporter(getPrometheusHttpPort());
+            case "local":
+                return new LocalDBConnection();
+            case "api":
+                return new QueryApiServer();
             case "dummy":
                 return new DummyDBConnection();
             default:
@@ -439,6 +712,44 @@ public abstract class Config {
         return influxBatchMaxTimeMs;
     }
 
+    public static String getInfluxOrg() {
+        return influxOrg;
+    }
+
+    public static String getInfluxBucket() {
+        return influxBucket;
+    }
+
+    /**
+     * @return the bucket to write the measurements of the tag into, as given
+     * by tag.MAC.influxBucket, or the default bucket
+     */
+    public static String getInfluxBucket(String mac) {
+        return Optional.ofNullable(tagProperties.get(mac))
+            .map(TagProperties::getInfluxBucket)
+            .orElse(influxBucket);
+    }
+
+    public static String getInfluxToken() {
+        return influxToken;
+    }
+
+    public static TimeUnit getInfluxPrecision() {
+        return influxPrecision;
+    }
+
+    public static int getInfluxHttpMaxInFlight() {
+        return influxHttpMaxInFlight;
+    }
+
+    public static int getInfluxHttpMaxRetries() {
+        return influxHttpMaxRetries;
+    }
+
+    public static int getInfluxHttpTimeout() {
+        return influxHttpTimeout;
+    }
+
     public static long getMeasurementUpdateLimit() {
         return measurementUpdateLimit;
     }
@@ -459,6 +770,47 @@ public abstract class Config {
         return dumpCommand;
     }
 
+    public static String getInputParser() {
+        return inputParser;
+    }
+
+    public static String getInputFormat() {
+        return inputFormat;
+    }
+
+    public static String getInputFile() {
+        return inputFile;
+    }
+
+    /**
+     * @return the input sources to read, each in its own thread. Contains only
+     * the input configured with the global settings if the inputs property is
+     * not set.
+     */
+    public static List<InputConfig> getInputs() {
+        return inputs;
+    }
+
+    public static boolean isPipelineEnabled() {
+        return pipelineEnabled;
+    }
+
+    public static int getPipelineQueueSize() {
+        return pipelineQueueSize;
+    }
+
+    public static OverflowPolicy getPipelineOverflowPolicy() {
+        return pipelineOverflowPolicy;
+    }
+
+    public static int getStorageQueueSize() {
+        return storageQueueSize;
+    }
+
+    public static OverflowPolicy getStorageOverflowPolicy() {
+        return storageOverflowPolicy;
+    }
+
     public static String getTagName(String mac) {
         return TAG_NAMES.get(mac);
     }
@@ -467,10 +819,64 @@ public abstract class Config {
         return prometheusHttpPort;
     }
 
+    public static boolean isPrometheusSnapshot() {
+        return prometheusSnapshot;
+    }
+
+    public static long getPrometheusExpiry() {
+        return prometheusExpiry;
+    }
+
+    public static boolean isMetricsEnabled() {
+        return metricsEnabled;
+    }
+
+    public static long getMetricsInfluxInterval() {
+        return metricsInfluxInterval;
+    }
+
+    public static String getMetricsInfluxMeasurement() {
+        return metricsInfluxMeasurement;
+    }
+
+    public static int getMigrationThreads() {
+        return migrationThreads;
+    }
+
+    public static long getMigrationChunkSize() {
+        return migrationChunkSize;
+    }
+
+    public static String getMigrationCheckpointFile() {
+        return migrationCheckpointFile;
+    }
+
+    /**
+     * @param method a storage method
+     * @return true if the measurements are stored with the storage method,
+     * either alone or as one of several
+     */
+    public static boolean isStorageMethod(final String method) {
+        for (final String configured : StringUtils.split(storageMethod, ',')) {
+            if (configured.trim().equals(method)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     public static Supplier<Long> getTimestampProvider() {
         return timestampProvider;
     }
 
+    /**
+     * @return the clock driven by the capture being replayed, which is then
+     * also the timestamp provider, or null if not replaying
+     */
+    public static ReplayClock getReplayClock() {
+        return replayClock;
+    }
+
     public static LimitingStrategy getLimitingStrategy() {
         return limitingStrategy;
     }
@@ -485,7 +891,75 @@ public abstract class Config {
         return defaultWithMotionSensitivityStrategyThreshold;
     }
 
+    public static long getTagStateExpiry() {
+        return tagStateExpiry;
+    }
+
     public static int getDefaultWithMotionSensitivityStrategyNumberOfPreviousMeasurementsToKeep() {
         return defaultWithMotionSensitivityStrategyNumberOfPreviousMeasurementsToKeep;
     }
+
+    /**
+     * @return true if the limiting strategies are thread safe, so that measurements can be limited from several
+     * threads at once
+     */
+    public static boolean isLimitingStrategyConcurrent() {
+        return limitingStrategyConcurrent;
+    }
+
+    public static boolean isDeduplicationEnabled() {
+        return deduplicationEnabled;
+    }
+
+    public static long getDeduplicationWindow() {
+        return deduplicationWindow;
+    }
+
+    public static int getDeduplicationCapacity() {
+        return deduplicationCapacity;
+    }
+
+    public static boolean isSpoolEnabled() {
+        return spoolEnabled;
+    }
+
+    public static String getSpoolDirectory() {
+        return spoolDirectory;
+    }
+
+    public static int getSpoolSegmentSize() {
+        return spoolSegmentSize;
+    }
+
+    public static long getSpoolMaxSize() {
+        return spoolMaxSize;
+    }
+
+    public static int getSpoolBatchSize() {
+        return spoolBatchSize;
+    }
+
+    public static long getSpoolRetryInterval() {
+        return spoolRetryInterval;
+    }
+
+    public static String getLocalDirectory() {
+        return localDirectory;
+    }
+
+    public static int getLocalBlockSize() {
+        return localBlockSize;
+    }
+
+    public static long getLocalFlushInterval() {
+        return localFlushInterval;
+    }
+
+    public static int getApiPort() {
+        return apiPort;
+    }
+
+    public static int getApiCapacity() {
+        return apiCapacity;
+    }
 }
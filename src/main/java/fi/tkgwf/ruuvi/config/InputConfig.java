@@ -0,0 +1,116 @@
+package fi.tkgwf.ruuvi.config;
+
+import java.util.Optional;
+import org.apache.commons.lang3.StringUtils;
+
+/**
+ * The settings of one input source, such as one Bluetooth adapter. The settings
+ * not given for the input are taken from the global settings.
+ */
+public class InputConfig {
+    private final String name;
+    private final String[] scanCommand;
+    private final String[] dumpCommand;
+    private final String parser;
+    private final String format;
+    private final String file;
+    private final String receiver;
+
+    private InputConfig(final String name, final String[] scanCommand, final String[] dumpCommand, final String parser,
+                        final String format, final String file, final String receiver) {
+        this.name = name;
+        this.scanCommand = Optional.ofNullable(scanCommand).orElse(Config.getScanCommand());
+        this.dumpCommand = Optional.ofNullable(dumpCommand).orElse(Config.getDumpCommand());
+        this.parser = Optional.ofNullable(parser).orElse(Config.getInputParser());
+        this.format = Optional.ofNullable(format).orElse(Config.getInputFormat());
+        this.file = Optional.ofNullable(file).orElse(Config.getInputFile());
+        this.receiver = Optional.ofNullable(receiver).orElse(Config.getReceiver());
+    }
+
+    /**
+     * @return the input configured with the global settings, used when no
+     * separate inputs are configured
+     */
+    public static InputConfig defaultValues() {
+        return new InputConfig("default", null, null, null, null, null, null);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String[] getScanCommand() {
+        return scanCommand;
+    }
+
+    public String[] getDumpCommand() {
+        return dumpCommand;
+    }
+
+    public String getParser() {
+        return parser;
+    }
+
+    public String getFormat() {
+        return format;
+    }
+
+    /**
+     * @return the file to read the input from, or null to read the output of
+     * the dump command
+     */
+    public String getFile() {
+        return file;
+    }
+
+    public String getReceiver() {
+        return receiver;
+    }
+
+    /**
+     * @return true if the input is read as packets, with the stream parser or
+     * in the btsnoop format, rather than line by line
+     */
+    public boolean readsPackets() {
+        return "btsnoop".equals(format) || "stream".equals(parser);
+    }
+
+    public static Builder builder(final String name) {
+        return new Builder(name);
+    }
+
+    public static class Builder {
+        private final String name;
+        private String[] scanCommand;
+        private String[] dumpCommand;
+        private String parser;
+        private String format;
+        private String file;
+        private String receiver;
+
+        public Builder(final String name) {
+            this.name = name;
+        }
+
+        public Builder add(final String key, final String value) {
+            if ("command.scan".equals(key)) {
+                this.scanCommand = value.split(" ");
+            } else if ("command.dump".equals(key)) {
+                this.dumpCommand = value.split(" ");
+            } else if ("parser".equals(key)) {
+                this.parser = value;
+            } else if ("format".equals(key)) {
+                this.format = value;
+            } else if ("file".equals(key)) {
+                this.file = StringUtils.trimToNull(value);
+            } else if ("receiver".equals(key)) {
+                this.receiver = value;
+            }
+            return this;
+        }
+
+        public InputConfig build() {
+            return new InputConfig(name, scanCommand, dumpCommand, parser, format, file, receiver);
+        }
+    }
+}
@@ -1,7 +1,6 @@
 package fi.tkgwf.ruuvi.config;
 
 import fi.tkgwf.ruuvi.strategy.LimitingStrategy;
-import fi.tkgwf.ruuvi.strategy.impl.DefaultDiscardingWithMotionSensitivityStrategy;
 
 import java.util.Collection;
 import java.util.HashSet;
@@ -12,9 +11,11 @@ public class TagProperties {
     private final String mac;
     private final LimitingStrategy limitingStrategy;
     private final Predicate<String> influxDbFieldFilter;
+    private final String influxBucket;
 
-    private TagProperties(final String mac, final LimitingStrategy limitingStrategy, final Predicate<String> influxFieldFilter) {
+    private TagProperties(final String mac, final LimitingStrategy limitingStrategy, final Predicate<String> influxFieldFilter, final String influxBucket) {
         this.mac = mac;
+        this.influxBucket = influxBucket;
         this.limitingStrategy = Optional.ofNullable(limitingStrategy)
             .orElse(Config.getLimitingStrategy());
         this.influxDbFieldFilter = Optional.ofNullable(influxFieldFilter)
@@ -24,7 +25,8 @@ public class TagProperties {
     public static TagProperties defaultValues() {
         return new TagProperties(null,
             Config.getLimitingStrategy(),
-            Config.getAllowedInfluxDbFieldsPredicate());
+            Config.getAllowedInfluxDbFieldsPredicate(),
+            null);
     }
 
     public String getMac() {
@@ -39,6 +41,14 @@ public class TagProperties {
         return influxDbFieldFilter;
     }
 
+    /**
+     * @return the InfluxDB 2.x bucket to write the measurements of this tag
+     * into, or null for the default bucket
+     */
+    public String getInfluxBucket() {
+        return influxBucket;
+    }
+
     public static Builder builder(final String mac) {
         return new Builder(mac);
     }
@@ -49,6 +59,7 @@ public class TagProperties {
         private LimitingStrategy limitingStrategy;
         private String storageValues;
         private Collection<String> storageValuesList = new HashSet<>();
+        private String influxBucket;
 
         public Builder(final String mac) {
             this.mac = mac;
@@ -57,19 +68,21 @@ public class TagProperties {
         public Builder add(final String key, final String value) {
             if ("limitingStrategy".equals(key)) {
                 if ("onMovement".equals(value)) {
-                    this.limitingStrategy = new DefaultDiscardingWithMotionSensitivityStrategy();
+                    this.limitingStrategy = Config.createMotionSensitivityStrategy();
                 }
             } else if ("storage.values".equals(key)) {
                 this.storageValues = value;
             } else if ("storage.values.list".equals(key)) {
                 this.storageValuesList = Config.parseFilterInfluxDbFields(value);
+            } else if ("influxBucket".equals(key)) {
+                this.influxBucket = value;
             }
             return this;
         }
 
         public TagProperties build() {
             return new TagProperties(mac, limitingStrategy,
-                Config.createInfluxDbFieldFilter(storageValues, storageValuesList));
+                Config.createInfluxDbFieldFilter(storageValues, storageValuesList), influxBucket);
         }
     }
 }
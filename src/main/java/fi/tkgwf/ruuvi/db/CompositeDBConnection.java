@@ -0,0 +1,201 @@
+package fi.tkgwf.ruuvi.db;
+
+import fi.tkgwf.ruuvi.bean.EnhancedRuuviMeasurement;
+import fi.tkgwf.ruuvi.config.Config;
+import fi.tkgwf.ruuvi.metrics.CollectorMetrics;
+import fi.tkgwf.ruuvi.pipeline.OverflowPolicy;
+import fi.tkgwf.ruuvi.pipeline.StageQueue;
+import fi.tkgwf.ruuvi.utils.LatencyHistogram;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import org.apache.log4j.Logger;
+import org.influxdb.InfluxDBIOException;
+
+/**
+ * Stores the measurements into several databases at once. Each database has
+ * its own queue and thread, so a slow or unreachable database only fills its
+ * own queue, and the measurements to it are dropped or the caller waits,
+ * depending on the overflow policy, without delaying the other databases.
+ * <p>
+ * The measurements are shared between the databases and must not be modified
+ * by them.
+ * <p>
+ * {@link #saveAll} bypasses the queues and saves the measurements into each
+ * database on the calling thread, so that none of them are dropped and a
+ * failure is thrown to the caller.
+ * <p>
+ * When exitOnInfluxDBIOException is set, an {@link InfluxDBIOException} from
+ * any of the databases is thrown from the next {@link #save}, so that the
+ * collector exits the same way as with a single database.
+ */
+public class CompositeDBConnection implements DBConnection {
+
+    private static final Logger LOG = Logger.getLogger(CompositeDBConnection.class);
+
+    private static final long CLOSE_TIMEOUT_MILLIS = 10000;
+
+    private final List<Sink> sinks = new ArrayList<>();
+    private volatile boolean closed;
+    private volatile InfluxDBIOException fatal;
+
+    /**
+     * @param connections the databases by their names, the names are used
+     * for the thread names and the statistics
+     * @param queueSize capacity of the queue of each database
+     * @param overflowPolicy what to do when the queue of a database is full
+     */
+    public CompositeDBConnection(Map<String, DBConnection> connections, int queueSize, OverflowPolicy overflowPolicy) {
+        connections.forEach((name, connection) -> sinks.add(new Sink(name, connection, queueSize, overflowPolicy)));
+        sinks.forEach(sink -> sink.thread.start());
+    }
+
+    @Override
+    public void save(EnhancedRuuviMeasurement measurement) {
+        InfluxDBIOException ex = fatal;
+        if (ex != null) {
+            throw ex;
+        }
+        for (Sink sink : sinks) {
+            sink.queue.put(measurement, () -> closed);
+        }
+    }
+
+    /**
+     * Saves the measurements into each database in turn, in between the
+     * measurements stored by the thread of the database
+     *
+     * @param measurements the measurements, in order
+     * @throws RuntimeException the first failure, after the measurements
+     * have been saved into the other databases
+     */
+    @Override
+    public void saveAll(Collection<EnhancedRuuviMeasurement> measurements) {
+        RuntimeException failure = null;
+        for (Sink sink : sinks) {
+            try {
+                sink.saveAll(measurements);
+            } catch (RuntimeException ex) {
+                if (failure == null) {
+                    failure = ex;
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * @return the statistics of each database
+     */
+    public List<String> getStatistics() {
+        List<String> statistics = new ArrayList<>();
+        sinks.forEach(sink -> statistics.add(sink.toString()));
+        return Collections.unmodifiableList(statistics);
+    }
+
+    /**
+     * Stores the measurements left in the queues for a while and closes the
+     * databases.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        long deadline = System.currentTimeMillis() + CLOSE_TIMEOUT_MILLIS;
+        for (Sink sink : sinks) {
+            try {
+                sink.thread.join(Math.max(1, deadline - System.currentTimeMillis()));
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            if (sink.thread.isAlive()) {
+                LOG.warn("Gave up waiting for " + sink.name + " to store " + sink.queue.depth() + " measurements");
+            }
+            sink.connection.close();
+            CollectorMetrics.unregister(sink.queue);
+        }
+        LOG.info("Databases closed: " + getStatistics());
+    }
+
+    private class Sink {
+
+        private final String name;
+        private final DBConnection connection;
+        private final StageQueue<EnhancedRuuviMeasurement> queue;
+        private final Thread thread;
+        private final LatencyHistogram latency = new LatencyHistogram();
+        private final LongAdder failed = new LongAdder();
+        /**
+         * Accessed only by the thread of the sink
+         */
+        private boolean failing;
+
+        Sink(String name, DBConnection connection, int queueSize, OverflowPolicy overflowPolicy) {
+            this.name = name;
+            this.connection = connection;
+            this.queue = new StageQueue<>(name, queueSize, overflowPolicy);
+            CollectorMetrics.register(queue);
+            this.thread = new Thread(this::run, "sink-" + name);
+            this.thread.setDaemon(true);
+        }
+
+        private void run() {
+            int idleCount = 0;
+            while (true) {
+                EnhancedRuuviMeasurement measurement = queue.poll();
+                if (measurement == null) {
+                    if (closed) {
+                        return;
+                    }
+                    StageQueue.idle(idleCount++);
+                    continue;
+                }
+                idleCount = 0;
+                long start = System.nanoTime();
+                try {
+                    synchronized (this) {
+                        connection.save(measurement);
+                    }
+                    if (failing) {
+                        LOG.info("Storing measurements into " + name + " works again");
+                        failing = false;
+                    }
+                } catch (Exception ex) {
+                    if (ex instanceof InfluxDBIOException && Config.exitOnInfluxDBIOException()) {
+                        fatal = (InfluxDBIOException) ex;
+                    }
+                    failed.increment();
+                    if (!failing) {
+                        LOG.error("Failed to store measurements into " + name, ex);
+                        failing = true;
+                    }
+                }
+                latency.record(System.nanoTime() - start);
+            }
+        }
+
+        private void saveAll(Collection<EnhancedRuuviMeasurement> measurements) {
+            long start = System.nanoTime();
+            try {
+                synchronized (this) {
+                    connection.saveAll(measurements);
+                }
+            } catch (RuntimeException ex) {
+                failed.add(measurements.size());
+                throw ex;
+            } finally {
+                latency.record(System.nanoTime() - start);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return name + "{depth=" + queue.depth() + "/" + queue.capacity() + ", dropped=" + queue.dropped()
+                + ", failed=" + failed.sum() + ", latency=" + latency + '}';
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package fi.tkgwf.ruuvi.db;
 
 import fi.tkgwf.ruuvi.bean.EnhancedRuuviMeasurement;
+import java.util.Collection;
 
 public interface DBConnection {
 
@@ -11,6 +12,16 @@ public interface DBConnection {
      */
     void save(EnhancedRuuviMeasurement measurement);
 
+    /**
+     * Saves the measurements in one go if the database supports it, and
+     * throws an exception if saving them failed, rather than just logging it
+     *
+     * @param measurements the measurements, in order
+     */
+    default void saveAll(Collection<EnhancedRuuviMeasurement> measurements) {
+        measurements.forEach(this::save);
+    }
+
     /**
      * Closes the DB connection
      */
@@ -0,0 +1,91 @@
+package fi.tkgwf.ruuvi.db;
+
+import fi.tkgwf.ruuvi.bean.EnhancedRuuviMeasurement;
+import fi.tkgwf.ruuvi.config.Config;
+import fi.tkgwf.ruuvi.utils.LineProtocolEncoder;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import org.influxdb.InfluxDBIOException;
+
+/**
+ * Writes the measurements into the buckets of InfluxDB 2.x, or the databases
+ * of InfluxDB 3.x, authenticating with an API token. The measurements of each
+ * tag are written into the bucket given by tag.MAC.influxBucket, or into the
+ * default bucket, so that for example tags sending at a high rate can be
+ * written into a bucket with a shorter retention.
+ */
+public class InfluxDB2Connection implements DBConnection {
+
+    private final Function<String, LineProtocolWriter> writerFactory;
+    private final boolean batch;
+    private final Map<String, LineProtocolWriter> writers = new ConcurrentHashMap<>();
+
+    public InfluxDB2Connection() {
+        this(bucket -> new LineProtocolWriter(
+                LineProtocolWriter.writeUrlV2(Config.getInfluxUrl(), Config.getInfluxOrg(), bucket, Config.getInfluxPrecision()),
+                LineProtocolWriter.tokenAuthorization(Config.getInfluxToken()),
+                Config.isInfluxGzip(),
+                Config.getInfluxBatchMaxSize(),
+                Config.getInfluxBatchMaxTimeMs(),
+                Config.getInfluxHttpMaxInFlight(),
+                Config.getInfluxHttpMaxRetries(),
+                Config.getInfluxHttpTimeout(),
+                new LineProtocolEncoder(Config.getInfluxMeasurement(), Config.getInfluxPrecision())
+        ), Config.isInfluxBatch());
+    }
+
+    /**
+     * @param writerFactory creates the writer for a bucket, called once for
+     * each bucket when it's first written to
+     * @param batch whether to write the measurements in batches in the
+     * background, or one by one in the calling thread
+     */
+    public InfluxDB2Connection(Function<String, LineProtocolWriter> writerFactory, boolean batch) {
+        this.writerFactory = writerFactory;
+        this.batch = batch;
+    }
+
+    private LineProtocolWriter writer(String mac) {
+        return writers.computeIfAbsent(Config.getInfluxBucket(mac), writerFactory);
+    }
+
+    @Override
+    public void save(EnhancedRuuviMeasurement measurement) {
+        if (batch) {
+            writer(measurement.getMac()).add(measurement);
+        } else {
+            saveAll(Collections.singletonList(measurement));
+        }
+    }
+
+    /**
+     * Writes the measurements synchronously, in one request per bucket, so
+     * that a failure is thrown to the caller
+     */
+    @Override
+    public void saveAll(Collection<EnhancedRuuviMeasurement> measurements) {
+        Map<LineProtocolWriter, List<EnhancedRuuviMeasurement>> byBucket = new LinkedHashMap<>();
+        for (EnhancedRuuviMeasurement measurement : measurements) {
+            byBucket.computeIfAbsent(writer(measurement.getMac()), w -> new ArrayList<>()).add(measurement);
+        }
+        try {
+            for (Map.Entry<LineProtocolWriter, List<EnhancedRuuviMeasurement>> entry : byBucket.entrySet()) {
+                entry.getKey().write(entry.getValue());
+            }
+        } catch (IOException ex) {
+            throw new InfluxDBIOException(ex);
+        }
+    }
+
+    @Override
+    public void close() {
+        writers.values().forEach(LineProtocolWriter::close);
+    }
+}
@@ -2,15 +2,47 @@ package fi.tkgwf.ruuvi.db;
 
 import fi.tkgwf.ruuvi.bean.EnhancedRuuviMeasurement;
 import fi.tkgwf.ruuvi.config.Config;
-import fi.tkgwf.ruuvi.utils.InfluxDBConverter;
+import fi.tkgwf.ruuvi.metrics.CollectorMetrics;
+import fi.tkgwf.ruuvi.utils.LineProtocolEncoder;
+import fi.tkgwf.ruuvi.utils.Sweeper;
+import java.util.Collection;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import org.apache.log4j.Logger;
 import org.influxdb.InfluxDB;
 import org.influxdb.InfluxDBFactory;
-import org.influxdb.dto.Point;
 
+/**
+ * Writes the measurements into InfluxDB 1.x with the InfluxDB client library.
+ * <p>
+ * In batch mode the measurements are collected into a batch here rather than
+ * in the batch mode of the library, so that the batches are written as line
+ * protocol and recorded in the metrics of the collector. A full batch is
+ * written in the background while the next one is being collected, and
+ * storing waits if the previous one is still being written.
+ */
 public class InfluxDBConnection implements DBConnection {
 
+    private static final Logger LOG = Logger.getLogger(InfluxDBConnection.class);
+
+    private static final long CLOSE_TIMEOUT_MILLIS = 10000;
+
     private final InfluxDB influxDB;
+    private final String database;
+    private final String retentionPolicy;
+    private final boolean batch;
+    private final int batchSize;
+    private final long batchTimeNanos;
+    private final LineProtocolEncoder encoder = new LineProtocolEncoder();
+    private final StringBuilder batchLines = new StringBuilder();
+    private int batchCount;
+    private long batchStarted;
+    private final Semaphore writing = new Semaphore(1);
+    private final ExecutorService writer;
+    private final ScheduledFuture<?> flusher;
 
     public InfluxDBConnection() {
         this(
@@ -37,27 +69,144 @@ public class InfluxDBConnection implements DBConnection {
             int batchSize,
             int batchTime
     ) {
+        this.database = database;
+        this.retentionPolicy = retentionPolicy;
+        this.batch = batch;
+        this.batchSize = batchSize;
+        this.batchTimeNanos = TimeUnit.MILLISECONDS.toNanos(batchTime);
         influxDB = InfluxDBFactory.connect(url, user, password).setDatabase(database).setRetentionPolicy(retentionPolicy);
         if (gzip) {
             influxDB.enableGzip();
         } else {
             influxDB.disableGzip();
         }
+        influxDB.disableBatch();
         if (batch) {
-            influxDB.enableBatch(batchSize, batchTime, TimeUnit.MILLISECONDS);
+            writer = Executors.newSingleThreadExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "influxdb-batch-writer");
+                thread.setDaemon(true);
+                return thread;
+            });
+            flusher = Sweeper.schedule("InfluxDB batch", this::flushIfDue, Math.max(batchTime / 2, 1));
         } else {
-            influxDB.disableBatch();
+            writer = null;
+            flusher = null;
         }
     }
 
     @Override
     public void save(EnhancedRuuviMeasurement measurement) {
-        Point point = InfluxDBConverter.toInflux(measurement);
-        influxDB.write(point);
+        if (batch) {
+            add(measurement);
+            return;
+        }
+        String line;
+        synchronized (encoder) {
+            line = encoder.encode(measurement);
+        }
+        if (line != null) {
+            write(line, 1);
+        }
+    }
+
+    /**
+     * Writes the measurements synchronously in one request, bypassing the
+     * batch mode, so that a failure is thrown to the caller
+     */
+    @Override
+    public void saveAll(Collection<EnhancedRuuviMeasurement> measurements) {
+        String lines;
+        synchronized (encoder) {
+            lines = encoder.encode(measurements);
+        }
+        if (!lines.isEmpty()) {
+            write(lines, measurements.size());
+        }
+    }
+
+    private void add(EnhancedRuuviMeasurement measurement) {
+        synchronized (encoder) {
+            int start = batchLines.length();
+            if (start > 0) {
+                batchLines.append('\n');
+            }
+            if (!encoder.append(measurement, batchLines)) {
+                batchLines.setLength(start);
+                return;
+            }
+            if (batchCount++ == 0) {
+                batchStarted = System.nanoTime();
+            }
+            if (batchCount >= batchSize) {
+                writing.acquireUninterruptibly();
+                writeBatch();
+            }
+        }
+    }
+
+    /**
+     * Writes the batch if it has been waiting for the batch time, unless the
+     * previous one is still being written, in which case it's tried again on
+     * the next run
+     */
+    private void flushIfDue() {
+        synchronized (encoder) {
+            if (batchCount > 0 && System.nanoTime() - batchStarted >= batchTimeNanos && writing.tryAcquire()) {
+                writeBatch();
+            }
+        }
+    }
+
+    /**
+     * Hands the current batch over to the writer thread, must be called while
+     * holding the lock of the encoder and a permit of {@link #writing}
+     */
+    private void writeBatch() {
+        String lines = batchLines.toString();
+        int count = batchCount;
+        batchLines.setLength(0);
+        batchCount = 0;
+        try {
+            writer.execute(() -> {
+                try {
+                    write(lines, count);
+                } catch (RuntimeException ex) {
+                    LOG.error("Failed to write " + count + " measurements to InfluxDB, dropping them", ex);
+                } finally {
+                    writing.release();
+                }
+            });
+        } catch (RuntimeException ex) {
+            writing.release();
+            throw ex;
+        }
+    }
+
+    private void write(String lines, int count) {
+        long start = System.nanoTime();
+        influxDB.write(database, retentionPolicy, InfluxDB.ConsistencyLevel.ONE, TimeUnit.MILLISECONDS, lines);
+        CollectorMetrics.influxWritten(count, System.nanoTime() - start);
     }
 
     @Override
     public void close() {
+        if (batch) {
+            flusher.cancel(false);
+            synchronized (encoder) {
+                if (batchCount > 0) {
+                    writing.acquireUninterruptibly();
+                    writeBatch();
+                }
+            }
+            writer.shutdown();
+            try {
+                if (!writer.awaitTermination(CLOSE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                    LOG.warn("Timed out waiting for the last batch to be written to InfluxDB");
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
         influxDB.close();
     }
 }
@@ -0,0 +1,72 @@
+package fi.tkgwf.ruuvi.db;
+
+import fi.tkgwf.ruuvi.bean.EnhancedRuuviMeasurement;
+import fi.tkgwf.ruuvi.config.Config;
+import fi.tkgwf.ruuvi.utils.LineProtocolEncoder;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import org.influxdb.InfluxDBIOException;
+
+/**
+ * Writes the measurements into InfluxDB 1.x with the built-in
+ * {@link LineProtocolWriter} instead of the InfluxDB client library. Uses the
+ * same settings as {@link InfluxDBConnection}.
+ */
+public class InfluxDBHttpConnection implements DBConnection {
+
+    private final LineProtocolWriter writer;
+    private final boolean batch;
+
+    public InfluxDBHttpConnection() {
+        this(new LineProtocolWriter(
+                LineProtocolWriter.writeUrl(Config.getInfluxUrl(), Config.getInfluxDatabase(), Config.getInfluxRetentionPolicy()),
+                LineProtocolWriter.basicAuthorization(Config.getInfluxUser(), Config.getInfluxPassword()),
+                Config.isInfluxGzip(),
+                Config.getInfluxBatchMaxSize(),
+                Config.getInfluxBatchMaxTimeMs(),
+                Config.getInfluxHttpMaxInFlight(),
+                Config.getInfluxHttpMaxRetries(),
+                Config.getInfluxHttpTimeout(),
+                new LineProtocolEncoder()
+        ), Config.isInfluxBatch());
+    }
+
+    /**
+     * @param writer the writer to write the measurements with, closed when
+     * this connection is closed
+     * @param batch whether to write the measurements in batches in the
+     * background, or one by one in the calling thread
+     */
+    public InfluxDBHttpConnection(LineProtocolWriter writer, boolean batch) {
+        this.writer = writer;
+        this.batch = batch;
+    }
+
+    @Override
+    public void save(EnhancedRuuviMeasurement measurement) {
+        if (batch) {
+            writer.add(measurement);
+        } else {
+            saveAll(Collections.singletonList(measurement));
+        }
+    }
+
+    /**
+     * Writes the measurements synchronously in one request, so that a failure
+     * is thrown to the caller
+     */
+    @Override
+    public void saveAll(Collection<EnhancedRuuviMeasurement> measurements) {
+        try {
+            writer.write(measurements);
+        } catch (IOException ex) {
+            throw new InfluxDBIOException(ex);
+        }
+    }
+
+    @Override
+    public void close() {
+        writer.close();
+    }
+}
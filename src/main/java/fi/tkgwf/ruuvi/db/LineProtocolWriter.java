@@ -0,0 +1,413 @@
+package fi.tkgwf.ruuvi.db;
+
+import fi.tkgwf.ruuvi.bean.EnhancedRuuviMeasurement;
+import fi.tkgwf.ruuvi.metrics.CollectorMetrics;
+import fi.tkgwf.ruuvi.utils.LineProtocolEncoder;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.GZIPOutputStream;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.log4j.Logger;
+
+/**
+ * Writes measurements as line protocol to the HTTP write API of InfluxDB
+ * without the InfluxDB client library.
+ * <p>
+ * The measurements given to {@link #add(EnhancedRuuviMeasurement)} are
+ * collected into a batch, which is sent when it has reached the batch size or
+ * has been waiting for the batch time. Up to a given number of batches are
+ * sent at once, each over a kept-alive connection, after which adding blocks
+ * until one of them has completed. Failed requests are retried with an
+ * increasing delay when the server is unavailable or overloaded, and dropped
+ * when the server rejects them or the retries run out.
+ */
+public class LineProtocolWriter implements Closeable {
+
+    private static final Logger LOG = Logger.getLogger(LineProtocolWriter.class);
+
+    private static final long INITIAL_BACKOFF_MILLIS = 100;
+    private static final long MAX_BACKOFF_MILLIS = 10000;
+    private static final long CLOSE_TIMEOUT_MILLIS = 10000;
+
+    private final URL url;
+    private final String authorization;
+    private final boolean gzip;
+    private final int batchSize;
+    private final long batchTimeNanos;
+    private final int maxRetries;
+    private final int timeout;
+    private final LineProtocolEncoder encoder;
+    private final Semaphore inFlight;
+    private final ExecutorService senders;
+    private final Thread flusher;
+    private final LongAdder dropped = new LongAdder();
+    private final StringBuilder batch = new StringBuilder();
+    private int batchCount;
+    private long batchStarted;
+    private volatile boolean closed;
+
+    /**
+     * @param url the write endpoint, including the query parameters, see
+     * {@link #writeUrl(String, String, String)}
+     * @param authorization the value of the Authorization header, or null
+     * @param gzip whether to compress the requests
+     * @param batchSize maximum number of measurements to send at once
+     * @param batchTime maximum milliseconds to wait for a batch to fill up
+     * @param maxInFlight maximum number of batches sent at once
+     * @param maxRetries times to retry a failed request before dropping it
+     * @param timeout connect and read timeout in milliseconds
+     * @param encoder the encoder to write the measurements with, using the
+     * same timestamp precision as given in the url
+     */
+    public LineProtocolWriter(URL url, String authorization, boolean gzip, int batchSize, long batchTime,
+                              int maxInFlight, int maxRetries, int timeout, LineProtocolEncoder encoder) {
+        this.url = url;
+        this.authorization = authorization;
+        this.gzip = gzip;
+        this.batchSize = batchSize;
+        this.batchTimeNanos = TimeUnit.MILLISECONDS.toNanos(batchTime);
+        this.maxRetries = maxRetries;
+        this.timeout = timeout;
+        this.encoder = encoder;
+        this.inFlight = new Semaphore(maxInFlight);
+        AtomicInteger senderCount = new AtomicInteger();
+        this.senders = Executors.newFixedThreadPool(maxInFlight, runnable -> {
+            Thread thread = new Thread(runnable, "influxdb-sender-" + senderCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.flusher = new Thread(this::flushPeriodically, "influxdb-flusher");
+        this.flusher.setDaemon(true);
+        this.flusher.start();
+    }
+
+    /**
+     * @param baseUrl the url of the server, such as http://localhost:8086
+     * @param database the database to write to
+     * @param retentionPolicy the retention policy to write to, or null for the
+     * default one
+     * @return the url of the InfluxDB 1.x write endpoint with millisecond
+     * precision
+     */
+    public static URL writeUrl(String baseUrl, String database, String retentionPolicy) {
+        String query = "db=" + urlEncode(database) + "&precision=ms";
+        if (StringUtils.isNotBlank(retentionPolicy)) {
+            query += "&rp=" + urlEncode(retentionPolicy);
+        }
+        return url(baseUrl, "/write?" + query);
+    }
+
+    /**
+     * @param baseUrl the url of the server, such as http://localhost:8086
+     * @param org the organization the bucket belongs to, may be blank for
+     * InfluxDB 3.x
+     * @param bucket the bucket, or the database on InfluxDB 3.x, to write to
+     * @param precision the precision of the timestamps, seconds, milliseconds,
+     * microseconds or nanoseconds
+     * @return the url of the InfluxDB 2.x write endpoint, also supported by
+     * InfluxDB 3.x
+     */
+    public static URL writeUrlV2(String baseUrl, String org, String bucket, TimeUnit precision) {
+        String query = "bucket=" + urlEncode(bucket) + "&precision=" + precisionName(precision);
+        if (StringUtils.isNotBlank(org)) {
+            query += "&org=" + urlEncode(org);
+        }
+        return url(baseUrl, "/api/v2/write?" + query);
+    }
+
+    private static String precisionName(TimeUnit precision) {
+        switch (precision) {
+            case SECONDS:
+                return "s";
+            case MILLISECONDS:
+                return "ms";
+            case MICROSECONDS:
+                return "us";
+            case NANOSECONDS:
+                return "ns";
+            default:
+                throw new IllegalArgumentException("Unsupported precision: " + precision);
+        }
+    }
+
+    static URL url(String baseUrl, String pathAndQuery) {
+        try {
+            return new URL(StringUtils.removeEnd(baseUrl, "/") + pathAndQuery);
+        } catch (MalformedURLException ex) {
+            throw new IllegalArgumentException("Invalid InfluxDB url: " + baseUrl, ex);
+        }
+    }
+
+    static String urlEncode(String value) {
+        try {
+            return URLEncoder.encode(value, "UTF-8");
+        } catch (UnsupportedEncodingException ex) {
+            throw new IllegalStateException(ex); // UTF-8 is always supported
+        }
+    }
+
+    /**
+     * @return the value of the Authorization header for an InfluxDB 2.x API
+     * token, or null if the token is blank
+     */
+    public static String tokenAuthorization(String token) {
+        return StringUtils.isBlank(token) ? null : "Token " + token;
+    }
+
+    /**
+     * @return the value of a basic Authorization header for the user, or null
+     * if the user is blank
+     */
+    public static String basicAuthorization(String user, String password) {
+        if (StringUtils.isBlank(user)) {
+            return null;
+        }
+        String credentials = user + ":" + StringUtils.defaultString(password);
+        return "Basic " + Base64.getEncoder().encodeToString(credentials.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Adds the measurement to the current batch, sending the batch if it's
+     * full. Blocks while the maximum number of batches are being sent.
+     */
+    public synchronized void add(EnhancedRuuviMeasurement measurement) {
+        int start = batch.length();
+        if (start > 0) {
+            batch.append('\n');
+        }
+        if (!encoder.append(measurement, batch)) {
+            batch.setLength(start);
+            return;
+        }
+        if (batchCount++ == 0) {
+            batchStarted = System.nanoTime();
+        }
+        if (batchCount >= batchSize) {
+            flush();
+        }
+    }
+
+    /**
+     * Sends the current batch in the background, if there is anything in it.
+     */
+    public synchronized void flush() {
+        if (batchCount == 0) {
+            return;
+        }
+        String lines = batch.toString();
+        int count = batchCount;
+        batch.setLength(0);
+        batchCount = 0;
+        inFlight.acquireUninterruptibly();
+        try {
+            senders.execute(() -> {
+                try {
+                    send(lines, count);
+                } catch (IOException ex) {
+                    LOG.error("Failed to write " + count + " measurements to InfluxDB, dropping them", ex);
+                    dropped.add(count);
+                } finally {
+                    inFlight.release();
+                }
+            });
+        } catch (RuntimeException ex) {
+            inFlight.release();
+            throw ex;
+        }
+    }
+
+    private void flushPeriodically() {
+        long interval = Math.max(batchTimeNanos / 2, TimeUnit.MILLISECONDS.toNanos(1));
+        while (!closed) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(interval);
+            } catch (InterruptedException ex) {
+                return;
+            }
+            synchronized (this) {
+                if (batchCount > 0 && System.nanoTime() - batchStarted >= batchTimeNanos) {
+                    flush();
+                }
+            }
+        }
+    }
+
+    /**
+     * Sends the measurements in one request in the calling thread, bypassing
+     * the batching.
+     *
+     * @throws IOException if the measurements could not be written
+     */
+    public void write(Collection<EnhancedRuuviMeasurement> measurements) throws IOException {
+        String lines;
+        synchronized (this) {
+            lines = encoder.encode(measurements);
+        }
+        if (!lines.isEmpty()) {
+            send(lines, measurements.size());
+        }
+    }
+
+    /**
+     * Sends lines already in the line protocol in the calling thread, such as
+     * the metrics of the collector itself.
+     *
+     * @param lines the lines separated by newlines
+     * @throws IOException if the lines could not be written
+     */
+    public void writeLines(String lines) throws IOException {
+        send(lines);
+    }
+
+    private void send(String lines, int count) throws IOException {
+        long start = System.nanoTime();
+        send(lines);
+        CollectorMetrics.influxWritten(count, System.nanoTime() - start);
+    }
+
+    private void send(String lines) throws IOException {
+        for (int attempt = 0; ; attempt++) {
+            long backoff = Math.min(INITIAL_BACKOFF_MILLIS << Math.min(attempt, 16), MAX_BACKOFF_MILLIS);
+            try {
+                HttpURLConnection connection = post(lines);
+                int status = connection.getResponseCode();
+                String response = readResponse(connection);
+                if (status / 100 == 2) {
+                    return;
+                }
+                String error = "InfluxDB responded with " + status + ": " + response;
+                if (status != 429 && status / 100 != 5) {
+                    throw new InfluxDBWriteRejectedException(error);
+                }
+                if (attempt >= maxRetries) {
+                    throw new IOException(error);
+                }
+                long retryAfter = connection.getHeaderFieldLong("Retry-After", -1);
+                if (retryAfter >= 0) {
+                    backoff = Math.min(TimeUnit.SECONDS.toMillis(retryAfter), MAX_BACKOFF_MILLIS);
+                }
+                LOG.debug(error + ", retrying in " + backoff + " ms");
+            } catch (InfluxDBWriteRejectedException ex) {
+                throw ex;
+            } catch (IOException ex) {
+                if (attempt >= maxRetries) {
+                    throw ex;
+                }
+                LOG.debug("Failed to write to InfluxDB, retrying in " + backoff + " ms", ex);
+            }
+            try {
+                Thread.sleep(backoff);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting to retry", ex);
+            }
+        }
+    }
+
+    private HttpURLConnection post(String lines) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        connection.setConnectTimeout(timeout);
+        connection.setReadTimeout(timeout);
+        connection.setRequestProperty("Content-Type", "text/plain; charset=utf-8");
+        if (authorization != null) {
+            connection.setRequestProperty("Authorization", authorization);
+        }
+        if (gzip) {
+            connection.setRequestProperty("Content-Encoding", "gzip");
+            connection.setChunkedStreamingMode(0);
+            try (Writer writer = new OutputStreamWriter(new GZIPOutputStream(connection.getOutputStream()), StandardCharsets.UTF_8)) {
+                writer.write(lines);
+            }
+        } else {
+            byte[] body = lines.getBytes(StandardCharsets.UTF_8);
+            connection.setFixedLengthStreamingMode(body.length);
+            try (OutputStream out = connection.getOutputStream()) {
+                out.write(body);
+            }
+        }
+        return connection;
+    }
+
+    /**
+     * Reads the whole response so that the connection can be reused
+     */
+    private static String readResponse(HttpURLConnection connection) throws IOException {
+        InputStream in = connection.getResponseCode() < 400 ? connection.getInputStream() : connection.getErrorStream();
+        if (in == null) {
+            return "";
+        }
+        try (InputStream stream = in) {
+            byte[] buffer = new byte[1024];
+            StringBuilder sb = new StringBuilder();
+            int read;
+            while ((read = stream.read(buffer)) != -1) {
+                if (sb.length() < 1024) {
+                    sb.append(new String(buffer, 0, read, StandardCharsets.UTF_8));
+                }
+            }
+            return sb.toString().trim();
+        }
+    }
+
+    /**
+     * @return the number of measurements dropped after failing to send them
+     */
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    /**
+     * Sends the current batch and waits for a while for the batches being
+     * sent to complete.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        flusher.interrupt();
+        flush();
+        senders.shutdown();
+        try {
+            if (!senders.awaitTermination(CLOSE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                LOG.warn("Gave up waiting for the writes to InfluxDB to complete");
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        if (getDropped() > 0) {
+            LOG.warn("Dropped " + getDropped() + " measurements that could not be written to InfluxDB");
+        }
+    }
+
+    /**
+     * Thrown when InfluxDB refuses to write the measurements, such as when the
+     * database does not exist, in which case retrying won't help
+     */
+    static class InfluxDBWriteRejectedException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        InfluxDBWriteRejectedException(String message) {
+            super(message);
+        }
+    }
+}
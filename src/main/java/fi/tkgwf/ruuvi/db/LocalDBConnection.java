@@ -0,0 +1,94 @@
+package fi.tkgwf.ruuvi.db;
+
+import fi.tkgwf.ruuvi.bean.EnhancedRuuviMeasurement;
+import fi.tkgwf.ruuvi.config.Config;
+import fi.tkgwf.ruuvi.utils.Sweeper;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Paths;
+import java.util.Collection;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stores the measurements into a {@link TimeSeriesStore} on local disk, for
+ * when there is no database to write into. The fields stored are selected
+ * with storage.values the same way as for InfluxDB. The measurements are
+ * forced to the disk at the flush interval, also when no more measurements
+ * arrive.
+ */
+public class LocalDBConnection implements DBConnection {
+
+    private final TimeSeriesStore store;
+    private final long flushIntervalNanos;
+    private final ScheduledFuture<?> flusher;
+    private long lastFlush = System.nanoTime();
+
+    public LocalDBConnection() {
+        this(openStore(), Config.getLocalFlushInterval());
+    }
+
+    /**
+     * @param store the store to write into, closed when this connection is
+     * closed
+     * @param flushInterval milliseconds between forcing the measurements to
+     * the disk, the measurements received since are lost if the system
+     * crashes
+     */
+    public LocalDBConnection(TimeSeriesStore store, long flushInterval) {
+        this.store = store;
+        this.flushIntervalNanos = TimeUnit.MILLISECONDS.toNanos(flushInterval);
+        this.flusher = flushInterval > 0
+            ? Sweeper.schedule("local store flush", this::flushIfDue, Math.max(flushInterval / 2, 1))
+            : null;
+    }
+
+    private static TimeSeriesStore openStore() {
+        try {
+            return new TimeSeriesStore(Paths.get(Config.getLocalDirectory()), Config.getLocalBlockSize());
+        } catch (IOException ex) {
+            throw new UncheckedIOException("Failed to open the local store in " + Config.getLocalDirectory(), ex);
+        }
+    }
+
+    @Override
+    public synchronized void save(EnhancedRuuviMeasurement measurement) {
+        append(measurement);
+        flushIfDue();
+    }
+
+    @Override
+    public synchronized void saveAll(Collection<EnhancedRuuviMeasurement> measurements) {
+        measurements.forEach(this::append);
+        flushIfDue();
+    }
+
+    /**
+     * @return the store, for querying the measurements
+     */
+    public TimeSeriesStore getStore() {
+        return store;
+    }
+
+    @Override
+    public synchronized void close() {
+        if (flusher != null) {
+            flusher.cancel(false);
+        }
+        store.close();
+    }
+
+    private void append(EnhancedRuuviMeasurement measurement) {
+        // the measurement may be shared with other databases, so the time is only set in the stored copy
+        long time = measurement.getTime() != null ? measurement.getTime() : Config.getTimestampProvider().get();
+        store.append(measurement, time, Config.getAllowedInfluxDbFieldsPredicate(measurement.getMac()));
+    }
+
+    private synchronized void flushIfDue() {
+        long now = System.nanoTime();
+        if (now - lastFlush >= flushIntervalNanos) {
+            store.flush();
+            lastFlush = now;
+        }
+    }
+}
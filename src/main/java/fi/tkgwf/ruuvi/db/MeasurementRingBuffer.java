@@ -0,0 +1,92 @@
+package fi.tkgwf.ruuvi.db;
+
+import fi.tkgwf.ruuvi.bean.EnhancedRuuviMeasurement;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The most recent measurements of one tag, in primitive arrays of a fixed
+ * capacity. Once full, each measurement replaces the oldest one. The missing
+ * values are stored as NaN.
+ */
+class MeasurementRingBuffer {
+
+    private final String mac;
+    private final long[] times;
+    private final double[][] values;
+    private String name;
+    private int next;
+    private int size;
+
+    /**
+     * @param mac the MAC address of the tag
+     * @param capacity the number of measurements kept
+     */
+    MeasurementRingBuffer(String mac, int capacity) {
+        this.mac = mac;
+        times = new long[capacity];
+        values = new double[TimeSeriesStore.FIELDS.size()][capacity];
+    }
+
+    /**
+     * @param measurement the measurement, which is not modified
+     * @param time the time of the measurement, in milliseconds
+     */
+    synchronized void add(EnhancedRuuviMeasurement measurement, long time) {
+        times[next] = time;
+        for (int field = 0; field < values.length; field++) {
+            Double value = TimeSeriesStore.FIELDS.get(field).getter.apply(measurement);
+            values[field][next] = value != null ? value : Double.NaN;
+        }
+        if (measurement.getName() != null) {
+            name = measurement.getName();
+        }
+        next = (next + 1) % times.length;
+        size = Math.min(size + 1, times.length);
+    }
+
+    /**
+     * @return the latest measurement, or null if there are none
+     */
+    synchronized EnhancedRuuviMeasurement latest() {
+        return size == 0 ? null : measurement((next - 1 + times.length) % times.length);
+    }
+
+    /**
+     * @return the time of the latest measurement, or Long.MIN_VALUE if there
+     * are none
+     */
+    synchronized long latestTime() {
+        return size == 0 ? Long.MIN_VALUE : times[(next - 1 + times.length) % times.length];
+    }
+
+    /**
+     * @param from the start of the time range, inclusive, in milliseconds
+     * @param to the end of the time range, exclusive, in milliseconds
+     * @return the measurements in the time range, oldest first
+     */
+    synchronized List<EnhancedRuuviMeasurement> range(long from, long to) {
+        List<EnhancedRuuviMeasurement> measurements = new ArrayList<>();
+        for (int i = 0; i < size; i++) {
+            int slot = (next - size + i + times.length) % times.length;
+            if (times[slot] >= from && times[slot] < to) {
+                measurements.add(measurement(slot));
+            }
+        }
+        return measurements;
+    }
+
+    private EnhancedRuuviMeasurement measurement(int slot) {
+        EnhancedRuuviMeasurement m = new EnhancedRuuviMeasurement();
+        m.setMac(mac);
+        m.setName(name);
+        m.setTime(times[slot]);
+        for (int field = 0; field < values.length; field++) {
+            double value = values[field][slot];
+            if (!Double.isNaN(value)) {
+                TimeSeriesStore.FIELDS.get(field).setter.accept(m, value);
+            }
+        }
+        return m;
+    }
+}
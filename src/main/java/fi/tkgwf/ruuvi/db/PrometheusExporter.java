@@ -2,6 +2,8 @@ package fi.tkgwf.ruuvi.db;
 
 import fi.tkgwf.ruuvi.Main;
 import fi.tkgwf.ruuvi.bean.EnhancedRuuviMeasurement;
+import fi.tkgwf.ruuvi.config.Config;
+import fi.tkgwf.ruuvi.utils.Sweeper;
 import io.prometheus.client.Counter;
 import io.prometheus.client.Gauge;
 import io.prometheus.client.SimpleCollector;
@@ -9,7 +11,15 @@ import io.prometheus.client.exporter.HTTPServer;
 import org.apache.log4j.Logger;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
 
 /**
  * An exporter that writes measurements to Prometheus counters, exposed in the normal way over HTTP.
@@ -22,8 +32,10 @@ public final class PrometheusExporter implements DBConnection {
     private static final String TAG_MAC_LABEL = "tag_mac";
     private static final String TAG_NAME_LABEL = "tag_name";
     private static final String DATA_FORMAT_LABEL = "data_format";
+    private static final long MAX_SWEEP_INTERVAL = 60_000;
 
     private final HTTPServer httpServer;
+    private final Map<String, TagChildren> children = new ConcurrentHashMap<>();
 
     // metadata
     private final Counter prometheusExportedCount = buildGauge("prometheus_exported",
@@ -56,13 +68,34 @@ public final class PrometheusExporter implements DBConnection {
     private final Gauge lastUpdate = buildGauge("last_update",
         "Time at which the last update was collected for this measurement", Gauge.build());
 
+    private final List<SimpleCollector<?>> collectors = Arrays.asList(prometheusExportedCount, rssi, temperature, humidity,
+        pressure, accelerationX, accelerationY, accelerationZ, batteryVoltage, txPower, movementCounter,
+        measurementSequenceNumber, accelerationTotal, accelerationAngleFromX, accelerationAngleFromY,
+        accelerationAngleFromZ, absoluteHumidity, dewPoint, equilibriumVaporPressure, airDensity, lastUpdate);
+
+    private final long expiry;
+    private final ScheduledFuture<?> sweeper;
+
     public PrometheusExporter(int port) {
+        this(port, Config.getPrometheusExpiry());
+    }
+
+    /**
+     * @param port the port to serve the metrics on
+     * @param expiry milliseconds after which the metrics of the tags that
+     * have not been seen are removed, or 0 to keep them forever
+     */
+    public PrometheusExporter(int port, long expiry) {
         LOG.debug("Initialising PrometheusExporter, serving metrics on port " + port);
         try {
             httpServer = new HTTPServer(port);
         } catch (IOException e) {
             throw new RuntimeException("Failed to start Prometheus exporter HTTP server", e);
         }
+        this.expiry = expiry;
+        this.sweeper = expiry > 0
+            ? Sweeper.schedule("Prometheus metrics", () -> expire(System.currentTimeMillis()), Math.min(expiry, MAX_SWEEP_INTERVAL))
+            : null;
     }
 
     @SuppressWarnings("rawtypes") // SimpleCollector must be raw to satisfy the Builder<B, C> signature
@@ -78,37 +111,37 @@ public final class PrometheusExporter implements DBConnection {
 
     @Override
     public void save(EnhancedRuuviMeasurement measurement) {
+        TagChildren tag = children.get(measurement.getMac());
+        if (tag == null || !tag.matches(measurement)) {
+            tag = children.compute(measurement.getMac(), (mac, current) ->
+                current != null && current.matches(measurement) ? current : new TagChildren(measurement, current));
+        }
+
+        tag.exportedCount.inc();
 
-        String mac = measurement.getMac();
-        String name = Optional.ofNullable(measurement.getName()).orElse(mac);
-        String dataFormat = Optional.ofNullable(measurement.getDataFormat())
-            .map(String::valueOf).orElse("unknown");
-
-        prometheusExportedCount.labels(mac, name, dataFormat).inc();
-
-        setValue(rssi.labels(mac, name, dataFormat), measurement.getRssi());
-        setValue(temperature.labels(mac, name, dataFormat), measurement.getTemperature());
-        setValue(humidity.labels(mac, name, dataFormat), measurement.getHumidity());
-        setValue(pressure.labels(mac, name, dataFormat), measurement.getPressure());
-        setValue(accelerationX.labels(mac, name, dataFormat), measurement.getAccelerationX());
-        setValue(accelerationY.labels(mac, name, dataFormat), measurement.getAccelerationY());
-        setValue(accelerationZ.labels(mac, name, dataFormat), measurement.getAccelerationZ());
-        setValue(batteryVoltage.labels(mac, name, dataFormat), measurement.getBatteryVoltage());
-        setValue(txPower.labels(mac, name, dataFormat), measurement.getTxPower());
-
-        setValue(measurementSequenceNumber.labels(mac, name, dataFormat), measurement.getMeasurementSequenceNumber());
-        setValue(movementCounter.labels(mac, name, dataFormat), measurement.getMovementCounter());
-
-        setValue(accelerationTotal.labels(mac, name, dataFormat), measurement.getAccelerationTotal());
-        setValue(accelerationAngleFromX.labels(mac, name, dataFormat), measurement.getAccelerationAngleFromX());
-        setValue(accelerationAngleFromY.labels(mac, name, dataFormat), measurement.getAccelerationAngleFromY());
-        setValue(accelerationAngleFromZ.labels(mac, name, dataFormat), measurement.getAccelerationAngleFromZ());
-        setValue(absoluteHumidity.labels(mac, name, dataFormat), measurement.getAbsoluteHumidity());
-        setValue(dewPoint.labels(mac, name, dataFormat), measurement.getDewPoint());
-        setValue(equilibriumVaporPressure.labels(mac, name, dataFormat), measurement.getEquilibriumVaporPressure());
-        setValue(airDensity.labels(mac, name, dataFormat), measurement.getAirDensity());
-
-        lastUpdate.labels(mac, name, dataFormat).setToCurrentTime();
+        setValue(tag.rssi, measurement.getRssi());
+        setValue(tag.temperature, measurement.getTemperature());
+        setValue(tag.humidity, measurement.getHumidity());
+        setValue(tag.pressure, measurement.getPressure());
+        setValue(tag.accelerationX, measurement.getAccelerationX());
+        setValue(tag.accelerationY, measurement.getAccelerationY());
+        setValue(tag.accelerationZ, measurement.getAccelerationZ());
+        setValue(tag.batteryVoltage, measurement.getBatteryVoltage());
+        setValue(tag.txPower, measurement.getTxPower());
+
+        setValue(tag.measurementSequenceNumber, measurement.getMeasurementSequenceNumber());
+        setValue(tag.movementCounter, measurement.getMovementCounter());
+
+        setValue(tag.accelerationTotal, measurement.getAccelerationTotal());
+        setValue(tag.accelerationAngleFromX, measurement.getAccelerationAngleFromX());
+        setValue(tag.accelerationAngleFromY, measurement.getAccelerationAngleFromY());
+        setValue(tag.accelerationAngleFromZ, measurement.getAccelerationAngleFromZ());
+        setValue(tag.absoluteHumidity, measurement.getAbsoluteHumidity());
+        setValue(tag.dewPoint, measurement.getDewPoint());
+        setValue(tag.equilibriumVaporPressure, measurement.getEquilibriumVaporPressure());
+        setValue(tag.airDensity, measurement.getAirDensity());
+
+        tag.lastUpdate.setToCurrentTime();
     }
 
     private static void setValue(Gauge.Child gauge, Number value) {
@@ -117,8 +150,113 @@ public final class PrometheusExporter implements DBConnection {
         }
     }
 
+    /**
+     * Removes the metrics of the tags that have not been updated in the
+     * expiry time, according to their last_update metric
+     *
+     * @param now the current time in milliseconds
+     * @return the number of tags removed
+     */
+    int expire(long now) {
+        int expired = 0;
+        for (TagChildren tag : children.values()) {
+            if (now - (long) (tag.lastUpdate.get() * 1000) > expiry && children.remove(tag.labels[0], tag)) {
+                for (String[] labels : tag.series) {
+                    for (SimpleCollector<?> collector : collectors) {
+                        collector.remove(labels);
+                    }
+                }
+                expired++;
+            }
+        }
+        if (expired > 0) {
+            LOG.debug("Removed the metrics of " + expired + " tags not seen in " + expiry + " ms");
+        }
+        return expired;
+    }
+
     @Override
     public void close() {
+        if (sweeper != null) {
+            sweeper.cancel(false);
+        }
         httpServer.stop();
     }
+
+    /**
+     * The children of all the collectors for the labels of one tag, resolved
+     * once when the tag is first seen and again if its name or data format
+     * changes, so that updating the values does not need to look them up
+     */
+    private class TagChildren {
+
+        private final String name;
+        private final Integer dataFormat;
+        private final String[] labels;
+        /**
+         * The labels of this tag and those it had before being renamed, as
+         * the series with the earlier labels are kept until the tag expires
+         */
+        private final List<String[]> series;
+        private final Counter.Child exportedCount;
+        private final Gauge.Child rssi;
+        private final Gauge.Child temperature;
+        private final Gauge.Child humidity;
+        private final Gauge.Child pressure;
+        private final Gauge.Child accelerationX;
+        private final Gauge.Child accelerationY;
+        private final Gauge.Child accelerationZ;
+        private final Gauge.Child batteryVoltage;
+        private final Gauge.Child txPower;
+        private final Gauge.Child movementCounter;
+        private final Gauge.Child measurementSequenceNumber;
+        private final Gauge.Child accelerationTotal;
+        private final Gauge.Child accelerationAngleFromX;
+        private final Gauge.Child accelerationAngleFromY;
+        private final Gauge.Child accelerationAngleFromZ;
+        private final Gauge.Child absoluteHumidity;
+        private final Gauge.Child dewPoint;
+        private final Gauge.Child equilibriumVaporPressure;
+        private final Gauge.Child airDensity;
+        private final Gauge.Child lastUpdate;
+
+        TagChildren(EnhancedRuuviMeasurement measurement, TagChildren previous) {
+            this.name = measurement.getName();
+            this.dataFormat = measurement.getDataFormat();
+            labels = new String[]{
+                measurement.getMac(),
+                Optional.ofNullable(name).orElse(measurement.getMac()),
+                Optional.ofNullable(dataFormat).map(String::valueOf).orElse("unknown")
+            };
+            series = new ArrayList<>(previous == null ? Collections.emptyList() : previous.series);
+            if (series.stream().noneMatch(existing -> Arrays.equals(existing, labels))) {
+                series.add(labels);
+            }
+            exportedCount = prometheusExportedCount.labels(labels);
+            rssi = PrometheusExporter.this.rssi.labels(labels);
+            temperature = PrometheusExporter.this.temperature.labels(labels);
+            humidity = PrometheusExporter.this.humidity.labels(labels);
+            pressure = PrometheusExporter.this.pressure.labels(labels);
+            accelerationX = PrometheusExporter.this.accelerationX.labels(labels);
+            accelerationY = PrometheusExporter.this.accelerationY.labels(labels);
+            accelerationZ = PrometheusExporter.this.accelerationZ.labels(labels);
+            batteryVoltage = PrometheusExporter.this.batteryVoltage.labels(labels);
+            txPower = PrometheusExporter.this.txPower.labels(labels);
+            movementCounter = PrometheusExporter.this.movementCounter.labels(labels);
+            measurementSequenceNumber = PrometheusExporter.this.measurementSequenceNumber.labels(labels);
+            accelerationTotal = PrometheusExporter.this.accelerationTotal.labels(labels);
+            accelerationAngleFromX = PrometheusExporter.this.accelerationAngleFromX.labels(labels);
+            accelerationAngleFromY = PrometheusExporter.this.accelerationAngleFromY.labels(labels);
+            accelerationAngleFromZ = PrometheusExporter.this.accelerationAngleFromZ.labels(labels);
+            absoluteHumidity = PrometheusExporter.this.absoluteHumidity.labels(labels);
+            dewPoint = PrometheusExporter.this.dewPoint.labels(labels);
+            equilibriumVaporPressure = PrometheusExporter.this.equilibriumVaporPressure.labels(labels);
+            airDensity = PrometheusExporter.this.airDensity.labels(labels);
+            lastUpdate = PrometheusExporter.this.lastUpdate.labels(labels);
+        }
+
+        boolean matches(EnhancedRuuviMeasurement measurement) {
+            return Objects.equals(name, measurement.getName()) && Objects.equals(dataFormat, measurement.getDataFormat());
+        }
+    }
 }
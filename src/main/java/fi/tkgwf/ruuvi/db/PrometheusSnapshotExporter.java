@@ -0,0 +1,287 @@
+package fi.tkgwf.ruuvi.db;
+
+import fi.tkgwf.ruuvi.bean.EnhancedRuuviMeasurement;
+import fi.tkgwf.ruuvi.config.Config;
+import fi.tkgwf.ruuvi.utils.Sweeper;
+import io.prometheus.client.Collector;
+import io.prometheus.client.CollectorRegistry;
+import io.prometheus.client.exporter.HTTPServer;
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * An exporter exposing the same metrics as {@link PrometheusExporter}, but
+ * which only stores the latest values of each tag into a snapshot when saving
+ * a measurement, and builds the metrics from the snapshots when Prometheus
+ * scrapes them. Saving costs the same regardless of how often the tags send,
+ * and scraping is proportional to the number of tags.
+ * <p>
+ * Unlike with {@link PrometheusExporter}, the values a tag has never sent are
+ * left out rather than exported as zero, and the metrics of a tag are
+ * exported only with its latest name.
+ */
+public final class PrometheusSnapshotExporter extends Collector implements DBConnection {
+
+    private static final Logger LOG = Logger.getLogger(PrometheusSnapshotExporter.class);
+
+    private static final String NAMESPACE = "ruuvi_";
+    private static final List<String> LABEL_NAMES = Collections.unmodifiableList(Arrays.asList("tag_mac", "tag_name", "data_format"));
+
+    private static final int EXPORTED = 0;
+    private static final int RSSI = 1;
+    private static final int TEMPERATURE = 2;
+    private static final int HUMIDITY = 3;
+    private static final int PRESSURE = 4;
+    private static final int ACCELERATION_X = 5;
+    private static final int ACCELERATION_Y = 6;
+    private static final int ACCELERATION_Z = 7;
+    private static final int BATTERY_VOLTAGE = 8;
+    private static final int TX_POWER = 9;
+    private static final int MOVEMENT_COUNTER = 10;
+    private static final int MEASUREMENT_SEQUENCE_NUMBER = 11;
+    private static final int ACCELERATION_TOTAL = 12;
+    private static final int ACCELERATION_ANGLE_FROM_X = 13;
+    private static final int ACCELERATION_ANGLE_FROM_Y = 14;
+    private static final int ACCELERATION_ANGLE_FROM_Z = 15;
+    private static final int ABSOLUTE_HUMIDITY = 16;
+    private static final int DEW_POINT = 17;
+    private static final int EQUILIBRIUM_VAPOR_PRESSURE = 18;
+    private static final int AIR_DENSITY = 19;
+    private static final int LAST_UPDATE = 20;
+    private static final int VALUES = 21;
+
+    /**
+     * Name, help text and type of each metric, indexed as the values
+     */
+    private static final String[][] METRICS = {
+        {"prometheus_exported", "The number of readings written to Prometheus collectors", "counter"},
+        {"rssi", "The RSSI at the receiver", "gauge"},
+        {"temperature", "Temperature in Celsius", "gauge"},
+        {"humidity", "Relative humidity in percentage (0-100)", "gauge"},
+        {"pressure", "Pressure in Pa", "gauge"},
+        {"acceleration_x", "Acceleration of X axis in G", "gauge"},
+        {"acceleration_y", "Acceleration of Y axis in G", "gauge"},
+        {"acceleration_z", "Acceleration of Z axis in G", "gauge"},
+        {"battery_voltage", "Battery voltage in Volts", "gauge"},
+        {"tx_power", "TX power in dBm", "gauge"},
+        {"movement_counter", "Movement counter (incremented by interrupts from the accelerometer)", "gauge"},
+        {"measurement_sequence_number", "Measurement sequence number (incremented every time a new measurement is made). Useful for measurement de-duplication.", "gauge"},
+        {"acceleration_total", "Total acceleration", "gauge"},
+        {"acceleration_angle_from_x", "The angle between the acceleration vector and X axis", "gauge"},
+        {"acceleration_angle_from_y", "The angle between the acceleration vector and Y axis", "gauge"},
+        {"acceleration_angle_from_z", "The angle between the acceleration vector and Z axis", "gauge"},
+        {"absolute_humidity", "Absolute humidity in g/m^3", "gauge"},
+        {"dew_point", "Dew point in Celsius", "gauge"},
+        {"equilibrium_vapor_pressure", "Vapor pressure of water", "gauge"},
+        {"air_density", "Density of air", "gauge"},
+        {"last_update", "Time at which the last update was collected for this measurement", "gauge"}
+    };
+
+    private static final long MAX_SWEEP_INTERVAL = 60_000;
+
+    private final Map<String, TagSnapshot> snapshots = new ConcurrentHashMap<>();
+    private final HTTPServer httpServer;
+    private final long expiry;
+    private final ScheduledFuture<?> sweeper;
+
+    public PrometheusSnapshotExporter(int port) {
+        this(port, Config.getPrometheusExpiry());
+    }
+
+    /**
+     * @param port the port to serve the metrics on
+     * @param expiry milliseconds after which the metrics of the tags that
+     * have not been seen are removed, or 0 to keep them forever
+     */
+    public PrometheusSnapshotExporter(int port, long expiry) {
+        LOG.debug("Initialising PrometheusSnapshotExporter, serving metrics on port " + port);
+        register();
+        try {
+            httpServer = new HTTPServer(port);
+        } catch (IOException e) {
+            CollectorRegistry.defaultRegistry.unregister(this);
+            throw new RuntimeException("Failed to start Prometheus exporter HTTP server", e);
+        }
+        this.expiry = expiry;
+        this.sweeper = expiry > 0
+            ? Sweeper.schedule("Prometheus snapshots", () -> expire(System.currentTimeMillis()), Math.min(expiry, MAX_SWEEP_INTERVAL))
+            : null;
+    }
+
+    @Override
+    public void save(EnhancedRuuviMeasurement measurement) {
+        TagSnapshot snapshot = snapshots.get(measurement.getMac());
+        if (snapshot == null || !snapshot.matches(measurement)) {
+            snapshot = snapshots.compute(measurement.getMac(), (mac, current) ->
+                current != null && current.matches(measurement) ? current : new TagSnapshot(measurement, current));
+        }
+        snapshot.update(measurement);
+    }
+
+    @Override
+    public List<MetricFamilySamples> collect() {
+        List<List<MetricFamilySamples.Sample>> samples = new ArrayList<>(VALUES);
+        for (int i = 0; i < VALUES; i++) {
+            samples.add(new ArrayList<>(snapshots.size()));
+        }
+        double[] values = new double[VALUES];
+        for (TagSnapshot snapshot : snapshots.values()) {
+            snapshot.read(values);
+            for (int i = 0; i < VALUES; i++) {
+                if (!Double.isNaN(values[i])) {
+                    samples.get(i).add(new MetricFamilySamples.Sample(NAMESPACE + METRICS[i][0], LABEL_NAMES, snapshot.labels, values[i]));
+                }
+            }
+        }
+        List<MetricFamilySamples> families = new ArrayList<>(VALUES);
+        for (int i = 0; i < VALUES; i++) {
+            Type type = "counter".equals(METRICS[i][2]) ? Type.COUNTER : Type.GAUGE;
+            families.add(new MetricFamilySamples(NAMESPACE + METRICS[i][0], type, METRICS[i][1], samples.get(i)));
+        }
+        return families;
+    }
+
+    /**
+     * Removes the snapshots of the tags that have not been updated in the
+     * expiry time, according to their last_update value
+     *
+     * @param now the current time in milliseconds
+     * @return the number of tags removed
+     */
+    int expire(long now) {
+        int expired = 0;
+        for (Map.Entry<String, TagSnapshot> entry : snapshots.entrySet()) {
+            if (now - entry.getValue().lastUpdateMillis() > expiry && snapshots.remove(entry.getKey(), entry.getValue())) {
+                expired++;
+            }
+        }
+        if (expired > 0) {
+            LOG.debug("Removed the snapshots of " + expired + " tags not seen in " + expiry + " ms");
+        }
+        return expired;
+    }
+
+    @Override
+    public void close() {
+        if (sweeper != null) {
+            sweeper.cancel(false);
+        }
+        httpServer.stop();
+        CollectorRegistry.defaultRegistry.unregister(this);
+    }
+
+    /**
+     * The latest values of one tag, as the raw bits of doubles with NaN for
+     * missing values. Updated under a lock, and read without one with a
+     * sequence number at index 0 telling the reader whether it saw a
+     * consistent set of values: it's odd while an update is in progress and
+     * changes with every update.
+     */
+    private static class TagSnapshot {
+
+        private final String name;
+        private final Integer dataFormat;
+        private final List<String> labels;
+        private final AtomicLongArray values = new AtomicLongArray(VALUES + 1);
+
+        TagSnapshot(EnhancedRuuviMeasurement measurement, TagSnapshot previous) {
+            this.name = measurement.getName();
+            this.dataFormat = measurement.getDataFormat();
+            this.labels = Collections.unmodifiableList(Arrays.asList(
+                measurement.getMac(),
+                Optional.ofNullable(name).orElse(measurement.getMac()),
+                Optional.ofNullable(dataFormat).map(String::valueOf).orElse("unknown")));
+            long nan = Double.doubleToRawLongBits(Double.NaN);
+            for (int i = 1; i <= VALUES; i++) {
+                values.set(i, nan);
+            }
+            // the counter keeps counting when the labels change
+            values.set(EXPORTED + 1, Double.doubleToRawLongBits(previous == null ? 0 : previous.exported()));
+        }
+
+        boolean matches(EnhancedRuuviMeasurement measurement) {
+            return Objects.equals(name, measurement.getName()) && Objects.equals(dataFormat, measurement.getDataFormat());
+        }
+
+        long lastUpdateMillis() {
+            return (long) (Double.longBitsToDouble(values.get(LAST_UPDATE + 1)) * MILLISECONDS_PER_SECOND);
+        }
+
+        private double exported() {
+            double[] snapshot = new double[VALUES];
+            read(snapshot);
+            return snapshot[EXPORTED];
+        }
+
+        synchronized void update(EnhancedRuuviMeasurement measurement) {
+            long sequence = values.get(0);
+            values.set(0, sequence + 1);
+            set(EXPORTED, Double.longBitsToDouble(values.get(EXPORTED + 1)) + 1);
+            set(RSSI, measurement.getRssi());
+            set(TEMPERATURE, measurement.getTemperature());
+            set(HUMIDITY, measurement.getHumidity());
+            set(PRESSURE, measurement.getPressure());
+            set(ACCELERATION_X, measurement.getAccelerationX());
+            set(ACCELERATION_Y, measurement.getAccelerationY());
+            set(ACCELERATION_Z, measurement.getAccelerationZ());
+            set(BATTERY_VOLTAGE, measurement.getBatteryVoltage());
+            set(TX_POWER, measurement.getTxPower());
+            set(MOVEMENT_COUNTER, measurement.getMovementCounter());
+            set(MEASUREMENT_SEQUENCE_NUMBER, measurement.getMeasurementSequenceNumber());
+            set(ACCELERATION_TOTAL, measurement.getAccelerationTotal());
+            set(ACCELERATION_ANGLE_FROM_X, measurement.getAccelerationAngleFromX());
+            set(ACCELERATION_ANGLE_FROM_Y, measurement.getAccelerationAngleFromY());
+            set(ACCELERATION_ANGLE_FROM_Z, measurement.getAccelerationAngleFromZ());
+            set(ABSOLUTE_HUMIDITY, measurement.getAbsoluteHumidity());
+            set(DEW_POINT, measurement.getDewPoint());
+            set(EQUILIBRIUM_VAPOR_PRESSURE, measurement.getEquilibriumVaporPressure());
+            set(AIR_DENSITY, measurement.getAirDensity());
+            set(LAST_UPDATE, System.currentTimeMillis() / MILLISECONDS_PER_SECOND);
+            values.lazySet(0, sequence + 2);
+        }
+
+        /**
+         * Keeps the previous value when the value is missing, like the gauges
+         * of {@link PrometheusExporter}
+         */
+        private void set(int index, Number value) {
+            if (value != null) {
+                set(index, value.doubleValue());
+            }
+        }
+
+        private void set(int index, double value) {
+            values.lazySet(index + 1, Double.doubleToRawLongBits(value));
+        }
+
+        /**
+         * Reads a consistent set of the latest values, retrying if they were
+         * being updated at the same time
+         */
+        void read(double[] into) {
+            while (true) {
+                long sequence = values.get(0);
+                if ((sequence & 1) == 0) {
+                    for (int i = 0; i < VALUES; i++) {
+                        into[i] = Double.longBitsToDouble(values.get(i + 1));
+                    }
+                    if (values.get(0) == sequence) {
+                        return;
+                    }
+                }
+                Thread.yield();
+            }
+        }
+    }
+}
@@ -0,0 +1,309 @@
+package fi.tkgwf.ruuvi.db;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import fi.tkgwf.ruuvi.bean.EnhancedRuuviMeasurement;
+import fi.tkgwf.ruuvi.config.Config;
+import fi.tkgwf.ruuvi.db.TimeSeriesStore.Field;
+import fi.tkgwf.ruuvi.utils.LineProtocolEncoder;
+import fi.tkgwf.ruuvi.utils.Sweeper;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledFuture;
+import org.apache.log4j.Logger;
+
+/**
+ * Keeps the most recent measurements of each tag in memory and serves them
+ * over HTTP, so that dashboards can show the latest values and the recent
+ * history without a database. The memory used is bounded by the number of
+ * tags times the number of measurements kept per tag, and the tags that have
+ * not been heard from in a while are forgotten, so that tags passing by don't
+ * pile up.
+ * <p>
+ * The endpoints, with the results as JSON, or as CSV with format=csv:
+ * <ul>
+ * <li>/latest: the latest measurement of each tag, or of the tag given with
+ * mac</li>
+ * <li>/measurements?mac=...: the measurements of the tag kept in memory,
+ * optionally limited with from and to, in milliseconds since the epoch. A
+ * negative from is relative to the current time, for example -3600000 for
+ * the last hour.</li>
+ * </ul>
+ */
+public class QueryApiServer implements DBConnection {
+
+    private static final Logger LOG = Logger.getLogger(QueryApiServer.class);
+    private static final long MAX_SWEEP_INTERVAL = 60_000;
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final int capacity;
+    private final long expiry;
+    private final ScheduledFuture<?> sweeper;
+    private final Map<String, MeasurementRingBuffer> buffers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+
+    public QueryApiServer() {
+        this(Config.getApiPort(), Config.getApiCapacity(), Config.getTagStateExpiry());
+    }
+
+    /**
+     * @param port the port to serve on, or 0 for any free port
+     * @param capacity the number of measurements to keep per tag
+     * @param expiry milliseconds after which the measurements of the tags
+     * that have not been seen are removed, or 0 to keep them forever
+     */
+    public QueryApiServer(int port, int capacity, long expiry) {
+        LOG.debug("Initialising QueryApiServer, serving on port " + port);
+        this.capacity = capacity;
+        this.expiry = expiry;
+        try {
+            server = HttpServer.create(new InetSocketAddress(port), 0);
+        } catch (IOException ex) {
+            throw new RuntimeException("Failed to start the query API HTTP server", ex);
+        }
+        executor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "query-api");
+            thread.setDaemon(true);
+            return thread;
+        });
+        server.setExecutor(executor);
+        server.createContext("/latest", exchange -> handle(exchange, this::latest));
+        server.createContext("/measurements", exchange -> handle(exchange, this::measurements));
+        server.start();
+        sweeper = expiry > 0
+            ? Sweeper.schedule("query API", () -> expire(Config.getTimestampProvider().get()), Math.min(expiry, MAX_SWEEP_INTERVAL))
+            : null;
+    }
+
+    /**
+     * @return the port the server listens on
+     */
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    @Override
+    public void save(EnhancedRuuviMeasurement measurement) {
+        if (measurement.getMac() == null) {
+            return;
+        }
+        // the measurement may be shared with other databases, so the time is only set in the buffered copy
+        long time = measurement.getTime() != null ? measurement.getTime() : Config.getTimestampProvider().get();
+        synchronized (buffers) {
+            // added while holding the lock so that the buffer can't be expired in between
+            buffers.computeIfAbsent(measurement.getMac(), mac -> new MeasurementRingBuffer(mac, capacity))
+                .add(measurement, time);
+        }
+    }
+
+    /**
+     * Removes the measurements of the tags that have not been seen in the
+     * expiry time.
+     *
+     * @param now the current time, in milliseconds
+     * @return the number of tags removed
+     */
+    int expire(long now) {
+        int expired = 0;
+        synchronized (buffers) {
+            for (Iterator<MeasurementRingBuffer> it = buffers.values().iterator(); it.hasNext();) {
+                if (now - it.next().latestTime() > expiry) {
+                    it.remove();
+                    expired++;
+                }
+            }
+        }
+        if (expired > 0) {
+            LOG.debug("Removed the measurements of " + expired + " tags not seen in " + expiry + " ms");
+        }
+        return expired;
+    }
+
+    @Override
+    public void close() {
+        if (sweeper != null) {
+            sweeper.cancel(false);
+        }
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private List<EnhancedRuuviMeasurement> latest(Map<String, String> parameters) {
+        List<EnhancedRuuviMeasurement> measurements = new ArrayList<>();
+        String mac = parameters.get("mac");
+        synchronized (buffers) {
+            for (Map.Entry<String, MeasurementRingBuffer> e : buffers.entrySet()) {
+                if (mac == null || mac.equalsIgnoreCase(e.getKey())) {
+                    EnhancedRuuviMeasurement m = e.getValue().latest();
+                    if (m != null) {
+                        measurements.add(m);
+                    }
+                }
+            }
+        }
+        return measurements;
+    }
+
+    private List<EnhancedRuuviMeasurement> measurements(Map<String, String> parameters) {
+        String mac = parameters.get("mac");
+        if (mac == null) {
+            throw new IllegalArgumentException("The mac parameter is required");
+        }
+        long from = parseTime(parameters.get("from"), Long.MIN_VALUE);
+        long to = parseTime(parameters.get("to"), Long.MAX_VALUE);
+        MeasurementRingBuffer buffer;
+        synchronized (buffers) {
+            buffer = buffers.get(mac);
+        }
+        return buffer == null ? new ArrayList<>() : buffer.range(from, to);
+    }
+
+    private static long parseTime(String value, long defaultValue) {
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            long time = Long.parseLong(value);
+            return time < 0 ? Config.getTimestampProvider().get() + time : time;
+        } catch (NumberFormatException ex) {
+            throw new IllegalArgumentException("Invalid time: " + value);
+        }
+    }
+
+    private interface Query {
+
+        List<EnhancedRuuviMeasurement> run(Map<String, String> parameters);
+    }
+
+    private static void handle(HttpExchange exchange, Query query) throws IOException {
+        try {
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                respond(exchange, 405, "text/plain", "Only GET is supported\n");
+                return;
+            }
+            Map<String, String> parameters = parseQuery(exchange.getRequestURI().getRawQuery());
+            List<EnhancedRuuviMeasurement> measurements = query.run(parameters);
+            if ("csv".equals(parameters.get("format"))) {
+                respond(exchange, 200, "text/csv; charset=utf-8", toCsv(measurements));
+            } else {
+                respond(exchange, 200, "application/json", toJson(measurements));
+            }
+        } catch (IllegalArgumentException ex) {
+            respond(exchange, 400, "text/plain", ex.getMessage() + "\n");
+        } catch (RuntimeException ex) {
+            LOG.warn("Failed to handle a query API request", ex);
+            respond(exchange, 500, "text/plain", "Internal error\n");
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private static void respond(HttpExchange exchange, int status, String contentType, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", contentType);
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    private static Map<String, String> parseQuery(String query) throws UnsupportedEncodingException {
+        Map<String, String> parameters = new HashMap<>();
+        if (query != null) {
+            for (String parameter : query.split("&")) {
+                int separator = parameter.indexOf('=');
+                if (separator > 0) {
+                    parameters.put(URLDecoder.decode(parameter.substring(0, separator), "UTF-8"),
+                        URLDecoder.decode(parameter.substring(separator + 1), "UTF-8"));
+                }
+            }
+        }
+        return parameters;
+    }
+
+    static String toJson(List<EnhancedRuuviMeasurement> measurements) {
+        StringBuilder out = new StringBuilder("[");
+        for (EnhancedRuuviMeasurement m : measurements) {
+            if (out.length() > 1) {
+                out.append(',');
+            }
+            out.append("{\"mac\":");
+            appendJsonString(out, m.getMac());
+            if (m.getName() != null) {
+                out.append(",\"name\":");
+                appendJsonString(out, m.getName());
+            }
+            out.append(",\"time\":").append(m.getTime());
+            for (Field field : TimeSeriesStore.FIELDS) {
+                Double value = field.getter.apply(m);
+                if (value != null) {
+                    out.append(",\"").append(field.name).append("\":");
+                    appendNumber(out, field, value);
+                }
+            }
+            out.append('}');
+        }
+        return out.append("]\n").toString();
+    }
+
+    static String toCsv(List<EnhancedRuuviMeasurement> measurements) {
+        StringBuilder out = new StringBuilder("mac,name,time");
+        for (Field field : TimeSeriesStore.FIELDS) {
+            out.append(',').append(field.name);
+        }
+        out.append('\n');
+        for (EnhancedRuuviMeasurement m : measurements) {
+            out.append(m.getMac()).append(',');
+            if (m.getName() != null) {
+                out.append('"').append(m.getName().replace("\"", "\"\"")).append('"');
+            }
+            out.append(',').append(m.getTime());
+            for (Field field : TimeSeriesStore.FIELDS) {
+                out.append(',');
+                Double value = field.getter.apply(m);
+                if (value != null) {
+                    appendNumber(out, field, value);
+                }
+            }
+            out.append('\n');
+        }
+        return out.toString();
+    }
+
+    private static void appendNumber(StringBuilder out, Field field, double value) {
+        if (field.integer) {
+            out.append((long) value);
+        } else if (Double.isNaN(value) || Double.isInfinite(value)) {
+            out.append("null");
+        } else {
+            LineProtocolEncoder.appendDouble(out, value);
+        }
+    }
+
+    private static void appendJsonString(StringBuilder out, String value) {
+        out.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                out.append('\\').append(c);
+            } else if (c < 0x20) {
+                out.append(String.format("\\u%04x", (int) c));
+            } else {
+                out.append(c);
+            }
+        }
+        out.append('"');
+    }
+}
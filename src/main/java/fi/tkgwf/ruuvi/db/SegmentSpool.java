@@ -0,0 +1,379 @@
+package fi.tkgwf.ruuvi.db;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+import org.apache.log4j.Logger;
+
+/**
+ * An append-only queue of records on disk. The records are written into
+ * memory mapped segment files of a fixed size, each record framed with its
+ * length and a CRC32 of its contents, so that a record torn by a crash is
+ * detected and the spool is truncated before it when opened again.
+ * <p>
+ * The records are read in the order they were appended, starting from the
+ * acknowledged position, which is persisted into a checkpoint file. Segments
+ * that have been read and acknowledged completely are deleted. When the
+ * segments would take more space than allowed, the oldest segment is
+ * deleted even if it has not been read, losing its records.
+ * <p>
+ * The data written to the mapped segments survives the collector crashing,
+ * but is forced to the disk only on {@link #sync()} and when a segment is
+ * full. The methods are synchronized.
+ */
+public class SegmentSpool implements Closeable {
+
+    private static final Logger LOG = Logger.getLogger(SegmentSpool.class);
+
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final String CHECKPOINT_FILE = "checkpoint";
+    /**
+     * Length and CRC32 of the record
+     */
+    private static final int HEADER_LENGTH = 8;
+
+    private final Path directory;
+    private final int segmentSize;
+    private final int maxSegments;
+    private final List<Segment> segments = new ArrayList<>();
+    private final MappedByteBuffer checkpoint;
+    private final CRC32 crc = new CRC32();
+
+    /**
+     * The acknowledged position: the index of the segment and the offset in it
+     */
+    private long readSegment;
+    private int readOffset;
+    private long pendingRecords;
+    private long lostRecords;
+
+    /**
+     * Opens the spool in the directory, creating the directory if needed, and
+     * recovers the records left by the previous run.
+     *
+     * @param directory the directory of the segment files
+     * @param segmentSize the size of each segment file in bytes
+     * @param maxSize the maximum total size of the segments in bytes, at least
+     * two segments are always kept
+     * @throws IOException if the spool can't be opened
+     */
+    public SegmentSpool(Path directory, int segmentSize, long maxSize) throws IOException {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.maxSegments = (int) Math.max(2, Math.min(Integer.MAX_VALUE, maxSize / segmentSize));
+        Files.createDirectories(directory);
+        this.checkpoint = map(directory.resolve(CHECKPOINT_FILE), 16);
+        recover();
+    }
+
+    private void recover() throws IOException {
+        List<Long> indexes = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + SEGMENT_SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                try {
+                    indexes.add(Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length())));
+                } catch (NumberFormatException ex) {
+                    LOG.warn("Ignoring unknown file in the spool directory: " + file);
+                }
+            }
+        }
+        indexes.sort(null);
+        readCheckpoint(indexes.isEmpty() ? 0 : indexes.get(0));
+        for (long index : indexes) {
+            if (index < readSegment) {
+                Files.delete(segmentPath(index));
+            } else {
+                segments.add(new Segment(index, map(segmentPath(index), segmentSize)));
+            }
+        }
+        if (segments.isEmpty()) {
+            readSegment = Math.max(readSegment, indexes.isEmpty() ? 0 : indexes.get(indexes.size() - 1) + 1);
+            readOffset = 0;
+            segments.add(newSegment(readSegment));
+        } else if (segments.get(0).index > readSegment) {
+            readSegment = segments.get(0).index;
+            readOffset = 0;
+        }
+        for (Segment segment : segments) {
+            int offset = segment.index == readSegment ? readOffset : 0;
+            int records = 0;
+            int length;
+            while ((length = recordLength(segment.buffer, offset)) >= 0) {
+                offset += HEADER_LENGTH + length;
+                records++;
+            }
+            segment.writeOffset = offset;
+            pendingRecords += records;
+        }
+        // anything after the last valid record of the last segment is a torn write, clear it before appending
+        Segment last = segments.get(segments.size() - 1);
+        for (int i = last.writeOffset; i < Math.min(segmentSize, last.writeOffset + HEADER_LENGTH); i++) {
+            last.buffer.put(i, (byte) 0);
+        }
+        if (pendingRecords > 0) {
+            LOG.info("Recovered " + pendingRecords + " spooled records from " + directory);
+        }
+    }
+
+    /**
+     * Appends a record to the end of the spool
+     *
+     * @param record the contents of the record, from the position to the
+     * limit of the buffer
+     * @throws IllegalArgumentException if the record does not fit into a
+     * segment
+     */
+    public synchronized void append(ByteBuffer record) {
+        int length = record.remaining();
+        if (HEADER_LENGTH + length > segmentSize) {
+            throw new IllegalArgumentException("Record of " + length + " bytes does not fit into a segment");
+        }
+        Segment segment = segments.get(segments.size() - 1);
+        if (segment.writeOffset + HEADER_LENGTH + length > segmentSize) {
+            segment.buffer.force();
+            segment = roll(segment.index + 1);
+        }
+        crc.reset();
+        crc.update(record.duplicate());
+        ByteBuffer buffer = segment.buffer;
+        int offset = segment.writeOffset;
+        buffer.putInt(offset + 4, (int) crc.getValue());
+        for (int i = 0; i < length; i++) {
+            buffer.put(offset + HEADER_LENGTH + i, record.get(record.position() + i));
+        }
+        // the length is written last, so that a record is never seen half written by the reader
+        buffer.putInt(offset, length);
+        segment.writeOffset = offset + HEADER_LENGTH + length;
+        pendingRecords++;
+    }
+
+    /**
+     * Reads the records starting from the acknowledged position, without
+     * acknowledging them. Reading again without acknowledging returns the
+     * same records.
+     *
+     * @param maxRecords maximum number of records to read
+     * @param reader receives the contents of each record, the buffer is valid
+     * only during the call
+     * @return the position after the last record read, to be given to
+     * {@link #acknowledge(long)}
+     */
+    public synchronized long read(int maxRecords, Consumer<ByteBuffer> reader) {
+        int segmentNumber = (int) (readSegment - segments.get(0).index);
+        int offset = readOffset;
+        for (int records = 0; records < maxRecords && segmentNumber < segments.size(); ) {
+            Segment segment = segments.get(segmentNumber);
+            if (offset >= segment.writeOffset) {
+                if (segmentNumber == segments.size() - 1) {
+                    break;
+                }
+                segmentNumber++;
+                offset = 0;
+                continue;
+            }
+            // the records before the write offset were validated when the spool was opened, or written since
+            int length = segment.buffer.getInt(offset);
+            ByteBuffer contents = segment.buffer.duplicate();
+            contents.position(offset + HEADER_LENGTH);
+            contents.limit(offset + HEADER_LENGTH + length);
+            reader.accept(contents.slice());
+            offset += HEADER_LENGTH + length;
+            records++;
+        }
+        return position(segments.get(Math.min(segmentNumber, segments.size() - 1)).index, offset);
+    }
+
+    /**
+     * Marks the records up to the position as handled, so that they are not
+     * read again, and deletes the segments that are no longer needed
+     *
+     * @param position the position returned by {@link #read(int, Consumer)}
+     */
+    public synchronized void acknowledge(long position) {
+        long segment = position >>> 32;
+        int offset = (int) position;
+        if (segment < readSegment || (segment == readSegment && offset <= readOffset)) {
+            return;
+        }
+        // the number of records acknowledged, counting from the previous position
+        long acknowledged = 0;
+        for (Segment s : segments) {
+            if (s.index >= readSegment && s.index <= segment) {
+                int from = s.index == readSegment ? readOffset : 0;
+                int to = s.index == segment ? offset : s.writeOffset;
+                acknowledged += countRecords(s.buffer, from, to);
+            }
+        }
+        pendingRecords -= acknowledged;
+        readSegment = segment;
+        readOffset = offset;
+        while (segments.get(0).index < readSegment) {
+            delete(segments.remove(0));
+        }
+        writeCheckpoint();
+    }
+
+    /**
+     * Forces the segment being written and the checkpoint to the disk
+     */
+    public synchronized void sync() {
+        segments.get(segments.size() - 1).buffer.force();
+        checkpoint.force();
+    }
+
+    /**
+     * @return the number of records appended but not acknowledged
+     */
+    public synchronized long getPendingRecords() {
+        return pendingRecords;
+    }
+
+    /**
+     * @return the number of records deleted without reading them, because the
+     * spool was full
+     */
+    public synchronized long getLostRecords() {
+        return lostRecords;
+    }
+
+    /**
+     * @return the total size of the segment files in bytes
+     */
+    public synchronized long getSize() {
+        return (long) segments.size() * segmentSize;
+    }
+
+    @Override
+    public synchronized void close() {
+        sync();
+    }
+
+    private Segment roll(long index) {
+        while (segments.size() >= maxSegments) {
+            Segment oldest = segments.remove(0);
+            int from = oldest.index == readSegment ? readOffset : 0;
+            long lost = oldest.index >= readSegment ? countRecords(oldest.buffer, from, oldest.writeOffset) : 0;
+            lostRecords += lost;
+            pendingRecords -= lost;
+            LOG.warn("Spool is full, deleting " + lost + " records not written to the database yet");
+            delete(oldest);
+            if (readSegment <= oldest.index) {
+                readSegment = segments.isEmpty() ? index : segments.get(0).index;
+                readOffset = 0;
+                writeCheckpoint();
+            }
+        }
+        try {
+            Segment segment = newSegment(index);
+            segments.add(segment);
+            return segment;
+        } catch (IOException ex) {
+            throw new UncheckedIOException("Failed to create a spool segment", ex);
+        }
+    }
+
+    private Segment newSegment(long index) throws IOException {
+        return new Segment(index, map(segmentPath(index), segmentSize));
+    }
+
+    private void delete(Segment segment) {
+        try {
+            Files.deleteIfExists(segmentPath(segment.index));
+        } catch (IOException ex) {
+            LOG.warn("Failed to delete spool segment " + segmentPath(segment.index), ex);
+        }
+    }
+
+    private void readCheckpoint(long defaultSegment) {
+        ByteBuffer contents = checkpoint.duplicate();
+        contents.limit(12);
+        crc.reset();
+        crc.update(contents);
+        if (checkpoint.getInt(12) == (int) crc.getValue() && checkpoint.getLong(0) != 0) {
+            readSegment = checkpoint.getLong(0) - 1;
+            readOffset = checkpoint.getInt(8);
+        } else {
+            readSegment = defaultSegment;
+            readOffset = 0;
+        }
+    }
+
+    private void writeCheckpoint() {
+        // stored as segment + 1, so that an all zero file is not a valid checkpoint
+        checkpoint.putLong(0, readSegment + 1);
+        checkpoint.putInt(8, readOffset);
+        ByteBuffer contents = checkpoint.duplicate();
+        contents.position(0);
+        contents.limit(12);
+        crc.reset();
+        crc.update(contents);
+        checkpoint.putInt(12, (int) crc.getValue());
+        checkpoint.force();
+    }
+
+    /**
+     * @return the length of the valid record at the offset, or -1 if there is
+     * no valid record
+     */
+    private int recordLength(ByteBuffer buffer, int offset) {
+        if (offset + HEADER_LENGTH > segmentSize) {
+            return -1;
+        }
+        int length = buffer.getInt(offset);
+        if (length <= 0 || offset + HEADER_LENGTH + length > segmentSize) {
+            return -1;
+        }
+        ByteBuffer contents = buffer.duplicate();
+        contents.position(offset + HEADER_LENGTH);
+        contents.limit(offset + HEADER_LENGTH + length);
+        crc.reset();
+        crc.update(contents);
+        return buffer.getInt(offset + 4) == (int) crc.getValue() ? length : -1;
+    }
+
+    private static int countRecords(ByteBuffer buffer, int from, int to) {
+        int records = 0;
+        for (int offset = from; offset < to; offset += HEADER_LENGTH + buffer.getInt(offset)) {
+            records++;
+        }
+        return records;
+    }
+
+    private static long position(long segment, int offset) {
+        return segment << 32 | offset;
+    }
+
+    private Path segmentPath(long index) {
+        return directory.resolve(String.format("%016d%s", index, SEGMENT_SUFFIX));
+    }
+
+    private static MappedByteBuffer map(Path file, int size) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+    }
+
+    private static class Segment {
+
+        private final long index;
+        private final MappedByteBuffer buffer;
+        private int writeOffset;
+
+        Segment(long index, MappedByteBuffer buffer) {
+            this.index = index;
+            this.buffer = buffer;
+        }
+    }
+}
@@ -0,0 +1,185 @@
+package fi.tkgwf.ruuvi.db;
+
+import fi.tkgwf.ruuvi.bean.EnhancedRuuviMeasurement;
+import fi.tkgwf.ruuvi.config.Config;
+import fi.tkgwf.ruuvi.utils.MeasurementCodec;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import org.apache.log4j.Logger;
+
+/**
+ * Writes the measurements into a {@link SegmentSpool} on disk, from which a
+ * separate thread writes them into the actual database in batches. When the
+ * database can't be reached, the measurements pile up in the spool and are
+ * written in order once the database is reachable again, so an outage costs
+ * disk space rather than data.
+ * <p>
+ * The time of the measurements is set when they are spooled, so that the
+ * measurements written late still have the time they were received. The
+ * measurements left in the spool when the collector exits are written when
+ * it's started again.
+ */
+public class SpoolingDBConnection implements DBConnection {
+
+    private static final Logger LOG = Logger.getLogger(SpoolingDBConnection.class);
+
+    private static final long IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final long SYNC_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final long CLOSE_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+    private final DBConnection delegate;
+    private final SegmentSpool spool;
+    private final int batchSize;
+    private final long retryInterval;
+    private final ByteBuffer encodeBuffer = ByteBuffer.allocate(MeasurementCodec.MAX_LENGTH);
+    private final Thread writer;
+    private volatile boolean closed;
+    /**
+     * Accessed only by the writer thread
+     */
+    private boolean failing;
+
+    /**
+     * @param delegate the database to write the measurements into
+     * @param directory the directory of the spool
+     */
+    public SpoolingDBConnection(DBConnection delegate, Path directory) {
+        this(delegate, openSpool(directory), Config.getSpoolBatchSize(), Config.getSpoolRetryInterval());
+    }
+
+    /**
+     * @param delegate the database to write the measurements into
+     * @param spool the spool to keep the measurements in until they are
+     * written, closed when this connection is closed
+     * @param batchSize maximum number of measurements to write at once
+     * @param retryInterval milliseconds to wait before retrying after a failed
+     * write
+     */
+    public SpoolingDBConnection(DBConnection delegate, SegmentSpool spool, int batchSize, long retryInterval) {
+        this.delegate = delegate;
+        this.spool = spool;
+        this.batchSize = batchSize;
+        this.retryInterval = retryInterval;
+        this.writer = new Thread(this::writeSpooled, "spool-writer");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    private static SegmentSpool openSpool(Path directory) {
+        try {
+            return new SegmentSpool(directory, Config.getSpoolSegmentSize(), Config.getSpoolMaxSize());
+        } catch (IOException ex) {
+            throw new UncheckedIOException("Failed to open the spool in " + directory, ex);
+        }
+    }
+
+    @Override
+    public synchronized void save(EnhancedRuuviMeasurement measurement) {
+        // the measurement may be shared with other databases, so the time is only set in the spooled copy
+        long time = measurement.getTime() != null ? measurement.getTime() : Config.getTimestampProvider().get();
+        encodeBuffer.clear();
+        MeasurementCodec.encode(measurement, time, encodeBuffer);
+        encodeBuffer.flip();
+        spool.append(encodeBuffer);
+        LockSupport.unpark(writer);
+    }
+
+    private void writeSpooled() {
+        List<EnhancedRuuviMeasurement> batch = new ArrayList<>(batchSize);
+        long lastSync = System.nanoTime();
+        while (!closed) {
+            if (System.nanoTime() - lastSync >= SYNC_INTERVAL_NANOS) {
+                spool.sync();
+                lastSync = System.nanoTime();
+            }
+            if (writeBatch(batch)) {
+                continue;
+            }
+            if (failing) {
+                // new measurements wake up the thread, keep waiting until it's time to retry
+                long retryAt = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(retryInterval);
+                long remaining;
+                while (!closed && (remaining = retryAt - System.nanoTime()) > 0) {
+                    LockSupport.parkNanos(remaining);
+                }
+            } else {
+                LockSupport.parkNanos(IDLE_NANOS);
+            }
+        }
+        // write what's left unless the database is down, anything not written in time is written on the next start
+        long deadline = System.nanoTime() + CLOSE_TIMEOUT_NANOS;
+        while (!failing && System.nanoTime() < deadline && writeBatch(batch)) {
+            // until the spool is empty
+        }
+    }
+
+    /**
+     * @return true if a batch of measurements was written, false if the spool
+     * was empty or the write failed
+     */
+    private boolean writeBatch(List<EnhancedRuuviMeasurement> batch) {
+        batch.clear();
+        long position = spool.read(batchSize, record -> {
+            try {
+                batch.add(MeasurementCodec.decode(record));
+            } catch (RuntimeException ex) {
+                LOG.warn("Skipping a spooled record that can't be decoded", ex);
+            }
+        });
+        if (batch.isEmpty()) {
+            spool.acknowledge(position); // skips the records that could not be decoded, if any
+            return false;
+        }
+        try {
+            delegate.saveAll(batch);
+            spool.acknowledge(position);
+            if (failing) {
+                LOG.info("Database reachable again, writing " + spool.getPendingRecords() + " spooled measurements");
+                failing = false;
+            }
+            return true;
+        } catch (RuntimeException ex) {
+            if (!failing) {
+                LOG.error("Failed to write measurements to the database, spooling them to disk until it's reachable again", ex);
+                failing = true;
+            }
+            return false;
+        }
+    }
+
+    /**
+     * @return the number of measurements spooled but not yet written to the
+     * database
+     */
+    public long getPending() {
+        return spool.getPendingRecords();
+    }
+
+    /**
+     * Writes the spooled measurements for a while, unless the database is
+     * down, leaving the rest in the spool for the next start, and closes the
+     * database.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        LockSupport.unpark(writer);
+        try {
+            writer.join();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        long pending = spool.getPendingRecords();
+        if (pending > 0) {
+            LOG.info("Leaving " + pending + " measurements in the spool to be written on the next start");
+        }
+        spool.close();
+        delegate.close();
+    }
+}
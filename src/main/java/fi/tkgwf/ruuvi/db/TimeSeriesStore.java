@@ -0,0 +1,714 @@
+package fi.tkgwf.ruuvi.db;
+
+import fi.tkgwf.ruuvi.bean.EnhancedRuuviMeasurement;
+import fi.tkgwf.ruuvi.utils.BitReader;
+import fi.tkgwf.ruuvi.utils.BitWriter;
+import fi.tkgwf.ruuvi.utils.ColumnarFormat;
+import fi.tkgwf.ruuvi.utils.ColumnarFormat.Column;
+import fi.tkgwf.ruuvi.utils.XorDecoder;
+import fi.tkgwf.ruuvi.utils.XorEncoder;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.zip.CRC32;
+import org.apache.log4j.Logger;
+
+/**
+ * An embedded, append-only store of the measurements on local disk. Each tag
+ * has a memory mapped file of its own, into which its measurements are
+ * written in blocks of a fixed number of measurements. Within a block the
+ * times are stored as deltas of deltas and each value as the XOR of the
+ * previous value of the same field, as described in the Gorilla paper by
+ * Facebook, so that a measurement of the raw values takes a few bytes.
+ * <p>
+ * Each block starts with its length, a CRC32 of its contents, and an index
+ * of the first and last time and the minimum and maximum of each field in
+ * it. The indexes of all the blocks are kept in memory, so that a query only
+ * decodes the blocks of its tag and time range.
+ * <p>
+ * The block being filled is kept in memory and written after the last full
+ * block on {@link #flush()}, rewritten in place on each flush until it's
+ * full. Each write of a block goes first into a backup slot after the space
+ * reserved for the largest possible block, and is forced to the disk before
+ * the block is rewritten in place, so that the copy last forced stays valid
+ * until its replacement is. When opened, the blocks are read until the first
+ * one that is not valid, restoring a block torn while being rewritten from
+ * its backup, dropping anything else torn by a crash, and the last block is
+ * continued if it's not full.
+ */
+public class TimeSeriesStore implements Closeable {
+
+    private static final Logger LOG = Logger.getLogger(TimeSeriesStore.class);
+
+    private static final String FILE_SUFFIX = ".tsdb";
+    private static final byte[] MAGIC = "RUUVITSD".getBytes(StandardCharsets.US_ASCII);
+    private static final byte VERSION = 1;
+    /**
+     * Length and CRC32 of the block
+     */
+    private static final int HEADER_LENGTH = 8;
+    /**
+     * The files are mapped and grown in steps of this many bytes
+     */
+    private static final int MAP_INCREMENT = 1 << 20;
+
+    /**
+     * The fields stored, all as doubles, at most 32 of them
+     */
+    static final List<Field> FIELDS;
+
+    static {
+        List<Field> fields = new ArrayList<>();
+        for (Column<Integer> column : ColumnarFormat.INTEGER_COLUMNS) {
+            fields.add(new Field(column.name, true,
+                m -> column.getter.apply(m) == null ? null : column.getter.apply(m).doubleValue(),
+                (m, value) -> column.setter.accept(m, value.intValue())));
+        }
+        for (Column<Double> column : ColumnarFormat.DOUBLE_COLUMNS) {
+            fields.add(new Field(column.name, false, column.getter, column.setter));
+        }
+        FIELDS = Collections.unmodifiableList(fields);
+    }
+
+    private final Path directory;
+    private final int blockSize;
+    private final Map<String, Series> series = new ConcurrentHashMap<>();
+
+    /**
+     * Opens the store in the directory, creating the directory if needed
+     *
+     * @param directory the directory of the files of the tags
+     * @param blockSize the number of measurements in a block
+     * @throws IOException if the store can't be opened
+     */
+    public TimeSeriesStore(Path directory, int blockSize) throws IOException {
+        this.directory = directory;
+        this.blockSize = blockSize;
+        Files.createDirectories(directory);
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + FILE_SUFFIX)) {
+            for (Path file : files) {
+                try {
+                    Series s = Series.open(file, blockSize);
+                    series.put(s.mac, s);
+                } catch (IOException ex) {
+                    LOG.warn("Ignoring unreadable file in the store directory: " + file, ex);
+                }
+            }
+        }
+    }
+
+    /**
+     * Appends the measurement to the series of its tag
+     *
+     * @param measurement the measurement, which must have a MAC address and a
+     * time
+     * @param allowField which of the fields of the measurement to store
+     * @throws IllegalArgumentException if the measurement has no MAC address
+     * or time
+     */
+    public void append(EnhancedRuuviMeasurement measurement, Predicate<String> allowField) {
+        if (measurement.getTime() == null) {
+            throw new IllegalArgumentException("The measurement must have a MAC address and a time");
+        }
+        append(measurement, measurement.getTime(), allowField);
+    }
+
+    /**
+     * Appends the measurement to the series of its tag with the given time
+     * instead of its own, the measurement itself is not modified
+     *
+     * @param measurement the measurement, which must have a MAC address
+     * @param time the time of the measurement, in milliseconds
+     * @param allowField which of the fields of the measurement to store
+     * @throws IllegalArgumentException if the measurement has no MAC address
+     */
+    public void append(EnhancedRuuviMeasurement measurement, long time, Predicate<String> allowField) {
+        if (measurement.getMac() == null) {
+            throw new IllegalArgumentException("The measurement must have a MAC address and a time");
+        }
+        EnhancedRuuviMeasurement stored = new EnhancedRuuviMeasurement();
+        stored.setMac(measurement.getMac());
+        stored.setTime(time);
+        for (Field field : FIELDS) {
+            Double value = field.getter.apply(measurement);
+            if (value != null && allowField.test(field.name)) {
+                field.setter.accept(stored, value);
+            }
+        }
+        series.computeIfAbsent(measurement.getMac(), this::create).append(stored);
+    }
+
+    /**
+     * Writes the blocks being filled and forces everything written to the
+     * disk
+     */
+    public void flush() {
+        series.values().forEach(Series::flush);
+    }
+
+    /**
+     * @return the MAC addresses of the tags in the store
+     */
+    public Set<String> tags() {
+        return new TreeSet<>(series.keySet());
+    }
+
+    /**
+     * @param mac the MAC address of the tag
+     * @param from the start of the time range, inclusive, in milliseconds
+     * @param to the end of the time range, exclusive, in milliseconds
+     * @return the measurements of the tag in the time range, in time order
+     */
+    public List<EnhancedRuuviMeasurement> query(String mac, long from, long to) {
+        Series s = series.get(mac);
+        return s == null ? new ArrayList<>() : s.query(from, to);
+    }
+
+    /**
+     * Finds the minimum and maximum of a field, using the index of the blocks
+     * completely within the time range without decoding them
+     *
+     * @param mac the MAC address of the tag
+     * @param field the name of the field
+     * @param from the start of the time range, inclusive, in milliseconds
+     * @param to the end of the time range, exclusive, in milliseconds
+     * @return the minimum and the maximum, or null if there are no values
+     * @throws IllegalArgumentException if there is no such field
+     */
+    public double[] minMax(String mac, String field, long from, long to) {
+        int fieldIndex = fieldIndex(field);
+        Series s = series.get(mac);
+        return s == null ? null : s.minMax(fieldIndex, from, to);
+    }
+
+    @Override
+    public void close() {
+        flush();
+    }
+
+    private Series create(String mac) {
+        Path file = directory.resolve(mac.replaceAll("[^A-Za-z0-9]", "_") + FILE_SUFFIX);
+        try {
+            return Series.create(file, mac, blockSize);
+        } catch (IOException ex) {
+            throw new UncheckedIOException("Failed to create " + file, ex);
+        }
+    }
+
+    static int fieldIndex(String name) {
+        for (int i = 0; i < FIELDS.size(); i++) {
+            if (FIELDS.get(i).name.equals(name)) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("Unknown field: " + name);
+    }
+
+    /**
+     * @return the distance from a block to its backup slot: more than the
+     * length of a block with its header, and the header after it, when all
+     * the measurements of the block have all the fields with the largest
+     * encodings
+     */
+    static int slotLength(int blockSize) {
+        long bits = 64 + 68L * blockSize + FIELDS.size() * (65 + 78L * blockSize);
+        return (int) (3 * HEADER_LENGTH + 4 + 8 + 8 + 4 + 16 * FIELDS.size() + bits / 8 + 1);
+    }
+
+    static class Field {
+
+        final String name;
+        /**
+         * True for the fields that are integers in the measurement
+         */
+        final boolean integer;
+        final Function<EnhancedRuuviMeasurement, Double> getter;
+        final BiConsumer<EnhancedRuuviMeasurement, Double> setter;
+
+        Field(String name, boolean integer, Function<EnhancedRuuviMeasurement, Double> getter, BiConsumer<EnhancedRuuviMeasurement, Double> setter) {
+            this.name = name;
+            this.integer = integer;
+            this.getter = getter;
+            this.setter = setter;
+        }
+    }
+
+    /**
+     * The index of a block: where it is, its time range and the range of
+     * each field in it
+     */
+    private static class BlockIndex {
+
+        private int offset;
+        private int count;
+        private long minTime = Long.MAX_VALUE;
+        private long maxTime = Long.MIN_VALUE;
+        private int fieldMask;
+        private final double[] min = new double[FIELDS.size()];
+        private final double[] max = new double[FIELDS.size()];
+
+        boolean overlaps(long from, long to) {
+            return maxTime >= from && minTime < to;
+        }
+
+        boolean within(long from, long to) {
+            return minTime >= from && maxTime < to;
+        }
+
+        boolean hasField(int field) {
+            return (fieldMask & 1 << field) != 0;
+        }
+    }
+
+    /**
+     * The file of one tag
+     */
+    private static class Series {
+
+        private final String mac;
+        private final Path file;
+        private final int blockSize;
+        private final int dataStart;
+        /**
+         * The distance from a block to its backup slot
+         */
+        private final int slotLength;
+        private final List<BlockIndex> blocks = new ArrayList<>();
+        private final List<EnhancedRuuviMeasurement> head = new ArrayList<>();
+        private final CRC32 crc = new CRC32();
+        private MappedByteBuffer buffer;
+        private int writeOffset;
+        private boolean headDirty;
+        private boolean unsynced;
+
+        private Series(String mac, Path file, int blockSize, int dataStart, MappedByteBuffer buffer) {
+            this.mac = mac;
+            this.file = file;
+            this.blockSize = blockSize;
+            this.dataStart = dataStart;
+            this.slotLength = slotLength(blockSize);
+            this.buffer = buffer;
+            this.writeOffset = dataStart;
+        }
+
+        static Series create(Path file, String mac, int blockSize) throws IOException {
+            byte[] macBytes = mac.getBytes(StandardCharsets.UTF_8);
+            MappedByteBuffer buffer = map(file, MAP_INCREMENT);
+            buffer.put(MAGIC.length, VERSION);
+            buffer.putShort(MAGIC.length + 1, (short) macBytes.length);
+            for (int i = 0; i < macBytes.length; i++) {
+                buffer.put(MAGIC.length + 3 + i, macBytes[i]);
+            }
+            // the magic is written last, so that a half written header is not valid
+            for (int i = 0; i < MAGIC.length; i++) {
+                buffer.put(i, MAGIC[i]);
+            }
+            buffer.force();
+            return new Series(mac, file, blockSize, MAGIC.length + 3 + macBytes.length, buffer);
+        }
+
+        static Series open(Path file, int blockSize) throws IOException {
+            long size = Files.size(file);
+            if (size < MAGIC.length + 3 || size > Integer.MAX_VALUE) {
+                throw new IOException("Invalid file size: " + size);
+            }
+            MappedByteBuffer buffer = map(file, (int) Math.max(MAP_INCREMENT, size));
+            for (int i = 0; i < MAGIC.length; i++) {
+                if (buffer.get(i) != MAGIC[i]) {
+                    throw new IOException("Not a time series file");
+                }
+            }
+            if (buffer.get(MAGIC.length) != VERSION) {
+                throw new IOException("Unsupported time series file version: " + buffer.get(MAGIC.length));
+            }
+            byte[] macBytes = new byte[buffer.getShort(MAGIC.length + 1)];
+            for (int i = 0; i < macBytes.length; i++) {
+                macBytes[i] = buffer.get(MAGIC.length + 3 + i);
+            }
+            Series series = new Series(new String(macBytes, StandardCharsets.UTF_8), file, blockSize, MAGIC.length + 3 + macBytes.length, buffer);
+            series.recover();
+            return series;
+        }
+
+        private void recover() {
+            int offset = dataStart;
+            BlockIndex block;
+            while ((block = readBlock(offset)) != null) {
+                offset += HEADER_LENGTH + buffer.getInt(offset);
+                if (block.count < blockSize) {
+                    // continue filling the last block
+                    head.addAll(decode(block));
+                    writeOffset = block.offset;
+                    break;
+                }
+                blocks.add(block);
+            }
+            if (block == null) {
+                writeOffset = offset;
+            }
+            // anything after the last valid block is a torn write, clear it before appending
+            for (int i = offset; i < Math.min(buffer.capacity(), offset + HEADER_LENGTH); i++) {
+                buffer.put(i, (byte) 0);
+            }
+            LOG.debug("Opened " + file + " with " + (blocks.size() * (long) blockSize + head.size()) + " measurements");
+        }
+
+        synchronized void append(EnhancedRuuviMeasurement measurement) {
+            head.add(measurement);
+            headDirty = true;
+            if (head.size() >= blockSize) {
+                BlockIndex block = write(head);
+                blocks.add(block);
+                writeOffset += HEADER_LENGTH + buffer.getInt(block.offset);
+                head.clear();
+                headDirty = false;
+            }
+        }
+
+        synchronized void flush() {
+            if (headDirty && !head.isEmpty()) {
+                write(head);
+            }
+            headDirty = false;
+            if (unsynced) {
+                buffer.force();
+                unsynced = false;
+            }
+        }
+
+        synchronized List<EnhancedRuuviMeasurement> query(long from, long to) {
+            List<EnhancedRuuviMeasurement> measurements = new ArrayList<>();
+            for (BlockIndex block : blocks) {
+                if (block.overlaps(from, to)) {
+                    for (EnhancedRuuviMeasurement m : decode(block)) {
+                        if (m.getTime() >= from && m.getTime() < to) {
+                            measurements.add(m);
+                        }
+                    }
+                }
+            }
+            for (EnhancedRuuviMeasurement m : head) {
+                if (m.getTime() >= from && m.getTime() < to) {
+                    measurements.add(copy(m));
+                }
+            }
+            measurements.sort(Comparator.comparing(EnhancedRuuviMeasurement::getTime));
+            return measurements;
+        }
+
+        synchronized double[] minMax(int field, long from, long to) {
+            double[] result = null;
+            List<EnhancedRuuviMeasurement> partial = new ArrayList<>(head);
+            for (BlockIndex block : blocks) {
+                if (block.within(from, to)) {
+                    if (block.hasField(field)) {
+                        result = merge(result, block.min[field], block.max[field]);
+                    }
+                } else if (block.overlaps(from, to) && block.hasField(field)) {
+                    partial.addAll(decode(block));
+                }
+            }
+            for (EnhancedRuuviMeasurement m : partial) {
+                Double value = FIELDS.get(field).getter.apply(m);
+                if (value != null && m.getTime() >= from && m.getTime() < to) {
+                    result = merge(result, value, value);
+                }
+            }
+            return result;
+        }
+
+        private static double[] merge(double[] result, double min, double max) {
+            if (result == null) {
+                return new double[]{min, max};
+            }
+            result[0] = Math.min(result[0], min);
+            result[1] = Math.max(result[1], max);
+            return result;
+        }
+
+        /**
+         * Writes the measurements as a block at the write offset, without
+         * moving the write offset. The block is written and forced into the
+         * backup slot first, so that the copy at the write offset, which
+         * may be the last forced copy of the block being filled, can be
+         * torn while being rewritten.
+         */
+        private BlockIndex write(List<EnhancedRuuviMeasurement> measurements) {
+            BlockIndex block = index(measurements);
+            block.offset = writeOffset;
+            byte[] contents = encode(measurements, block);
+            ensureCapacity(writeOffset + slotLength + 2 * HEADER_LENGTH + contents.length);
+            put(writeOffset + slotLength, contents);
+            buffer.force();
+            put(writeOffset, contents);
+            unsynced = true;
+            return block;
+        }
+
+        private void put(int offset, byte[] contents) {
+            crc.reset();
+            crc.update(contents);
+            buffer.putInt(offset + 4, (int) crc.getValue());
+            for (int i = 0; i < contents.length; i++) {
+                buffer.put(offset + HEADER_LENGTH + i, contents[i]);
+            }
+            // the length is written last, and the header after the block is cleared so that nothing is read past it
+            buffer.putInt(offset + HEADER_LENGTH + contents.length, 0);
+            buffer.putInt(offset, contents.length);
+        }
+
+        /**
+         * @return the index of the valid block at the offset, restored from
+         * its backup slot if the backup is a newer copy of it or the block
+         * was torn, or null if there is no valid block
+         */
+        private BlockIndex readBlock(int offset) {
+            BlockIndex block = readIndex(offset);
+            BlockIndex backup = readIndex(offset + slotLength);
+            long lastTime = blocks.isEmpty() ? Long.MIN_VALUE : blocks.get(blocks.size() - 1).maxTime;
+            // the backup slot may hold anything left from before, only a copy of the block at the offset counts
+            boolean newer = backup != null && backup.minTime >= lastTime
+                && (block == null ? backup.count <= blockSize : backup.minTime == block.minTime && backup.count > block.count);
+            if (!newer) {
+                return block;
+            }
+            LOG.info("Restoring the block at " + offset + " of " + file + " from its backup");
+            byte[] contents = new byte[buffer.getInt(backup.offset)];
+            contents(backup.offset, contents.length).get(contents);
+            put(offset, contents);
+            buffer.force();
+            return readIndex(offset);
+        }
+
+        private void ensureCapacity(int size) {
+            if (size > buffer.capacity()) {
+                buffer.force();
+                try {
+                    buffer = map(file, (size / MAP_INCREMENT + 1) * MAP_INCREMENT);
+                } catch (IOException ex) {
+                    throw new UncheckedIOException("Failed to grow " + file, ex);
+                }
+            }
+        }
+
+        /**
+         * @return the index of the valid block at the offset, or null if
+         * there is no valid block
+         */
+        private BlockIndex readIndex(int offset) {
+            if (offset + HEADER_LENGTH > buffer.capacity()) {
+                return null;
+            }
+            int length = buffer.getInt(offset);
+            if (length <= 0 || offset + HEADER_LENGTH + length > buffer.capacity()) {
+                return null;
+            }
+            ByteBuffer contents = contents(offset, length);
+            crc.reset();
+            crc.update(contents.duplicate());
+            if (buffer.getInt(offset + 4) != (int) crc.getValue()) {
+                return null;
+            }
+            BlockIndex block = new BlockIndex();
+            block.offset = offset;
+            block.count = contents.getInt();
+            block.minTime = contents.getLong();
+            block.maxTime = contents.getLong();
+            block.fieldMask = contents.getInt();
+            for (int field = 0; field < FIELDS.size(); field++) {
+                if (block.hasField(field)) {
+                    block.min[field] = contents.getDouble();
+                    block.max[field] = contents.getDouble();
+                }
+            }
+            return block;
+        }
+
+        private ByteBuffer contents(int offset, int length) {
+            ByteBuffer contents = buffer.duplicate();
+            contents.position(offset + HEADER_LENGTH);
+            contents.limit(offset + HEADER_LENGTH + length);
+            return contents.slice();
+        }
+
+        private List<EnhancedRuuviMeasurement> decode(BlockIndex block) {
+            ByteBuffer contents = contents(block.offset, buffer.getInt(block.offset));
+            contents.position(4 + 8 + 8 + 4 + 16 * Integer.bitCount(block.fieldMask));
+            byte[] bytes = new byte[contents.remaining()];
+            contents.get(bytes);
+            BitReader bits = new BitReader(bytes);
+            List<EnhancedRuuviMeasurement> measurements = new ArrayList<>(block.count);
+            long time = bits.readBits(64);
+            long delta = 0;
+            for (int i = 0; i < block.count; i++) {
+                if (i > 0) {
+                    delta += readDeltaOfDelta(bits);
+                    time += delta;
+                }
+                EnhancedRuuviMeasurement m = new EnhancedRuuviMeasurement();
+                m.setMac(mac);
+                m.setTime(time);
+                measurements.add(m);
+            }
+            for (int field = 0; field < FIELDS.size(); field++) {
+                if (block.hasField(field)) {
+                    boolean[] present = new boolean[block.count];
+                    boolean all = bits.readBit();
+                    for (int i = 0; i < block.count; i++) {
+                        present[i] = all || bits.readBit();
+                    }
+                    XorDecoder decoder = new XorDecoder(bits);
+                    for (int i = 0; i < block.count; i++) {
+                        if (present[i]) {
+                            FIELDS.get(field).setter.accept(measurements.get(i), decoder.read());
+                        }
+                    }
+                }
+            }
+            return measurements;
+        }
+
+        private static BlockIndex index(List<EnhancedRuuviMeasurement> measurements) {
+            BlockIndex block = new BlockIndex();
+            block.count = measurements.size();
+            Arrays.fill(block.min, Double.POSITIVE_INFINITY);
+            Arrays.fill(block.max, Double.NEGATIVE_INFINITY);
+            for (EnhancedRuuviMeasurement m : measurements) {
+                block.minTime = Math.min(block.minTime, m.getTime());
+                block.maxTime = Math.max(block.maxTime, m.getTime());
+                for (int field = 0; field < FIELDS.size(); field++) {
+                    Double value = FIELDS.get(field).getter.apply(m);
+                    if (value != null) {
+                        block.fieldMask |= 1 << field;
+                        block.min[field] = Math.min(block.min[field], value);
+                        block.max[field] = Math.max(block.max[field], value);
+                    }
+                }
+            }
+            return block;
+        }
+
+        private static byte[] encode(List<EnhancedRuuviMeasurement> measurements, BlockIndex block) {
+            BitWriter bits = new BitWriter(measurements.size() * 8);
+            long previousTime = measurements.get(0).getTime();
+            long previousDelta = 0;
+            bits.writeBits(previousTime, 64);
+            for (int i = 1; i < measurements.size(); i++) {
+                long delta = measurements.get(i).getTime() - previousTime;
+                writeDeltaOfDelta(bits, delta - previousDelta);
+                previousTime = measurements.get(i).getTime();
+                previousDelta = delta;
+            }
+            for (int field = 0; field < FIELDS.size(); field++) {
+                if (block.hasField(field)) {
+                    Function<EnhancedRuuviMeasurement, Double> getter = FIELDS.get(field).getter;
+                    boolean all = measurements.stream().allMatch(m -> getter.apply(m) != null);
+                    bits.writeBit(all);
+                    if (!all) {
+                        measurements.forEach(m -> bits.writeBit(getter.apply(m) != null));
+                    }
+                    XorEncoder encoder = new XorEncoder(bits);
+                    for (EnhancedRuuviMeasurement m : measurements) {
+                        Double value = getter.apply(m);
+                        if (value != null) {
+                            encoder.write(value);
+                        }
+                    }
+                }
+            }
+            byte[] encoded = bits.toByteArray();
+            ByteBuffer contents = ByteBuffer.allocate(4 + 8 + 8 + 4 + 16 * Integer.bitCount(block.fieldMask) + encoded.length);
+            contents.putInt(block.count);
+            contents.putLong(block.minTime);
+            contents.putLong(block.maxTime);
+            contents.putInt(block.fieldMask);
+            for (int field = 0; field < FIELDS.size(); field++) {
+                if (block.hasField(field)) {
+                    contents.putDouble(block.min[field]);
+                    contents.putDouble(block.max[field]);
+                }
+            }
+            contents.put(encoded);
+            return contents.array();
+        }
+
+        /**
+         * Writes the delta of deltas with a prefix telling its size: 0 for a
+         * regular interval, and up to 12 bits for the jitter of the
+         * advertisement intervals
+         */
+        private static void writeDeltaOfDelta(BitWriter bits, long deltaOfDelta) {
+            long zigzag = deltaOfDelta << 1 ^ deltaOfDelta >> 63;
+            if (zigzag == 0) {
+                bits.writeBits(0b0, 1);
+            } else if (zigzag < 1 << 7) {
+                bits.writeBits(0b10, 2);
+                bits.writeBits(zigzag, 7);
+            } else if (zigzag < 1 << 9) {
+                bits.writeBits(0b110, 3);
+                bits.writeBits(zigzag, 9);
+            } else if (zigzag < 1 << 12) {
+                bits.writeBits(0b1110, 4);
+                bits.writeBits(zigzag, 12);
+            } else {
+                bits.writeBits(0b1111, 4);
+                bits.writeBits(zigzag, 64);
+            }
+        }
+
+        private static long readDeltaOfDelta(BitReader bits) {
+            long zigzag;
+            if (!bits.readBit()) {
+                zigzag = 0;
+            } else if (!bits.readBit()) {
+                zigzag = bits.readBits(7);
+            } else if (!bits.readBit()) {
+                zigzag = bits.readBits(9);
+            } else if (!bits.readBit()) {
+                zigzag = bits.readBits(12);
+            } else {
+                zigzag = bits.readBits(64);
+            }
+            return zigzag >>> 1 ^ -(zigzag & 1);
+        }
+
+        private static EnhancedRuuviMeasurement copy(EnhancedRuuviMeasurement m) {
+            EnhancedRuuviMeasurement copy = new EnhancedRuuviMeasurement();
+            copy.setMac(m.getMac());
+            copy.setTime(m.getTime());
+            for (Field field : FIELDS) {
+                Double value = field.getter.apply(m);
+                if (value != null) {
+                    field.setter.accept(copy, value);
+                }
+            }
+            return copy;
+        }
+
+        private static MappedByteBuffer map(Path file, int size) throws IOException {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                return channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            }
+        }
+    }
+}
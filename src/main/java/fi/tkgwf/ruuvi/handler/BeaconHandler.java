@@ -2,6 +2,7 @@ package fi.tkgwf.ruuvi.handler;
 
 import fi.tkgwf.ruuvi.bean.EnhancedRuuviMeasurement;
 import fi.tkgwf.ruuvi.bean.HCIData;
+import fi.tkgwf.ruuvi.bean.HCIPacket;
 import fi.tkgwf.ruuvi.bean.IBeacon;
 import fi.tkgwf.ruuvi.bean.EddystoneTLM;
 import fi.tkgwf.ruuvi.bean.EddystoneUID;
@@ -9,9 +10,12 @@ import fi.tkgwf.ruuvi.common.bean.RuuviMeasurement;
 import fi.tkgwf.ruuvi.common.parser.DataFormatParser;
 import fi.tkgwf.ruuvi.common.parser.impl.AnyDataFormatParser;
 import fi.tkgwf.ruuvi.config.Config;
+import fi.tkgwf.ruuvi.metrics.CollectorMetrics;
 import fi.tkgwf.ruuvi.parser.IBeaconParser;
 import fi.tkgwf.ruuvi.parser.EddystoneTLMParser;
 import fi.tkgwf.ruuvi.parser.EddystoneUIDParser;
+import fi.tkgwf.ruuvi.utils.ReplayClock;
+import java.util.Arrays;
 import java.util.Optional;
 
 /**
@@ -19,7 +23,28 @@ import java.util.Optional;
  */
 public class BeaconHandler {
 
+    private static final byte[] RUUVI_PREFIX = {(byte) 0x99, (byte) 0x04};
+    private static final byte[] IBEACON_PREFIX = {(byte) 0x4C, (byte) 0x00, (byte) 0x02, (byte) 0x15};
+    private static final byte[] EDDYSTONE_UID_PREFIX = {(byte) 0xAA, (byte) 0xFE, (byte) 0x00};
+    private static final byte[] EDDYSTONE_TLM_PREFIX = {(byte) 0xAA, (byte) 0xFE, (byte) 0x20};
+
     private final DataFormatParser parser = new AnyDataFormatParser();
+    private final String receiver;
+
+    /**
+     * Creates a handler tagging the measurements with {@link Config#getReceiver()}
+     */
+    public BeaconHandler() {
+        this(null);
+    }
+
+    /**
+     * @param receiver the receiver to tag the measurements with, or null for
+     * {@link Config#getReceiver()}
+     */
+    public BeaconHandler(String receiver) {
+        this.receiver = receiver;
+    }
 
     /**
      * Handles a packet and creates a {@link RuuviMeasurement} if the handler
@@ -40,60 +65,103 @@ public class BeaconHandler {
                 }
             }
         }
+        byte[] data = adData.dataBytes();
+        return handle(data, 0, data.length, hciData.mac, hciData.rssi);
+    }
 
-        if (adData.dataBytes()[0] == (byte) 0x99 && adData.dataBytes()[1] == (byte) 0x04) {
-            RuuviMeasurement measurement = parser.parse(adData.dataBytes());
+    /**
+     * Handles a packet and creates a {@link RuuviMeasurement} if the handler
+     * understands this packet. The advertisement data is inspected in place and
+     * copied only if it's in a supported format.
+     *
+     * @param packet the packet to handle
+     * @return an instance of a {@link EnhancedRuuviMeasurement} if this handler can
+     * parse the packet
+     */
+    public Optional<EnhancedRuuviMeasurement> handle(HCIPacket packet) {
+        int offset = packet.findAdvertisementDataByType(0xFF); // Manufacturer-specific data, raw dataformats
+        if (offset < 0) {
+            offset = packet.findAdvertisementDataByType(0x16); // Eddystone url
+            if (offset < 0) {
+                offset = packet.findAdvertisementDataByType(0x17); // Eddystone tlm
+                if (offset < 0) {
+                    return Optional.empty();
+                }
+            }
+        }
+        return handle(packet.array(), offset, packet.advertisementDataLength(offset), packet.macString(), packet.hasRssi() ? packet.rssi() : null);
+    }
+
+    private Optional<EnhancedRuuviMeasurement> handle(byte[] data, int offset, int length, String mac, Integer rssi) {
+        if (startsWith(data, offset, length, RUUVI_PREFIX)) {
+            RuuviMeasurement measurement = parser.parse(copy(data, offset, length));
             if (measurement == null) {
+                CollectorMetrics.parseFailed();
                 return Optional.empty();
             }
-
-            EnhancedRuuviMeasurement enhancedMeasurement = new EnhancedRuuviMeasurement(measurement);
-            enhancedMeasurement.setMac(hciData.mac);
-            enhancedMeasurement.setRssi(hciData.rssi);
-            enhancedMeasurement.setName(Config.getTagName(hciData.mac));
-            enhancedMeasurement.setReceiver(Config.getReceiver());
-            return Optional.of(enhancedMeasurement);
-        } else if (adData.dataBytes()[0] == (byte) 0x4C && adData.dataBytes()[1] == (byte) 0x00 && adData.dataBytes()[2] == (byte) 0x02 && adData.dataBytes()[3] == (byte) 0x15) {
-            IBeacon beacon = IBeaconParser.parse(adData.dataBytes());
+            CollectorMetrics.measurementParsed(measurement.getDataFormat());
+            return Optional.of(withReceiverData(new EnhancedRuuviMeasurement(measurement), mac, rssi));
+        } else if (startsWith(data, offset, length, IBEACON_PREFIX)) {
+            IBeacon beacon = IBeaconParser.parse(copy(data, offset, length));
             if (beacon == null) {
+                CollectorMetrics.parseFailed();
                 return Optional.empty();
             }
-
-            EnhancedRuuviMeasurement enhancedMeasurement = new EnhancedRuuviMeasurement();
-            enhancedMeasurement.setMac(hciData.mac);
-            enhancedMeasurement.setRssi(hciData.rssi);
-            enhancedMeasurement.setName(Config.getTagName(hciData.mac));
-            enhancedMeasurement.setReceiver(Config.getReceiver());
-            return Optional.of(enhancedMeasurement);
-        } else if ((adData.dataBytes()[0] == (byte) 0xAA) && (adData.dataBytes()[1] == (byte) 0xFE) && (adData.dataBytes()[2] == (byte) 0x00)) {
-            EddystoneUID eddystoneUID = EddystoneUIDParser.parse(adData.dataBytes());
+            CollectorMetrics.measurementParsed(null);
+            return Optional.of(withReceiverData(new EnhancedRuuviMeasurement(), mac, rssi));
+        } else if (startsWith(data, offset, length, EDDYSTONE_UID_PREFIX)) {
+            EddystoneUID eddystoneUID = EddystoneUIDParser.parse(copy(data, offset, length));
             if (eddystoneUID == null) {
+                CollectorMetrics.parseFailed();
                 return Optional.empty();
             }
-
-            EnhancedRuuviMeasurement enhancedMeasurement = new EnhancedRuuviMeasurement();
-            enhancedMeasurement.setMac(hciData.mac);
-            enhancedMeasurement.setRssi(hciData.rssi);
-            enhancedMeasurement.setName(Config.getTagName(hciData.mac));
-            enhancedMeasurement.setReceiver(Config.getReceiver());
-            return Optional.of(enhancedMeasurement);
-        } else if ((adData.dataBytes()[0] == (byte) 0xAA) && (adData.dataBytes()[1] == (byte) 0xFE) && (adData.dataBytes()[2] == (byte) 0x20)) {
-            EddystoneTLM eddystoneTLM = EddystoneTLMParser.parse(adData.dataBytes());
+            CollectorMetrics.measurementParsed(null);
+            return Optional.of(withReceiverData(new EnhancedRuuviMeasurement(), mac, rssi));
+        } else if (startsWith(data, offset, length, EDDYSTONE_TLM_PREFIX)) {
+            EddystoneTLM eddystoneTLM = EddystoneTLMParser.parse(copy(data, offset, length));
             if (eddystoneTLM == null) {
+                CollectorMetrics.parseFailed();
                 return Optional.empty();
             }
+            CollectorMetrics.measurementParsed(null);
 
             RuuviMeasurement measurement = new RuuviMeasurement();
             measurement.setBatteryVoltage(eddystoneTLM.getVBatt());
             measurement.setTemperature(eddystoneTLM.getTemp());
-
-            EnhancedRuuviMeasurement enhancedMeasurement = new EnhancedRuuviMeasurement(measurement);
-            enhancedMeasurement.setMac(hciData.mac);
-            enhancedMeasurement.setRssi(hciData.rssi);
-            enhancedMeasurement.setName(Config.getTagName(hciData.mac));
-            enhancedMeasurement.setReceiver(Config.getReceiver());
-            return Optional.of(enhancedMeasurement);
+            return Optional.of(withReceiverData(new EnhancedRuuviMeasurement(measurement), mac, rssi));
         }
         return Optional.empty();
     }
+
+    private EnhancedRuuviMeasurement withReceiverData(EnhancedRuuviMeasurement enhancedMeasurement, String mac, Integer rssi) {
+        enhancedMeasurement.setMac(mac);
+        enhancedMeasurement.setRssi(rssi);
+        enhancedMeasurement.setName(Config.getTagName(mac));
+        enhancedMeasurement.setReceiver(receiver != null ? receiver : Config.getReceiver());
+        ReplayClock replayClock = Config.getReplayClock();
+        if (replayClock != null) {
+            // the measurements of a replayed capture are stored with the time they were captured
+            enhancedMeasurement.setTime(replayClock.get());
+        }
+        return enhancedMeasurement;
+    }
+
+    private static boolean startsWith(byte[] data, int offset, int length, byte[] prefix) {
+        if (length < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (data[offset + i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static byte[] copy(byte[] data, int offset, int length) {
+        if (offset == 0 && length == data.length) {
+            return data;
+        }
+        return Arrays.copyOfRange(data, offset, offset + length);
+    }
 }
@@ -0,0 +1,130 @@
+package fi.tkgwf.ruuvi.metrics;
+
+import fi.tkgwf.ruuvi.pipeline.StageQueue;
+import fi.tkgwf.ruuvi.utils.LatencyHistogram;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The metrics of the collector itself, such as how many packets it has read
+ * and how long storing the measurements takes. Counting is cheap enough to be
+ * always on: the counters are striped and the histograms lock-free, so the
+ * threads reading the inputs and storing the measurements don't contend on
+ * them. The metrics are read only when they are exported, see
+ * {@link CollectorMetricsExporter} and {@link CollectorMetricsWriter}.
+ */
+public final class CollectorMetrics {
+
+    /**
+     * Index of the measurements without a data format, such as iBeacons and
+     * Eddystone beacons
+     */
+    static final int OTHER_FORMAT = 256;
+
+    static final LongAdder LINES_READ = new LongAdder();
+    static final LongAdder PACKETS_READ = new LongAdder();
+    static final LongAdder PARSE_FAILURES = new LongAdder();
+    static final LongAdder DISCARDED = new LongAdder();
+    static final LongAdder STORE_FAILURES = new LongAdder();
+    static final LongAdder INFLUX_MEASUREMENTS = new LongAdder();
+    static final LongAdder[] PARSED = new LongAdder[OTHER_FORMAT + 1];
+    static final LatencyHistogram STORE_LATENCY = new LatencyHistogram();
+    static final LatencyHistogram INFLUX_WRITE_LATENCY = new LatencyHistogram();
+
+    private static final List<StageQueue<?>> QUEUES = new CopyOnWriteArrayList<>();
+
+    static {
+        for (int i = 0; i < PARSED.length; i++) {
+            PARSED[i] = new LongAdder();
+        }
+    }
+
+    private CollectorMetrics() {
+    }
+
+    /**
+     * Counts a line read from hcidump
+     */
+    public static void lineRead() {
+        LINES_READ.increment();
+    }
+
+    /**
+     * Counts a packet read from a binary input
+     */
+    public static void packetRead() {
+        PACKETS_READ.increment();
+    }
+
+    /**
+     * Counts a packet decoded into a measurement
+     *
+     * @param dataFormat the data format of the measurement, or null if it's
+     * not from a RuuviTag
+     */
+    public static void measurementParsed(Integer dataFormat) {
+        PARSED[dataFormat == null || dataFormat < 0 || dataFormat >= OTHER_FORMAT ? OTHER_FORMAT : dataFormat].increment();
+    }
+
+    /**
+     * Counts a packet in a known format that could not be decoded
+     */
+    public static void parseFailed() {
+        PARSE_FAILURES.increment();
+    }
+
+    /**
+     * Counts a measurement, or a packet skipped before decoding, discarded by
+     * a limiting strategy
+     */
+    public static void discarded() {
+        DISCARDED.increment();
+    }
+
+    /**
+     * Records the time taken to hand a measurement over to the database
+     * connection
+     *
+     * @param nanos the time taken, in nanoseconds
+     */
+    public static void stored(long nanos) {
+        STORE_LATENCY.record(nanos);
+    }
+
+    /**
+     * Counts a measurement the database connection failed to store
+     */
+    public static void storeFailed() {
+        STORE_FAILURES.increment();
+    }
+
+    /**
+     * Records a request writing measurements into InfluxDB
+     *
+     * @param measurements the number of measurements in the request
+     * @param nanos the time taken by the request, including the retries
+     */
+    public static void influxWritten(int measurements, long nanos) {
+        INFLUX_MEASUREMENTS.add(measurements);
+        INFLUX_WRITE_LATENCY.record(nanos);
+    }
+
+    /**
+     * Exports the depth of the queue until it's unregistered
+     *
+     * @param queue the queue
+     */
+    public static void register(StageQueue<?> queue) {
+        QUEUES.add(queue);
+    }
+
+    public static void unregister(StageQueue<?> queue) {
+        QUEUES.remove(queue);
+    }
+
+    static List<StageQueue<?>> queues() {
+        return Collections.unmodifiableList(QUEUES);
+    }
+}
@@ -0,0 +1,127 @@
+package fi.tkgwf.ruuvi.metrics;
+
+import fi.tkgwf.ruuvi.pipeline.StageQueue;
+import fi.tkgwf.ruuvi.utils.LatencyHistogram;
+import io.prometheus.client.Collector;
+import io.prometheus.client.CollectorRegistry;
+import io.prometheus.client.exporter.HTTPServer;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import org.apache.log4j.Logger;
+
+/**
+ * Exports the {@link CollectorMetrics} to Prometheus, building the samples
+ * when Prometheus scrapes them. The metrics are served by the HTTP server of
+ * the Prometheus exporter if Prometheus is one of the storage methods,
+ * otherwise by an HTTP server of their own on the same port.
+ */
+public class CollectorMetricsExporter extends Collector implements Closeable {
+
+    private static final Logger LOG = Logger.getLogger(CollectorMetricsExporter.class);
+
+    private static final String NAMESPACE = "ruuvi_collector_";
+    private static final List<String> NO_LABELS = Collections.emptyList();
+    private static final List<String> NO_VALUES = Collections.emptyList();
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99};
+
+    private final HTTPServer httpServer;
+
+    /**
+     * @param port the port to serve the metrics on, or null if they are
+     * served by another HTTP server using the default registry
+     */
+    public CollectorMetricsExporter(Integer port) {
+        register();
+        if (port == null) {
+            httpServer = null;
+            return;
+        }
+        LOG.debug("Serving the collector metrics on port " + port);
+        try {
+            httpServer = new HTTPServer(port, true);
+        } catch (IOException e) {
+            CollectorRegistry.defaultRegistry.unregister(this);
+            throw new RuntimeException("Failed to start the collector metrics HTTP server", e);
+        }
+    }
+
+    @Override
+    public List<MetricFamilySamples> collect() {
+        List<MetricFamilySamples> families = new ArrayList<>();
+        families.add(counter("lines_read", "Lines read from hcidump", CollectorMetrics.LINES_READ));
+        families.add(counter("packets_read", "Packets read from binary inputs", CollectorMetrics.PACKETS_READ));
+        families.add(parsed());
+        families.add(counter("parse_failures", "Packets in a known format that could not be decoded", CollectorMetrics.PARSE_FAILURES));
+        families.add(counter("measurements_discarded", "Measurements discarded by the limiting strategies", CollectorMetrics.DISCARDED));
+        families.add(counter("store_failures", "Measurements the database connection failed to store", CollectorMetrics.STORE_FAILURES));
+        families.add(summary("store_latency_seconds", "Time taken to hand a measurement over to the database connection", CollectorMetrics.STORE_LATENCY));
+        families.add(summary("influxdb_write_latency_seconds", "Time taken by the requests writing into InfluxDB", CollectorMetrics.INFLUX_WRITE_LATENCY));
+        families.add(counter("influxdb_written_measurements", "Measurements written into InfluxDB, divide by the count of the write latency for the mean batch size", CollectorMetrics.INFLUX_MEASUREMENTS));
+        families.addAll(queues());
+        return families;
+    }
+
+    private static MetricFamilySamples counter(String name, String help, LongAdder counter) {
+        return new MetricFamilySamples(NAMESPACE + name, Type.COUNTER, help,
+            Collections.singletonList(new MetricFamilySamples.Sample(NAMESPACE + name, NO_LABELS, NO_VALUES, counter.sum())));
+    }
+
+    private static MetricFamilySamples parsed() {
+        List<String> labels = Collections.singletonList("data_format");
+        List<MetricFamilySamples.Sample> samples = new ArrayList<>();
+        for (int i = 0; i < CollectorMetrics.PARSED.length; i++) {
+            long count = CollectorMetrics.PARSED[i].sum();
+            if (count > 0) {
+                String format = i == CollectorMetrics.OTHER_FORMAT ? "other" : String.valueOf(i);
+                samples.add(new MetricFamilySamples.Sample(NAMESPACE + "measurements_parsed", labels, Collections.singletonList(format), count));
+            }
+        }
+        return new MetricFamilySamples(NAMESPACE + "measurements_parsed", Type.COUNTER, "Measurements decoded from the packets", samples);
+    }
+
+    /**
+     * The quantiles are the upper bounds of the buckets of the histogram, so
+     * they are accurate to within a factor of two
+     */
+    private static MetricFamilySamples summary(String name, String help, LatencyHistogram histogram) {
+        List<MetricFamilySamples.Sample> samples = new ArrayList<>();
+        List<String> labels = Collections.singletonList("quantile");
+        for (double quantile : QUANTILES) {
+            samples.add(new MetricFamilySamples.Sample(NAMESPACE + name, labels, Collections.singletonList(doubleToGoString(quantile)),
+                histogram.percentileMicros(quantile * 100) / 1e6));
+        }
+        samples.add(new MetricFamilySamples.Sample(NAMESPACE + name + "_count", NO_LABELS, NO_VALUES, histogram.count()));
+        samples.add(new MetricFamilySamples.Sample(NAMESPACE + name + "_sum", NO_LABELS, NO_VALUES, histogram.sumNanos() / 1e9));
+        return new MetricFamilySamples(NAMESPACE + name, Type.SUMMARY, help, samples);
+    }
+
+    private static List<MetricFamilySamples> queues() {
+        List<String> labels = Collections.singletonList("queue");
+        List<MetricFamilySamples.Sample> depths = new ArrayList<>();
+        List<MetricFamilySamples.Sample> capacities = new ArrayList<>();
+        List<MetricFamilySamples.Sample> dropped = new ArrayList<>();
+        for (StageQueue<?> queue : CollectorMetrics.queues()) {
+            List<String> values = Collections.singletonList(queue.getName());
+            depths.add(new MetricFamilySamples.Sample(NAMESPACE + "queue_depth", labels, values, queue.depth()));
+            capacities.add(new MetricFamilySamples.Sample(NAMESPACE + "queue_capacity", labels, values, queue.capacity()));
+            dropped.add(new MetricFamilySamples.Sample(NAMESPACE + "queue_dropped", labels, values, queue.dropped()));
+        }
+        return Arrays.asList(
+            new MetricFamilySamples(NAMESPACE + "queue_depth", Type.GAUGE, "Elements waiting in the queue", depths),
+            new MetricFamilySamples(NAMESPACE + "queue_capacity", Type.GAUGE, "Capacity of the queue", capacities),
+            new MetricFamilySamples(NAMESPACE + "queue_dropped", Type.COUNTER, "Elements dropped due to the queue being full", dropped));
+    }
+
+    @Override
+    public void close() {
+        if (httpServer != null) {
+            httpServer.stop();
+        }
+        CollectorRegistry.defaultRegistry.unregister(this);
+    }
+}
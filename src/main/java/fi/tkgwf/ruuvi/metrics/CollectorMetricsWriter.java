@@ -0,0 +1,165 @@
+package fi.tkgwf.ruuvi.metrics;
+
+import fi.tkgwf.ruuvi.config.Config;
+import fi.tkgwf.ruuvi.db.LineProtocolWriter;
+import fi.tkgwf.ruuvi.pipeline.StageQueue;
+import fi.tkgwf.ruuvi.utils.LatencyHistogram;
+import fi.tkgwf.ruuvi.utils.LineProtocolEncoder;
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.URL;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.log4j.Logger;
+
+/**
+ * Periodically writes the {@link CollectorMetrics} into InfluxDB, next to the
+ * measurements, for setups without Prometheus. The counters are written as
+ * they are, so the rates are derived in the queries just like with
+ * Prometheus.
+ */
+public class CollectorMetricsWriter implements Closeable {
+
+    private static final Logger LOG = Logger.getLogger(CollectorMetricsWriter.class);
+
+    private final LineProtocolWriter writer;
+    private final String measurement;
+    private final String receiver;
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "metrics-writer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Writes into the same database as the measurements, or the default
+     * bucket with InfluxDB 2.x
+     */
+    public CollectorMetricsWriter() {
+        this(new LineProtocolWriter(url(), authorization(), Config.isInfluxGzip(), 1, Config.getMetricsInfluxInterval(),
+                1, Config.getInfluxHttpMaxRetries(), Config.getInfluxHttpTimeout(), new LineProtocolEncoder()),
+            Config.getMetricsInfluxMeasurement(), Config.getReceiver(), Config.getMetricsInfluxInterval());
+    }
+
+    /**
+     * @param writer the writer to write the metrics with, closed when this
+     * writer is closed
+     * @param measurement the measurement to write the metrics into
+     * @param receiver the receiver to tag the metrics with, or blank
+     * @param interval milliseconds between the writes
+     */
+    public CollectorMetricsWriter(LineProtocolWriter writer, String measurement, String receiver, long interval) {
+        this.writer = writer;
+        this.measurement = measurement;
+        this.receiver = receiver;
+        executor.scheduleAtFixedRate(this::write, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    private static URL url() {
+        if (Config.isStorageMethod("influxdb2")) {
+            return LineProtocolWriter.writeUrlV2(Config.getInfluxUrl(), Config.getInfluxOrg(), Config.getInfluxBucket(), TimeUnit.MILLISECONDS);
+        }
+        return LineProtocolWriter.writeUrl(Config.getInfluxUrl(), Config.getInfluxDatabase(), Config.getInfluxRetentionPolicy());
+    }
+
+    private static String authorization() {
+        if (Config.isStorageMethod("influxdb2")) {
+            return LineProtocolWriter.tokenAuthorization(Config.getInfluxToken());
+        }
+        return LineProtocolWriter.basicAuthorization(Config.getInfluxUser(), Config.getInfluxPassword());
+    }
+
+    private void write() {
+        try {
+            writer.writeLines(lines(measurement, receiver, System.currentTimeMillis()));
+        } catch (IOException | RuntimeException ex) {
+            LOG.warn("Failed to write the collector metrics into InfluxDB", ex);
+        }
+    }
+
+    /**
+     * Builds the line of the counters and latencies, and a line per queue
+     * tagged with the name of the queue
+     *
+     * @param measurement the measurement to write the metrics into
+     * @param receiver the receiver to tag the metrics with, or blank
+     * @param timestamp the timestamp of the lines in milliseconds
+     * @return the lines separated by newlines
+     */
+    static String lines(String measurement, String receiver, long timestamp) {
+        StringBuilder sb = new StringBuilder();
+        appendPrefix(sb, measurement, receiver);
+        sb.append(' ');
+        appendCounter(sb, "lines_read", CollectorMetrics.LINES_READ);
+        appendCounter(sb, "packets_read", CollectorMetrics.PACKETS_READ);
+        for (int i = 0; i < CollectorMetrics.PARSED.length; i++) {
+            long count = CollectorMetrics.PARSED[i].sum();
+            if (count > 0) {
+                appendCounter(sb, "measurements_parsed_" + (i == CollectorMetrics.OTHER_FORMAT ? "other" : String.valueOf(i)), count);
+            }
+        }
+        appendCounter(sb, "parse_failures", CollectorMetrics.PARSE_FAILURES);
+        appendCounter(sb, "measurements_discarded", CollectorMetrics.DISCARDED);
+        appendCounter(sb, "store_failures", CollectorMetrics.STORE_FAILURES);
+        appendLatency(sb, "store_latency", CollectorMetrics.STORE_LATENCY);
+        appendLatency(sb, "influxdb_write_latency", CollectorMetrics.INFLUX_WRITE_LATENCY);
+        appendCounter(sb, "influxdb_written_measurements", CollectorMetrics.INFLUX_MEASUREMENTS);
+        sb.setCharAt(sb.length() - 1, ' ');
+        sb.append(timestamp);
+        for (StageQueue<?> queue : CollectorMetrics.queues()) {
+            sb.append('\n');
+            appendPrefix(sb, measurement, receiver);
+            sb.append(",queue=");
+            LineProtocolEncoder.appendEscaped(sb, queue.getName());
+            sb.append(' ');
+            appendCounter(sb, "queue_depth", queue.depth());
+            appendCounter(sb, "queue_capacity", queue.capacity());
+            appendCounter(sb, "queue_dropped", queue.dropped());
+            sb.setCharAt(sb.length() - 1, ' ');
+            sb.append(timestamp);
+        }
+        return sb.toString();
+    }
+
+    private static void appendPrefix(StringBuilder sb, String measurement, String receiver) {
+        LineProtocolEncoder.appendEscaped(sb, measurement);
+        if (StringUtils.isNotBlank(receiver)) {
+            sb.append(",receiver=");
+            LineProtocolEncoder.appendEscaped(sb, receiver);
+        }
+    }
+
+    private static void appendCounter(StringBuilder sb, String name, LongAdder counter) {
+        appendCounter(sb, name, counter.sum());
+    }
+
+    private static void appendCounter(StringBuilder sb, String name, long value) {
+        sb.append(name).append('=').append(value).append("i,");
+    }
+
+    /**
+     * The count and the upper bounds of the median and the 99th percentile, in
+     * seconds
+     */
+    private static void appendLatency(StringBuilder sb, String name, LatencyHistogram histogram) {
+        appendCounter(sb, name + "_count", histogram.count());
+        sb.append(name).append("_p50=");
+        LineProtocolEncoder.appendDouble(sb, histogram.percentileMicros(50) / 1e6);
+        sb.append(',').append(name).append("_p99=");
+        LineProtocolEncoder.appendDouble(sb, histogram.percentileMicros(99) / 1e6);
+        sb.append(',');
+    }
+
+    /**
+     * Writes the metrics a last time and closes the writer
+     */
+    @Override
+    public void close() {
+        executor.shutdownNow();
+        write();
+        writer.close();
+    }
+}
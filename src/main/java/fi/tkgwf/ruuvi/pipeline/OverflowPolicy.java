@@ -0,0 +1,16 @@
+package fi.tkgwf.ruuvi.pipeline;
+
+/**
+ * What to do when the queue to the next stage of the {@link Pipeline} is full
+ */
+public enum OverflowPolicy {
+    /**
+     * Discard the element and count it as dropped, the stage never stalls
+     */
+    DROP,
+    /**
+     * Wait until the next stage has room for the element, propagating the
+     * backpressure upstream
+     */
+    BLOCK
+}
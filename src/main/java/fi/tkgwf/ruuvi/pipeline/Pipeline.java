@@ -0,0 +1,228 @@
+package fi.tkgwf.ruuvi.pipeline;
+
+import fi.tkgwf.ruuvi.bean.EnhancedRuuviMeasurement;
+import fi.tkgwf.ruuvi.bean.HCIPacket;
+import fi.tkgwf.ruuvi.config.Config;
+import fi.tkgwf.ruuvi.handler.BeaconHandler;
+import fi.tkgwf.ruuvi.metrics.CollectorMetrics;
+import fi.tkgwf.ruuvi.service.PersistenceService;
+import fi.tkgwf.ruuvi.utils.HCIPacketSource;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+import org.apache.log4j.Logger;
+import org.influxdb.InfluxDBIOException;
+
+/**
+ * Processes the packets in separate stages, each running in its own thread:
+ * <ol>
+ * <li>the reader (the caller of {@link #submit(byte[], int)}) copies the raw
+ * packet into a preallocated slot</li>
+ * <li>the decoder turns the packet into a measurement, skipping the packets the
+ * limiting strategy would discard anyway if the strategies are thread safe</li>
+ * <li>the limiter submits the measurement to the persistence service, which
+ * drops the duplicates if the de-duplication is enabled, applies the limiting
+ * strategy and calculates the extended values of the measurements that are
+ * kept, passing them back to the pipeline</li>
+ * <li>the sink saves the measurement</li>
+ * </ol>
+ * The stages are connected with bounded lock-free queues, so that a slow
+ * database write never stalls reading the input.
+ */
+public class Pipeline implements AutoCloseable {
+
+    private static final Logger LOG = Logger.getLogger(Pipeline.class);
+
+    private final PersistenceService persistenceService;
+    private final BeaconHandler beaconHandler;
+    private final OverflowPolicy overflowPolicy;
+    private final boolean earlyDiscard = Config.isLimitingStrategyConcurrent();
+
+    private final RingBuffer<PacketSlot> freeSlots;
+    private final StageQueue<PacketSlot> packets;
+    private final StageQueue<EnhancedRuuviMeasurement> measurements;
+    private final StageQueue<EnhancedRuuviMeasurement> limitedMeasurements;
+    private final List<Thread> threads = new ArrayList<>();
+
+    private volatile boolean inputClosed;
+    private volatile boolean decoderFinished;
+    private volatile boolean limiterFinished;
+    private volatile boolean failed;
+
+    public Pipeline(PersistenceService persistenceService) {
+        this(persistenceService, new BeaconHandler(), Config.getPipelineQueueSize(), Config.getPipelineOverflowPolicy());
+    }
+
+    public Pipeline(PersistenceService persistenceService, BeaconHandler beaconHandler, int queueSize, OverflowPolicy overflowPolicy) {
+        this.persistenceService = persistenceService;
+        this.beaconHandler = beaconHandler;
+        this.overflowPolicy = overflowPolicy;
+        this.packets = new StageQueue<>("packets", queueSize, overflowPolicy);
+        this.measurements = new StageQueue<>("measurements", queueSize, overflowPolicy);
+        this.limitedMeasurements = new StageQueue<>("limitedMeasurements", queueSize, overflowPolicy);
+        persistenceService.setKeptMeasurementConsumer(m -> limitedMeasurements.put(m, this::isFailed));
+        queues().forEach(CollectorMetrics::register);
+        // there are exactly as many slots as the packet queue can hold, running out of slots means the queue is full
+        this.freeSlots = new RingBuffer<>(packets.capacity());
+        for (int i = 0; i < packets.capacity(); i++) {
+            freeSlots.offer(new PacketSlot());
+        }
+    }
+
+    /**
+     * Starts the threads of the decoder, limiter and sink stages
+     */
+    public void start() {
+        HCIPacket packet = new HCIPacket();
+        startStage("pipeline-decoder", packets, () -> inputClosed, slot -> decode(packet, slot), () -> decoderFinished = true);
+        startStage("pipeline-limiter", measurements, () -> decoderFinished, persistenceService::submit, () -> {
+            persistenceService.flush();
+            limiterFinished = true;
+        });
+        startStage("pipeline-sink", limitedMeasurements, () -> limiterFinished, this::save, () -> {});
+    }
+
+    /**
+     * Copies the packet into the pipeline. The buffer can be reused as soon as
+     * this method returns.
+     *
+     * @param data buffer containing the packet, starting from the packet type
+     * byte
+     * @param length length of the packet in the buffer
+     * @return true if the packet was accepted, false if it was dropped
+     */
+    public boolean submit(byte[] data, int length) {
+        return submit(data, length, beaconHandler);
+    }
+
+    /**
+     * Copies the packet into the pipeline, to be decoded with the given
+     * handler instead of the default one. Can be called from several threads,
+     * such as the readers of different inputs. The handler is only used from
+     * the decoder thread.
+     *
+     * @param data buffer containing the packet, starting from the packet type
+     * byte
+     * @param length length of the packet in the buffer
+     * @param handler the handler for decoding the packet, such as one that
+     * tags the measurements with the receiver of the input
+     * @return true if the packet was accepted, false if it was dropped
+     */
+    public boolean submit(byte[] data, int length, BeaconHandler handler) {
+        PacketSlot slot = freeSlots.poll();
+        int idleCount = 0;
+        while (slot == null) {
+            if (overflowPolicy == OverflowPolicy.DROP || failed) {
+                packets.countDropped();
+                return false;
+            }
+            StageQueue.idle(idleCount++);
+            slot = freeSlots.poll();
+        }
+        slot.handler = handler;
+        slot.length = Math.min(length, slot.data.length);
+        System.arraycopy(data, 0, slot.data, 0, slot.length);
+        return packets.put(slot, () -> failed);
+    }
+
+    private void decode(HCIPacket packet, PacketSlot slot) {
+        try {
+            if (packet.wrap(slot.data, slot.length) && Config.isAllowedMAC(packet.macString()) && !isDiscardable(packet.macString())) {
+                slot.handler.handle(packet).ifPresent(measurement -> measurements.put(measurement, this::isFailed));
+            }
+        } catch (RuntimeException ex) {
+            LOG.warn("Uncaught exception while handling measurements from MAC address \"" + packet.macString() + "\", if this repeats and this is not a Ruuvitag, try blacklisting it", ex);
+            LOG.debug("Offending packet: " + packet);
+        } finally {
+            freeSlots.offer(slot);
+        }
+    }
+
+    private boolean isDiscardable(String mac) {
+        // the limiter thread is using the strategies at the same time, which only the concurrent ones allow
+        return earlyDiscard && persistenceService.isDiscardable(mac);
+    }
+
+    private void save(EnhancedRuuviMeasurement measurement) {
+        try {
+            persistenceService.save(measurement);
+        } catch (InfluxDBIOException ex) {
+            LOG.error("Database connection lost while attempting to save measurements to InfluxDB", ex);
+            if (Config.exitOnInfluxDBIOException()) {
+                failed = true;
+            }
+        }
+    }
+
+    private <E> void startStage(String name, StageQueue<E> input, BooleanSupplier upstreamFinished, Consumer<E> handler, Runnable onFinish) {
+        Thread thread = new Thread(() -> {
+            int idleCount = 0;
+            while (!failed) {
+                // the upstream has put all of its elements before finishing, so an empty queue after this means the end
+                boolean finished = upstreamFinished.getAsBoolean();
+                E element = input.poll();
+                if (element != null) {
+                    idleCount = 0;
+                    try {
+                        handler.accept(element);
+                    } catch (RuntimeException ex) {
+                        LOG.warn("Uncaught exception in " + name + ", this is an unexpected event. Please report this to https://github.com/Scrin/RuuviCollector/issues and include this log", ex);
+                    }
+                } else if (finished) {
+                    break;
+                } else {
+                    StageQueue.idle(idleCount++);
+                }
+            }
+            onFinish.run();
+        }, name);
+        thread.setDaemon(true);
+        thread.start();
+        threads.add(thread);
+    }
+
+    /**
+     * @return true if the sink has failed so that the collector should exit,
+     * see {@link Config#exitOnInfluxDBIOException()}
+     */
+    public boolean isFailed() {
+        return failed;
+    }
+
+    /**
+     * @return the queues between the stages, in the order of the stages
+     */
+    public List<StageQueue<?>> queues() {
+        return Collections.unmodifiableList(Arrays.asList(packets, measurements, limitedMeasurements));
+    }
+
+    /**
+     * Stops accepting packets and waits until the packets already in the
+     * pipeline have been processed. Does not close the persistence service.
+     */
+    @Override
+    public void close() {
+        inputClosed = true;
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                LOG.warn("Interrupted while waiting for " + thread.getName() + " to finish");
+                break;
+            }
+        }
+        LOG.info("Pipeline closed: " + queues());
+        queues().forEach(CollectorMetrics::unregister);
+    }
+
+    private static class PacketSlot {
+
+        private final byte[] data = new byte[HCIPacketSource.MAX_PACKET_LENGTH];
+        private int length;
+        private BeaconHandler handler;
+    }
+}
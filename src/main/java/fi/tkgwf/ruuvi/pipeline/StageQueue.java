@@ -0,0 +1,119 @@
+package fi.tkgwf.ruuvi.pipeline;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BooleanSupplier;
+
+/**
+ * A {@link RingBuffer} between two stages of the {@link Pipeline}, applying
+ * the {@link OverflowPolicy} and keeping track of the queue statistics.
+ *
+ * @param <E> type of the elements
+ */
+public class StageQueue<E> {
+
+    private static final long MAX_PARK_NANOS = 1_000_000;
+
+    private final String name;
+    private final RingBuffer<E> buffer;
+    private final OverflowPolicy overflowPolicy;
+    private final LongAdder dropped = new LongAdder();
+    private final AtomicInteger highWaterMark = new AtomicInteger();
+
+    public StageQueue(String name, int capacity, OverflowPolicy overflowPolicy) {
+        this.name = name;
+        this.buffer = new RingBuffer<>(capacity);
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    /**
+     * Adds an element to the queue, either dropping it or waiting for room if
+     * the queue is full, depending on the overflow policy.
+     *
+     * @param element the element to add
+     * @param cancelled checked while waiting for room, the element is dropped
+     * if this returns true
+     * @return true if the element was added, false if it was dropped
+     */
+    public boolean put(E element, BooleanSupplier cancelled) {
+        int idleCount = 0;
+        while (!buffer.offer(element)) {
+            if (overflowPolicy == OverflowPolicy.DROP || cancelled.getAsBoolean()) {
+                dropped.increment();
+                return false;
+            }
+            idle(idleCount++);
+        }
+        int size = buffer.size();
+        if (size > highWaterMark.get()) {
+            highWaterMark.accumulateAndGet(size, Math::max);
+        }
+        return true;
+    }
+
+    /**
+     * Counts an element as dropped without trying to add it, for stages that
+     * detect the overflow by other means
+     */
+    void countDropped() {
+        dropped.increment();
+    }
+
+    /**
+     * @return the oldest element, or null if the queue is empty
+     */
+    public E poll() {
+        return buffer.poll();
+    }
+
+    /**
+     * Backs off progressively when there is nothing to do: yields for the
+     * first few rounds and then parks for increasingly long periods, up to a
+     * millisecond, so that idle stages don't burn CPU.
+     *
+     * @param idleCount number of consecutive idle rounds so far
+     */
+    public static void idle(int idleCount) {
+        if (idleCount < 10) {
+            Thread.yield();
+        } else {
+            LockSupport.parkNanos(Math.min(MAX_PARK_NANOS, 1000L << Math.min(idleCount - 10, 10)));
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return the current number of elements in the queue
+     */
+    public int depth() {
+        return buffer.size();
+    }
+
+    public int capacity() {
+        return buffer.capacity();
+    }
+
+    /**
+     * @return the highest number of elements that have been in the queue at
+     * once
+     */
+    public int highWaterMark() {
+        return highWaterMark.get();
+    }
+
+    /**
+     * @return the number of elements dropped due to the queue being full
+     */
+    public long dropped() {
+        return dropped.sum();
+    }
+
+    @Override
+    public String toString() {
+        return name + "{depth=" + depth() + "/" + capacity() + ", highWaterMark=" + highWaterMark() + ", dropped=" + dropped() + '}';
+    }
+}
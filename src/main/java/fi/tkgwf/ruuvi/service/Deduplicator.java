@@ -0,0 +1,241 @@
+package fi.tkgwf.ruuvi.service;
+
+import fi.tkgwf.ruuvi.bean.EnhancedRuuviMeasurement;
+import fi.tkgwf.ruuvi.config.Config;
+import fi.tkgwf.ruuvi.utils.Utils;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ObjLongConsumer;
+
+/**
+ * Drops the copies of the same measurement heard by several receivers. The
+ * measurements are identified by the MAC address of the tag and the
+ * measurement sequence number, so only the data formats having the sequence
+ * number (such as data format 5) are de-duplicated, the others are passed on
+ * right away, as are the ones without a valid MAC address.
+ * <p>
+ * The first copy of a measurement is held for the duration of the window,
+ * and if better copies arrive meanwhile, the one with the best RSSI is passed
+ * on when the window ends. The measurement is remembered for another window
+ * after that, so that the copies arriving late are dropped as well. Held
+ * measurements are passed on when the next measurement arrives after their
+ * window has ended, on {@link #releaseExpired()} or on {@link #flush()}.
+ * <p>
+ * The entries are kept in a fixed size ring in the order of arrival, indexed
+ * by an open addressing hash table, so the memory use is bounded: when the
+ * ring is full, the oldest entry is passed on and forgotten early. The
+ * methods are synchronized and pass the measurements on while holding the
+ * lock, which keeps them in order. Each measurement is passed on with the time
+ * its first copy was received.
+ */
+public class Deduplicator {
+
+    private final long window;
+    private final ObjLongConsumer<EnhancedRuuviMeasurement> downstream;
+
+    private final int mask;
+    private final long[] keys;
+    private final long[] firstSeen;
+    private final EnhancedRuuviMeasurement[] pending;
+    /**
+     * Ring position + 1 of the entries, 0 for empty table slots
+     */
+    private final int[] table;
+    private final int tableMask;
+
+    /**
+     * Ring sequence numbers: the entries from tail (inclusive) to releaseFrom
+     * have been passed on, the ones from releaseFrom to head are held
+     */
+    private long tail;
+    private long releaseFrom;
+    private long head;
+
+    private final LongAdder suppressed = new LongAdder();
+
+    /**
+     * @param downstream receives the measurements that are not duplicates and
+     * the times they were received
+     */
+    public Deduplicator(ObjLongConsumer<EnhancedRuuviMeasurement> downstream) {
+        this(Config.getDeduplicationWindow(), Config.getDeduplicationCapacity(), downstream);
+    }
+
+    /**
+     * @param window milliseconds to wait for more copies of a measurement
+     * @param capacity maximum number of measurements to remember, rounded up
+     * to the next power of two
+     * @param downstream receives the measurements that are not duplicates and
+     * the times they were received
+     */
+    public Deduplicator(long window, int capacity, ObjLongConsumer<EnhancedRuuviMeasurement> downstream) {
+        int size = 1;
+        while (size < capacity) {
+            size *= 2;
+        }
+        this.window = window;
+        this.downstream = downstream;
+        this.mask = size - 1;
+        this.keys = new long[size];
+        this.firstSeen = new long[size];
+        this.pending = new EnhancedRuuviMeasurement[size];
+        this.table = new int[size * 2];
+        this.tableMask = table.length - 1;
+    }
+
+    /**
+     * Holds the measurement if it's the first copy, or drops it if it's a
+     * duplicate, and passes on the measurements whose window has ended.
+     *
+     * @param measurement the measurement
+     */
+    public void accept(EnhancedRuuviMeasurement measurement) {
+        accept(measurement, Config.getTimestampProvider().get());
+    }
+
+    /**
+     * Same as {@link #accept(EnhancedRuuviMeasurement)}, for a measurement
+     * received at the given time.
+     *
+     * @param measurement the measurement
+     * @param now the time the measurement was received in milliseconds
+     */
+    public synchronized void accept(EnhancedRuuviMeasurement measurement, long now) {
+        expire(now);
+        long mac = mac(measurement);
+        if (mac < 0 || measurement.getMeasurementSequenceNumber() == null) {
+            downstream.accept(measurement, now);
+            return;
+        }
+        long key = mac << 16 | (measurement.getMeasurementSequenceNumber() & 0xFFFF);
+        int slot = find(key);
+        if (slot >= 0) {
+            suppressed.increment();
+            int position = table[slot] - 1;
+            EnhancedRuuviMeasurement held = pending[position];
+            if (held != null && isBetter(measurement, held)) {
+                pending[position] = measurement;
+            }
+            return;
+        }
+        if (head - tail > mask) {
+            // full, forget the oldest entry early
+            if (releaseFrom == tail) {
+                releaseNext();
+            }
+            remove(tail++);
+        }
+        int position = (int) head & mask;
+        keys[position] = key;
+        firstSeen[position] = now;
+        pending[position] = measurement;
+        insert(key, position);
+        head++;
+    }
+
+    /**
+     * Passes on the measurements whose window has ended, for calling
+     * periodically so that they are not held until the next measurement
+     * arrives
+     */
+    public synchronized void releaseExpired() {
+        expire(Config.getTimestampProvider().get());
+    }
+
+    /**
+     * Passes on all the measurements that are being held, without waiting for
+     * their windows to end
+     */
+    public synchronized void flush() {
+        while (releaseFrom < head) {
+            releaseNext();
+        }
+    }
+
+    /**
+     * @return the number of duplicates dropped so far
+     */
+    public long getSuppressed() {
+        return suppressed.sum();
+    }
+
+    /**
+     * @return the number of measurements being held
+     */
+    public synchronized int getPending() {
+        return (int) (head - releaseFrom);
+    }
+
+    private void expire(long now) {
+        while (releaseFrom < head && firstSeen[(int) releaseFrom & mask] + window <= now) {
+            releaseNext();
+        }
+        while (tail < releaseFrom && firstSeen[(int) tail & mask] + 2 * window <= now) {
+            remove(tail++);
+        }
+    }
+
+    private void releaseNext() {
+        int position = (int) releaseFrom++ & mask;
+        EnhancedRuuviMeasurement measurement = pending[position];
+        pending[position] = null;
+        downstream.accept(measurement, firstSeen[position]);
+    }
+
+    /**
+     * @return the 48-bit MAC address of the measurement, or -1 if it has no
+     * valid MAC address
+     */
+    private static long mac(EnhancedRuuviMeasurement measurement) {
+        if (measurement.getMac() == null) {
+            return -1;
+        }
+        try {
+            return Utils.macToLong(measurement.getMac());
+        } catch (NumberFormatException ex) {
+            return -1;
+        }
+    }
+
+    private static boolean isBetter(EnhancedRuuviMeasurement candidate, EnhancedRuuviMeasurement held) {
+        return candidate.getRssi() != null && (held.getRssi() == null || candidate.getRssi() > held.getRssi());
+    }
+
+    private int find(long key) {
+        for (int slot = hash(key) & tableMask; ; slot = (slot + 1) & tableMask) {
+            if (table[slot] == 0) {
+                return -1;
+            } else if (keys[table[slot] - 1] == key) {
+                return slot;
+            }
+        }
+    }
+
+    private void insert(long key, int position) {
+        int slot = hash(key) & tableMask;
+        while (table[slot] != 0) {
+            slot = (slot + 1) & tableMask;
+        }
+        table[slot] = position + 1;
+    }
+
+    private void remove(long sequence) {
+        int gap = find(keys[(int) sequence & mask]);
+        // backward shift deletion, moves the following entries of the probe sequence into the gap
+        for (int slot = (gap + 1) & tableMask; table[slot] != 0; slot = (slot + 1) & tableMask) {
+            int ideal = hash(keys[table[slot] - 1]) & tableMask;
+            if (((slot - ideal) & tableMask) >= ((slot - gap) & tableMask)) {
+                table[gap] = table[slot];
+                gap = slot;
+            }
+        }
+        table[gap] = 0;
+    }
+
+    private static int hash(long key) {
+        // the finalizer of MurmurHash3, the vendor part of MAC addresses is far from random
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        return (int) key;
+    }
+}
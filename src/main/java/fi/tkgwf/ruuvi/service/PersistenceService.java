@@ -3,13 +3,34 @@ package fi.tkgwf.ruuvi.service;
 import fi.tkgwf.ruuvi.bean.EnhancedRuuviMeasurement;
 import fi.tkgwf.ruuvi.config.Config;
 import fi.tkgwf.ruuvi.db.DBConnection;
+import fi.tkgwf.ruuvi.metrics.CollectorMetrics;
 import fi.tkgwf.ruuvi.strategy.LimitingStrategy;
+import fi.tkgwf.ruuvi.utils.MeasurementValueCalculator;
+import fi.tkgwf.ruuvi.utils.Sweeper;
+import org.apache.log4j.Logger;
 
 import java.util.Optional;
+import java.util.concurrent.ScheduledFuture;
+import java.util.function.Consumer;
 
 public class PersistenceService implements AutoCloseable {
+    private static final Logger LOG = Logger.getLogger(PersistenceService.class);
+
     private final DBConnection db;
     private final LimitingStrategy limitingStrategy;
+    /**
+     * Null if the de-duplication is disabled
+     */
+    private final Deduplicator deduplicator;
+    /**
+     * Releases the measurements held by the de-duplication when their window
+     * ends, null if the de-duplication is disabled
+     */
+    private final ScheduledFuture<?> releaser;
+    /**
+     * Receives the measurements kept by {@link #submit(EnhancedRuuviMeasurement)}
+     */
+    private volatile Consumer<EnhancedRuuviMeasurement> keptMeasurements = this::save;
 
     public PersistenceService() {
         this(Config.getDBConnection(), Config.getLimitingStrategy());
@@ -18,18 +39,171 @@ public class PersistenceService implements AutoCloseable {
     public PersistenceService(final DBConnection db, final LimitingStrategy strategy) {
         this.db = db;
         this.limitingStrategy = strategy;
+        if (Config.isDeduplicationEnabled()) {
+            this.deduplicator = new Deduplicator(this::limitAndCalculate);
+            this.releaser = Sweeper.schedule("de-duplication", deduplicator::releaseExpired, Config.getDeduplicationWindow());
+        } else {
+            this.deduplicator = null;
+            this.releaser = null;
+        }
     }
 
     @Override
     public void close() {
+        if (deduplicator != null) {
+            releaser.cancel(false);
+            deduplicator.flush();
+            LOG.info("Dropped " + deduplicator.getSuppressed() + " duplicate measurements");
+        }
         db.close();
     }
 
+    /**
+     * Passes the measurements kept by {@link #submit(EnhancedRuuviMeasurement)}
+     * to the consumer instead of saving them, such as to the sink stage of the
+     * {@link fi.tkgwf.ruuvi.pipeline.Pipeline}. Must be called before the
+     * first measurement is submitted.
+     *
+     * @param consumer receives the measurements to save
+     */
+    public void setKeptMeasurementConsumer(final Consumer<EnhancedRuuviMeasurement> consumer) {
+        this.keptMeasurements = consumer;
+    }
+
+    /**
+     * Passes the measurement through the de-duplication, if enabled, and the
+     * limiting strategy of the tag, calculates the extended values of the
+     * measurements that are kept and saves them. With the de-duplication the
+     * measurement may be saved later, during another call, from the sweeper
+     * when its window ends, on {@link #flush()} or on close.
+     *
+     * @param measurement the measurement
+     * @see Deduplicator
+     * @see #setKeptMeasurementConsumer(Consumer)
+     */
+    public void submit(final EnhancedRuuviMeasurement measurement) {
+        submit(measurement, Config.getTimestampProvider().get());
+    }
+
+    /**
+     * Same as {@link #submit(EnhancedRuuviMeasurement)}, for a measurement
+     * received at the given time.
+     *
+     * @param measurement the measurement
+     * @param time the time the measurement was received in milliseconds, as
+     * given to {@link #isDiscardable(String, long)} for its packet
+     */
+    public void submit(final EnhancedRuuviMeasurement measurement, final long time) {
+        if (deduplicator != null) {
+            deduplicator.accept(measurement, time);
+        } else {
+            limitAndCalculate(measurement, time);
+        }
+    }
+
+    /**
+     * Saves the measurements held by the de-duplication, if enabled, without
+     * waiting for their windows to end
+     */
+    public void flush() {
+        if (deduplicator != null) {
+            deduplicator.flush();
+        }
+    }
+
+    private void limitAndCalculate(final EnhancedRuuviMeasurement measurement, final long time) {
+        // the extended values are calculated only for the measurements that are stored
+        limit(measurement, time)
+            .map(MeasurementValueCalculator::calculateAllValues)
+            .ifPresent(keptMeasurements);
+    }
+
     public void store(final EnhancedRuuviMeasurement measurement) {
-        Optional.ofNullable(measurement.getMac())
+        limit(measurement).ifPresent(this::save);
+    }
+
+    /**
+     * Checks with the limiting strategy of the tag whether its next
+     * measurement would be discarded anyway, before the packet is decoded.
+     *
+     * @param mac the MAC address of the tag
+     * @return true if the packet can be skipped
+     * @see LimitingStrategy#isDiscardable(String)
+     */
+    public boolean isDiscardable(final String mac) {
+        if (strategyFor(mac).isDiscardable(mac)) {
+            CollectorMetrics.discarded();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Same as {@link #isDiscardable(String)}, for a packet received at the
+     * given time.
+     *
+     * @param mac the MAC address of the tag
+     * @param time the time the packet was received in milliseconds
+     * @return true if the packet can be skipped
+     * @see LimitingStrategy#isDiscardable(String, long)
+     */
+    public boolean isDiscardable(final String mac, final long time) {
+        if (strategyFor(mac).isDiscardable(mac, time)) {
+            CollectorMetrics.discarded();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Applies the limiting strategy of the tag to the measurement, without
+     * saving it.
+     *
+     * @param measurement the measurement
+     * @return the measurement to save, or empty if it should be discarded
+     */
+    public Optional<EnhancedRuuviMeasurement> limit(final EnhancedRuuviMeasurement measurement) {
+        return counted(strategyFor(measurement.getMac()).apply(measurement));
+    }
+
+    /**
+     * Same as {@link #limit(EnhancedRuuviMeasurement)}, for a measurement
+     * received at the given time.
+     *
+     * @param measurement the measurement
+     * @param time the time the measurement was received in milliseconds
+     * @return the measurement to save, or empty if it should be discarded
+     */
+    public Optional<EnhancedRuuviMeasurement> limit(final EnhancedRuuviMeasurement measurement, final long time) {
+        return counted(strategyFor(measurement.getMac()).apply(measurement, time));
+    }
+
+    private static Optional<EnhancedRuuviMeasurement> counted(final Optional<EnhancedRuuviMeasurement> limited) {
+        if (!limited.isPresent()) {
+            CollectorMetrics.discarded();
+        }
+        return limited;
+    }
+
+    private LimitingStrategy strategyFor(final String mac) {
+        return Optional.ofNullable(mac)
             .map(Config::getLimitingStrategy)
-            .orElse(limitingStrategy)
-            .apply(measurement)
-            .ifPresent(db::save);
+            .orElse(limitingStrategy);
+    }
+
+    /**
+     * Saves the measurement as-is, bypassing the limiting strategy.
+     *
+     * @param measurement the measurement
+     */
+    public void save(final EnhancedRuuviMeasurement measurement) {
+        final long start = System.nanoTime();
+        try {
+            db.save(measurement);
+        } catch (RuntimeException ex) {
+            CollectorMetrics.storeFailed();
+            throw ex;
+        }
+        CollectorMetrics.stored(System.nanoTime() - start);
     }
 }
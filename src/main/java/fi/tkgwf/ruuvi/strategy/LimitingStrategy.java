@@ -20,4 +20,45 @@ public interface LimitingStrategy extends Function<EnhancedRuuviMeasurement, Opt
      */
     @Override
     Optional<EnhancedRuuviMeasurement> apply(EnhancedRuuviMeasurement measurement);
+
+    /**
+     * Applies a limiting strategy to the given measurement received at the given time, so that the caller can read
+     * the clock once per packet and give the same time to {@link #isDiscardable(String, long)} and to this method.
+     * Strategies that depend on the time should override this, and read the clock in
+     * {@link #apply(EnhancedRuuviMeasurement)}.
+     *
+     * @param measurement A measurement considered for persisting.
+     * @param time The time the measurement was received in milliseconds, see
+     * {@link fi.tkgwf.ruuvi.config.Config#getTimestampProvider()}.
+     * @return Same as {@link #apply(EnhancedRuuviMeasurement)}.
+     */
+    default Optional<EnhancedRuuviMeasurement> apply(EnhancedRuuviMeasurement measurement, long time) {
+        return apply(measurement);
+    }
+
+    /**
+     * Tells whether the next measurement from the given device would be discarded regardless of its contents,
+     * so that decoding the packet can be skipped altogether. This is a cheap check done before the packet is
+     * parsed, and the measurement is not passed to {@link #apply(EnhancedRuuviMeasurement)} if this returns true.
+     *
+     * Strategies that need to look at the measurement, for example at the acceleration, must return false.
+     *
+     * @param mac the MAC address of the device
+     * @return true if the next measurement from this device would certainly be discarded
+     */
+    default boolean isDiscardable(String mac) {
+        return false;
+    }
+
+    /**
+     * Same as {@link #isDiscardable(String)}, for a packet received at the given time.
+     *
+     * @param mac the MAC address of the device
+     * @param time the time the packet was received in milliseconds
+     * @return true if the next measurement from this device would certainly be discarded
+     * @see #apply(EnhancedRuuviMeasurement, long)
+     */
+    default boolean isDiscardable(String mac, long time) {
+        return isDiscardable(mac);
+    }
 }
@@ -0,0 +1,292 @@
+package fi.tkgwf.ruuvi.strategy;
+
+import fi.tkgwf.ruuvi.config.Config;
+import fi.tkgwf.ruuvi.utils.Utils;
+import java.util.Arrays;
+
+/**
+ * Per-tag state for the limiting strategies, keyed by the MAC address packed
+ * into a long. The values are kept in primitive arrays ("columns") indexed by
+ * the slot of the tag in an open addressing hash table, so looking up or
+ * updating the state of a tag does not allocate anything. In addition to the
+ * timestamps and flags, each tag has a fixed number of ring buffer slots for
+ * the previous acceleration samples.
+ * <p>
+ * Tags that have not been seen for {@link Config#getTagStateExpiry()}
+ * milliseconds are evicted, so that the table does not grow without bounds
+ * when there are lots of foreign beacons around.
+ * <p>
+ * Slot numbers are only valid until the next call to
+ * {@link #findOrInsert(long, long)}, which may move the entries around. This
+ * implementation is not thread safe.
+ */
+public class TagStateTable {
+
+    /**
+     * Key used for measurements without a MAC address
+     */
+    public static final long NULL_MAC = 1L << 48;
+    /**
+     * Value of {@link #getLastUpdate(int)} for tags that have not been
+     * updated yet
+     */
+    public static final long NEVER = Long.MIN_VALUE;
+
+    public static final int X = 0;
+    public static final int Y = 1;
+    public static final int Z = 2;
+
+    private static final long EMPTY = -1;
+    private static final int MIN_CAPACITY = 64;
+    private static final int AXES = 3;
+    private static final long MAX_EVICTION_INTERVAL = 60_000;
+
+    private final int samplesPerTag;
+    private final long expiry;
+    private Columns columns;
+    private int size;
+    private long nextEviction = NEVER;
+
+    /**
+     * Creates a table without acceleration samples, expiring the tags after
+     * {@link Config#getTagStateExpiry()}
+     */
+    public TagStateTable() {
+        this(0);
+    }
+
+    /**
+     * @param samplesPerTag the number of acceleration samples to keep per tag
+     */
+    public TagStateTable(int samplesPerTag) {
+        this(samplesPerTag, Config.getTagStateExpiry());
+    }
+
+    /**
+     * @param samplesPerTag the number of acceleration samples to keep per tag
+     * @param expiry milliseconds after which tags that have not been seen are
+     * evicted
+     */
+    public TagStateTable(int samplesPerTag, long expiry) {
+        this.samplesPerTag = samplesPerTag;
+        this.expiry = expiry;
+        this.columns = new Columns(MIN_CAPACITY, samplesPerTag);
+    }
+
+    /**
+     * @param mac the MAC address as returned by
+     * {@link Utils#getMacFromLine(String)}, or null
+     * @return the key of the MAC address in this table
+     * @throws NumberFormatException if the MAC address is not 12 hex digits,
+     * see {@link Utils#macToLong(String)}
+     */
+    public static long key(String mac) {
+        return mac == null ? NULL_MAC : Utils.macToLong(mac);
+    }
+
+    /**
+     * @param key the key of the tag, see {@link #key(String)}
+     * @return the slot of the tag, or -1 if the tag is not in the table
+     */
+    public int find(long key) {
+        long[] keys = columns.keys;
+        int mask = keys.length - 1;
+        for (int slot = hash(key) & mask; ; slot = (slot + 1) & mask) {
+            if (keys[slot] == key) {
+                return slot;
+            } else if (keys[slot] == EMPTY) {
+                return -1;
+            }
+        }
+    }
+
+    /**
+     * Finds the slot of the tag, adding the tag if it's not in the table yet,
+     * and marks the tag as seen. May evict the expired tags, which invalidates
+     * all the previously returned slots.
+     *
+     * @param key the key of the tag, see {@link #key(String)}
+     * @param now the current time in milliseconds
+     * @return the slot of the tag
+     */
+    public int findOrInsert(long key, long now) {
+        if (now >= nextEviction) {
+            evict(now - expiry);
+            nextEviction = now + Math.min(expiry, MAX_EVICTION_INTERVAL);
+        }
+        int slot = find(key);
+        if (slot < 0) {
+            if ((size + 1) * 2 > columns.keys.length) {
+                rehash(columns.keys.length * 2, Long.MIN_VALUE);
+            }
+            slot = insert(columns, key);
+            size++;
+        }
+        columns.lastSeen[slot] = now;
+        return slot;
+    }
+
+    public long getLastUpdate(int slot) {
+        return columns.lastUpdate[slot];
+    }
+
+    public void setLastUpdate(int slot, long timestamp) {
+        columns.lastUpdate[slot] = timestamp;
+    }
+
+    public long getLastSeen(int slot) {
+        return columns.lastSeen[slot];
+    }
+
+    /**
+     * @param slot the slot of the tag
+     * @param flag bit mask of the flag, each strategy chooses its own bits
+     * @return true if the flag is set
+     */
+    public boolean isFlagSet(int slot, int flag) {
+        return (columns.flags[slot] & flag) != 0;
+    }
+
+    public void setFlag(int slot, int flag, boolean value) {
+        if (value) {
+            columns.flags[slot] |= flag;
+        } else {
+            columns.flags[slot] &= ~flag;
+        }
+    }
+
+    /**
+     * Adds an acceleration sample, overwriting the oldest one if all the
+     * sample slots of the tag are already in use. Missing values should be
+     * given as {@link Double#NaN}.
+     */
+    public void addSample(int slot, double x, double y, double z) {
+        if (samplesPerTag == 0) {
+            return;
+        }
+        int head = (columns.sampleHead[slot] + 1) % samplesPerTag;
+        int index = (slot * samplesPerTag + head) * AXES;
+        columns.samples[index + X] = x;
+        columns.samples[index + Y] = y;
+        columns.samples[index + Z] = z;
+        columns.sampleHead[slot] = head;
+        columns.sampleCount[slot] = Math.min(columns.sampleCount[slot] + 1, samplesPerTag);
+    }
+
+    /**
+     * @return the number of acceleration samples of the tag, at most the
+     * number of samples per tag given in the constructor
+     */
+    public int getSampleCount(int slot) {
+        return columns.sampleCount[slot];
+    }
+
+    /**
+     * @param slot the slot of the tag
+     * @param age 0 for the latest sample, 1 for the one before it and so on,
+     * must be less than {@link #getSampleCount(int)}
+     * @param axis {@link #X}, {@link #Y} or {@link #Z}
+     * @return the value of the sample, NaN if it was missing
+     */
+    public double getSample(int slot, int age, int axis) {
+        int position = (columns.sampleHead[slot] - age + samplesPerTag) % samplesPerTag;
+        return columns.samples[(slot * samplesPerTag + position) * AXES + axis];
+    }
+
+    /**
+     * @return the number of tags in the table
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Removes the tags that have not been seen since the given time.
+     *
+     * @param seenBefore the time in milliseconds
+     * @return the number of tags removed
+     */
+    public int evict(long seenBefore) {
+        int expired = 0;
+        for (int slot = 0; slot < columns.keys.length; slot++) {
+            if (columns.keys[slot] != EMPTY && columns.lastSeen[slot] < seenBefore) {
+                expired++;
+            }
+        }
+        if (expired > 0) {
+            int remaining = size - expired;
+            int capacity = MIN_CAPACITY;
+            while (remaining * 4 > capacity) {
+                capacity *= 2;
+            }
+            rehash(capacity, seenBefore);
+        }
+        return expired;
+    }
+
+    private void rehash(int capacity, long seenBefore) {
+        Columns old = columns;
+        columns = new Columns(capacity, samplesPerTag);
+        size = 0;
+        for (int slot = 0; slot < old.keys.length; slot++) {
+            if (old.keys[slot] != EMPTY && old.lastSeen[slot] >= seenBefore) {
+                old.copy(slot, columns, insert(columns, old.keys[slot]));
+                size++;
+            }
+        }
+    }
+
+    private static int insert(Columns columns, long key) {
+        long[] keys = columns.keys;
+        int mask = keys.length - 1;
+        int slot = hash(key) & mask;
+        while (keys[slot] != EMPTY) {
+            slot = (slot + 1) & mask;
+        }
+        keys[slot] = key;
+        return slot;
+    }
+
+    private static int hash(long key) {
+        // the finalizer of MurmurHash3, the vendor part of MAC addresses is far from random
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        return (int) key;
+    }
+
+    private static class Columns {
+
+        private final int samplesPerTag;
+        private final long[] keys;
+        private final long[] lastUpdate;
+        private final long[] lastSeen;
+        private final int[] flags;
+        private final int[] sampleHead;
+        private final int[] sampleCount;
+        private final double[] samples;
+
+        Columns(int capacity, int samplesPerTag) {
+            this.samplesPerTag = samplesPerTag;
+            this.keys = new long[capacity];
+            this.lastUpdate = new long[capacity];
+            this.lastSeen = new long[capacity];
+            this.flags = new int[capacity];
+            this.sampleHead = new int[capacity];
+            this.sampleCount = new int[capacity];
+            this.samples = new double[capacity * samplesPerTag * AXES];
+            Arrays.fill(keys, EMPTY);
+            Arrays.fill(lastUpdate, NEVER);
+        }
+
+        void copy(int from, Columns target, int to) {
+            target.lastUpdate[to] = lastUpdate[from];
+            target.lastSeen[to] = lastSeen[from];
+            target.flags[to] = flags[from];
+            target.sampleHead[to] = sampleHead[from];
+            target.sampleCount[to] = sampleCount[from];
+            int length = samplesPerTag * AXES;
+            System.arraycopy(samples, from * length, target.samples, to * length, length);
+        }
+    }
+}
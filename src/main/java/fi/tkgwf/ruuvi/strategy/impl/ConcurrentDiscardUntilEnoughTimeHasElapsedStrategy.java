@@ -0,0 +1,19 @@
+package fi.tkgwf.ruuvi.strategy.impl;
+
+import fi.tkgwf.ruuvi.strategy.TagStateTable;
+
+/**
+ * A thread safe version of {@link DiscardUntilEnoughTimeHasElapsedStrategy}, for when the measurements are limited
+ * from several threads at once. The devices are split into stripes, each with its own instance of the sequential
+ * strategy and its own {@link TagStateTable}, so the timestamps are kept and the tags not seen for a while are
+ * evicted exactly as in the sequential version. Of the measurements arriving at the same time from the same device,
+ * exactly one gets through, as they are limited one at a time by the lock of their stripe.
+ *
+ * @see StripedLimitingStrategy
+ */
+public class ConcurrentDiscardUntilEnoughTimeHasElapsedStrategy extends StripedLimitingStrategy {
+
+    public ConcurrentDiscardUntilEnoughTimeHasElapsedStrategy() {
+        super(DiscardUntilEnoughTimeHasElapsedStrategy::new);
+    }
+}
@@ -3,11 +3,8 @@ package fi.tkgwf.ruuvi.strategy.impl;
 import fi.tkgwf.ruuvi.bean.EnhancedRuuviMeasurement;
 import fi.tkgwf.ruuvi.config.Config;
 import fi.tkgwf.ruuvi.strategy.LimitingStrategy;
+import fi.tkgwf.ruuvi.strategy.TagStateTable;
 
-import java.util.HashMap;
-import java.util.LinkedList;
-import java.util.List;
-import java.util.Map;
 import java.util.Optional;
 
 /**
@@ -23,44 +20,59 @@ import java.util.Optional;
  * </p>
  */
 public class DefaultDiscardingWithMotionSensitivityStrategy implements LimitingStrategy {
-    private final DiscardUntilEnoughTimeHasElapsedStrategy defaultStrategy = new DiscardUntilEnoughTimeHasElapsedStrategy();
+    private static final int PREVIOUS_OUTSIDE_OF_RANGE = 1;
+
+    private final TagStateTable state = new TagStateTable(Config.getDefaultWithMotionSensitivityStrategyNumberOfPreviousMeasurementsToKeep());
+    private final DiscardUntilEnoughTimeHasElapsedStrategy defaultStrategy = new DiscardUntilEnoughTimeHasElapsedStrategy(state);
 
     private final Double threshold = Config.getDefaultWithMotionSensitivityStrategyThreshold();
-    private final Map<String, List<EnhancedRuuviMeasurement>> previousMeasurementsPerMac = new HashMap<>();
-    private final Map<String, Boolean> previousOutsideOfRangePerMac = new HashMap<>();
 
     @Override
     public Optional<EnhancedRuuviMeasurement> apply(final EnhancedRuuviMeasurement measurement) {
-        final List<EnhancedRuuviMeasurement> previousMeasurements = previousMeasurementsPerMac.getOrDefault(measurement.getMac(), new LinkedList<>());
-        previousMeasurements.add(measurement);
-        if (previousMeasurements.size() > Config.getDefaultWithMotionSensitivityStrategyNumberOfPreviousMeasurementsToKeep()) {
-            previousMeasurements.remove(0);
-        }
-        previousMeasurementsPerMac.put(measurement.getMac(), previousMeasurements);
+        return apply(measurement, Config.getTimestampProvider().get());
+    }
 
+    @Override
+    public Optional<EnhancedRuuviMeasurement> apply(final EnhancedRuuviMeasurement measurement, final long time) {
         // Always apply the default strategy to keep the timestamps updated there:
-        Optional<EnhancedRuuviMeasurement> result = defaultStrategy.apply(measurement);
+        Optional<EnhancedRuuviMeasurement> result = defaultStrategy.apply(measurement, time);
+
+        // The default strategy has added the tag to the shared table, if it wasn't there already
+        final int slot = state.find(TagStateTable.key(measurement.getMac()));
+        state.addSample(slot, valueOf(measurement.getAccelerationX()), valueOf(measurement.getAccelerationY()), valueOf(measurement.getAccelerationZ()));
 
         // Apply the motion sensing strategy only if the base strategy says "no":
-        if (!result.isPresent() && previousMeasurements.size() > 1) {
-            final EnhancedRuuviMeasurement previous = previousMeasurements.get(previousMeasurements.size() - 2);
-            if (isOutsideThreshold(measurement.getAccelerationX(), previous.getAccelerationX())
-                || isOutsideThreshold(measurement.getAccelerationY(), previous.getAccelerationY())
-                || isOutsideThreshold(measurement.getAccelerationZ(), previous.getAccelerationZ())) {
+        if (!result.isPresent() && state.getSampleCount(slot) > 1) {
+            if (isOutsideThreshold(measurement.getAccelerationX(), state.getSample(slot, 1, TagStateTable.X))
+                || isOutsideThreshold(measurement.getAccelerationY(), state.getSample(slot, 1, TagStateTable.Y))
+                || isOutsideThreshold(measurement.getAccelerationZ(), state.getSample(slot, 1, TagStateTable.Z))) {
                 result = Optional.of(measurement);
-                previousOutsideOfRangePerMac.put(measurement.getMac(), true);
-            } else if (previousOutsideOfRangePerMac.getOrDefault(measurement.getMac(), false)) {
+                state.setFlag(slot, PREVIOUS_OUTSIDE_OF_RANGE, true);
+            } else if (state.isFlagSet(slot, PREVIOUS_OUTSIDE_OF_RANGE)) {
                 // Reset the measurements: store one more event after the values have returned to within the threshold
                 result = Optional.of(measurement);
-                previousOutsideOfRangePerMac.put(measurement.getMac(), false);
+                state.setFlag(slot, PREVIOUS_OUTSIDE_OF_RANGE, false);
             }
         }
 
         return result;
     }
 
-    private boolean isOutsideThreshold(final Double current, final Double previous) {
-        if (current == null || previous == null) {
+    /**
+     * The acceleration of every measurement is needed for detecting the motion, so nothing can be discarded
+     * before the packet has been decoded.
+     */
+    @Override
+    public boolean isDiscardable(final String mac) {
+        return false;
+    }
+
+    private static double valueOf(final Double value) {
+        return value == null ? Double.NaN : value;
+    }
+
+    private boolean isOutsideThreshold(final Double current, final double previous) {
+        if (current == null || Double.isNaN(previous)) {
             return false;
         }
         final double upperBound = previous + threshold;
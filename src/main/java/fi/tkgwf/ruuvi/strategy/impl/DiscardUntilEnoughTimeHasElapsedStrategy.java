@@ -3,36 +3,69 @@ package fi.tkgwf.ruuvi.strategy.impl;
 import fi.tkgwf.ruuvi.bean.EnhancedRuuviMeasurement;
 import fi.tkgwf.ruuvi.config.Config;
 import fi.tkgwf.ruuvi.strategy.LimitingStrategy;
+import fi.tkgwf.ruuvi.strategy.TagStateTable;
 
-import java.util.HashMap;
-import java.util.Map;
 import java.util.Optional;
 
 /**
  * The default limiting strategy: discard measurements that are coming in too fast.
  * The time limit is defined as {@link Config#getMeasurementUpdateLimit()}.
  * The limit is applied separately to all the different devices sending data, i.e. per MAC address.
+ * <p>
+ * The methods taking the time do not read the clock, so that the caller can read it once per packet for both the
+ * check and the measurement. The strategy is not thread safe.
  */
 public class DiscardUntilEnoughTimeHasElapsedStrategy implements LimitingStrategy {
     /**
-     * Contains the MAC address as key, and the timestamp of last sent update as value
+     * Contains the timestamp of last sent update per MAC address
      */
-    private final Map<String, Long> updatedMacs = new HashMap<>();
+    private final TagStateTable state;
     private final long updateLimit = Config.getMeasurementUpdateLimit();
 
+    public DiscardUntilEnoughTimeHasElapsedStrategy() {
+        this(new TagStateTable());
+    }
+
+    /**
+     * @param state the table to keep the timestamps in, possibly shared with another strategy
+     */
+    public DiscardUntilEnoughTimeHasElapsedStrategy(final TagStateTable state) {
+        this.state = state;
+    }
+
     @Override
     public Optional<EnhancedRuuviMeasurement> apply(final EnhancedRuuviMeasurement measurement) {
-        if (!shouldUpdate(measurement.getMac())) {
+        return apply(measurement, Config.getTimestampProvider().get());
+    }
+
+    @Override
+    public Optional<EnhancedRuuviMeasurement> apply(final EnhancedRuuviMeasurement measurement, final long time) {
+        if (!shouldUpdate(TagStateTable.key(measurement.getMac()), time)) {
             return Optional.empty();
         }
         return Optional.of(measurement);
     }
 
-    private boolean shouldUpdate(final String mac) {
-        final Long lastUpdate = updatedMacs.get(mac);
-        final long currentTime = Config.getTimestampProvider().get();
-        if (lastUpdate == null || lastUpdate + updateLimit < currentTime) {
-            updatedMacs.put(mac, currentTime);
+    @Override
+    public boolean isDiscardable(final String mac) {
+        return isDiscardable(mac, Config.getTimestampProvider().get());
+    }
+
+    @Override
+    public boolean isDiscardable(final String mac, final long time) {
+        final int slot = state.find(TagStateTable.key(mac));
+        if (slot < 0) {
+            return false;
+        }
+        final long lastUpdate = state.getLastUpdate(slot);
+        return lastUpdate != TagStateTable.NEVER && lastUpdate + updateLimit >= time;
+    }
+
+    private boolean shouldUpdate(final long mac, final long currentTime) {
+        final int slot = state.findOrInsert(mac, currentTime);
+        final long lastUpdate = state.getLastUpdate(slot);
+        if (lastUpdate == TagStateTable.NEVER || lastUpdate + updateLimit < currentTime) {
+            state.setLastUpdate(slot, currentTime);
             return true;
         }
         return false;
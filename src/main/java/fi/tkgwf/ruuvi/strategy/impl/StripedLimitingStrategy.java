@@ -0,0 +1,88 @@
+package fi.tkgwf.ruuvi.strategy.impl;
+
+import fi.tkgwf.ruuvi.bean.EnhancedRuuviMeasurement;
+import fi.tkgwf.ruuvi.strategy.LimitingStrategy;
+import fi.tkgwf.ruuvi.strategy.TagStateTable;
+
+import java.util.Optional;
+import java.util.function.Supplier;
+
+/**
+ * Makes any of the single-threaded strategies thread safe by splitting the devices into stripes by their MAC
+ * address. Each stripe has its own instance of the strategy, guarded by its own lock, so threads limiting
+ * measurements from different devices rarely wait for each other. The measurements from one device always go to
+ * the same instance, so the decisions are the same as with a single instance of the strategy as long as the
+ * measurements of each device are limited in the order they were received.
+ * <p>
+ * Used for {@link DefaultDiscardingWithMotionSensitivityStrategy}, which needs to update the acceleration history,
+ * the flag and the timestamp of a device together, and for {@link DiscardUntilEnoughTimeHasElapsedStrategy} in
+ * {@link ConcurrentDiscardUntilEnoughTimeHasElapsedStrategy}.
+ */
+public class StripedLimitingStrategy implements LimitingStrategy {
+    private final LimitingStrategy[] stripes;
+
+    /**
+     * Creates four stripes per available processor
+     *
+     * @param strategyFactory creates the strategy of each stripe
+     */
+    public StripedLimitingStrategy(final Supplier<LimitingStrategy> strategyFactory) {
+        this(strategyFactory, Runtime.getRuntime().availableProcessors() * 4);
+    }
+
+    /**
+     * @param strategyFactory creates the strategy of each stripe
+     * @param stripes the number of stripes, rounded up to the next power of two
+     */
+    public StripedLimitingStrategy(final Supplier<LimitingStrategy> strategyFactory, final int stripes) {
+        int count = 1;
+        while (count < stripes) {
+            count *= 2;
+        }
+        this.stripes = new LimitingStrategy[count];
+        for (int i = 0; i < count; i++) {
+            this.stripes[i] = strategyFactory.get();
+        }
+    }
+
+    @Override
+    public Optional<EnhancedRuuviMeasurement> apply(final EnhancedRuuviMeasurement measurement) {
+        final LimitingStrategy stripe = stripeOf(measurement.getMac());
+        synchronized (stripe) {
+            return stripe.apply(measurement);
+        }
+    }
+
+    @Override
+    public Optional<EnhancedRuuviMeasurement> apply(final EnhancedRuuviMeasurement measurement, final long time) {
+        final LimitingStrategy stripe = stripeOf(measurement.getMac());
+        synchronized (stripe) {
+            return stripe.apply(measurement, time);
+        }
+    }
+
+    @Override
+    public boolean isDiscardable(final String mac) {
+        final LimitingStrategy stripe = stripeOf(mac);
+        synchronized (stripe) {
+            return stripe.isDiscardable(mac);
+        }
+    }
+
+    @Override
+    public boolean isDiscardable(final String mac, final long time) {
+        final LimitingStrategy stripe = stripeOf(mac);
+        synchronized (stripe) {
+            return stripe.isDiscardable(mac, time);
+        }
+    }
+
+    private LimitingStrategy stripeOf(final String mac) {
+        // the finalizer of MurmurHash3, the vendor part of MAC addresses is far from random
+        long hash = TagStateTable.key(mac);
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        return stripes[(int) hash & (stripes.length - 1)];
+    }
+}
@@ -0,0 +1,47 @@
+package fi.tkgwf.ruuvi.utils;
+
+/**
+ * Reads the bits written by a {@link BitWriter}.
+ */
+public class BitReader {
+
+    private final byte[] bytes;
+    private final int end;
+    private long position;
+
+    public BitReader(byte[] bytes) {
+        this(bytes, 0, bytes.length);
+    }
+
+    /**
+     * @param bytes the bytes to read
+     * @param offset index of the first byte to read
+     * @param length number of bytes to read
+     */
+    public BitReader(byte[] bytes, int offset, int length) {
+        this.bytes = bytes;
+        this.end = offset + length;
+        this.position = (long) offset << 3;
+    }
+
+    public boolean readBit() {
+        return readBits(1) != 0;
+    }
+
+    /**
+     * @param count number of bits to read, from 0 to 64
+     * @return the bits as the lowest bits of the value
+     * @throws IllegalArgumentException if there are not enough bits left
+     */
+    public long readBits(int count) {
+        if (position + count > (long) end << 3) {
+            throw new IllegalArgumentException("Reading past the end of the data");
+        }
+        long value = 0;
+        for (int i = 0; i < count; i++) {
+            value = value << 1 | (bytes[(int) (position >>> 3)] >>> (7 - (position & 7)) & 1);
+            position++;
+        }
+        return value;
+    }
+}
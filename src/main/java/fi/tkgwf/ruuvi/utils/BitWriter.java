@@ -0,0 +1,65 @@
+package fi.tkgwf.ruuvi.utils;
+
+import java.util.Arrays;
+
+/**
+ * Writes values of any number of bits, most significant bit first, into a
+ * growing byte array.
+ */
+public class BitWriter {
+
+    private byte[] bytes;
+    private long bits;
+
+    public BitWriter() {
+        this(64);
+    }
+
+    /**
+     * @param capacity initial capacity in bytes
+     */
+    public BitWriter(int capacity) {
+        bytes = new byte[Math.max(capacity, 8)];
+    }
+
+    public void writeBit(boolean bit) {
+        writeBits(bit ? 1 : 0, 1);
+    }
+
+    /**
+     * Writes the lowest bits of the value
+     *
+     * @param value the value
+     * @param count number of bits to write, from 0 to 64
+     */
+    public void writeBits(long value, int count) {
+        ensureCapacity(bits + count);
+        for (int i = count - 1; i >= 0; i--) {
+            if ((value >>> i & 1) != 0) {
+                bytes[(int) (bits >>> 3)] |= 0x80 >>> (bits & 7);
+            }
+            bits++;
+        }
+    }
+
+    /**
+     * @return number of bits written
+     */
+    public long bitLength() {
+        return bits;
+    }
+
+    /**
+     * @return the bits written, the last byte padded with zeros
+     */
+    public byte[] toByteArray() {
+        return Arrays.copyOf(bytes, (int) ((bits + 7) >>> 3));
+    }
+
+    private void ensureCapacity(long bitCount) {
+        int needed = (int) ((bitCount + 7) >>> 3);
+        if (needed > bytes.length) {
+            bytes = Arrays.copyOf(bytes, Math.max(needed, bytes.length * 2));
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package fi.tkgwf.ruuvi.utils;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads HCI event packets from a binary btsnoop stream, such as a capture
+ * file or a FIFO written by "btmon --write". Unlike hcidump output, there is
+ * no hex text to decode: the packets are copied as-is into a reusable packet
+ * buffer. Other packets than HCI events (commands, ACL data, index events
+ * etc.) are skipped. This implementation is not thread safe.
+ *
+ * @see <a href="https://tools.ietf.org/html/rfc1761">RFC 1761</a> for the
+ * file format
+ */
+public class BtSnoopReader implements HCIPacketSource {
+
+    /**
+     * HCI packets without the packet type byte, direction and type in flags
+     */
+    public static final int DATALINK_HCI_UNENCAPSULATED = 1001;
+    /**
+     * HCI packets prefixed by the H4 (UART) packet type byte
+     */
+    public static final int DATALINK_HCI_UART = 1002;
+    /**
+     * Linux monitor socket format written by btmon, opcode in flags
+     */
+    public static final int DATALINK_MONITOR = 2001;
+
+    private static final byte[] MAGIC = {'b', 't', 's', 'n', 'o', 'o', 'p', 0};
+    private static final byte HCI_EVENT_PACKET = 0x04;
+    private static final int MONITOR_OPCODE_EVENT = 3;
+    /**
+     * Microseconds between year 0 and 1970, btsnoop timestamps count from the
+     * former
+     */
+    private static final long EPOCH_OFFSET_MICROS = 0x00dcddb30f2f8000L;
+
+    private final DataInputStream in;
+    private final byte[] skipBuffer = new byte[512];
+    private final byte[] packet = new byte[MAX_PACKET_LENGTH];
+    private int packetLength;
+    private long timestamp;
+    private int datalink = -1;
+
+    public BtSnoopReader(InputStream in) {
+        this.in = new DataInputStream(new BufferedInputStream(in));
+    }
+
+    @Override
+    public int next() throws IOException {
+        try {
+            if (datalink < 0) {
+                readHeader();
+            }
+            while (true) {
+                in.readInt(); // original length
+                int includedLength = in.readInt();
+                int flags = in.readInt();
+                in.readInt(); // cumulative drops
+                long micros = in.readLong();
+                if (isEvent(flags) && includedLength <= packet.length) {
+                    if (datalink == DATALINK_HCI_UART) {
+                        in.readFully(packet, 0, includedLength);
+                        if (includedLength > 0 && packet[0] == HCI_EVENT_PACKET) {
+                            return packet(includedLength, micros);
+                        }
+                    } else if (includedLength < packet.length) {
+                        // the other formats don't include the packet type byte, prefix it to be consistent with hcidump
+                        packet[0] = HCI_EVENT_PACKET;
+                        in.readFully(packet, 1, includedLength);
+                        return packet(includedLength + 1, micros);
+                    } else {
+                        skip(includedLength);
+                    }
+                } else {
+                    skip(includedLength);
+                }
+            }
+        } catch (EOFException ex) {
+            return EOF; // a partially written record at the end is as good as the end
+        }
+    }
+
+    private void readHeader() throws IOException {
+        for (byte b : MAGIC) {
+            if (in.readByte() != b) {
+                throw new IOException("Not a btsnoop stream");
+            }
+        }
+        int version = in.readInt();
+        if (version != 1) {
+            throw new IOException("Unsupported btsnoop version: " + version);
+        }
+        datalink = in.readInt();
+        if (datalink != DATALINK_HCI_UNENCAPSULATED && datalink != DATALINK_HCI_UART && datalink != DATALINK_MONITOR) {
+            throw new IOException("Unsupported btsnoop datalink type: " + datalink);
+        }
+    }
+
+    private boolean isEvent(int flags) {
+        switch (datalink) {
+            case DATALINK_HCI_UNENCAPSULATED:
+                return (flags & 0x03) == 0x03; // received command/event
+            case DATALINK_MONITOR:
+                return (flags & 0xFFFF) == MONITOR_OPCODE_EVENT;
+            default:
+                return true; // the H4 packet type byte tells the type
+        }
+    }
+
+    private int packet(int length, long micros) {
+        packetLength = length;
+        timestamp = (micros - EPOCH_OFFSET_MICROS) / 1000;
+        return PACKET;
+    }
+
+    private void skip(int length) throws IOException {
+        while (length > 0) {
+            int n = Math.min(length, skipBuffer.length);
+            in.readFully(skipBuffer, 0, n);
+            length -= n;
+        }
+    }
+
+    @Override
+    public byte[] packet() {
+        return packet;
+    }
+
+    @Override
+    public int packetLength() {
+        return packetLength;
+    }
+
+    /**
+     * @return the capture time of the latest packet, in milliseconds since
+     * the epoch
+     */
+    public long timestamp() {
+        return timestamp;
+    }
+
+    /**
+     * btsnoop streams don't contain any messages
+     *
+     * @return always null
+     */
+    @Override
+    public String message() {
+        return null;
+    }
+}
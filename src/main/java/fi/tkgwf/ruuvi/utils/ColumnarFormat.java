@@ -0,0 +1,131 @@
+package fi.tkgwf.ruuvi.utils;
+
+import fi.tkgwf.ruuvi.bean.EnhancedRuuviMeasurement;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+/**
+ * The columnar file format written by {@link ColumnarWriter} and read by
+ * {@link ColumnarReader}, for moving large amounts of measurements around.
+ * <p>
+ * The file starts with {@link #MAGIC} and a version byte, followed by blocks
+ * each prefixed with its length as a 4 byte integer. A block holds up to a
+ * few thousand measurements of one tag, and starts with the number of
+ * measurements and the MAC address. Then come the columns, each starting
+ * with a byte telling whether the column has no values, a value for every
+ * measurement, or a bit mask of the measurements that have a value:
+ * <ul>
+ * <li>the time, as variable length deltas of the deltas</li>
+ * <li>the strings, as a dictionary and an index into it</li>
+ * <li>the integers, as variable length deltas</li>
+ * <li>the doubles, XOR encoded by {@link XorEncoder}, prefixed with the length
+ * of the encoded bytes</li>
+ * </ul>
+ * The variable length integers are zigzag encoded base 128 varints.
+ */
+public abstract class ColumnarFormat {
+
+    static final byte[] MAGIC = "RUUVICOL".getBytes(StandardCharsets.US_ASCII);
+    static final byte VERSION = 1;
+
+    static final byte NO_VALUES = 0;
+    static final byte ALL_VALUES = 1;
+    static final byte SOME_VALUES = 2;
+
+    /*
+     * The values of the measurements other than the time and the MAC address,
+     * shared by the formats that store the measurements. The order is a part
+     * of the formats, new columns are added at the end of their list.
+     */
+    public static final List<Column<String>> STRING_COLUMNS = Arrays.asList(
+        new Column<>("name", EnhancedRuuviMeasurement::getName, EnhancedRuuviMeasurement::setName),
+        new Column<>("receiver", EnhancedRuuviMeasurement::getReceiver, EnhancedRuuviMeasurement::setReceiver));
+    public static final List<Column<Integer>> INTEGER_COLUMNS = Arrays.asList(
+        new Column<>("dataFormat", EnhancedRuuviMeasurement::getDataFormat, EnhancedRuuviMeasurement::setDataFormat),
+        new Column<>("rssi", EnhancedRuuviMeasurement::getRssi, EnhancedRuuviMeasurement::setRssi),
+        new Column<>("txPower", EnhancedRuuviMeasurement::getTxPower, EnhancedRuuviMeasurement::setTxPower),
+        new Column<>("movementCounter", EnhancedRuuviMeasurement::getMovementCounter, EnhancedRuuviMeasurement::setMovementCounter),
+        new Column<>("measurementSequenceNumber", EnhancedRuuviMeasurement::getMeasurementSequenceNumber, EnhancedRuuviMeasurement::setMeasurementSequenceNumber));
+    public static final List<Column<Double>> DOUBLE_COLUMNS = Arrays.asList(
+        new Column<>("temperature", EnhancedRuuviMeasurement::getTemperature, EnhancedRuuviMeasurement::setTemperature),
+        new Column<>("humidity", EnhancedRuuviMeasurement::getHumidity, EnhancedRuuviMeasurement::setHumidity),
+        new Column<>("pressure", EnhancedRuuviMeasurement::getPressure, EnhancedRuuviMeasurement::setPressure),
+        new Column<>("accelerationX", EnhancedRuuviMeasurement::getAccelerationX, EnhancedRuuviMeasurement::setAccelerationX),
+        new Column<>("accelerationY", EnhancedRuuviMeasurement::getAccelerationY, EnhancedRuuviMeasurement::setAccelerationY),
+        new Column<>("accelerationZ", EnhancedRuuviMeasurement::getAccelerationZ, EnhancedRuuviMeasurement::setAccelerationZ),
+        new Column<>("batteryVoltage", EnhancedRuuviMeasurement::getBatteryVoltage, EnhancedRuuviMeasurement::setBatteryVoltage),
+        new Column<>("accelerationTotal", EnhancedRuuviMeasurement::getAccelerationTotal, EnhancedRuuviMeasurement::setAccelerationTotal),
+        new Column<>("accelerationAngleFromX", EnhancedRuuviMeasurement::getAccelerationAngleFromX, EnhancedRuuviMeasurement::setAccelerationAngleFromX),
+        new Column<>("accelerationAngleFromY", EnhancedRuuviMeasurement::getAccelerationAngleFromY, EnhancedRuuviMeasurement::setAccelerationAngleFromY),
+        new Column<>("accelerationAngleFromZ", EnhancedRuuviMeasurement::getAccelerationAngleFromZ, EnhancedRuuviMeasurement::setAccelerationAngleFromZ),
+        new Column<>("absoluteHumidity", EnhancedRuuviMeasurement::getAbsoluteHumidity, EnhancedRuuviMeasurement::setAbsoluteHumidity),
+        new Column<>("dewPoint", EnhancedRuuviMeasurement::getDewPoint, EnhancedRuuviMeasurement::setDewPoint),
+        new Column<>("equilibriumVaporPressure", EnhancedRuuviMeasurement::getEquilibriumVaporPressure, EnhancedRuuviMeasurement::setEquilibriumVaporPressure),
+        new Column<>("airDensity", EnhancedRuuviMeasurement::getAirDensity, EnhancedRuuviMeasurement::setAirDensity));
+
+    /**
+     * A value of the measurement stored as a column, with the name it has in
+     * InfluxDB
+     */
+    public static class Column<T> {
+
+        public final String name;
+        public final Function<EnhancedRuuviMeasurement, T> getter;
+        public final BiConsumer<EnhancedRuuviMeasurement, T> setter;
+
+        Column(String name, Function<EnhancedRuuviMeasurement, T> getter, BiConsumer<EnhancedRuuviMeasurement, T> setter) {
+            this.name = name;
+            this.getter = getter;
+            this.setter = setter;
+        }
+    }
+
+    static void writeVarLong(ByteArrayOutputStream out, long value) {
+        long zigzag = value << 1 ^ value >> 63;
+        while ((zigzag & ~0x7FL) != 0) {
+            out.write((int) (zigzag & 0x7F | 0x80));
+            zigzag >>>= 7;
+        }
+        out.write((int) zigzag);
+    }
+
+    static long readVarLong(ByteBuffer in) {
+        long zigzag = 0;
+        for (int shift = 0;; shift += 7) {
+            if (shift > 63) {
+                throw new IllegalArgumentException("Malformed variable length integer");
+            }
+            byte b = in.get();
+            zigzag |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                break;
+            }
+        }
+        return zigzag >>> 1 ^ -(zigzag & 1);
+    }
+
+    static void writeString(ByteArrayOutputStream out, String value) {
+        if (value == null) {
+            writeVarLong(out, -1);
+        } else {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            writeVarLong(out, bytes.length);
+            out.write(bytes, 0, bytes.length);
+        }
+    }
+
+    static String readString(ByteBuffer in) {
+        int length = (int) readVarLong(in);
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
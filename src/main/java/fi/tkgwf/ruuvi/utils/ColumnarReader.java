@@ -0,0 +1,173 @@
+package fi.tkgwf.ruuvi.utils;
+
+import fi.tkgwf.ruuvi.bean.EnhancedRuuviMeasurement;
+import fi.tkgwf.ruuvi.utils.ColumnarFormat.Column;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Reads the measurements written by a {@link ColumnarWriter}, a block at a
+ * time.
+ */
+public class ColumnarReader implements Closeable {
+
+    private final DataInputStream in;
+
+    /**
+     * @param in the stream to read from, closed when the reader is closed
+     * @throws IOException if the stream is not in the columnar format
+     */
+    public ColumnarReader(InputStream in) throws IOException {
+        this.in = new DataInputStream(in);
+        byte[] magic = new byte[ColumnarFormat.MAGIC.length];
+        this.in.readFully(magic);
+        if (!Arrays.equals(magic, ColumnarFormat.MAGIC)) {
+            throw new IOException("Not a columnar measurement file");
+        }
+        byte version = this.in.readByte();
+        if (version != ColumnarFormat.VERSION) {
+            throw new IOException("Unsupported columnar file version: " + version);
+        }
+    }
+
+    /**
+     * @return the measurements of the next block, all of the same tag, or
+     * null at the end of the file
+     * @throws IOException if reading fails or the block is corrupted
+     */
+    public List<EnhancedRuuviMeasurement> readBlock() throws IOException {
+        int length;
+        try {
+            length = in.readInt();
+        } catch (EOFException ex) {
+            return null;
+        }
+        if (length < 0) {
+            throw new IOException("Corrupted block length: " + length);
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        try {
+            return decode(ByteBuffer.wrap(bytes));
+        } catch (BufferUnderflowException | IllegalArgumentException | IndexOutOfBoundsException ex) {
+            throw new IOException("Corrupted block", ex);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    private static List<EnhancedRuuviMeasurement> decode(ByteBuffer block) {
+        int count = (int) ColumnarFormat.readVarLong(block);
+        if (count < 0 || count > block.remaining() * 8) {
+            throw new IllegalArgumentException("Corrupted measurement count: " + count);
+        }
+        String mac = ColumnarFormat.readString(block);
+        List<EnhancedRuuviMeasurement> measurements = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            EnhancedRuuviMeasurement m = new EnhancedRuuviMeasurement();
+            m.setMac(mac);
+            measurements.add(m);
+        }
+        readTimes(block, measurements);
+        for (Column<String> column : ColumnarFormat.STRING_COLUMNS) {
+            readStrings(block, measurements, column);
+        }
+        for (Column<Integer> column : ColumnarFormat.INTEGER_COLUMNS) {
+            readIntegers(block, measurements, column);
+        }
+        for (Column<Double> column : ColumnarFormat.DOUBLE_COLUMNS) {
+            readDoubles(block, measurements, column);
+        }
+        return measurements;
+    }
+
+    private static void readTimes(ByteBuffer block, List<EnhancedRuuviMeasurement> measurements) {
+        List<EnhancedRuuviMeasurement> present = readPresence(block, measurements);
+        long previous = 0;
+        long previousDelta = 0;
+        for (EnhancedRuuviMeasurement m : present) {
+            long delta = previousDelta + ColumnarFormat.readVarLong(block);
+            previous += delta;
+            previousDelta = delta;
+            m.setTime(previous);
+        }
+    }
+
+    private static void readStrings(ByteBuffer block, List<EnhancedRuuviMeasurement> measurements, Column<String> column) {
+        List<EnhancedRuuviMeasurement> present = readPresence(block, measurements);
+        if (present.isEmpty()) {
+            return;
+        }
+        int size = (int) ColumnarFormat.readVarLong(block);
+        if (size < 0 || size > present.size()) {
+            throw new IllegalArgumentException("Corrupted dictionary size: " + size);
+        }
+        String[] dictionary = new String[size];
+        for (int i = 0; i < size; i++) {
+            dictionary[i] = ColumnarFormat.readString(block);
+        }
+        for (EnhancedRuuviMeasurement m : present) {
+            column.setter.accept(m, dictionary[(int) ColumnarFormat.readVarLong(block)]);
+        }
+    }
+
+    private static void readIntegers(ByteBuffer block, List<EnhancedRuuviMeasurement> measurements, Column<Integer> column) {
+        long previous = 0;
+        for (EnhancedRuuviMeasurement m : readPresence(block, measurements)) {
+            previous += ColumnarFormat.readVarLong(block);
+            column.setter.accept(m, (int) previous);
+        }
+    }
+
+    private static void readDoubles(ByteBuffer block, List<EnhancedRuuviMeasurement> measurements, Column<Double> column) {
+        List<EnhancedRuuviMeasurement> present = readPresence(block, measurements);
+        if (present.isEmpty()) {
+            return;
+        }
+        int length = (int) ColumnarFormat.readVarLong(block);
+        if (length < 0 || length > block.remaining()) {
+            throw new IllegalArgumentException("Corrupted column length: " + length);
+        }
+        XorDecoder decoder = new XorDecoder(new BitReader(block.array(), block.arrayOffset() + block.position(), length));
+        block.position(block.position() + length);
+        for (EnhancedRuuviMeasurement m : present) {
+            column.setter.accept(m, decoder.read());
+        }
+    }
+
+    /**
+     * @return the measurements that have a value in the column
+     */
+    private static List<EnhancedRuuviMeasurement> readPresence(ByteBuffer block, List<EnhancedRuuviMeasurement> measurements) {
+        byte presence = block.get();
+        switch (presence) {
+            case ColumnarFormat.NO_VALUES:
+                return new ArrayList<>(0);
+            case ColumnarFormat.ALL_VALUES:
+                return measurements;
+            case ColumnarFormat.SOME_VALUES:
+                byte[] mask = new byte[(measurements.size() + 7) / 8];
+                block.get(mask);
+                List<EnhancedRuuviMeasurement> present = new ArrayList<>();
+                for (int i = 0; i < measurements.size(); i++) {
+                    if ((mask[i >>> 3] & 1 << (i & 7)) != 0) {
+                        present.add(measurements.get(i));
+                    }
+                }
+                return present;
+            default:
+                throw new IllegalArgumentException("Corrupted column presence: " + presence);
+        }
+    }
+}
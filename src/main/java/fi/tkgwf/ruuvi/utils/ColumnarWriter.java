@@ -0,0 +1,190 @@
+package fi.tkgwf.ruuvi.utils;
+
+import fi.tkgwf.ruuvi.bean.EnhancedRuuviMeasurement;
+import fi.tkgwf.ruuvi.utils.ColumnarFormat.Column;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes measurements into a file in the {@link ColumnarFormat}. The
+ * measurements are buffered per tag and written as a block once a tag has a
+ * block full of them, and the rest when closed, so the memory used depends
+ * on the number of tags but not on the number of measurements.
+ */
+public class ColumnarWriter implements Closeable {
+
+    public static final int DEFAULT_BLOCK_SIZE = 4096;
+
+    private final DataOutputStream out;
+    private final int blockSize;
+    private final Map<String, List<EnhancedRuuviMeasurement>> pending = new LinkedHashMap<>();
+    private final ByteArrayOutputStream block = new ByteArrayOutputStream();
+    private long written;
+
+    public ColumnarWriter(OutputStream out) throws IOException {
+        this(out, DEFAULT_BLOCK_SIZE);
+    }
+
+    /**
+     * @param out the stream to write to, closed when the writer is closed
+     * @param blockSize maximum number of measurements in a block
+     * @throws IOException if writing the header fails
+     */
+    public ColumnarWriter(OutputStream out, int blockSize) throws IOException {
+        this.out = new DataOutputStream(out);
+        this.blockSize = blockSize;
+        this.out.write(ColumnarFormat.MAGIC);
+        this.out.writeByte(ColumnarFormat.VERSION);
+    }
+
+    public void write(EnhancedRuuviMeasurement measurement) throws IOException {
+        List<EnhancedRuuviMeasurement> measurements = pending.computeIfAbsent(measurement.getMac(), mac -> new ArrayList<>());
+        measurements.add(measurement);
+        if (measurements.size() >= blockSize) {
+            writeBlock(measurement.getMac(), measurements);
+            measurements.clear();
+        }
+    }
+
+    /**
+     * @return number of measurements written into blocks so far
+     */
+    public long written() {
+        return written;
+    }
+
+    /**
+     * Writes the buffered measurements and closes the stream
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            for (Map.Entry<String, List<EnhancedRuuviMeasurement>> e : pending.entrySet()) {
+                if (!e.getValue().isEmpty()) {
+                    writeBlock(e.getKey(), e.getValue());
+                }
+            }
+            pending.clear();
+        } finally {
+            out.close();
+        }
+    }
+
+    private void writeBlock(String mac, List<EnhancedRuuviMeasurement> measurements) throws IOException {
+        block.reset();
+        ColumnarFormat.writeVarLong(block, measurements.size());
+        ColumnarFormat.writeString(block, mac);
+        writeTimes(measurements);
+        for (Column<String> column : ColumnarFormat.STRING_COLUMNS) {
+            writeStrings(measurements, column);
+        }
+        for (Column<Integer> column : ColumnarFormat.INTEGER_COLUMNS) {
+            writeIntegers(measurements, column);
+        }
+        for (Column<Double> column : ColumnarFormat.DOUBLE_COLUMNS) {
+            writeDoubles(measurements, column);
+        }
+        out.writeInt(block.size());
+        block.writeTo(out);
+        written += measurements.size();
+    }
+
+    private void writeTimes(List<EnhancedRuuviMeasurement> measurements) {
+        if (writePresence(measurements, new Column<>("time", EnhancedRuuviMeasurement::getTime, null))) {
+            long previous = 0;
+            long previousDelta = 0;
+            for (EnhancedRuuviMeasurement m : measurements) {
+                if (m.getTime() != null) {
+                    long delta = m.getTime() - previous;
+                    ColumnarFormat.writeVarLong(block, delta - previousDelta);
+                    previous = m.getTime();
+                    previousDelta = delta;
+                }
+            }
+        }
+    }
+
+    private void writeStrings(List<EnhancedRuuviMeasurement> measurements, Column<String> column) throws IOException {
+        if (writePresence(measurements, column)) {
+            Map<String, Integer> dictionary = new HashMap<>();
+            ByteArrayOutputStream indexes = new ByteArrayOutputStream();
+            ByteArrayOutputStream values = new ByteArrayOutputStream();
+            for (EnhancedRuuviMeasurement m : measurements) {
+                String value = column.getter.apply(m);
+                if (value != null) {
+                    Integer index = dictionary.get(value);
+                    if (index == null) {
+                        index = dictionary.size();
+                        dictionary.put(value, index);
+                        ColumnarFormat.writeString(values, value);
+                    }
+                    ColumnarFormat.writeVarLong(indexes, index);
+                }
+            }
+            ColumnarFormat.writeVarLong(block, dictionary.size());
+            values.writeTo(block);
+            indexes.writeTo(block);
+        }
+    }
+
+    private void writeIntegers(List<EnhancedRuuviMeasurement> measurements, Column<Integer> column) {
+        if (writePresence(measurements, column)) {
+            long previous = 0;
+            for (EnhancedRuuviMeasurement m : measurements) {
+                Integer value = column.getter.apply(m);
+                if (value != null) {
+                    ColumnarFormat.writeVarLong(block, value - previous);
+                    previous = value;
+                }
+            }
+        }
+    }
+
+    private void writeDoubles(List<EnhancedRuuviMeasurement> measurements, Column<Double> column) {
+        if (writePresence(measurements, column)) {
+            BitWriter bits = new BitWriter(measurements.size() * 2);
+            XorEncoder encoder = new XorEncoder(bits);
+            for (EnhancedRuuviMeasurement m : measurements) {
+                Double value = column.getter.apply(m);
+                if (value != null) {
+                    encoder.write(value);
+                }
+            }
+            byte[] bytes = bits.toByteArray();
+            ColumnarFormat.writeVarLong(block, bytes.length);
+            block.write(bytes, 0, bytes.length);
+        }
+    }
+
+    /**
+     * @return true if any of the measurements has the value
+     */
+    private boolean writePresence(List<EnhancedRuuviMeasurement> measurements, Column<?> column) {
+        byte[] mask = new byte[(measurements.size() + 7) / 8];
+        int present = 0;
+        for (int i = 0; i < measurements.size(); i++) {
+            if (column.getter.apply(measurements.get(i)) != null) {
+                mask[i >>> 3] |= 1 << (i & 7);
+                present++;
+            }
+        }
+        if (present == 0) {
+            block.write(ColumnarFormat.NO_VALUES);
+            return false;
+        } else if (present == measurements.size()) {
+            block.write(ColumnarFormat.ALL_VALUES);
+        } else {
+            block.write(ColumnarFormat.SOME_VALUES);
+            block.write(mask, 0, mask.length);
+        }
+        return true;
+    }
+}
@@ -0,0 +1,71 @@
+package fi.tkgwf.ruuvi.utils;
+
+import fi.tkgwf.ruuvi.bean.EnhancedRuuviMeasurement;
+import fi.tkgwf.ruuvi.config.Config;
+import fi.tkgwf.ruuvi.db.DBConnection;
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.apache.log4j.Logger;
+
+/**
+ * Loads the measurements of a file exported by {@link InfluxDataExporter} into
+ * the configured storage, a block at a time.
+ */
+public class DataImporter {
+
+    private static final Logger LOG = Logger.getLogger(DataImporter.class);
+    private static final long PROGRESS_INTERVAL_MS = 10000;
+
+    private final DBConnection db;
+
+    public DataImporter() {
+        this(Config.getDBConnection());
+    }
+
+    /**
+     * @param db the connection to save the measurements with, closed after
+     * the import
+     */
+    public DataImporter(DBConnection db) {
+        this.db = db;
+    }
+
+    /**
+     * @param file the file to import
+     * @return true if the whole file was imported
+     */
+    public synchronized boolean load(Path file) {
+        LOG.info("Importing measurements from " + file + "...");
+        long start = System.nanoTime();
+        long reported = start;
+        long counter = 0;
+        try (ColumnarReader reader = new ColumnarReader(new BufferedInputStream(Files.newInputStream(file), 65536))) {
+            List<EnhancedRuuviMeasurement> block;
+            while ((block = reader.readBlock()) != null) {
+                db.saveAll(block);
+                counter += block.size();
+                long now = System.nanoTime();
+                if (now - reported >= TimeUnit.MILLISECONDS.toNanos(PROGRESS_INTERVAL_MS)) {
+                    LOG.info("Imported " + counter + " measurements...");
+                    reported = now;
+                }
+            }
+        } catch (IOException ex) {
+            LOG.error("Failed to read " + file + " after " + counter + " measurements", ex);
+            return false;
+        } catch (RuntimeException ex) {
+            LOG.error("Failed to save the measurements after " + counter + " measurements", ex);
+            return false;
+        } finally {
+            db.close();
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        LOG.info("Finished import! " + counter + " measurements imported, took " + seconds + " seconds ("
+            + (counter / seconds) + " measurements per second)");
+        return true;
+    }
+}
@@ -0,0 +1,56 @@
+package fi.tkgwf.ruuvi.utils;
+
+import java.io.IOException;
+
+/**
+ * A source of raw HCI packets, such as the output of hcidump or a btsnoop
+ * capture. The packets are stored in a buffer owned by the source, which is
+ * overwritten by the next packet.
+ */
+public interface HCIPacketSource {
+
+    /**
+     * Returned by {@link #next()} when the source has ended
+     */
+    int EOF = -1;
+    /**
+     * Returned by {@link #next()} when a complete packet is available in
+     * {@link #packet()}
+     */
+    int PACKET = 1;
+    /**
+     * Returned by {@link #next()} when the source produced something else than
+     * a packet, such as an error message. The message is available from
+     * {@link #message()}
+     */
+    int MESSAGE = 2;
+    /**
+     * Packet type, event code and length bytes, followed by up to 255 bytes
+     */
+    int MAX_PACKET_LENGTH = 3 + 255;
+
+    /**
+     * Reads from the source until a complete packet or a message is
+     * available, or the source ends.
+     *
+     * @return {@link #PACKET}, {@link #MESSAGE} or {@link #EOF}
+     * @throws IOException if reading the source fails
+     */
+    int next() throws IOException;
+
+    /**
+     * @return the buffer containing the latest complete packet, starting from
+     * the packet type byte. Only valid until the next call to {@link #next()}
+     */
+    byte[] packet();
+
+    /**
+     * @return the length of the latest complete packet in {@link #packet()}
+     */
+    int packetLength();
+
+    /**
+     * @return the latest message
+     */
+    String message();
+}
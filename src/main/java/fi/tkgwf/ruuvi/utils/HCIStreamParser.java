@@ -0,0 +1,183 @@
+package fi.tkgwf.ruuvi.utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * This class is capable of parsing the raw format dump from hcidump (output of
+ * command "hcidump --raw") directly from the bytes of its output stream.
+ * Unlike {@link HCIParser}, this does not create any Strings or other objects
+ * per packet: hex digits are decoded straight from a reusable read buffer into
+ * a reusable packet buffer, which is overwritten by the next packet. This
+ * implementation is a state-machine, and thus it's not thread safe.
+ */
+public class HCIStreamParser implements HCIPacketSource {
+
+    private static final int DEFAULT_BUFFER_SIZE = 8192;
+    private static final int MAX_MESSAGE_LENGTH = 256;
+
+    private static final int LINE_START = 0;
+    private static final int PACKET_DATA = 1;
+    private static final int SKIP_LINE = 2;
+    private static final int TEXT_LINE = 3;
+
+    private final InputStream in;
+    private final byte[] buffer;
+    private int position;
+    private int limit;
+
+    private final byte[] packet = new byte[MAX_PACKET_LENGTH];
+    private int packetLength;
+    private int highNibble = -1;
+    /**
+     * True while an incoming packet has begun and is still shorter than its
+     * declared length, so that the next line may continue it
+     */
+    private boolean receiving;
+    /**
+     * True if the current line began with whitespace, as the continuation
+     * lines of long packets do in the hcidump output
+     */
+    private boolean indented;
+
+    private final char[] line = new char[MAX_MESSAGE_LENGTH];
+    private int lineLength;
+    private int state = LINE_START;
+
+    public HCIStreamParser(InputStream in) {
+        this(in, DEFAULT_BUFFER_SIZE);
+    }
+
+    public HCIStreamParser(InputStream in, int bufferSize) {
+        this.in = in;
+        this.buffer = new byte[bufferSize];
+    }
+
+    /**
+     * Reads from the stream until a complete packet or a non-packet line is
+     * available, or the stream ends. Lines that are not part of any packet,
+     * such as the hcidump version info or error messages, are returned as
+     * messages.
+     *
+     * @return {@link #PACKET}, {@link #MESSAGE} or {@link #EOF}
+     * @throws IOException if reading the underlying stream fails
+     */
+    @Override
+    public int next() throws IOException {
+        while (true) {
+            if (position >= limit) {
+                limit = in.read(buffer, 0, buffer.length);
+                position = 0;
+                if (limit <= 0) {
+                    limit = 0;
+                    if (state == TEXT_LINE && lineLength > 0) {
+                        state = LINE_START;
+                        return MESSAGE;
+                    }
+                    return EOF;
+                }
+            }
+            int c = buffer[position++] & 0xFF;
+            if (c == '\n') {
+                boolean message = state == TEXT_LINE;
+                state = LINE_START;
+                indented = false;
+                if (message) {
+                    return MESSAGE;
+                }
+                continue;
+            }
+            if (state == LINE_START) {
+                lineLength = 0;
+            }
+            if (c != '\r' && lineLength < line.length) {
+                line[lineLength++] = (char) c;
+            }
+            switch (state) {
+                case LINE_START:
+                    if (c == ' ' || c == '\t') {
+                        indented = true;
+                        lineLength = 0; // the leading whitespace is not interesting
+                    } else if (c == '\r') {
+                        lineLength = 0;
+                    } else if (c == '>') { // new incoming packet begins
+                        packetLength = 0;
+                        highNibble = -1;
+                        receiving = true;
+                        state = PACKET_DATA;
+                    } else if (c == '<') { // new outgoing packet begins, ignore it
+                        receiving = false;
+                        state = SKIP_LINE;
+                    } else if (receiving && indented && hexValue(c) >= 0) { // continuation of a long packet
+                        state = PACKET_DATA;
+                        if (handleHexDigit(hexValue(c))) {
+                            return PACKET;
+                        }
+                    } else {
+                        receiving = false;
+                        state = TEXT_LINE;
+                    }
+                    break;
+                case PACKET_DATA:
+                    if (c == ' ' || c == '\t' || c == '\r') {
+                        break;
+                    }
+                    int value = hexValue(c);
+                    if (value < 0) { // not a valid packet after all, treat the line as a message
+                        receiving = false;
+                        state = TEXT_LINE;
+                    } else if (handleHexDigit(value)) {
+                        return PACKET;
+                    }
+                    break;
+                default: // SKIP_LINE and TEXT_LINE just consume the rest of the line
+                    break;
+            }
+        }
+    }
+
+    private boolean handleHexDigit(int value) {
+        if (highNibble < 0) {
+            highNibble = value;
+            return false;
+        }
+        packet[packetLength++] = (byte) (highNibble << 4 | value);
+        highNibble = -1;
+        // the packet length is actually the length AFTER the length byte, which is the 3rd byte
+        if (packetLength >= 3 && packetLength >= (packet[2] & 0xFF) + 3) {
+            receiving = false;
+            state = SKIP_LINE;
+            return true;
+        }
+        return false;
+    }
+
+    private static int hexValue(int c) {
+        if (c >= '0' && c <= '9') {
+            return c - '0';
+        } else if (c >= 'A' && c <= 'F') {
+            return c - 'A' + 10;
+        } else if (c >= 'a' && c <= 'f') {
+            return c - 'a' + 10;
+        }
+        return -1;
+    }
+
+    @Override
+    public byte[] packet() {
+        return packet;
+    }
+
+    @Override
+    public int packetLength() {
+        return packetLength;
+    }
+
+    /**
+     * @return the latest non-packet line, truncated if very long
+     */
+    @Override
+    public String message() {
+        return new String(line, 0, lineLength);
+    }
+}
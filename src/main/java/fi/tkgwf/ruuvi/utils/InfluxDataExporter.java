@@ -0,0 +1,142 @@
+package fi.tkgwf.ruuvi.utils;
+
+import fi.tkgwf.ruuvi.bean.EnhancedRuuviMeasurement;
+import fi.tkgwf.ruuvi.config.Config;
+import fi.tkgwf.ruuvi.utils.ColumnarFormat.Column;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.log4j.Logger;
+import org.influxdb.InfluxDB;
+import org.influxdb.InfluxDBFactory;
+import org.influxdb.dto.Query;
+import org.influxdb.dto.QueryResult;
+import org.influxdb.dto.QueryResult.Result;
+import org.influxdb.dto.QueryResult.Series;
+
+/**
+ * Exports the measurements stored in InfluxDB into a file in the
+ * {@link ColumnarFormat}. The measurements are streamed from InfluxDB with a
+ * chunked query, so the whole history is never held in memory.
+ */
+public class InfluxDataExporter {
+
+    private static final Logger LOG = Logger.getLogger(InfluxDataExporter.class);
+    private static final int QUERY_CHUNK_SIZE = 10000;
+    /**
+     * The "error" of the last chunk of a chunked query
+     */
+    private static final String CHUNKS_DONE = "DONE";
+
+    /**
+     * @param file the file to write, replaced if it exists
+     * @return true if all the measurements were exported
+     */
+    public synchronized boolean export(Path file) {
+        LOG.info("Exporting measurements into " + file + "...");
+        long start = System.nanoTime();
+        InfluxDB influx = InfluxDBFactory.connect(Config.getInfluxUrl(), Config.getInfluxUser(), Config.getInfluxPassword());
+        influx.enableGzip();
+        Query query = new Query("select * from \"" + Config.getInfluxMeasurement() + "\"", Config.getInfluxDatabase());
+        CountDownLatch done = new CountDownLatch(1);
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        ColumnarWriter exported;
+        try (ColumnarWriter writer = new ColumnarWriter(new BufferedOutputStream(Files.newOutputStream(file), 65536))) {
+            exported = writer;
+            influx.query(query, QUERY_CHUNK_SIZE, (cancellable, result) -> {
+                try {
+                    write(result, writer);
+                } catch (IOException | RuntimeException ex) {
+                    failure.set(ex);
+                    cancellable.cancel();
+                    done.countDown();
+                }
+            }, done::countDown, ex -> {
+                failure.set(ex);
+                done.countDown();
+            });
+            done.await();
+            if (failure.get() != null) {
+                LOG.error("Export failed after " + writer.written() + " measurements", failure.get());
+                return false;
+            }
+        } catch (IOException ex) {
+            LOG.error("Failed to write " + file, ex);
+            return false;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            LOG.error("Interrupted", ex);
+            return false;
+        } finally {
+            influx.close();
+        }
+        // the last blocks are written when the writer is closed
+        double seconds = (System.nanoTime() - start) / 1e9;
+        LOG.info("Finished export! " + exported.written() + " measurements exported, took " + seconds + " seconds ("
+            + (exported.written() / seconds) + " measurements per second)");
+        return true;
+    }
+
+    private static void write(QueryResult result, ColumnarWriter writer) throws IOException {
+        if (CHUNKS_DONE.equals(result.getError())) {
+            return;
+        } else if (StringUtils.isNotBlank(result.getError())) {
+            throw new IllegalStateException("Influx returned error: " + result.getError());
+        }
+        for (Result r : result.getResults()) {
+            if (StringUtils.isNotBlank(r.getError())) {
+                throw new IllegalStateException("Influx returned error: " + r.getError());
+            }
+            for (Series s : r.getSeries() != null ? r.getSeries() : Collections.<Series>emptyList()) {
+                for (List<Object> values : s.getValues()) {
+                    writer.write(toMeasurement(s.getColumns(), values));
+                }
+            }
+        }
+    }
+
+    /**
+     * @param columns the columns of the query result, the tags and the fields
+     * written by {@link InfluxDBConverter#toInflux}
+     * @param values the values of one row
+     * @return the measurement
+     */
+    static EnhancedRuuviMeasurement toMeasurement(List<String> columns, List<Object> values) {
+        EnhancedRuuviMeasurement m = new EnhancedRuuviMeasurement();
+        Object time = values.get(columns.indexOf("time"));
+        m.setTime(time instanceof Number ? ((Number) time).longValue() : Instant.parse(time.toString()).toEpochMilli());
+        int macIndex = columns.indexOf("mac");
+        m.setMac(macIndex == -1 ? null : Objects.toString(values.get(macIndex), null));
+        for (Column<String> column : ColumnarFormat.STRING_COLUMNS) {
+            int index = columns.indexOf(column.name);
+            if (index != -1 && values.get(index) != null) {
+                column.setter.accept(m, values.get(index).toString());
+            }
+        }
+        for (Column<Integer> column : ColumnarFormat.INTEGER_COLUMNS) {
+            int index = columns.indexOf(column.name);
+            Object value = index == -1 ? null : values.get(index);
+            if (value instanceof Number) {
+                column.setter.accept(m, ((Number) value).intValue());
+            } else if (value != null) { // the data format is a tag
+                column.setter.accept(m, Integer.valueOf(value.toString()));
+            }
+        }
+        for (Column<Double> column : ColumnarFormat.DOUBLE_COLUMNS) {
+            int index = columns.indexOf(column.name);
+            Object value = index == -1 ? null : values.get(index);
+            if (value instanceof Number) {
+                column.setter.accept(m, ((Number) value).doubleValue());
+            }
+        }
+        return m;
+    }
+}
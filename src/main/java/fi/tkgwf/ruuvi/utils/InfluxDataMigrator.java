@@ -3,23 +3,31 @@ package fi.tkgwf.ruuvi.utils;
 import fi.tkgwf.ruuvi.bean.EnhancedRuuviMeasurement;
 import fi.tkgwf.ruuvi.config.Config;
 import fi.tkgwf.ruuvi.db.DBConnection;
-import fi.tkgwf.ruuvi.db.InfluxDBConnection;
-import java.time.Instant;
-import java.time.format.DateTimeFormatter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumMap;
 import java.util.HashMap;
-import java.util.Iterator;
-import java.util.LinkedList;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.Set;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.atomic.AtomicLong;
-import java.util.concurrent.locks.ReentrantLock;
-import java.util.function.Consumer;
-import java.util.function.Predicate;
+import java.util.concurrent.atomic.LongAdder;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.log4j.Logger;
 import org.influxdb.InfluxDB;
@@ -29,313 +37,386 @@ import org.influxdb.dto.QueryResult;
 import org.influxdb.dto.QueryResult.Result;
 
 /**
- * Terrible class for migrating a Terrible format to a more sensible one. I am
- * sorry for what you'll find below.
+ * Migrates the measurements stored in the legacy format, with a measurement
+ * per value, into the current format with all the values of a tag in one
+ * measurement.
+ * <p>
+ * The history is split into chunks of time, which are migrated in parallel:
+ * the legacy series of a chunk are queried, indexed by MAC address in time order,
+ * and joined to the temperatures of the same tag. The completed chunks are
+ * recorded in a checkpoint file, so that an interrupted migration continues
+ * from where it stopped when run again.
  */
 public class InfluxDataMigrator {
 
     private static final Logger LOG = Logger.getLogger(InfluxDataMigrator.class);
-    private static final int QUEUE_SIZE = 4000;
-    private static final int QUERY_SIZE = 2000;
     private static final int BATCH_SIZE = 2000;
     private static final long TIME_ERROR_TOLERANCE_MS = 80;
-    private static final DateTimeFormatter FORMATTER = DateTimeFormatter.ISO_INSTANT;
-    private static final LegacyMeasurement EMPTY_MEASUREMENT = new LegacyMeasurement();
+    private static final long PROGRESS_INTERVAL_MS = 10000;
+    private static final Comparator<LegacyMeasurement> MAC_AND_TIME = Comparator
+        .comparing((LegacyMeasurement m) -> m.mac)
+        .thenComparingLong(m -> m.time);
 
-    private final ReentrantLock lock = new ReentrantLock();
-    private final Map<String, BlockingQueue<LegacyMeasurement>> queues = new HashMap<>();
-    private final Map<String, AtomicBoolean> doneQueues = new HashMap<>();
-    private final Map<String, List<LegacyMeasurement>> pendingMeasurements = new HashMap<>();
-    private final Map<String, AtomicLong> discardedMeasurements = new HashMap<>();
+    /**
+     * The legacy measurements, each of which has one value. The values are
+     * joined to the temperatures.
+     */
+    enum LegacySeries {
+        TEMPERATURE("temperature", null),
+        HUMIDITY("humidity", null),
+        PRESSURE("pressure", null),
+        ACCELERATION_X("acceleration", "x"),
+        ACCELERATION_Y("acceleration", "y"),
+        ACCELERATION_Z("acceleration", "z"),
+        BATTERY("batteryVoltage", null),
+        RSSI("rssi", null);
+
+        private final String measurement;
+        private final String axis;
+
+        LegacySeries(String measurement, String axis) {
+            this.measurement = measurement;
+            this.axis = axis;
+        }
+
+        String query(long start, long end) {
+            return "select * from " + measurement + " where "
+                + (axis != null ? "\"axis\"='" + axis + "' and " : "")
+                + "time >= " + start + "ms and time < " + end + "ms";
+        }
+    }
+
+    private final Map<LegacySeries, LongAdder> discardedMeasurements = new EnumMap<>(LegacySeries.class);
+
+    public InfluxDataMigrator() {
+        for (LegacySeries series : LegacySeries.values()) {
+            discardedMeasurements.put(series, new LongAdder());
+        }
+    }
 
     public synchronized void migrate() {
         LOG.info("Starting migration...");
         long start = Config.getTimestampProvider().get();
         DBConnection db = Config.getDBConnection();
-        // Theres a hard limit (?) of 5 concurrent queries per instance
-        InfluxDB influx1 = createInfluxDB();
-        InfluxDB influx2 = createInfluxDB();
-        BlockingQueue<LegacyMeasurement> temperatureQueue = new LinkedBlockingQueue<>(QUEUE_SIZE);
-        BlockingQueue<LegacyMeasurement> humidityQueue = new LinkedBlockingQueue<>(QUEUE_SIZE);
-        BlockingQueue<LegacyMeasurement> pressureQueue = new LinkedBlockingQueue<>(QUEUE_SIZE);
-        BlockingQueue<LegacyMeasurement> accelerationXQueue = new LinkedBlockingQueue<>(QUEUE_SIZE);
-        BlockingQueue<LegacyMeasurement> accelerationYQueue = new LinkedBlockingQueue<>(QUEUE_SIZE);
-        BlockingQueue<LegacyMeasurement> accelerationZQueue = new LinkedBlockingQueue<>(QUEUE_SIZE);
-        BlockingQueue<LegacyMeasurement> batteryQueue = new LinkedBlockingQueue<>(QUEUE_SIZE);
-        BlockingQueue<LegacyMeasurement> rssiQueue = new LinkedBlockingQueue<>(QUEUE_SIZE);
-        Query temperatureQuery = new Query("select * from temperature order by time asc", Config.getInfluxDatabase());
-        Query humidityQuery = new Query("select * from humidity order by time asc", Config.getInfluxDatabase());
-        Query pressureQuery = new Query("select * from pressure order by time asc", Config.getInfluxDatabase());
-        Query accelerationXQuery = new Query("select * from acceleration where \"axis\"='x' order by time asc", Config.getInfluxDatabase());
-        Query accelerationYQuery = new Query("select * from acceleration where \"axis\"='y' order by time asc", Config.getInfluxDatabase());
-        Query accelerationZQuery = new Query("select * from acceleration where \"axis\"='z' order by time asc", Config.getInfluxDatabase());
-        Query batteryQuery = new Query("select * from batteryVoltage order by time asc", Config.getInfluxDatabase());
-        Query rssiQuery = new Query("select * from rssi order by time asc", Config.getInfluxDatabase());
-        AtomicBoolean temperatureDone = new AtomicBoolean(false);
-        AtomicBoolean humidityDone = new AtomicBoolean(false);
-        AtomicBoolean pressureDone = new AtomicBoolean(false);
-        AtomicBoolean accelerationXDone = new AtomicBoolean(false);
-        AtomicBoolean accelerationYDone = new AtomicBoolean(false);
-        AtomicBoolean accelerationZDone = new AtomicBoolean(false);
-        AtomicBoolean batteryDone = new AtomicBoolean(false);
-        AtomicBoolean rssiDone = new AtomicBoolean(false);
-        queues.put("temperature", temperatureQueue);
-        queues.put("humidity", humidityQueue);
-        queues.put("pressure", pressureQueue);
-        queues.put("accelerationX", accelerationXQueue);
-        queues.put("accelerationY", accelerationYQueue);
-        queues.put("accelerationZ", accelerationZQueue);
-        queues.put("battery", batteryQueue);
-        queues.put("rssi", rssiQueue);
-        doneQueues.put("temperature", temperatureDone);
-        doneQueues.put("humidity", humidityDone);
-        doneQueues.put("pressure", pressureDone);
-        doneQueues.put("accelerationX", accelerationXDone);
-        doneQueues.put("accelerationY", accelerationYDone);
-        doneQueues.put("accelerationZ", accelerationZDone);
-        doneQueues.put("battery", batteryDone);
-        doneQueues.put("rssi", rssiDone);
-        queues.keySet().forEach(k -> {
-            pendingMeasurements.put(k, new LinkedList<>());
-            discardedMeasurements.put(k, new AtomicLong());
-        });
-        LOG.info("Starting query threads...");
-        influx1.query(temperatureQuery, QUERY_SIZE, new MigrationConsumer(temperatureQueue, temperatureDone));
-        influx1.query(humidityQuery, QUERY_SIZE, new MigrationConsumer(humidityQueue, humidityDone));
-        influx1.query(pressureQuery, QUERY_SIZE, new MigrationConsumer(pressureQueue, pressureDone));
-        influx1.query(batteryQuery, QUERY_SIZE, new MigrationConsumer(batteryQueue, batteryDone));
-        influx2.query(rssiQuery, QUERY_SIZE, new MigrationConsumer(rssiQueue, rssiDone));
-        influx2.query(accelerationXQuery, QUERY_SIZE, new MigrationConsumer(accelerationXQueue, accelerationXDone));
-        influx2.query(accelerationYQuery, QUERY_SIZE, new MigrationConsumer(accelerationYQueue, accelerationYDone));
-        influx2.query(accelerationZQuery, QUERY_SIZE, new MigrationConsumer(accelerationZQueue, accelerationZDone));
-        LOG.info("Processing...");
+        InfluxDB influx = createInfluxDB();
+        ExecutorService workers = Executors.newFixedThreadPool(Config.getMigrationThreads());
         long counter = 0;
+        int failed = 0;
         try {
-            while (!done()) {
-                while (pendingQueues()) {
-                    Thread.sleep(50);
-                }
-                /*
-                if (Config.getTimestampProvider().get() % 20 == 0) { // reduce "debug" spam by logging only about 5% of the times
-                    queues.forEach((k, v) -> System.out.println(k + ": " + v.size() + " + " + pendingMeasurements.get(k).size() + " - " + discardedMeasurements.get(k).get()));
-                    long duration = Config.getTimestampProvider().get() - start;
-                    System.out.println("progress: " + counter + " elapsed: " + duration / 1000d + " sec " + (counter / (duration / 1000d)) + " per sec");
-                    System.out.println("-----");
-                }
-                 */
-                LegacyMeasurement temperature = temperatureQueue.poll();
-                if (temperature == null) {
-                    break;
-                } else if (temperature.mac == null) {
+            long[] range = timeRange(influx);
+            if (range == null) {
+                LOG.info("No legacy measurements to migrate");
+                return;
+            }
+            Checkpoint checkpoint = new Checkpoint(Paths.get(Config.getMigrationCheckpointFile()));
+            long chunkSize = Config.getMigrationChunkSize();
+            CompletionService<Integer> chunks = new ExecutorCompletionService<>(workers);
+            int chunkCount = 0;
+            for (long from = Math.floorDiv(range[0], chunkSize) * chunkSize; from <= range[1]; from += chunkSize) {
+                long chunkStart = from;
+                long chunkEnd = from + chunkSize;
+                if (checkpoint.isCompleted(chunkStart, chunkEnd)) {
                     continue;
                 }
-                String currentMac = temperature.mac;
-                long currentTime = temperature.time;
-
-                LegacyMeasurement humidity = find("humidity", currentMac, currentTime);
-                LegacyMeasurement pressure = find("pressure", currentMac, currentTime);
-                LegacyMeasurement accelerationX = find("accelerationX", currentMac, currentTime);
-                LegacyMeasurement accelerationY = find("accelerationY", currentMac, currentTime);
-                LegacyMeasurement accelerationZ = find("accelerationZ", currentMac, currentTime);
-                LegacyMeasurement battery = find("battery", currentMac, currentTime);
-                LegacyMeasurement rssi = find("rssi", currentMac, currentTime);
-
-                EnhancedRuuviMeasurement m = new EnhancedRuuviMeasurement();
-                m.setTime(temperature.time);
-                m.setMac(currentMac);
-                m.setDataFormat(temperature.dataFormat != null ? Integer.valueOf(temperature.dataFormat) : null);
-                m.setTemperature(temperature.value);
-                m.setHumidity(humidity.value);
-                m.setPressure(pressure.value);
-                if (accelerationX.value != null && accelerationY.value != null && accelerationZ.value != null) {
-                    m.setAccelerationX(accelerationX.value);
-                    m.setAccelerationY(accelerationY.value);
-                    m.setAccelerationZ(accelerationZ.value);
+                chunks.submit(() -> {
+                    int migrated = migrateChunk(influx, db, chunkStart, chunkEnd);
+                    checkpoint.complete(chunkStart, chunkEnd);
+                    LOG.debug("Migrated " + migrated + " measurements from the chunk starting at " + chunkStart);
+                    return migrated;
+                });
+                chunkCount++;
+            }
+            LOG.info("Processing " + chunkCount + " chunks, " + checkpoint.size() + " already migrated...");
+            long reported = System.nanoTime();
+            long reportedCounter = 0;
+            for (int completed = 0; completed < chunkCount;) {
+                Future<Integer> chunk = chunks.poll(PROGRESS_INTERVAL_MS, TimeUnit.MILLISECONDS);
+                if (chunk != null) {
+                    completed++;
+                    try {
+                        counter += chunk.get();
+                    } catch (ExecutionException ex) {
+                        failed++;
+                        LOG.error("Failed to migrate a chunk, it's migrated again on the next run", ex.getCause());
+                    }
+                }
+                long now = System.nanoTime();
+                if (now - reported >= TimeUnit.MILLISECONDS.toNanos(PROGRESS_INTERVAL_MS)) {
+                    double seconds = (now - reported) / 1e9;
+                    LOG.info("Migrated " + completed + "/" + chunkCount + " chunks, " + counter + " measurements ("
+                        + Math.round((counter - reportedCounter) / seconds) + " measurements per second)");
+                    reported = now;
+                    reportedCounter = counter;
                 }
-                m.setBatteryVoltage(battery.value);
-                m.setRssi(rssi.value != null ? rssi.value.intValue() : null);
-
-                MeasurementValueCalculator.calculateAllValues(m);
-                db.save(m);
-                counter++;
             }
         } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
             LOG.error("Interrupted", ex);
+        } catch (IOException ex) {
+            LOG.error("Failed to read the checkpoint file", ex);
+        } finally {
+            workers.shutdownNow();
+            influx.close();
+            db.close();
         }
         long duration = Config.getTimestampProvider().get() - start;
         LOG.info("Finished migration! " + counter + " measurements migrated, took " + duration / 1000d + " seconds (" + (counter / (duration / 1000d)) + " measurements per second)");
-        queues.keySet().stream().sorted().forEach(k -> LOG.info(k + " discarded: " + (pendingMeasurements.get(k).size() + discardedMeasurements.get(k).get())));
-        influx1.close();
-        influx2.close();
-        db.close();
+        discardedMeasurements.forEach((series, discarded) -> LOG.info(series + " discarded: " + discarded.sum()));
+        if (failed > 0) {
+            LOG.warn(failed + " chunks failed, run the migration again to retry them");
+        }
     }
 
-    private LegacyMeasurement find(String queueName, String mac, long time) {
-        Predicate<LegacyMeasurement> isValidTime = m -> time > m.time - TIME_ERROR_TOLERANCE_MS && time < m.time + TIME_ERROR_TOLERANCE_MS;
-        Predicate<LegacyMeasurement> isValidMac = m -> mac.equals(m.mac);
-        List<LegacyMeasurement> pending = pendingMeasurements.get(queueName);
-        // Remove old (orphaned) measurements for this MAC
-        for (Iterator<LegacyMeasurement> i = pending.iterator(); i.hasNext();) {
-            LegacyMeasurement measurement = i.next();
-            if (isValidMac.test(measurement) && measurement.time + TIME_ERROR_TOLERANCE_MS < time) {
-                i.remove();
-                discardedMeasurements.get(queueName).incrementAndGet();
-            }
+    /**
+     * @return the times of the first and the last temperature in
+     * milliseconds, or null if there are none
+     */
+    private static long[] timeRange(InfluxDB influx) {
+        Long first = firstTime(influx.query(new Query("select first(\"value\") from temperature", Config.getInfluxDatabase()), TimeUnit.MILLISECONDS));
+        Long last = firstTime(influx.query(new Query("select last(\"value\") from temperature", Config.getInfluxDatabase()), TimeUnit.MILLISECONDS));
+        return first == null || last == null ? null : new long[]{first, last};
+    }
+
+    private static Long firstTime(QueryResult result) {
+        checkError(result);
+        return result.getResults().stream().map(Result::getSeries).filter(Objects::nonNull).flatMap(List::stream)
+            .flatMap(s -> s.getValues().stream())
+            .map(v -> ((Number) v.get(0)).longValue())
+            .findFirst().orElse(null);
+    }
+
+    private static void checkError(QueryResult result) {
+        if (StringUtils.isNotBlank(result.getError())) {
+            throw new IllegalStateException("Influx returned error: " + result.getError());
         }
-        // Check if the pending list has a valid entry
-        LegacyMeasurement m = pending.stream().filter(isValidMac).findAny().orElse(null);
-        if (m != null) {
-            if (isValidTime.test(m)) {
-                pending.remove(m);
-                return m;
+        result.getResults().stream().map(Result::getError).filter(StringUtils::isNotBlank).findAny().ifPresent(error -> {
+            throw new IllegalStateException("Influx returned error: " + error);
+        });
+    }
+
+    private int migrateChunk(InfluxDB influx, DBConnection db, long start, long end) {
+        Map<LegacySeries, List<LegacyMeasurement>> series = new EnumMap<>(LegacySeries.class);
+        for (LegacySeries s : LegacySeries.values()) {
+            series.put(s, read(influx.query(new Query(s.query(start, end), Config.getInfluxDatabase()), TimeUnit.MILLISECONDS)));
+        }
+        List<EnhancedRuuviMeasurement> measurements = join(series, discardedMeasurements);
+        for (int i = 0; i < measurements.size(); i += BATCH_SIZE) {
+            db.saveAll(measurements.subList(i, Math.min(i + BATCH_SIZE, measurements.size())));
+        }
+        return measurements.size();
+    }
+
+    /**
+     * Joins the values of the other series to the temperatures of the same tag
+     * within the time error tolerance. The values of each series are indexed
+     * by MAC address in time order, so that matching a temperature only looks
+     * at the head of the index of its tag.
+     *
+     * @param series the measurements of each series, without a null MAC
+     * address or time
+     * @param discarded counters of the values not joined to any temperature
+     * @return the joined measurements, in the order of MAC address and time
+     */
+    static List<EnhancedRuuviMeasurement> join(Map<LegacySeries, List<LegacyMeasurement>> series, Map<LegacySeries, LongAdder> discarded) {
+        List<LegacyMeasurement> temperatures = new ArrayList<>(series.getOrDefault(LegacySeries.TEMPERATURE, Collections.emptyList()));
+        temperatures.sort(MAC_AND_TIME);
+        Map<LegacySeries, Map<String, TimeIndex>> indexes = new EnumMap<>(LegacySeries.class);
+        series.forEach((s, measurements) -> {
+            if (s != LegacySeries.TEMPERATURE) {
+                indexes.put(s, index(measurements));
             }
+        });
+        List<EnhancedRuuviMeasurement> joined = new ArrayList<>(temperatures.size());
+        for (LegacyMeasurement temperature : temperatures) {
+            EnhancedRuuviMeasurement m = new EnhancedRuuviMeasurement();
+            m.setTime(temperature.time);
+            m.setMac(temperature.mac);
+            m.setDataFormat(parseDataFormat(temperature.dataFormat));
+            m.setTemperature(temperature.value);
+            m.setHumidity(value(indexes, discarded, LegacySeries.HUMIDITY, temperature));
+            m.setPressure(value(indexes, discarded, LegacySeries.PRESSURE, temperature));
+            Double accelerationX = value(indexes, discarded, LegacySeries.ACCELERATION_X, temperature);
+            Double accelerationY = value(indexes, discarded, LegacySeries.ACCELERATION_Y, temperature);
+            Double accelerationZ = value(indexes, discarded, LegacySeries.ACCELERATION_Z, temperature);
+            if (accelerationX != null && accelerationY != null && accelerationZ != null) {
+                m.setAccelerationX(accelerationX);
+                m.setAccelerationY(accelerationY);
+                m.setAccelerationZ(accelerationZ);
+            }
+            m.setBatteryVoltage(value(indexes, discarded, LegacySeries.BATTERY, temperature));
+            Double rssi = value(indexes, discarded, LegacySeries.RSSI, temperature);
+            m.setRssi(rssi != null ? rssi.intValue() : null);
+            MeasurementValueCalculator.calculateAllValues(m);
+            joined.add(m);
+        }
+        indexes.forEach((s, byMac) -> byMac.values().forEach(index -> discarded.get(s).add(index.remaining())));
+        return joined;
+    }
+
+    /**
+     * @return the data format, or null if there is none. The legacy format
+     * was written as "null" for the measurements without a data format.
+     */
+    private static Integer parseDataFormat(String dataFormat) {
+        if (dataFormat == null) {
+            return null;
         }
+        try {
+            return Integer.valueOf(dataFormat);
+        } catch (NumberFormatException ex) {
+            return null;
+        }
+    }
 
-        LegacyMeasurement peek = queues.get(queueName).peek();
-        if (peek != null && peek.time - TIME_ERROR_TOLERANCE_MS > time) {
-            return EMPTY_MEASUREMENT; // The queue has way too new instances
+    /**
+     * @return the measurements by MAC address, in time order. Influx returns
+     * them in time order already, in which case sorting is a single pass.
+     */
+    private static Map<String, TimeIndex> index(List<LegacyMeasurement> measurements) {
+        List<LegacyMeasurement> byTime = new ArrayList<>(measurements);
+        byTime.sort(Comparator.comparingLong(m -> m.time));
+        Map<String, TimeIndex> byMac = new HashMap<>();
+        for (LegacyMeasurement m : byTime) {
+            byMac.computeIfAbsent(m.mac, mac -> new TimeIndex()).add(m.time, m.value);
         }
+        return byMac;
+    }
+
+    private static Double value(Map<LegacySeries, Map<String, TimeIndex>> indexes, Map<LegacySeries, LongAdder> discarded, LegacySeries series, LegacyMeasurement temperature) {
+        Map<String, TimeIndex> byMac = indexes.get(series);
+        TimeIndex index = byMac == null ? null : byMac.get(temperature.mac);
+        return index == null ? null : index.take(temperature.time, discarded.get(series));
+    }
 
-        while (true) {
-            m = queues.get(queueName).poll();
-            if (m == null) {
-                return EMPTY_MEASUREMENT;
-            } else if (m.mac == null) {
-                // discard all values without MAC
-            } else if (mac.equals(m.mac)) {
-                if (isValidTime.test(m)) {
-                    return m;
-                } else {
-                    pending.add(m);
-                    return EMPTY_MEASUREMENT;
+    private static List<LegacyMeasurement> read(QueryResult result) {
+        checkError(result);
+        List<LegacyMeasurement> measurements = new ArrayList<>();
+        result.getResults().stream().map(Result::getSeries).filter(Objects::nonNull).flatMap(List::stream).forEach(s -> {
+            List<String> columns = s.getColumns();
+            int timeIndex = columns.indexOf("time");
+            int macIndex = columns.indexOf("mac");
+            int sourceIndex = columns.indexOf("source");
+            int dataFormatIndex = columns.indexOf("protocolVersion");
+            int valueIndex = columns.indexOf("value");
+            for (List<Object> v : s.getValues()) {
+                String mac = safeGet(v, macIndex);
+                if (mac == null) {
+                    mac = safeGet(v, sourceIndex);
                 }
-            } else {
-                pending.add(m);
-                if (!isValidTime.test(m)) {
-                    return EMPTY_MEASUREMENT;
+                Object time = timeIndex == -1 ? null : v.get(timeIndex);
+                String value = safeGet(v, valueIndex);
+                if (mac != null && time != null && value != null) { // the values without a MAC address can't be joined
+                    measurements.add(new LegacyMeasurement(((Number) time).longValue(), mac, safeGet(v, dataFormatIndex), Double.valueOf(value)));
                 }
             }
+        });
+        return measurements;
+    }
+
+    private static String safeGet(List<Object> l, int index) {
+        if (index == -1) {
+            return null;
         }
+        Object o = l.get(index);
+        return o == null ? null : o.toString();
     }
 
     private InfluxDB createInfluxDB() {
         InfluxDB influxDB = InfluxDBFactory.connect(Config.getInfluxUrl(), Config.getInfluxUser(), Config.getInfluxPassword());
         influxDB.setDatabase(Config.getInfluxDatabase());
         influxDB.enableGzip();
-        influxDB.enableBatch(BATCH_SIZE, 100, TimeUnit.MILLISECONDS);
         return influxDB;
     }
 
-    private boolean pendingQueues() {
-        lock.lock();
-        try {
-            return queues.entrySet().stream().filter(e -> e.getValue().isEmpty() && !doneQueues.get(e.getKey()).get()).findAny().isPresent();
-        } finally {
-            lock.unlock();
-        }
-    }
+    static class LegacyMeasurement {
 
-    private boolean done() {
-        lock.lock();
-        try {
-            return doneQueues.values().stream().filter(AtomicBoolean::get).count() >= queues.size()
-                    && queues.entrySet().stream().filter(e -> e.getValue().isEmpty()).count() >= queues.size();
-        } finally {
-            lock.unlock();
+        final long time;
+        final String mac;
+        final String dataFormat;
+        final Double value;
+
+        LegacyMeasurement(long time, String mac, String dataFormat, Double value) {
+            this.time = time;
+            this.mac = mac;
+            this.dataFormat = dataFormat;
+            this.value = value;
         }
     }
 
-    private class MigrationConsumer implements Consumer<QueryResult> {
+    /**
+     * The times and values of one series of one tag in time order, consumed
+     * from the head as the temperatures of the tag are joined in time order.
+     */
+    private static class TimeIndex {
 
-        private final BlockingQueue<LegacyMeasurement> q;
-        private final AtomicBoolean done;
+        private long[] times = new long[16];
+        private double[] values = new double[16];
+        private int head;
+        private int size;
 
-        public MigrationConsumer(BlockingQueue<LegacyMeasurement> q, AtomicBoolean done) {
-            this.q = q;
-            this.done = done;
+        void add(long time, double value) {
+            if (size == times.length) {
+                times = Arrays.copyOf(times, size * 2);
+                values = Arrays.copyOf(values, size * 2);
+            }
+            times[size] = time;
+            values[size] = value;
+            size++;
         }
 
-        @Override
-        public void accept(QueryResult r) {
-            String error = r.getError();
-            if (StringUtils.isNotBlank(error)) {
-                if (error.equals("DONE")) {
-                    lock.lock();
-                    try {
-                        done.set(true);
-                    } finally {
-                        lock.unlock();
-                    }
-                } else {
-                    LOG.error("Influx returned error: " + error);
-                }
-                return;
+        /**
+         * Discards the values too old to be joined to the temperature or any
+         * later one, and takes the next value if it's close enough in time.
+         *
+         * @param time time of the temperature
+         * @param discarded counter of the discarded values
+         * @return the value, or null if there is none close enough in time
+         */
+        Double take(long time, LongAdder discarded) {
+            while (head < size && times[head] + TIME_ERROR_TOLERANCE_MS <= time) {
+                head++;
+                discarded.increment();
             }
-            r.getResults().stream().map(Result::getSeries).filter(Objects::nonNull).flatMap(List::stream).forEach(s -> {
-                List<String> columns = s.getColumns();
-                int timeIndex = -1;
-                int macIndex = -1;
-                int sourceIndex = -1;
-                int dataFormatIndex = -1;
-                int valueIndex = -1;
-                int axisIndex = -1;
-                for (int i = 0; i < columns.size(); i++) {
-                    switch (columns.get(i)) {
-                        case "time":
-                            timeIndex = i;
-                            break;
-                        case "mac":
-                            macIndex = i;
-                            break;
-                        case "source":
-                            sourceIndex = i;
-                            break;
-                        case "dataFormatIndex":
-                            dataFormatIndex = i;
-                            break;
-                        case "value":
-                            valueIndex = i;
-                            break;
-                        case "axis":
-                            axisIndex = i;
-                            break;
-                    }
-                }
-                for (List v : s.getValues()) {
-                    LegacyMeasurement m = new LegacyMeasurement();
-                    String timeString = safeGet(v, timeIndex);
-                    if (timeString != null) {
-                        m.time = Instant.from(FORMATTER.parse(timeString)).toEpochMilli();
-                    }
-                    m.mac = safeGet(v, macIndex);
-                    if (m.mac == null) {
-                        m.mac = safeGet(v, sourceIndex);
-                    }
-                    m.dataFormat = safeGet(v, dataFormatIndex);
-                    m.value = Double.valueOf(safeGet(v, valueIndex));
-                    try {
-                        q.put(m);
-                    } catch (InterruptedException ex) {
-                        LOG.error("Interrupted", ex);
-                    }
-                }
-            });
+            if (head < size && times[head] - TIME_ERROR_TOLERANCE_MS < time) {
+                return values[head++];
+            }
+            return null;
         }
 
-        private String safeGet(List l, int index) {
-            if (index == -1) {
-                return null;
-            }
-            Object o = l.get(index);
-            return o == null ? null : o.toString();
+        int remaining() {
+            return size - head;
         }
     }
 
-    private static class LegacyMeasurement {
+    /**
+     * The chunks already migrated, one per line in the file as the start and
+     * the end of the chunk in milliseconds. A chunk is recorded once its
+     * measurements have been handed over to the database connection.
+     */
+    private static class Checkpoint {
 
-        Long time;
-        String mac;
-        String dataFormat;
-        Double value;
+        private final Path file;
+        private final Set<String> completed = new HashSet<>();
+
+        Checkpoint(Path file) throws IOException {
+            this.file = file;
+            if (Files.exists(file)) {
+                completed.addAll(Files.readAllLines(file, StandardCharsets.UTF_8));
+            }
+        }
+
+        synchronized boolean isCompleted(long start, long end) {
+            return completed.contains(start + " " + end);
+        }
+
+        synchronized int size() {
+            return completed.size();
+        }
+
+        synchronized void complete(long start, long end) throws IOException {
+            String chunk = start + " " + end;
+            Files.write(file, Collections.singletonList(chunk), StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            completed.add(chunk);
+        }
     }
 }
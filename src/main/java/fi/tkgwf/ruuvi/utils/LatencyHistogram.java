@@ -0,0 +1,94 @@
+package fi.tkgwf.ruuvi.utils;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock-free histogram of durations with buckets growing in powers of two
+ * microseconds, from one microsecond to over half an hour. The percentiles
+ * are accurate to within a factor of two, which is plenty for telling a
+ * healthy sink from a struggling one.
+ */
+public class LatencyHistogram {
+
+    private static final int BUCKETS = 32;
+
+    private final LongAdder[] counts = new LongAdder[BUCKETS];
+    private final LongAdder totalNanos = new LongAdder();
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    public LatencyHistogram() {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * @param nanos the duration to record, in nanoseconds
+     */
+    public void record(long nanos) {
+        long micros = Math.max(nanos, 0) / 1000;
+        int bucket = Math.min(64 - Long.numberOfLeadingZeros(micros), BUCKETS - 1);
+        counts[bucket].increment();
+        totalNanos.add(nanos);
+        if (nanos > maxNanos.get()) {
+            maxNanos.accumulateAndGet(nanos, Math::max);
+        }
+    }
+
+    public long count() {
+        long count = 0;
+        for (LongAdder bucket : counts) {
+            count += bucket.sum();
+        }
+        return count;
+    }
+
+    /**
+     * @param percentile the percentile, between 0 and 100
+     * @return the upper bound of the bucket the percentile falls into, in
+     * microseconds, or 0 if nothing has been recorded
+     */
+    public long percentileMicros(double percentile) {
+        long[] snapshot = new long[BUCKETS];
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts[i].sum();
+            count += snapshot[i];
+        }
+        if (count == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(count * percentile / 100);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank && snapshot[i] > 0) {
+                return 1L << i;
+            }
+        }
+        return 1L << (BUCKETS - 1);
+    }
+
+    /**
+     * @return the sum of the recorded durations, in nanoseconds
+     */
+    public long sumNanos() {
+        return totalNanos.sum();
+    }
+
+    public long maxMicros() {
+        return maxNanos.get() / 1000;
+    }
+
+    public long meanMicros() {
+        long count = count();
+        return count == 0 ? 0 : totalNanos.sum() / count / 1000;
+    }
+
+    @Override
+    public String toString() {
+        return "{count=" + count() + ", mean=" + meanMicros() + "us, p50<=" + percentileMicros(50)
+            + "us, p99<=" + percentileMicros(99) + "us, max=" + maxMicros() + "us}";
+    }
+}
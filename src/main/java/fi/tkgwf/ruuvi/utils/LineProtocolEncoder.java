@@ -0,0 +1,317 @@
+package fi.tkgwf.ruuvi.utils;
+
+import fi.tkgwf.ruuvi.bean.EnhancedRuuviMeasurement;
+import fi.tkgwf.ruuvi.config.Config;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+import org.apache.commons.lang3.StringUtils;
+
+/**
+ * Writes {@link EnhancedRuuviMeasurement}s as InfluxDB line protocol directly
+ * into a reusable buffer, producing the same points as
+ * {@link InfluxDBConverter#toInflux(EnhancedRuuviMeasurement)} without
+ * building a {@link org.influxdb.dto.Point} for each measurement. The
+ * escaped tags and the allowed fields are resolved once per combination of
+ * the MAC address, receiver, name and data format, and reused for the
+ * following measurements with the same tags, so that a tag heard by several
+ * receivers does not rebuild them for every measurement. The timestamps are
+ * written in milliseconds unless another precision is given.
+ * <p>
+ * Not thread safe, each thread should use its own encoder.
+ */
+public class LineProtocolEncoder {
+
+    private static final int MAX_CACHED_TAGS = 4096;
+    private static final String[] FIELDS = {
+        "temperature",
+        "humidity",
+        "pressure",
+        "accelerationX",
+        "accelerationY",
+        "accelerationZ",
+        "batteryVoltage",
+        "txPower",
+        "movementCounter",
+        "measurementSequenceNumber",
+        "rssi",
+        "accelerationTotal",
+        "absoluteHumidity",
+        "dewPoint",
+        "equilibriumVaporPressure",
+        "airDensity",
+        "accelerationAngleFromX",
+        "accelerationAngleFromY",
+        "accelerationAngleFromZ"
+    };
+    private static final long[] POWERS_OF_TEN = {1, 10, 100, 1000, 10000, 100000, 1000000};
+    /**
+     * Doubles below this, when scaled with the largest power of ten, are
+     * still exact as longs and doubles
+     */
+    private static final double MAX_FIXED_POINT = 1e15;
+
+    private final String measurementName;
+    private final TimeUnit precision;
+    /**
+     * The prefixes of each MAC address, chained through {@link TagPrefix#next}
+     */
+    private final Map<String, TagPrefix> tags = new HashMap<>();
+    private int cachedPrefixes;
+    private final StringBuilder buffer = new StringBuilder(256);
+
+    public LineProtocolEncoder() {
+        this(Config.getInfluxMeasurement());
+    }
+
+    /**
+     * @param measurementName the InfluxDB measurement to write the points into
+     */
+    public LineProtocolEncoder(String measurementName) {
+        this(measurementName, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @param measurementName the InfluxDB measurement to write the points into
+     * @param precision the unit to write the timestamps in, which must match
+     * the precision the points are written to InfluxDB with
+     */
+    public LineProtocolEncoder(String measurementName, TimeUnit precision) {
+        this.measurementName = measurementName;
+        this.precision = precision;
+    }
+
+    /**
+     * Encodes the measurements as lines separated by newlines. The returned
+     * string is the only allocation per call once the tags are cached.
+     *
+     * @param measurements the measurements to encode
+     * @return the line protocol, or an empty string if none of the
+     * measurements had any fields to write
+     */
+    public String encode(Collection<EnhancedRuuviMeasurement> measurements) {
+        buffer.setLength(0);
+        for (EnhancedRuuviMeasurement measurement : measurements) {
+            int start = buffer.length();
+            if (start > 0) {
+                buffer.append('\n');
+            }
+            if (!append(measurement, buffer)) {
+                buffer.setLength(start);
+            }
+        }
+        return buffer.toString();
+    }
+
+    /**
+     * @param measurement the measurement to encode
+     * @return the line protocol, or null if the measurement had no fields to
+     * write
+     */
+    public String encode(EnhancedRuuviMeasurement measurement) {
+        buffer.setLength(0);
+        return append(measurement, buffer) ? buffer.toString() : null;
+    }
+
+    /**
+     * Appends one line, without a newline, for the measurement.
+     *
+     * @param measurement the measurement to encode
+     * @param out the buffer to append to
+     * @return false if the measurement had no fields to write, in which case
+     * the contents of the buffer after its original length are undefined
+     */
+    public boolean append(EnhancedRuuviMeasurement measurement, StringBuilder out) {
+        TagPrefix tag = tagPrefix(measurement);
+        out.append(tag.prefix);
+        int mask = tag.fieldMask;
+        int before = out.length();
+        appendField(out, before, mask, 0, measurement.getTemperature());
+        appendField(out, before, mask, 1, measurement.getHumidity());
+        appendField(out, before, mask, 2, measurement.getPressure());
+        appendField(out, before, mask, 3, measurement.getAccelerationX());
+        appendField(out, before, mask, 4, measurement.getAccelerationY());
+        appendField(out, before, mask, 5, measurement.getAccelerationZ());
+        appendField(out, before, mask, 6, measurement.getBatteryVoltage());
+        appendField(out, before, mask, 7, measurement.getTxPower());
+        appendField(out, before, mask, 8, measurement.getMovementCounter());
+        appendField(out, before, mask, 9, measurement.getMeasurementSequenceNumber());
+        appendField(out, before, mask, 10, measurement.getRssi());
+        appendField(out, before, mask, 11, measurement.getAccelerationTotal());
+        appendField(out, before, mask, 12, measurement.getAbsoluteHumidity());
+        appendField(out, before, mask, 13, measurement.getDewPoint());
+        appendField(out, before, mask, 14, measurement.getEquilibriumVaporPressure());
+        appendField(out, before, mask, 15, measurement.getAirDensity());
+        appendField(out, before, mask, 16, measurement.getAccelerationAngleFromX());
+        appendField(out, before, mask, 17, measurement.getAccelerationAngleFromY());
+        appendField(out, before, mask, 18, measurement.getAccelerationAngleFromZ());
+        if (out.length() == before) {
+            return false;
+        }
+        if (measurement.getTime() != null) {
+            out.append(' ').append(precision.convert(measurement.getTime(), TimeUnit.MILLISECONDS));
+        }
+        return true;
+    }
+
+    private TagPrefix tagPrefix(EnhancedRuuviMeasurement measurement) {
+        String mac = measurement.getMac();
+        Predicate<String> filter = Config.getAllowedInfluxDbFieldsPredicate(mac);
+        TagPrefix first = tags.get(mac);
+        if (first != null && first.filter != filter) {
+            // the configuration has been reloaded, none of the prefixes of the tag are valid anymore
+            first = null;
+        }
+        for (TagPrefix tag = first; tag != null; tag = tag.next) {
+            if (tag.matches(measurement)) {
+                return tag;
+            }
+        }
+        if (cachedPrefixes >= MAX_CACHED_TAGS) {
+            tags.clear();
+            cachedPrefixes = 0;
+            first = null;
+        }
+        TagPrefix tag = new TagPrefix(measurementName, measurement, filter, first);
+        tags.put(mac, tag);
+        cachedPrefixes++;
+        return tag;
+    }
+
+    /**
+     * @return the number of cached tag prefixes, for tests
+     */
+    int cachedPrefixes() {
+        return cachedPrefixes;
+    }
+
+    private static void appendField(StringBuilder out, int first, int mask, int field, Double value) {
+        if (value == null || (mask & (1 << field)) == 0 || !Double.isFinite(value)) {
+            return;
+        }
+        appendFieldName(out, first, field);
+        appendDouble(out, value);
+    }
+
+    private static void appendField(StringBuilder out, int first, int mask, int field, Integer value) {
+        if (value == null || (mask & (1 << field)) == 0) {
+            return;
+        }
+        appendFieldName(out, first, field);
+        out.append(value.intValue()).append('i');
+    }
+
+    private static void appendFieldName(StringBuilder out, int first, int field) {
+        if (out.length() > first) {
+            out.append(',');
+        }
+        out.append(FIELDS[field]).append('=');
+    }
+
+    /**
+     * Appends the shortest decimal representation of the value that parses
+     * back to the same double. Values with at most six decimals, which covers
+     * everything the tags send, are written without any allocations.
+     */
+    public static void appendDouble(StringBuilder out, double value) {
+        double abs = Math.abs(value);
+        for (int decimals = 0; decimals < POWERS_OF_TEN.length; decimals++) {
+            long power = POWERS_OF_TEN[decimals];
+            if (abs * power >= MAX_FIXED_POINT) {
+                break;
+            }
+            long scaled = Math.round(abs * power);
+            if ((double) scaled / power == abs) {
+                if (value < 0 && scaled != 0) {
+                    out.append('-');
+                }
+                out.append(scaled / power).append('.');
+                if (decimals == 0) {
+                    out.append('0'); // like the InfluxDB client, although a number without the 'i' suffix is a float anyway
+                }
+                long fraction = scaled % power;
+                for (long digit = power / 10; digit > 0; digit /= 10) {
+                    out.append((char) ('0' + fraction / digit % 10));
+                }
+                return;
+            }
+        }
+        out.append(value); // InfluxDB accepts the exponent notation used for very large and small values
+    }
+
+    /**
+     * Appends the value with the characters that are special in measurement
+     * names, tag keys and tag values escaped
+     */
+    public static void appendEscaped(StringBuilder out, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == ' ' || c == ',' || c == '=') {
+                out.append('\\');
+            }
+            out.append(c);
+        }
+    }
+
+    /**
+     * The escaped measurement name and tags of a tag, along with the fields
+     * allowed to be stored for it
+     */
+    private static class TagPrefix {
+
+        private final String name;
+        private final Integer dataFormat;
+        private final String receiver;
+        private final Predicate<String> filter;
+        private final String prefix;
+        private final int fieldMask;
+        /**
+         * Another prefix of the same MAC address, such as for another
+         * receiver, or null
+         */
+        private final TagPrefix next;
+
+        TagPrefix(String measurementName, EnhancedRuuviMeasurement measurement, Predicate<String> filter, TagPrefix next) {
+            this.name = measurement.getName();
+            this.dataFormat = measurement.getDataFormat();
+            this.receiver = measurement.getReceiver();
+            this.filter = filter;
+            this.next = next;
+            StringBuilder sb = new StringBuilder();
+            appendEscaped(sb, measurementName);
+            // in the same order by key as written by the InfluxDB client
+            if (dataFormat != null) {
+                sb.append(",dataFormat=").append(dataFormat.intValue());
+            }
+            appendTag(sb, "mac", measurement.getMac());
+            appendTag(sb, "name", name);
+            if (StringUtils.isNotBlank(receiver)) {
+                appendTag(sb, "receiver", receiver);
+            }
+            this.prefix = sb.append(' ').toString();
+            int mask = 0;
+            for (int i = 0; i < FIELDS.length; i++) {
+                if (filter.test(FIELDS[i])) {
+                    mask |= 1 << i;
+                }
+            }
+            this.fieldMask = mask;
+        }
+
+        private static void appendTag(StringBuilder sb, String key, String value) {
+            if (StringUtils.isNotEmpty(value)) {
+                sb.append(',').append(key).append('=');
+                appendEscaped(sb, value);
+            }
+        }
+
+        boolean matches(EnhancedRuuviMeasurement measurement) {
+            return Objects.equals(name, measurement.getName())
+                && Objects.equals(dataFormat, measurement.getDataFormat())
+                && Objects.equals(receiver, measurement.getReceiver());
+        }
+    }
+}
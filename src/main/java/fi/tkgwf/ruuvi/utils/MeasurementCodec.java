@@ -0,0 +1,145 @@
+package fi.tkgwf.ruuvi.utils;
+
+import fi.tkgwf.ruuvi.bean.EnhancedRuuviMeasurement;
+import fi.tkgwf.ruuvi.utils.ColumnarFormat.Column;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Compact binary encoding of {@link EnhancedRuuviMeasurement}s, for storing
+ * them on disk. The encoded measurement starts with a version byte and a bit
+ * mask of the fields present, followed by the values of those fields only.
+ * The fields are the time, the MAC address and the columns of
+ * {@link ColumnarFormat}, in that order.
+ */
+public abstract class MeasurementCodec {
+
+    /**
+     * Maximum length of an encoded measurement
+     */
+    public static final int MAX_LENGTH = 1024;
+
+    private static final byte VERSION = 1;
+    private static final int MAX_STRING_LENGTH = 255;
+
+    /**
+     * Encodes the measurement at the current position of the buffer. Strings
+     * longer than 255 bytes are truncated.
+     *
+     * @param measurement the measurement to encode
+     * @param buffer the buffer to write to, must have at least
+     * {@link #MAX_LENGTH} bytes remaining
+     */
+    public static void encode(EnhancedRuuviMeasurement measurement, ByteBuffer buffer) {
+        encode(measurement, measurement.getTime(), buffer);
+    }
+
+    /**
+     * Encodes the measurement with the given time instead of its own
+     *
+     * @param measurement the measurement to encode
+     * @param time the time to encode, or null for none
+     * @param buffer the buffer to write to, must have at least
+     * {@link #MAX_LENGTH} bytes remaining
+     */
+    public static void encode(EnhancedRuuviMeasurement measurement, Long time, ByteBuffer buffer) {
+        buffer.put(VERSION);
+        int maskPosition = buffer.position();
+        buffer.putInt(0);
+        int mask = 0;
+        int bit = 1;
+        if (time != null) {
+            buffer.putLong(time);
+            mask |= bit;
+        }
+        bit <<= 1;
+        if (measurement.getMac() != null) {
+            putString(buffer, measurement.getMac());
+            mask |= bit;
+        }
+        bit <<= 1;
+        for (Column<String> column : ColumnarFormat.STRING_COLUMNS) {
+            String value = column.getter.apply(measurement);
+            if (value != null) {
+                putString(buffer, value);
+                mask |= bit;
+            }
+            bit <<= 1;
+        }
+        for (Column<Integer> column : ColumnarFormat.INTEGER_COLUMNS) {
+            Integer value = column.getter.apply(measurement);
+            if (value != null) {
+                buffer.putInt(value);
+                mask |= bit;
+            }
+            bit <<= 1;
+        }
+        for (Column<Double> column : ColumnarFormat.DOUBLE_COLUMNS) {
+            Double value = column.getter.apply(measurement);
+            if (value != null) {
+                buffer.putDouble(value);
+                mask |= bit;
+            }
+            bit <<= 1;
+        }
+        buffer.putInt(maskPosition, mask);
+    }
+
+    private static void putString(ByteBuffer buffer, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        int length = Math.min(bytes.length, MAX_STRING_LENGTH);
+        buffer.put((byte) length);
+        buffer.put(bytes, 0, length);
+    }
+
+    /**
+     * Decodes a measurement starting from the current position of the buffer
+     *
+     * @param buffer the buffer to read from
+     * @return the measurement
+     * @throws IllegalArgumentException if the data is not an encoded
+     * measurement
+     */
+    public static EnhancedRuuviMeasurement decode(ByteBuffer buffer) {
+        byte version = buffer.get();
+        if (version != VERSION) {
+            throw new IllegalArgumentException("Unsupported measurement encoding version: " + version);
+        }
+        int mask = buffer.getInt();
+        EnhancedRuuviMeasurement measurement = new EnhancedRuuviMeasurement();
+        int bit = 1;
+        if ((mask & bit) != 0) {
+            measurement.setTime(buffer.getLong());
+        }
+        bit <<= 1;
+        if ((mask & bit) != 0) {
+            measurement.setMac(getString(buffer));
+        }
+        bit <<= 1;
+        for (Column<String> column : ColumnarFormat.STRING_COLUMNS) {
+            if ((mask & bit) != 0) {
+                column.setter.accept(measurement, getString(buffer));
+            }
+            bit <<= 1;
+        }
+        for (Column<Integer> column : ColumnarFormat.INTEGER_COLUMNS) {
+            if ((mask & bit) != 0) {
+                column.setter.accept(measurement, buffer.getInt());
+            }
+            bit <<= 1;
+        }
+        for (Column<Double> column : ColumnarFormat.DOUBLE_COLUMNS) {
+            if ((mask & bit) != 0) {
+                column.setter.accept(measurement, buffer.getDouble());
+            }
+            bit <<= 1;
+        }
+        return measurement;
+    }
+
+    private static String getString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.get() & 0xFF];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,68 @@
+package fi.tkgwf.ruuvi.utils;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * The clock of a replayed capture: the current time is the capture time of
+ * the packet being handled, so that the limiting strategies and everything
+ * else reading {@link fi.tkgwf.ruuvi.config.Config#getTimestampProvider()}
+ * behave the same as when the packets were captured. The replay either runs
+ * as fast as the packets can be handled, or keeps the time between the
+ * packets, divided by a speed factor.
+ */
+public class ReplayClock implements Supplier<Long> {
+
+    private final double speed;
+    private volatile long now;
+    private boolean started;
+    private long captureStart;
+    private long wallStart;
+
+    /**
+     * @param speed how many times faster than real time to replay, or 0 to
+     * replay as fast as possible
+     */
+    public ReplayClock(double speed) {
+        this.speed = speed;
+    }
+
+    /**
+     * Moves the clock to the capture time of the next packet, first waiting
+     * until it's time to replay it if the speed is limited. Not thread safe,
+     * called by the thread reading the capture.
+     *
+     * @param captureTime the capture time of the packet, in milliseconds
+     * since the epoch
+     * @throws InterruptedIOException if interrupted while waiting
+     */
+    public void advance(long captureTime) throws InterruptedIOException {
+        if (!started) {
+            started = true;
+            captureStart = captureTime;
+            wallStart = System.nanoTime();
+        } else if (speed > 0) {
+            long due = wallStart + (long) (TimeUnit.MILLISECONDS.toNanos(captureTime - captureStart) / speed);
+            long remaining;
+            while ((remaining = due - System.nanoTime()) > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(remaining);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while replaying");
+                }
+            }
+        }
+        now = captureTime;
+    }
+
+    /**
+     * @return the capture time of the latest packet, in milliseconds since
+     * the epoch
+     */
+    @Override
+    public Long get() {
+        return now;
+    }
+}
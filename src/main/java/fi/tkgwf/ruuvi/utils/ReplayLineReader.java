@@ -0,0 +1,58 @@
+package fi.tkgwf.ruuvi.utils;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+
+/**
+ * Reads a capture of hcidump written with timestamps ("hcidump -t --raw"),
+ * advancing the {@link ReplayClock} to the timestamp of each packet and
+ * removing the timestamps so that the lines look like those of a live
+ * hcidump. The continuation lines of a packet have no timestamp and are
+ * passed as they are.
+ */
+public class ReplayLineReader extends BufferedReader {
+
+    /**
+     * Such as "2019-01-06 14:22:10.123456 ", in the local time zone
+     */
+    private static final DateTimeFormatter TIMESTAMP_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSSSSS");
+    private static final int TIMESTAMP_LENGTH = 26;
+
+    private final ReplayClock clock;
+    private final ZoneId zone;
+
+    public ReplayLineReader(Reader in, ReplayClock clock) {
+        this(in, clock, ZoneId.systemDefault());
+    }
+
+    /**
+     * @param in the capture
+     * @param clock the clock to advance
+     * @param zone the time zone the capture was written in
+     */
+    public ReplayLineReader(Reader in, ReplayClock clock, ZoneId zone) {
+        super(in);
+        this.clock = clock;
+        this.zone = zone;
+    }
+
+    @Override
+    public String readLine() throws IOException {
+        String line = super.readLine();
+        if (line == null || line.length() <= TIMESTAMP_LENGTH || line.charAt(TIMESTAMP_LENGTH) != ' ' || !Character.isDigit(line.charAt(0))) {
+            return line;
+        }
+        try {
+            LocalDateTime timestamp = LocalDateTime.parse(line.substring(0, TIMESTAMP_LENGTH), TIMESTAMP_FORMAT);
+            clock.advance(timestamp.atZone(zone).toInstant().toEpochMilli());
+            return line.substring(TIMESTAMP_LENGTH + 1);
+        } catch (DateTimeParseException ex) {
+            return line;
+        }
+    }
+}
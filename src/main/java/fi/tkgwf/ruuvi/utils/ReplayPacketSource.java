@@ -0,0 +1,42 @@
+package fi.tkgwf.ruuvi.utils;
+
+import java.io.IOException;
+
+/**
+ * Reads a btsnoop capture, advancing the {@link ReplayClock} to the capture
+ * time of each packet before it's handled.
+ */
+public class ReplayPacketSource implements HCIPacketSource {
+
+    private final BtSnoopReader reader;
+    private final ReplayClock clock;
+
+    public ReplayPacketSource(BtSnoopReader reader, ReplayClock clock) {
+        this.reader = reader;
+        this.clock = clock;
+    }
+
+    @Override
+    public int next() throws IOException {
+        int event = reader.next();
+        if (event == PACKET) {
+            clock.advance(reader.timestamp());
+        }
+        return event;
+    }
+
+    @Override
+    public byte[] packet() {
+        return reader.packet();
+    }
+
+    @Override
+    public int packetLength() {
+        return reader.packetLength();
+    }
+
+    @Override
+    public String message() {
+        return reader.message();
+    }
+}
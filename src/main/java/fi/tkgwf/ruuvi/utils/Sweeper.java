@@ -0,0 +1,42 @@
+package fi.tkgwf.ruuvi.utils;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import org.apache.log4j.Logger;
+
+/**
+ * A single background thread shared by everything that needs to
+ * periodically clean up state, such as forgetting the tags that have not been
+ * seen for a while. The tasks should be quick, as they run one at a time.
+ */
+public abstract class Sweeper {
+
+    private static final Logger LOG = Logger.getLogger(Sweeper.class);
+
+    private static final ScheduledExecutorService EXECUTOR = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "sweeper");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Runs the task every interval until cancelled.
+     *
+     * @param name name of the task for logging
+     * @param task the task to run, exceptions thrown by it are logged and do
+     * not stop it from being run again
+     * @param interval milliseconds between the runs
+     * @return a future for cancelling the task
+     */
+    public static ScheduledFuture<?> schedule(String name, Runnable task, long interval) {
+        return EXECUTOR.scheduleWithFixedDelay(() -> {
+            try {
+                task.run();
+            } catch (RuntimeException ex) {
+                LOG.warn("Uncaught exception while sweeping " + name, ex);
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+}
@@ -2,6 +2,8 @@ package fi.tkgwf.ruuvi.utils;
 
 public abstract class Utils {
 
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
     /**
      * Converts a space-separated string of hex to ASCII
      *
@@ -71,6 +73,63 @@ public abstract class Utils {
         return sb.toString();
     }
 
+    /**
+     * Formats a MAC address packed into a long the same way as
+     * {@link #getMacFromLine(String)} returns them
+     *
+     * @param mac the 48-bit MAC address in the lowest bytes of the long
+     * @return the MAC address as 12 uppercase hex digits, without separators
+     */
+    public static String macToString(long mac) {
+        char[] chars = new char[12];
+        for (int i = chars.length - 1; i >= 0; i--) {
+            chars[i] = HEX_DIGITS[(int) (mac & 0xF)];
+            mac >>>= 4;
+        }
+        return new String(chars);
+    }
+
+    /**
+     * Packs a MAC address into a long, the reverse of
+     * {@link #macToString(long)}
+     *
+     * @param mac the MAC address as exactly 12 hex digits in either case,
+     * without separators or a sign
+     * @return the 48-bit MAC address in the lowest bytes of the long
+     * @throws NumberFormatException if the MAC address is anything else, so
+     * that no other string is given the key of a MAC address
+     */
+    public static long macToLong(String mac) {
+        if (mac.length() != 12) {
+            throw new NumberFormatException("Invalid MAC address: " + mac);
+        }
+        long value = 0;
+        for (int i = 0; i < 12; i++) {
+            int digit = hexDigit(mac.charAt(i));
+            if (digit < 0) {
+                throw new NumberFormatException("Invalid MAC address: " + mac);
+            }
+            value = value << 4 | digit;
+        }
+        return value;
+    }
+
+    /**
+     * @return the value of the ASCII hex digit, or -1 if the character is not
+     * one, unlike {@link Character#digit(char, int)} which accepts the digits
+     * of other scripts as well
+     */
+    private static int hexDigit(char c) {
+        if (c >= '0' && c <= '9') {
+            return c - '0';
+        } else if (c >= 'A' && c <= 'F') {
+            return c - 'A' + 10;
+        } else if (c >= 'a' && c <= 'f') {
+            return c - 'a' + 10;
+        }
+        return -1;
+    }
+
     /**
      * Convenience method for checking whether the supplied byte is the max
      * signed byte. (Java doesn't natively have unsigned primitives)
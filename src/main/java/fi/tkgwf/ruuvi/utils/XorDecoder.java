@@ -0,0 +1,31 @@
+package fi.tkgwf.ruuvi.utils;
+
+/**
+ * Decodes the doubles encoded by a {@link XorEncoder}.
+ */
+public class XorDecoder {
+
+    private final BitReader in;
+    private boolean first = true;
+    private long previous;
+    private int leadingZeros;
+    private int trailingZeros;
+
+    public XorDecoder(BitReader in) {
+        this.in = in;
+    }
+
+    public double read() {
+        if (first) {
+            first = false;
+            previous = in.readBits(64);
+        } else if (in.readBit()) {
+            if (in.readBit()) {
+                leadingZeros = (int) in.readBits(5);
+                trailingZeros = 64 - leadingZeros - ((int) in.readBits(6) + 1);
+            }
+            previous ^= in.readBits(64 - leadingZeros - trailingZeros) << trailingZeros;
+        }
+        return Double.longBitsToDouble(previous);
+    }
+}
@@ -0,0 +1,51 @@
+package fi.tkgwf.ruuvi.utils;
+
+/**
+ * Encodes a series of doubles as the XOR of each value with the previous one,
+ * as described in the Gorilla paper by Facebook. Slowly changing sensor
+ * values share most of their bits with the previous value, so a repeated
+ * value takes one bit and a changed one usually a few tens of bits.
+ */
+public class XorEncoder {
+
+    private final BitWriter out;
+    private boolean first = true;
+    private long previous;
+    private int leadingZeros = Integer.MAX_VALUE;
+    private int trailingZeros;
+
+    public XorEncoder(BitWriter out) {
+        this.out = out;
+    }
+
+    public void write(double value) {
+        long bits = Double.doubleToRawLongBits(value);
+        if (first) {
+            first = false;
+            out.writeBits(bits, 64);
+        } else {
+            long xor = bits ^ previous;
+            if (xor == 0) {
+                out.writeBit(false);
+            } else {
+                out.writeBit(true);
+                int leading = Math.min(Long.numberOfLeadingZeros(xor), 31);
+                int trailing = Long.numberOfTrailingZeros(xor);
+                if (leading >= leadingZeros && trailing >= trailingZeros) {
+                    // the changed bits fit in the window of the previous value
+                    out.writeBit(false);
+                    out.writeBits(xor >>> trailingZeros, 64 - leadingZeros - trailingZeros);
+                } else {
+                    int significant = 64 - leading - trailing;
+                    out.writeBit(true);
+                    out.writeBits(leading, 5);
+                    out.writeBits(significant - 1, 6);
+                    out.writeBits(xor >>> trailing, significant);
+                    leadingZeros = leading;
+                    trailingZeros = trailing;
+                }
+            }
+        }
+        previous = bits;
+    }
+}
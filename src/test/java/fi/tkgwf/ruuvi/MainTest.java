@@ -4,16 +4,27 @@ import fi.tkgwf.ruuvi.bean.EnhancedRuuviMeasurement;
 import fi.tkgwf.ruuvi.config.Config;
 import fi.tkgwf.ruuvi.config.ConfigTest;
 import fi.tkgwf.ruuvi.db.DBConnection;
+import fi.tkgwf.ruuvi.utils.HCIStreamParser;
 import org.junit.jupiter.api.AfterAll;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
 import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
+import java.util.Properties;
 import java.util.function.Supplier;
+import java.util.stream.Collectors;
 
 import static fi.tkgwf.ruuvi.TestFixture.RSSI_BYTE;
 import static org.junit.jupiter.api.Assertions.assertEquals;
@@ -72,6 +83,132 @@ class MainTest {
         assertTrue(mockConnection.isCloseCalled());
     }
 
+    @Test
+    void streamParserIntegrationTest() {
+        final String hcidataOfDevice1 = TestFixture.getDataFormat3Message();
+        final String hcidata2OfDevice2 = TestFixture.getDataFormat3Message()
+            .replace("AA", "BB"); // Changing the MAC address
+
+        final Main main = new Main();
+        final HCIStreamParser parser = new HCIStreamParser(new ByteArrayInputStream((
+            "Ignorable garbage at the start" + "\n"
+                + hcidataOfDevice1.replace(RSSI_BYTE, "01") + "\n"
+                + hcidataOfDevice1.replace(RSSI_BYTE, "02") + "\n"
+                + hcidataOfDevice1.replace(RSSI_BYTE, "03") + "\n"
+                + hcidata2OfDevice2.replace(RSSI_BYTE, "04") + "\n"
+                + hcidata2OfDevice2.replace(RSSI_BYTE, "05") + "\n"
+        ).getBytes(StandardCharsets.US_ASCII)));
+
+        setClockToMilliseconds(0L, 5000L, 10000L, 11000L, 12000L, 99999L);
+
+        final boolean runResult = main.run(parser);
+        assertTrue(runResult);
+
+        final MockConnection mockConnection = (MockConnection) Config.getDBConnection();
+        assertEquals(3, mockConnection.getMeasurements().size());
+        assertEquals(1, mockConnection.getMeasurements().get(0).getRssi().intValue());
+        assertEquals(3, mockConnection.getMeasurements().get(1).getRssi().intValue());
+        assertEquals(4, mockConnection.getMeasurements().get(2).getRssi().intValue());
+        assertTrue(mockConnection.isCloseCalled());
+    }
+
+    @Test
+    void multipleInputsIntegrationTest() throws IOException {
+        final String hcidataOfDevice1 = TestFixture.getDataFormat3Message();
+        final String hcidata2OfDevice2 = TestFixture.getDataFormat3Message()
+            .replace("AA", "BB"); // Changing the MAC address
+
+        final Path input1 = Files.createTempFile("hci0", ".txt");
+        final Path input2 = Files.createTempFile("hci1", ".txt");
+        input1.toFile().deleteOnExit();
+        input2.toFile().deleteOnExit();
+        Files.write(input1, ("Ignorable garbage at the start\n" + hcidataOfDevice1.replace(RSSI_BYTE, "01") + "\n").getBytes(StandardCharsets.US_ASCII));
+        Files.write(input2, (hcidata2OfDevice2.replace(RSSI_BYTE, "04") + "\n").getBytes(StandardCharsets.US_ASCII));
+
+        final Properties properties = new Properties();
+        properties.put("inputs", "hci0, hci1");
+        properties.put("command.scan", "");
+        properties.put("command.dump", "");
+        properties.put("input.hci0.file", input1.toString());
+        properties.put("input.hci0.receiver", "first");
+        properties.put("input.hci1.file", input2.toString());
+        properties.put("input.hci1.parser", "stream");
+        properties.put("input.hci1.receiver", "second");
+        Config.readConfigFromProperties(properties);
+        TestFixture.setClockToMilliseconds(System::currentTimeMillis);
+
+        assertTrue(new Main().run());
+
+        final MockConnection mockConnection = (MockConnection) Config.getDBConnection();
+        final Map<Integer, String> receivers = mockConnection.getMeasurements().stream()
+            .collect(Collectors.toMap(EnhancedRuuviMeasurement::getRssi, EnhancedRuuviMeasurement::getReceiver));
+        assertEquals(2, receivers.size());
+        assertEquals("first", receivers.get(1));
+        assertEquals("second", receivers.get(4));
+        assertTrue(mockConnection.isCloseCalled());
+    }
+
+    @Test
+    void singleNamedInputIntegrationTest() throws IOException {
+        final Path input = Files.createTempFile("hci0", ".txt");
+        input.toFile().deleteOnExit();
+        Files.write(input, ("Ignorable garbage at the start\n" + TestFixture.getDataFormat3Message() + "\n").getBytes(StandardCharsets.US_ASCII));
+
+        final Properties properties = new Properties();
+        properties.put("inputs", "hci0");
+        properties.put("command.scan", "");
+        properties.put("command.dump", "");
+        properties.put("receiver", "global");
+        properties.put("input.hci0.file", input.toString());
+        properties.put("input.hci0.parser", "stream");
+        properties.put("input.hci0.receiver", "first");
+        Config.readConfigFromProperties(properties);
+        TestFixture.setClockToMilliseconds(System::currentTimeMillis);
+
+        assertTrue(new Main().run());
+
+        final MockConnection mockConnection = (MockConnection) Config.getDBConnection();
+        assertEquals(1, mockConnection.getMeasurements().size());
+        assertEquals("first", mockConnection.getMeasurements().get(0).getReceiver());
+        assertTrue(mockConnection.isCloseCalled());
+    }
+
+    @Test
+    void replayIntegrationTest() throws IOException {
+        final String hcidataOfDevice1 = TestFixture.getDataFormat3Message();
+        final String hcidata2OfDevice2 = TestFixture.getDataFormat3Message()
+            .replace("AA", "BB"); // Changing the MAC address
+
+        // The clock follows the timestamps of the capture, which are the same as in the integrationTest
+        final Path capture = Files.createTempFile("capture", ".txt");
+        capture.toFile().deleteOnExit();
+        Files.write(capture, ("HCI sniffer - Bluetooth packet analyzer ver 5.50\n"
+            + "2019-01-06 14:22:00.000000 " + hcidataOfDevice1.replace(RSSI_BYTE, "01") + "\n"
+            + "2019-01-06 14:22:05.000000 " + hcidataOfDevice1.replace(RSSI_BYTE, "02") + "\n"
+            + "2019-01-06 14:22:10.000000 " + hcidataOfDevice1.replace(RSSI_BYTE, "03") + "\n"
+            + "2019-01-06 14:22:11.000000 " + hcidata2OfDevice2.replace(RSSI_BYTE, "04") + "\n"
+            + "2019-01-06 14:22:12.000000 " + hcidata2OfDevice2.replace(RSSI_BYTE, "05") + "\n"
+        ).getBytes(StandardCharsets.US_ASCII));
+
+        final Properties properties = new Properties();
+        properties.put("replay.enabled", "true");
+        properties.put("input.file", capture.toString());
+        Config.readConfigFromProperties(properties);
+
+        assertTrue(new Main().run());
+
+        final long start = LocalDateTime.of(2019, 1, 6, 14, 22).atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        final MockConnection mockConnection = (MockConnection) Config.getDBConnection();
+        assertEquals(3, mockConnection.getMeasurements().size());
+        assertEquals(1, mockConnection.getMeasurements().get(0).getRssi().intValue());
+        assertEquals(start, mockConnection.getMeasurements().get(0).getTime().longValue());
+        assertEquals(3, mockConnection.getMeasurements().get(1).getRssi().intValue());
+        assertEquals(start + 10000, mockConnection.getMeasurements().get(1).getTime().longValue());
+        assertEquals(4, mockConnection.getMeasurements().get(2).getRssi().intValue());
+        assertEquals(start + 11000, mockConnection.getMeasurements().get(2).getTime().longValue());
+        assertTrue(mockConnection.isCloseCalled());
+    }
+
     private void setClockToMilliseconds(final Long... millis) {
         TestFixture.setClockToMilliseconds(new FixedInstantsProvider(Arrays.asList(millis)));
     }
@@ -83,7 +220,7 @@ class MainTest {
         private boolean closeCalled = false;
 
         @Override
-        public void save(final EnhancedRuuviMeasurement measurement) {
+        public synchronized void save(final EnhancedRuuviMeasurement measurement) {
             this.measurements.add(measurement);
         }
 
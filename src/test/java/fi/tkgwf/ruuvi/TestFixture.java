@@ -28,6 +28,29 @@ public class TestFixture {
         return "> 04 3E 21 02 01 03 01 FF EE DD CC BB AA 15 02 01 06 11 FF 99 04 03 49 16 0E BE F8 00 05 FF EA 03 E1 0B BF B4";
     }
 
+    /**
+     * Refer to https://github.com/ruuvi/ruuvi-sensor-protocols for the full specification
+     * @return An example message in data format 5, like hcidump would return it.
+     */
+    public static String getDataFormat5Message() {
+//                                     MAC address (6 bytes)
+//                                     |                                   Manufacturer ID 0x0499
+//                                     |                                   |     Data format definition (5)
+//                                     |                                   |     |  Temperature (2 bytes)
+//                                     |                                   |     |  |     Humidity (2 bytes)
+//                                     |                                   |     |  |     |     Pressure (2 bytes)
+//                                     |                                   |     |  |     |     |     Acceleration-X (2 bytes)
+//                                     |                                   |     |  |     |     |     |     Acceleration-Y (2 bytes)
+//                                     |                                   |     |  |     |     |     |     |     Acceleration-Z (2 bytes)
+//                                     |                                   |     |  |     |     |     |     |     |     Battery voltage & TX power (2 bytes)
+//                                     |                                   |     |  |     |     |     |     |     |     |     Movement counter
+//                                     |                                   |     |  |     |     |     |     |     |     |     |  Measurement sequence number (2 bytes)
+//                                     |                                   |     |  |     |     |     |     |     |     |     |  |     MAC address (6 bytes)
+//                                     |                                   |     |  |     |     |     |     |     |     |     |  |     |                 RSSI
+//                                     |                                   |     |  |     |     |     |     |     |     |     |  |     |                 |
+        return "> 04 3E 2B 02 01 03 01 FF EE DD CC BB AA 1F 02 01 06 1B FF 99 04 05 12 FC 53 94 C3 7C 00 04 FF FC 04 0C AC 36 42 00 CD CB B8 33 4C 88 4F B4";
+    }
+
     public static String getIBeaconMessage() {
 //
 //                                     MAC address (6 bytes)               Manufacturer ID 0x004C
@@ -0,0 +1,87 @@
+package fi.tkgwf.ruuvi.bean;
+
+import fi.tkgwf.ruuvi.TestFixture;
+import fi.tkgwf.ruuvi.handler.BeaconHandler;
+import fi.tkgwf.ruuvi.utils.HCIParser;
+import fi.tkgwf.ruuvi.utils.Utils;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class HCIPacketTest {
+
+    @Test
+    void assertAllFields() {
+        final HCIPacket packet = wrap(TestFixture.getDataFormat3Message());
+        assertEquals(4, packet.packetType());
+        assertEquals(62, packet.eventCode());
+        assertEquals(33, packet.packetLength());
+        assertEquals(2, packet.subEvent());
+        assertEquals(1, packet.numberOfReports());
+        assertEquals(3, packet.eventType());
+        assertEquals(1, packet.peerAddressType());
+        assertEquals(0xAABBCCDDEEFFL, packet.mac());
+        assertEquals("AABBCCDDEEFF", packet.macString());
+        assertTrue(packet.hasRssi());
+        assertEquals(-76, packet.rssi());
+
+        final int flags = packet.findAdvertisementDataByType(0x01);
+        assertEquals(1, packet.advertisementDataLength(flags));
+        assertArrayEquals(new byte[]{6}, packet.advertisementDataBytes(flags));
+
+        final int manufacturerData = packet.findAdvertisementDataByType(0xFF);
+        assertEquals(16, packet.advertisementDataLength(manufacturerData));
+        assertArrayEquals(new byte[]{(byte) -103, (byte) 4, (byte) 3, (byte) 73, (byte) 22, (byte) 14, (byte) -66,
+                (byte) -8, (byte) 0, (byte) 5, (byte) -1, (byte) -22, (byte) 3, (byte) -31, (byte) 11, (byte) -65},
+            packet.advertisementDataBytes(manufacturerData));
+
+        assertEquals(-1, packet.findAdvertisementDataByType(0x16));
+    }
+
+    @Test
+    void testMatchesHCIData() {
+        final String[] messages = {
+            TestFixture.getDataFormat3Message(),
+            TestFixture.getDataFormat5Message(),
+            TestFixture.getIBeaconMessage(),
+            TestFixture.getEddystoneUIDMessage(),
+            TestFixture.getEddystoneTMLMessage()
+        };
+        for (String message : messages) {
+            final HCIData hciData = new HCIParser().readLine(message);
+            final HCIPacket packet = wrap(message);
+            assertEquals(hciData.mac, packet.macString());
+            assertEquals(hciData.rssi, packet.hasRssi() ? packet.rssi() : null);
+            for (int type : new int[]{0x01, 0x03, 0x16, 0x17, 0xFF}) {
+                final HCIData.Report.AdvertisementData adData = hciData.findAdvertisementDataByType(type);
+                final int offset = packet.findAdvertisementDataByType(type);
+                if (adData == null) {
+                    assertEquals(-1, offset);
+                } else {
+                    assertArrayEquals(adData.dataBytes(), packet.advertisementDataBytes(offset));
+                }
+            }
+            final BeaconHandler handler = new BeaconHandler();
+            assertEquals(String.valueOf(handler.handle(hciData).orElse(null)), String.valueOf(handler.handle(packet).orElse(null)));
+        }
+    }
+
+    @Test
+    void testIncompletePacket() {
+        final byte[] bytes = Utils.hexToBytes(TestFixture.getDataFormat3Message().substring(2));
+        assertFalse(new HCIPacket().wrap(bytes, 20));
+        assertFalse(new HCIPacket().wrap(bytes, 5));
+    }
+
+    private static HCIPacket wrap(final String message) {
+        final byte[] bytes = Utils.hexToBytes(message.substring(2));
+        final HCIPacket packet = new HCIPacket();
+        assertTrue(packet.wrap(Arrays.copyOf(bytes, bytes.length + 10), bytes.length));
+        return packet;
+    }
+}
@@ -16,6 +16,7 @@ import java.util.function.Predicate;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.junit.jupiter.api.Assertions.fail;
 
@@ -188,4 +189,47 @@ public class ConfigTest {
         assertFalse(Config.isAllowedMAC("ABCDEFG"));
         assertFalse(Config.isAllowedMAC(null));
     }
+
+    @Test
+    void testInputs() {
+        assertEquals(1, Config.getInputs().size());
+        assertFalse(Config.isLimitingStrategyConcurrent());
+
+        final Properties properties = new Properties();
+        properties.put("receiver", "global");
+        properties.put("input.parser", "stream");
+        properties.put("inputs", "hci0,hci1");
+        properties.put("input.hci0.command.dump", "hcidump -i hci0 --raw");
+        properties.put("input.hci1.receiver", "upstairs");
+        properties.put("input.hci1.format", "btsnoop");
+        Config.readConfigFromProperties(properties);
+
+        final InputConfig hci0 = Config.getInputs().get(0);
+        assertEquals("hci0", hci0.getName());
+        assertEquals("hcidump -i hci0 --raw", String.join(" ", hci0.getDumpCommand()));
+        assertEquals("stream", hci0.getParser());
+        assertEquals("hcidump", hci0.getFormat());
+        assertEquals("global", hci0.getReceiver());
+        final InputConfig hci1 = Config.getInputs().get(1);
+        assertEquals("hcidump --raw", String.join(" ", hci1.getDumpCommand()));
+        assertEquals("btsnoop", hci1.getFormat());
+        assertEquals("upstairs", hci1.getReceiver());
+        // the inputs are read in separate threads
+        assertTrue(Config.isLimitingStrategyConcurrent());
+    }
+
+    @Test
+    void testPipelineRequiresPacketInputs() {
+        final Properties properties = new Properties();
+        properties.put("pipeline.enabled", "true");
+        properties.put("inputs", "hci0,hci1");
+        properties.put("input.hci0.parser", "stream");
+        properties.put("input.hci1.format", "btsnoop");
+        Config.readConfigFromProperties(properties);
+        assertTrue(Config.isPipelineEnabled());
+
+        properties.remove("input.hci1.format");
+        final IllegalStateException ex = assertThrows(IllegalStateException.class, () -> Config.readConfigFromProperties(properties));
+        assertTrue(ex.getMessage().contains("\"hci1\""), ex.getMessage());
+    }
 }
@@ -0,0 +1,242 @@
+package fi.tkgwf.ruuvi.db;
+
+import fi.tkgwf.ruuvi.TestFixture;
+import fi.tkgwf.ruuvi.bean.EnhancedRuuviMeasurement;
+import fi.tkgwf.ruuvi.config.Config;
+import fi.tkgwf.ruuvi.config.ConfigTest;
+import fi.tkgwf.ruuvi.pipeline.OverflowPolicy;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+import org.influxdb.InfluxDBIOException;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class CompositeDBConnectionTest {
+
+    @AfterEach
+    void resetConfig() {
+        Config.reload(ConfigTest.configTestFileFinder());
+        TestFixture.setClockToMilliseconds(System::currentTimeMillis);
+    }
+
+    @Test
+    void testSlowDatabaseDoesNotDelayOthers() throws InterruptedException {
+        final CountDownLatch slowStarted = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final RecordingConnection slow = new RecordingConnection() {
+            @Override
+            public void save(final EnhancedRuuviMeasurement measurement) {
+                slowStarted.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+                super.save(measurement);
+            }
+        };
+        final RecordingConnection fast = new RecordingConnection();
+        final Map<String, DBConnection> connections = new LinkedHashMap<>();
+        connections.put("slow", slow);
+        connections.put("fast", fast);
+        final CompositeDBConnection composite = new CompositeDBConnection(connections, 16, OverflowPolicy.DROP);
+
+        composite.save(createMeasurement(0));
+        slowStarted.await();
+        final long deadline = System.currentTimeMillis() + 10000;
+        for (int i = 1; i < 100; i++) {
+            composite.save(createMeasurement(i));
+            // the fast database keeps up while the slow one is stuck
+            while (fast.size() <= i && System.currentTimeMillis() < deadline) {
+                Thread.sleep(1);
+            }
+        }
+        assertEquals(100, fast.size());
+        assertEquals(0, slow.size());
+
+        release.countDown();
+        composite.close();
+        // the one being saved and a full queue were stored, the rest dropped
+        assertEquals(17, slow.size());
+        assertTrue(slow.closed && fast.closed);
+        assertTrue(composite.getStatistics().get(0).startsWith("slow{depth=0/16, dropped=83, failed=0"));
+        assertTrue(composite.getStatistics().get(1).startsWith("fast{depth=0/16, dropped=0, failed=0"));
+    }
+
+    @Test
+    void testFailingDatabaseIsCounted() {
+        final Map<String, DBConnection> connections = new LinkedHashMap<>();
+        connections.put("broken", new RecordingConnection() {
+            @Override
+            public void save(final EnhancedRuuviMeasurement measurement) {
+                throw new IllegalStateException("broken");
+            }
+        });
+        final RecordingConnection working = new RecordingConnection();
+        connections.put("working", working);
+        final CompositeDBConnection composite = new CompositeDBConnection(connections, 16, OverflowPolicy.BLOCK);
+        for (int i = 0; i < 50; i++) {
+            composite.save(createMeasurement(i));
+        }
+        composite.close();
+        assertEquals(50, working.size());
+        assertTrue(composite.getStatistics().get(0).startsWith("broken{depth=0/16, dropped=0, failed=50, latency={count=50"));
+    }
+
+    @Test
+    void testSaveAllDoesNotDropMeasurements() {
+        final RecordingConnection first = new RecordingConnection();
+        final RecordingConnection second = new RecordingConnection();
+        final Map<String, DBConnection> connections = new LinkedHashMap<>();
+        connections.put("first", first);
+        connections.put("second", second);
+        final CompositeDBConnection composite = new CompositeDBConnection(connections, 4, OverflowPolicy.DROP);
+        final List<EnhancedRuuviMeasurement> measurements = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            measurements.add(createMeasurement(i));
+        }
+
+        composite.saveAll(measurements);
+
+        assertEquals(100, first.size());
+        assertEquals(100, second.size());
+        composite.close();
+    }
+
+    @Test
+    void testSaveAllThrowsTheFailure() {
+        final Map<String, DBConnection> connections = new LinkedHashMap<>();
+        connections.put("broken", new RecordingConnection() {
+            @Override
+            public void saveAll(final Collection<EnhancedRuuviMeasurement> measurements) {
+                throw new IllegalStateException("broken");
+            }
+        });
+        final RecordingConnection working = new RecordingConnection();
+        connections.put("working", working);
+        final CompositeDBConnection composite = new CompositeDBConnection(connections, 4, OverflowPolicy.DROP);
+
+        assertThrows(IllegalStateException.class, () -> composite.saveAll(Arrays.asList(createMeasurement(0), createMeasurement(1))));
+        assertEquals(2, working.size());
+        composite.close();
+        assertTrue(composite.getStatistics().get(0).startsWith("broken{depth=0/4, dropped=0, failed=2"));
+    }
+
+    @Test
+    void testEachDatabaseHasItsOwnSpool() throws Exception {
+        final Path directory = Files.createTempDirectory("spool");
+        try {
+            final AtomicInteger failures = new AtomicInteger(3);
+            final RecordingConnection flaky = new RecordingConnection() {
+                @Override
+                public void saveAll(final Collection<EnhancedRuuviMeasurement> measurements) {
+                    if (failures.getAndDecrement() > 0) {
+                        throw new InfluxDBIOException(new IOException("Connection refused"));
+                    }
+                    super.saveAll(measurements);
+                }
+            };
+            final RecordingConnection working = new RecordingConnection();
+            final Map<String, DBConnection> connections = new LinkedHashMap<>();
+            connections.put("flaky", new SpoolingDBConnection(flaky, new SegmentSpool(directory.resolve("flaky"), 4096, 65536), 10, 1));
+            connections.put("working", new SpoolingDBConnection(working, new SegmentSpool(directory.resolve("working"), 4096, 65536), 10, 1));
+            TestFixture.setClockToMilliseconds(() -> 1000L);
+            final CompositeDBConnection composite = new CompositeDBConnection(connections, 16, OverflowPolicy.BLOCK);
+
+            final List<EnhancedRuuviMeasurement> measurements = new ArrayList<>();
+            for (int i = 0; i < 50; i++) {
+                measurements.add(createMeasurement(i));
+                composite.save(measurements.get(i));
+            }
+            final long deadline = System.currentTimeMillis() + 10000;
+            while ((flaky.size() < 50 || working.size() < 50) && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            composite.close();
+
+            // the failed writes were retried from the spool of the flaky database only
+            assertTrue(failures.get() < 0);
+            assertEquals(50, flaky.size());
+            assertEquals(50, working.size());
+            assertEquals(1000L, flaky.saved.get(49).getTime().longValue());
+            // the time is set in the spooled copies, not in the measurements shared by the databases
+            measurements.forEach(m -> assertNull(m.getTime()));
+        } finally {
+            try (Stream<Path> files = Files.walk(directory)) {
+                files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+            }
+        }
+    }
+
+    @Test
+    void testInfluxDBIOExceptionIsThrownWhenConfigured() throws InterruptedException {
+        final Properties properties = new Properties();
+        properties.put("exitOnInfluxDBIOException", "true");
+        Config.readConfigFromProperties(properties);
+        final Map<String, DBConnection> connections = new LinkedHashMap<>();
+        connections.put("unreachable", new RecordingConnection() {
+            @Override
+            public void save(final EnhancedRuuviMeasurement measurement) {
+                throw new InfluxDBIOException(new IOException("Connection refused"));
+            }
+        });
+        connections.put("working", new RecordingConnection());
+        final CompositeDBConnection composite = new CompositeDBConnection(connections, 16, OverflowPolicy.BLOCK);
+
+        composite.save(createMeasurement(0));
+        final long deadline = System.currentTimeMillis() + 10000;
+        while (!composite.getStatistics().get(0).contains("failed=1") && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        assertThrows(InfluxDBIOException.class, () -> composite.save(createMeasurement(1)));
+        composite.close();
+    }
+
+    private static EnhancedRuuviMeasurement createMeasurement(final int i) {
+        final EnhancedRuuviMeasurement measurement = new EnhancedRuuviMeasurement();
+        measurement.setMac("AABBCCDDEEFF");
+        measurement.setMeasurementSequenceNumber(i);
+        return measurement;
+    }
+
+    private static class RecordingConnection implements DBConnection {
+
+        private final List<EnhancedRuuviMeasurement> saved = new ArrayList<>();
+        private volatile boolean closed;
+
+        @Override
+        public void save(final EnhancedRuuviMeasurement measurement) {
+            synchronized (saved) {
+                saved.add(measurement);
+            }
+        }
+
+        int size() {
+            synchronized (saved) {
+                return saved.size();
+            }
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package fi.tkgwf.ruuvi.db;
+
+import com.sun.net.httpserver.HttpServer;
+import fi.tkgwf.ruuvi.bean.EnhancedRuuviMeasurement;
+import fi.tkgwf.ruuvi.config.Config;
+import fi.tkgwf.ruuvi.config.ConfigTest;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class InfluxDB2ConnectionTest {
+
+    private HttpServer server;
+    private final Map<String, String> bodies = new TreeMap<>();
+    private String authorization;
+
+    @BeforeEach
+    void startServer() throws IOException {
+        Config.reload(ConfigTest.configTestFileFinder());
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/api/v2/write", exchange -> {
+            final ByteArrayOutputStream body = new ByteArrayOutputStream();
+            try (InputStream in = exchange.getRequestBody()) {
+                final byte[] buffer = new byte[1024];
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    body.write(buffer, 0, read);
+                }
+            }
+            synchronized (bodies) {
+                bodies.put(exchange.getRequestURI().getQuery(), new String(body.toByteArray(), StandardCharsets.UTF_8));
+                authorization = exchange.getRequestHeaders().getFirst("Authorization");
+            }
+            exchange.sendResponseHeaders(204, -1);
+            exchange.close();
+        });
+        server.start();
+    }
+
+    @AfterEach
+    void stopServer() {
+        server.stop(0);
+    }
+
+    @AfterAll
+    static void resetConfigAfter() {
+        Config.reload(ConfigTest.configTestFileFinder());
+    }
+
+    @Test
+    void testMeasurementsAreRoutedToBucketsPerTag() {
+        final Properties props = new Properties();
+        props.put("influxUrl", "http://127.0.0.1:" + server.getAddress().getPort());
+        props.put("influxOrg", "home");
+        props.put("influxBucket", "climate");
+        props.put("influxToken", "secret-token");
+        props.put("influxPrecision", "ns");
+        props.put("influxGzip", "false");
+        props.put("influxBatch", "false");
+        props.put("tag.BBBBBBBBBBBB.influxBucket", "motion");
+        Config.readConfigFromProperties(props);
+
+        final InfluxDB2Connection connection = new InfluxDB2Connection();
+        connection.saveAll(Arrays.asList(
+            createMeasurement("AAAAAAAAAAAA", 1000L),
+            createMeasurement("BBBBBBBBBBBB", 1001L),
+            createMeasurement("AAAAAAAAAAAA", 1002L)));
+        connection.close();
+
+        synchronized (bodies) {
+            assertEquals(2, bodies.size());
+            assertEquals("ruuvi_measurements,mac=AAAAAAAAAAAA temperature=21.5 1000000000\n"
+                    + "ruuvi_measurements,mac=AAAAAAAAAAAA temperature=21.5 1002000000",
+                bodies.get("bucket=climate&precision=ns&org=home"));
+            assertEquals("ruuvi_measurements,mac=BBBBBBBBBBBB temperature=21.5 1001000000",
+                bodies.get("bucket=motion&precision=ns&org=home"));
+            assertEquals("Token secret-token", authorization);
+        }
+    }
+
+    private static EnhancedRuuviMeasurement createMeasurement(final String mac, final long time) {
+        final EnhancedRuuviMeasurement measurement = new EnhancedRuuviMeasurement();
+        measurement.setTime(time);
+        measurement.setMac(mac);
+        measurement.setTemperature(21.5);
+        return measurement;
+    }
+}
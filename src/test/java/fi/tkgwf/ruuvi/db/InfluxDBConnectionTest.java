@@ -0,0 +1,108 @@
+package fi.tkgwf.ruuvi.db;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import fi.tkgwf.ruuvi.bean.EnhancedRuuviMeasurement;
+import fi.tkgwf.ruuvi.config.Config;
+import fi.tkgwf.ruuvi.config.ConfigTest;
+import fi.tkgwf.ruuvi.metrics.CollectorMetricsExporter;
+import io.prometheus.client.CollectorRegistry;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class InfluxDBConnectionTest {
+
+    private HttpServer server;
+    private final List<String> bodies = Collections.synchronizedList(new ArrayList<>());
+
+    @BeforeEach
+    void startServer() throws IOException {
+        Config.reload(ConfigTest.configTestFileFinder());
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/write", this::handle);
+        server.start();
+    }
+
+    @AfterEach
+    void stopServer() {
+        server.stop(0);
+    }
+
+    private void handle(final HttpExchange exchange) throws IOException {
+        final InputStream in = exchange.getRequestBody();
+        final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[1024];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            body.write(buffer, 0, read);
+        }
+        bodies.add(new String(body.toByteArray(), StandardCharsets.UTF_8));
+        exchange.sendResponseHeaders(204, -1);
+        exchange.close();
+    }
+
+    private InfluxDBConnection createConnection(final int batchSize, final int batchTime) {
+        return new InfluxDBConnection("http://127.0.0.1:" + server.getAddress().getPort(), "ruuvi", "secret",
+            "ruuvi", "autogen", false, true, batchSize, batchTime);
+    }
+
+    @Test
+    void testBatchesAreWrittenAndRecordedInTheMetrics() {
+        final CollectorMetricsExporter exporter = new CollectorMetricsExporter(null);
+        try {
+            final double written = value("ruuvi_collector_influxdb_written_measurements");
+            final double writes = value("ruuvi_collector_influxdb_write_latency_seconds_count");
+
+            final InfluxDBConnection connection = createConnection(2, 60000);
+            for (int i = 0; i < 5; i++) {
+                connection.save(createMeasurement(i));
+            }
+            connection.close();
+
+            assertEquals(3, bodies.size());
+            assertEquals("ruuvi_measurements,mac=AABBCCDDEEFF temperature=20.0 1000\n"
+                + "ruuvi_measurements,mac=AABBCCDDEEFF temperature=21.0 1001", bodies.get(0));
+            assertEquals("ruuvi_measurements,mac=AABBCCDDEEFF temperature=24.0 1004", bodies.get(2));
+            assertEquals(written + 5, value("ruuvi_collector_influxdb_written_measurements"));
+            assertEquals(writes + 3, value("ruuvi_collector_influxdb_write_latency_seconds_count"));
+        } finally {
+            exporter.close();
+        }
+    }
+
+    @Test
+    void testBatchIsWrittenAfterBatchTime() throws InterruptedException {
+        final InfluxDBConnection connection = createConnection(1000, 20);
+        connection.save(createMeasurement(0));
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (bodies.isEmpty() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(1, bodies.size());
+        connection.close();
+    }
+
+    private static double value(final String name) {
+        final Double value = CollectorRegistry.defaultRegistry.getSampleValue(name);
+        return value == null ? 0 : value;
+    }
+
+    private static EnhancedRuuviMeasurement createMeasurement(final int i) {
+        final EnhancedRuuviMeasurement measurement = new EnhancedRuuviMeasurement();
+        measurement.setTime(1000L + i);
+        measurement.setMac("AABBCCDDEEFF");
+        measurement.setTemperature(20d + i);
+        return measurement;
+    }
+}
@@ -0,0 +1,161 @@
+package fi.tkgwf.ruuvi.db;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import fi.tkgwf.ruuvi.bean.EnhancedRuuviMeasurement;
+import fi.tkgwf.ruuvi.config.Config;
+import fi.tkgwf.ruuvi.config.ConfigTest;
+import fi.tkgwf.ruuvi.utils.LineProtocolEncoder;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class LineProtocolWriterTest {
+
+    private HttpServer server;
+    private final List<String> bodies = Collections.synchronizedList(new ArrayList<>());
+    private final List<String> queries = Collections.synchronizedList(new ArrayList<>());
+    private final List<String> authorizations = Collections.synchronizedList(new ArrayList<>());
+    private final AtomicInteger requests = new AtomicInteger();
+    private volatile int[] statuses = {204};
+
+    @BeforeEach
+    void startServer() throws IOException {
+        Config.reload(ConfigTest.configTestFileFinder());
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/write", this::handle);
+        server.start();
+    }
+
+    @AfterEach
+    void stopServer() {
+        server.stop(0);
+    }
+
+    @AfterAll
+    static void resetConfigAfter() {
+        Config.reload(ConfigTest.configTestFileFinder());
+    }
+
+    private void handle(final HttpExchange exchange) throws IOException {
+        final int request = requests.getAndIncrement();
+        InputStream in = exchange.getRequestBody();
+        if ("gzip".equals(exchange.getRequestHeaders().getFirst("Content-Encoding"))) {
+            in = new GZIPInputStream(in);
+        }
+        final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[1024];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            body.write(buffer, 0, read);
+        }
+        final int status = statuses[Math.min(request, statuses.length - 1)];
+        if (status == 204) {
+            bodies.add(new String(body.toByteArray(), StandardCharsets.UTF_8));
+            queries.add(exchange.getRequestURI().getQuery());
+            authorizations.add(exchange.getRequestHeaders().getFirst("Authorization"));
+            exchange.sendResponseHeaders(204, -1);
+        } else {
+            final byte[] response = "{\"error\":\"failed\"}".getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(status, response.length);
+            exchange.getResponseBody().write(response);
+        }
+        exchange.close();
+    }
+
+    private LineProtocolWriter createWriter(final int batchSize, final long batchTime, final int maxRetries) {
+        final URL url = LineProtocolWriter.writeUrl("http://127.0.0.1:" + server.getAddress().getPort() + "/", "ruuvi", "autogen");
+        return new LineProtocolWriter(url, LineProtocolWriter.basicAuthorization("ruuvi", "secret"), true,
+            batchSize, batchTime, 2, maxRetries, 5000, new LineProtocolEncoder("ruuvi_measurements"));
+    }
+
+    @Test
+    void testBatchesAreSentWhenFullAndOnClose() {
+        final LineProtocolWriter writer = createWriter(10, 60000, 0);
+        for (int i = 0; i < 25; i++) {
+            writer.add(createMeasurement(i));
+        }
+        writer.close();
+
+        assertEquals(3, bodies.size());
+        final List<String> lines = new ArrayList<>();
+        bodies.forEach(body -> lines.addAll(Arrays.asList(body.split("\n"))));
+        lines.sort(null);
+        assertEquals(25, lines.size());
+        assertEquals("ruuvi_measurements,mac=AABBCCDDEEFF temperature=20.0 1000", lines.get(0));
+        assertEquals("db=ruuvi&precision=ms&rp=autogen", queries.get(0));
+        assertEquals("Basic cnV1dmk6c2VjcmV0", authorizations.get(0));
+        assertEquals(0, writer.getDropped());
+    }
+
+    @Test
+    void testBatchIsSentAfterBatchTime() throws InterruptedException {
+        final LineProtocolWriter writer = createWriter(1000, 20, 0);
+        writer.add(createMeasurement(0));
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (bodies.isEmpty() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(1, bodies.size());
+        writer.close();
+    }
+
+    @Test
+    void testUnavailableServerIsRetried() throws IOException {
+        statuses = new int[]{503, 429, 204};
+        final LineProtocolWriter writer = createWriter(1000, 60000, 5);
+        writer.write(Arrays.asList(createMeasurement(0), createMeasurement(1)));
+        writer.close();
+        assertEquals(3, requests.get());
+        assertEquals(1, bodies.size());
+    }
+
+    @Test
+    void testRejectedWriteIsNotRetried() {
+        statuses = new int[]{400, 204};
+        final LineProtocolWriter writer = createWriter(1000, 60000, 5);
+        final IOException ex = assertThrows(IOException.class, () -> writer.write(Collections.singletonList(createMeasurement(0))));
+        assertTrue(ex.getMessage().contains("400"));
+        assertEquals(1, requests.get());
+
+        writer.add(createMeasurement(0));
+        writer.close();
+        assertEquals(2, requests.get());
+    }
+
+    @Test
+    void testFailedBatchIsDroppedWhenRetriesRunOut() {
+        statuses = new int[]{500};
+        final LineProtocolWriter writer = createWriter(2, 60000, 1);
+        writer.add(createMeasurement(0));
+        writer.add(createMeasurement(1));
+        writer.close();
+        assertEquals(2, requests.get());
+        assertEquals(2, writer.getDropped());
+    }
+
+    private static EnhancedRuuviMeasurement createMeasurement(final int i) {
+        final EnhancedRuuviMeasurement measurement = new EnhancedRuuviMeasurement();
+        measurement.setTime(1000L + i);
+        measurement.setMac("AABBCCDDEEFF");
+        measurement.setTemperature(20d + i);
+        return measurement;
+    }
+}
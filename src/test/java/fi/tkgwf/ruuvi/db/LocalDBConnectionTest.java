@@ -0,0 +1,61 @@
+package fi.tkgwf.ruuvi.db;
+
+import fi.tkgwf.ruuvi.bean.EnhancedRuuviMeasurement;
+import fi.tkgwf.ruuvi.config.Config;
+import fi.tkgwf.ruuvi.config.ConfigTest;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class LocalDBConnectionTest {
+
+    private Path directory;
+
+    @BeforeEach
+    void createDirectory() throws IOException {
+        Config.reload(ConfigTest.configTestFileFinder());
+        directory = Files.createTempDirectory("store");
+    }
+
+    @AfterEach
+    void deleteDirectory() throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+        }
+    }
+
+    @Test
+    void testStoreIsFlushedWithoutNewMeasurements() throws IOException, InterruptedException {
+        final AtomicInteger flushes = new AtomicInteger();
+        final TimeSeriesStore store = new TimeSeriesStore(directory, 100) {
+            @Override
+            public void flush() {
+                flushes.incrementAndGet();
+                super.flush();
+            }
+        };
+        final LocalDBConnection connection = new LocalDBConnection(store, 20);
+        final EnhancedRuuviMeasurement measurement = new EnhancedRuuviMeasurement();
+        measurement.setMac("AABBCCDDEEFF");
+        measurement.setTime(1546783200000L);
+        measurement.setTemperature(21.5);
+        connection.save(measurement);
+
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (flushes.get() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertTrue(flushes.get() > 0);
+        connection.close();
+        assertEquals(1, store.query("AABBCCDDEEFF", Long.MIN_VALUE, Long.MAX_VALUE).size());
+    }
+}
@@ -0,0 +1,76 @@
+package fi.tkgwf.ruuvi.db;
+
+import fi.tkgwf.ruuvi.bean.EnhancedRuuviMeasurement;
+import io.prometheus.client.CollectorRegistry;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class PrometheusExporterTest {
+
+    private static final String[] LABELS = {"tag_mac", "tag_name", "data_format"};
+
+    @Test
+    void testValuesAreExportedPerTag() {
+        final PrometheusExporter exporter = new PrometheusExporter(0);
+        try {
+            exporter.save(createMeasurement("AAAAAAAAAAAA", null, 21.5));
+            exporter.save(createMeasurement("BBBBBBBBBBBB", "Sauna", 80d));
+            exporter.save(createMeasurement("AAAAAAAAAAAA", null, 22.5));
+
+            assertEquals((Double) 22.5, value("ruuvi_temperature", "AAAAAAAAAAAA", "AAAAAAAAAAAA", "5"));
+            assertEquals((Double) 80d, value("ruuvi_temperature", "BBBBBBBBBBBB", "Sauna", "5"));
+            assertEquals((Double) 2d, value("ruuvi_prometheus_exported", "AAAAAAAAAAAA", "AAAAAAAAAAAA", "5"));
+            assertEquals((Double) (-73d), value("ruuvi_rssi", "AAAAAAAAAAAA", "AAAAAAAAAAAA", "5"));
+            assertEquals((Double) 0d, value("ruuvi_humidity", "AAAAAAAAAAAA", "AAAAAAAAAAAA", "5")); // missing values stay at zero
+
+            // a renamed tag is exported with the new name from then on
+            exporter.save(createMeasurement("AAAAAAAAAAAA", "Fridge", 4d));
+            assertEquals((Double) 4d, value("ruuvi_temperature", "AAAAAAAAAAAA", "Fridge", "5"));
+            assertEquals((Double) 22.5, value("ruuvi_temperature", "AAAAAAAAAAAA", "AAAAAAAAAAAA", "5"));
+            assertNull(value("ruuvi_temperature", "BBBBBBBBBBBB", "Fridge", "5"));
+        } finally {
+            exporter.close();
+            CollectorRegistry.defaultRegistry.clear();
+        }
+    }
+
+    @Test
+    void testTagsNotSeenAreExpired() {
+        final PrometheusExporter exporter = new PrometheusExporter(0, 60000);
+        try {
+            exporter.save(createMeasurement("AAAAAAAAAAAA", null, 21.5));
+            exporter.save(createMeasurement("AAAAAAAAAAAA", "Fridge", 4d));
+            final long now = System.currentTimeMillis();
+            assertEquals(0, exporter.expire(now));
+
+            assertEquals(1, exporter.expire(now + 61000));
+            assertNull(value("ruuvi_temperature", "AAAAAAAAAAAA", "Fridge", "5"));
+            assertNull(value("ruuvi_temperature", "AAAAAAAAAAAA", "AAAAAAAAAAAA", "5"));
+            assertNull(value("ruuvi_last_update", "AAAAAAAAAAAA", "Fridge", "5"));
+
+            // an expired tag is exported again once it's seen again
+            exporter.save(createMeasurement("AAAAAAAAAAAA", "Fridge", 5d));
+            assertEquals((Double) 5d, value("ruuvi_temperature", "AAAAAAAAAAAA", "Fridge", "5"));
+            assertEquals((Double) 1d, value("ruuvi_prometheus_exported", "AAAAAAAAAAAA", "Fridge", "5"));
+        } finally {
+            exporter.close();
+            CollectorRegistry.defaultRegistry.clear();
+        }
+    }
+
+    private static Double value(final String name, final String... labelValues) {
+        return CollectorRegistry.defaultRegistry.getSampleValue(name, LABELS, labelValues);
+    }
+
+    private static EnhancedRuuviMeasurement createMeasurement(final String mac, final String name, final double temperature) {
+        final EnhancedRuuviMeasurement measurement = new EnhancedRuuviMeasurement();
+        measurement.setMac(mac);
+        measurement.setName(name);
+        measurement.setDataFormat(5);
+        measurement.setRssi(-73);
+        measurement.setTemperature(temperature);
+        return measurement;
+    }
+}
@@ -0,0 +1,105 @@
+package fi.tkgwf.ruuvi.db;
+
+import fi.tkgwf.ruuvi.bean.EnhancedRuuviMeasurement;
+import io.prometheus.client.Collector.MetricFamilySamples;
+import io.prometheus.client.CollectorRegistry;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class PrometheusSnapshotExporterTest {
+
+    private static final String[] LABELS = {"tag_mac", "tag_name", "data_format"};
+
+    @Test
+    void testLatestValuesAreExported() {
+        final PrometheusSnapshotExporter exporter = new PrometheusSnapshotExporter(0);
+        try {
+            exporter.save(createMeasurement("AAAAAAAAAAAA", null, 21.5));
+            exporter.save(createMeasurement("BBBBBBBBBBBB", "Sauna", 80d));
+            exporter.save(createMeasurement("AAAAAAAAAAAA", null, 22.5));
+
+            assertEquals((Double) 22.5, value("ruuvi_temperature", "AAAAAAAAAAAA", "AAAAAAAAAAAA", "5"));
+            assertEquals((Double) 80d, value("ruuvi_temperature", "BBBBBBBBBBBB", "Sauna", "5"));
+            assertEquals((Double) 2d, value("ruuvi_prometheus_exported", "AAAAAAAAAAAA", "AAAAAAAAAAAA", "5"));
+            assertEquals((Double) (-73d), value("ruuvi_rssi", "AAAAAAAAAAAA", "AAAAAAAAAAAA", "5"));
+            assertNull(value("ruuvi_humidity", "AAAAAAAAAAAA", "AAAAAAAAAAAA", "5"));
+
+            exporter.save(createMeasurement("AAAAAAAAAAAA", "Fridge", 4d));
+            assertEquals((Double) 4d, value("ruuvi_temperature", "AAAAAAAAAAAA", "Fridge", "5"));
+            assertEquals((Double) 3d, value("ruuvi_prometheus_exported", "AAAAAAAAAAAA", "Fridge", "5"));
+            assertNull(value("ruuvi_temperature", "AAAAAAAAAAAA", "AAAAAAAAAAAA", "5"));
+        } finally {
+            exporter.close();
+        }
+        assertNull(value("ruuvi_temperature", "BBBBBBBBBBBB", "Sauna", "5"));
+    }
+
+    @Test
+    void testScrapeSeesConsistentValues() throws InterruptedException {
+        final PrometheusSnapshotExporter exporter = new PrometheusSnapshotExporter(0);
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final Thread writer = new Thread(() -> {
+            for (int i = 0; running.get(); i++) {
+                final EnhancedRuuviMeasurement measurement = createMeasurement("AAAAAAAAAAAA", null, i);
+                measurement.setHumidity((double) i);
+                measurement.setPressure((double) i);
+                exporter.save(measurement);
+            }
+        });
+        writer.start();
+        try {
+            for (int scrape = 0; scrape < 2000; scrape++) {
+                final Map<String, Double> values = new HashMap<>();
+                final List<MetricFamilySamples> families = exporter.collect();
+                families.forEach(family -> family.samples.forEach(sample -> values.put(sample.name, sample.value)));
+                if (values.containsKey("ruuvi_temperature")) {
+                    assertEquals(values.get("ruuvi_temperature"), values.get("ruuvi_humidity"));
+                    assertEquals(values.get("ruuvi_temperature"), values.get("ruuvi_pressure"));
+                }
+            }
+        } finally {
+            running.set(false);
+            writer.join();
+            exporter.close();
+        }
+    }
+
+    @Test
+    void testTagsNotSeenAreExpired() {
+        final PrometheusSnapshotExporter exporter = new PrometheusSnapshotExporter(0, 60000);
+        try {
+            exporter.save(createMeasurement("AAAAAAAAAAAA", "Fridge", 4d));
+            final long now = System.currentTimeMillis();
+            assertEquals(0, exporter.expire(now));
+
+            assertEquals(1, exporter.expire(now + 61000));
+            assertNull(value("ruuvi_temperature", "AAAAAAAAAAAA", "Fridge", "5"));
+
+            exporter.save(createMeasurement("AAAAAAAAAAAA", "Fridge", 5d));
+            assertEquals((Double) 5d, value("ruuvi_temperature", "AAAAAAAAAAAA", "Fridge", "5"));
+            assertEquals((Double) 1d, value("ruuvi_prometheus_exported", "AAAAAAAAAAAA", "Fridge", "5"));
+        } finally {
+            exporter.close();
+        }
+    }
+
+    private static Double value(final String name, final String... labelValues) {
+        return CollectorRegistry.defaultRegistry.getSampleValue(name, LABELS, labelValues);
+    }
+
+    private static EnhancedRuuviMeasurement createMeasurement(final String mac, final String name, final double temperature) {
+        final EnhancedRuuviMeasurement measurement = new EnhancedRuuviMeasurement();
+        measurement.setMac(mac);
+        measurement.setName(name);
+        measurement.setDataFormat(5);
+        measurement.setRssi(-73);
+        measurement.setTemperature(temperature);
+        return measurement;
+    }
+}
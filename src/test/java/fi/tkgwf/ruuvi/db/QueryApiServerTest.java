@@ -0,0 +1,139 @@
+package fi.tkgwf.ruuvi.db;
+
+import fi.tkgwf.ruuvi.TestFixture;
+import fi.tkgwf.ruuvi.bean.EnhancedRuuviMeasurement;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class QueryApiServerTest {
+
+    private static final long START = 1546783200000L;
+
+    private QueryApiServer server;
+
+    @BeforeEach
+    void startServer() {
+        server = new QueryApiServer(0, 3, 60000);
+    }
+
+    @AfterEach
+    void stopServer() {
+        server.close();
+    }
+
+    @Test
+    void testLatestMeasurementOfEachTag() throws IOException {
+        for (int i = 0; i < 5; i++) {
+            server.save(measurement("AABBCCDDEEFF", i));
+        }
+        server.save(measurement("112233445566", 0));
+
+        assertEquals("[{\"mac\":\"112233445566\",\"time\":1546783200000,\"dataFormat\":5,\"rssi\":-70,\"temperature\":21.0}"
+            + ",{\"mac\":\"AABBCCDDEEFF\",\"name\":\"Sauna\",\"time\":1546783240000,\"dataFormat\":5,\"rssi\":-74,\"temperature\":21.4}]\n",
+            get("/latest"));
+        assertEquals("[{\"mac\":\"112233445566\",\"time\":1546783200000,\"dataFormat\":5,\"rssi\":-70,\"temperature\":21.0}]\n",
+            get("/latest?mac=112233445566"));
+    }
+
+    @Test
+    void testOldestMeasurementsAreReplaced() throws IOException {
+        for (int i = 0; i < 5; i++) {
+            server.save(measurement("AABBCCDDEEFF", i));
+        }
+
+        final String csv = get("/measurements?mac=aabbccddeeff&format=csv");
+        final String[] lines = csv.split("\n");
+        assertEquals(4, lines.length);
+        assertEquals("AABBCCDDEEFF,\"Sauna\",1546783220000", lines[1].substring(0, lines[1].indexOf(",5,")));
+        assertEquals("AABBCCDDEEFF,\"Sauna\",1546783240000", lines[3].substring(0, lines[3].indexOf(",5,")));
+        assertEquals(2, get("/measurements?mac=AABBCCDDEEFF&format=csv&from=" + (START + 30000)).split("\n").length - 1);
+        assertEquals("[]\n", get("/measurements?mac=000000000000"));
+    }
+
+    @Test
+    void testTagsNotSeenAreExpired() throws IOException {
+        server.save(measurement("AABBCCDDEEFF", 0));
+        server.save(measurement("112233445566", 3));
+        assertEquals(0, server.expire(START + 60000));
+
+        assertEquals(1, server.expire(START + 61000));
+        assertEquals("[]\n", get("/measurements?mac=AABBCCDDEEFF"));
+        assertEquals(1, get("/latest").split("\\{").length - 1);
+
+        // an expired tag is served again once it's seen again
+        server.save(measurement("AABBCCDDEEFF", 7));
+        assertEquals(2, get("/latest").split("\\{").length - 1);
+    }
+
+    @Test
+    void testTimeIsSetWithoutModifyingTheMeasurement() throws IOException {
+        final EnhancedRuuviMeasurement measurement = measurement("112233445566", 0);
+        measurement.setTime(null);
+        TestFixture.setClockToMilliseconds(() -> START);
+        try {
+            server.save(measurement);
+        } finally {
+            TestFixture.setClockToMilliseconds(System::currentTimeMillis);
+        }
+
+        assertNull(measurement.getTime());
+        assertTrue(get("/latest").contains("\"time\":" + START));
+    }
+
+    @Test
+    void testInvalidRequestsAreRejected() throws IOException {
+        assertEquals(400, status("/measurements"));
+        assertEquals(400, status("/measurements?mac=AABBCCDDEEFF&from=yesterday"));
+    }
+
+    private String get(final String path) throws IOException {
+        final HttpURLConnection connection = open(path);
+        assertEquals(200, connection.getResponseCode());
+        try (InputStream in = connection.getInputStream()) {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            final byte[] buffer = new byte[4096];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            return new String(out.toByteArray(), StandardCharsets.UTF_8);
+        }
+    }
+
+    private int status(final String path) throws IOException {
+        final HttpURLConnection connection = open(path);
+        try {
+            return connection.getResponseCode();
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    private HttpURLConnection open(final String path) throws IOException {
+        return (HttpURLConnection) new URL("http://localhost:" + server.getPort() + path).openConnection();
+    }
+
+    private static EnhancedRuuviMeasurement measurement(final String mac, final int i) {
+        final EnhancedRuuviMeasurement m = new EnhancedRuuviMeasurement();
+        m.setMac(mac);
+        if (mac.equals("AABBCCDDEEFF")) {
+            m.setName("Sauna");
+        }
+        m.setTime(START + i * 10000L);
+        m.setDataFormat(5);
+        m.setTemperature(21 + i * 0.1);
+        m.setRssi(-70 - i);
+        return m;
+    }
+}
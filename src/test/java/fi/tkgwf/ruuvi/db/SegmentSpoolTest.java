@@ -0,0 +1,141 @@
+package fi.tkgwf.ruuvi.db;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class SegmentSpoolTest {
+
+    private Path directory;
+
+    @BeforeEach
+    void createDirectory() throws IOException {
+        directory = Files.createTempDirectory("spool");
+    }
+
+    @AfterEach
+    void deleteDirectory() throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+        }
+    }
+
+    @Test
+    void testRecordsAreReadInOrderAcrossSegments() throws IOException {
+        final SegmentSpool spool = new SegmentSpool(directory, 64, 1024);
+        for (int i = 0; i < 20; i++) {
+            append(spool, String.format("record %02d", i));
+        }
+        assertEquals(20, spool.getPendingRecords());
+        assertEquals(7 * 64, spool.getSize()); // three 17 byte records per segment
+
+        final List<String> records = new ArrayList<>();
+        long position = spool.read(7, record -> records.add(asString(record)));
+        assertEquals(7, records.size());
+        // reading again without acknowledging returns the same records
+        records.clear();
+        position = spool.read(7, record -> records.add(asString(record)));
+        assertEquals("record 00", records.get(0));
+        assertEquals("record 06", records.get(6));
+
+        spool.acknowledge(position);
+        assertEquals(13, spool.getPendingRecords());
+        assertEquals(5, segmentFiles().size());
+        records.clear();
+        spool.acknowledge(spool.read(100, record -> records.add(asString(record))));
+        assertEquals(13, records.size());
+        assertEquals("record 07", records.get(0));
+        assertEquals("record 19", records.get(12));
+        assertEquals(0, spool.getPendingRecords());
+        spool.close();
+    }
+
+    @Test
+    void testUnacknowledgedRecordsAreRecoveredOnReopen() throws IOException {
+        SegmentSpool spool = new SegmentSpool(directory, 64, 1024);
+        for (int i = 0; i < 8; i++) {
+            append(spool, String.format("record %02d", i));
+        }
+        spool.acknowledge(spool.read(4, record -> {
+        }));
+        spool.close();
+
+        spool = new SegmentSpool(directory, 64, 1024);
+        assertEquals(4, spool.getPendingRecords());
+        append(spool, "record 08");
+        final List<String> records = new ArrayList<>();
+        spool.read(100, record -> records.add(asString(record)));
+        assertEquals(5, records.size());
+        assertEquals("record 04", records.get(0));
+        assertEquals("record 08", records.get(4));
+        spool.close();
+    }
+
+    @Test
+    void testTornRecordIsDiscarded() throws IOException {
+        SegmentSpool spool = new SegmentSpool(directory, 1024, 4096);
+        append(spool, "record 0");
+        append(spool, "record 1");
+        spool.close();
+        // corrupt the contents of the second record, as if the collector crashed while writing it
+        try (RandomAccessFile file = new RandomAccessFile(segmentFiles().get(0).toFile(), "rw")) {
+            file.seek(16 + 8 + 7);
+            file.write('X');
+        }
+
+        spool = new SegmentSpool(directory, 1024, 4096);
+        assertEquals(1, spool.getPendingRecords());
+        append(spool, "record 2");
+        final List<String> records = new ArrayList<>();
+        spool.read(100, record -> records.add(asString(record)));
+        assertEquals(2, records.size());
+        assertEquals("record 0", records.get(0));
+        assertEquals("record 2", records.get(1));
+        spool.close();
+    }
+
+    @Test
+    void testOldestSegmentIsDroppedWhenFull() throws IOException {
+        final SegmentSpool spool = new SegmentSpool(directory, 64, 192);
+        for (int i = 0; i < 12; i++) {
+            append(spool, String.format("record %02d", i));
+        }
+        assertEquals(3 * 64, spool.getSize());
+        assertEquals(3, spool.getLostRecords());
+        assertEquals(9, spool.getPendingRecords());
+        final List<String> records = new ArrayList<>();
+        spool.read(100, record -> records.add(asString(record)));
+        assertEquals("record 03", records.get(0));
+        assertEquals(9, records.size());
+        spool.close();
+    }
+
+    private List<Path> segmentFiles() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(file -> file.toString().endsWith(".seg")).sorted().collect(Collectors.toList());
+        }
+    }
+
+    private static void append(final SegmentSpool spool, final String record) {
+        spool.append(ByteBuffer.wrap(record.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private static String asString(final ByteBuffer record) {
+        final byte[] bytes = new byte[record.remaining()];
+        record.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
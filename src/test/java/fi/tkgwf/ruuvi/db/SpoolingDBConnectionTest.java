@@ -0,0 +1,125 @@
+package fi.tkgwf.ruuvi.db;
+
+import fi.tkgwf.ruuvi.TestFixture;
+import fi.tkgwf.ruuvi.bean.EnhancedRuuviMeasurement;
+import fi.tkgwf.ruuvi.config.Config;
+import fi.tkgwf.ruuvi.config.ConfigTest;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+import org.influxdb.InfluxDBIOException;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SpoolingDBConnectionTest {
+
+    private Path directory;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        Config.reload(ConfigTest.configTestFileFinder());
+        directory = Files.createTempDirectory("spool");
+    }
+
+    @AfterEach
+    void deleteDirectory() throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+        }
+    }
+
+    @AfterAll
+    static void resetConfigAfter() {
+        Config.reload(ConfigTest.configTestFileFinder());
+        TestFixture.setClockToMilliseconds(System::currentTimeMillis);
+    }
+
+    @Test
+    void testMeasurementsAreWrittenInOrderAfterOutage() throws Exception {
+        final AtomicInteger failures = new AtomicInteger(3);
+        final List<EnhancedRuuviMeasurement> written = new ArrayList<>();
+        final DBConnection database = new DBConnection() {
+            @Override
+            public void save(final EnhancedRuuviMeasurement measurement) {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public synchronized void saveAll(final Collection<EnhancedRuuviMeasurement> measurements) {
+                if (failures.getAndDecrement() > 0) {
+                    throw new InfluxDBIOException(new IOException("Connection refused"));
+                }
+                written.addAll(measurements);
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        TestFixture.setClockToMilliseconds(() -> 1000L);
+
+        final SpoolingDBConnection connection = new SpoolingDBConnection(database, new SegmentSpool(directory, 4096, 65536), 10, 1);
+        for (int i = 0; i < 100; i++) {
+            final EnhancedRuuviMeasurement measurement = new EnhancedRuuviMeasurement();
+            measurement.setMac("AABBCCDDEEFF");
+            measurement.setMeasurementSequenceNumber(i);
+            connection.save(measurement);
+        }
+        final long deadline = System.currentTimeMillis() + 10000;
+        while (connection.getPending() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        connection.close();
+
+        assertEquals(0, connection.getPending());
+        assertTrue(failures.get() < 0);
+        synchronized (database) {
+            assertEquals(100, written.size());
+            for (int i = 0; i < 100; i++) {
+                assertEquals(i, written.get(i).getMeasurementSequenceNumber().intValue());
+                assertEquals(1000L, written.get(i).getTime().longValue());
+            }
+        }
+    }
+
+    @Test
+    void testSpooledMeasurementsAreWrittenOnNextStart() throws Exception {
+        final DBConnection unreachable = new DummyDBConnection() {
+            @Override
+            public void saveAll(final Collection<EnhancedRuuviMeasurement> measurements) {
+                throw new InfluxDBIOException(new IOException("Connection refused"));
+            }
+        };
+        SpoolingDBConnection connection = new SpoolingDBConnection(unreachable, new SegmentSpool(directory, 4096, 65536), 10, 60000);
+        for (int i = 0; i < 5; i++) {
+            final EnhancedRuuviMeasurement measurement = new EnhancedRuuviMeasurement();
+            measurement.setMac("AABBCCDDEEFF");
+            connection.save(measurement);
+        }
+        connection.close();
+        assertEquals(5, connection.getPending());
+
+        final List<EnhancedRuuviMeasurement> written = new ArrayList<>();
+        final DBConnection reachable = new DummyDBConnection() {
+            @Override
+            public synchronized void saveAll(final Collection<EnhancedRuuviMeasurement> measurements) {
+                written.addAll(measurements);
+            }
+        };
+        connection = new SpoolingDBConnection(reachable, new SegmentSpool(directory, 4096, 65536), 10, 60000);
+        connection.close();
+        assertEquals(0, connection.getPending());
+        assertEquals(5, written.size());
+    }
+}
@@ -0,0 +1,182 @@
+package fi.tkgwf.ruuvi.db;
+
+import fi.tkgwf.ruuvi.bean.EnhancedRuuviMeasurement;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TimeSeriesStoreTest {
+
+    private static final long START = 1546783200000L;
+
+    private Path directory;
+
+    @BeforeEach
+    void createDirectory() throws IOException {
+        directory = Files.createTempDirectory("store");
+    }
+
+    @AfterEach
+    void deleteDirectory() throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+        }
+    }
+
+    @Test
+    void testMeasurementsAreQueriedByTagAndTime() throws IOException {
+        final TimeSeriesStore store = new TimeSeriesStore(directory, 100);
+        for (int i = 0; i < 1000; i++) {
+            store.append(measurement("AABBCCDDEEFF", i), field -> true);
+            store.append(measurement("112233445566", i), field -> !field.equals("humidity"));
+        }
+
+        assertEquals(2, store.tags().size());
+        final List<EnhancedRuuviMeasurement> range = store.query("AABBCCDDEEFF", START + 250 * 10000L, START + 260 * 10000L);
+        assertEquals(10, range.size());
+        final EnhancedRuuviMeasurement first = range.get(0);
+        final EnhancedRuuviMeasurement expected = measurement("AABBCCDDEEFF", 250);
+        assertEquals(expected.getTime(), first.getTime());
+        assertEquals(expected.getTemperature(), first.getTemperature());
+        assertEquals(expected.getHumidity(), first.getHumidity());
+        assertEquals(expected.getPressure(), first.getPressure());
+        assertEquals(expected.getRssi(), first.getRssi());
+        assertNull(first.getAccelerationX());
+        assertNull(store.query("112233445566", START, START + 10000L).get(0).getHumidity());
+        assertEquals(0, store.query("000000000000", START, Long.MAX_VALUE).size());
+
+        final double[] minMax = store.minMax("AABBCCDDEEFF", "rssi", START + 5 * 10000L, START + 995 * 10000L);
+        assertArrayEquals(new double[]{-79, -70}, minMax);
+        store.close();
+    }
+
+    @Test
+    void testTimeIsGivenWithoutModifyingTheMeasurement() throws IOException {
+        final TimeSeriesStore store = new TimeSeriesStore(directory, 100);
+        final EnhancedRuuviMeasurement measurement = measurement("AABBCCDDEEFF", 0);
+        measurement.setTime(null);
+        store.append(measurement, START, field -> true);
+
+        assertNull(measurement.getTime());
+        assertEquals(START, store.query("AABBCCDDEEFF", START, Long.MAX_VALUE).get(0).getTime().longValue());
+        store.close();
+    }
+
+    @Test
+    void testMeasurementsAreKeptOverRestarts() throws IOException {
+        TimeSeriesStore store = new TimeSeriesStore(directory, 100);
+        for (int i = 0; i < 250; i++) {
+            store.append(measurement("AABBCCDDEEFF", i), field -> true);
+        }
+        store.close();
+
+        store = new TimeSeriesStore(directory, 100);
+        assertEquals(250, store.query("AABBCCDDEEFF", START, Long.MAX_VALUE).size());
+        for (int i = 250; i < 300; i++) {
+            store.append(measurement("AABBCCDDEEFF", i), field -> true);
+        }
+        store.close();
+
+        store = new TimeSeriesStore(directory, 100);
+        final List<EnhancedRuuviMeasurement> all = store.query("AABBCCDDEEFF", START, Long.MAX_VALUE);
+        assertEquals(300, all.size());
+        for (int i = 0; i < all.size(); i++) {
+            assertEquals(measurement("AABBCCDDEEFF", i).getTemperature(), all.get(i).getTemperature());
+        }
+        // the raw values of 300 measurements take a few bytes each
+        assertTrue(blockBytes(store) < 300 * 16, "stored in " + blockBytes(store) + " bytes");
+    }
+
+    @Test
+    void testTornBlockIsDropped() throws IOException {
+        TimeSeriesStore store = new TimeSeriesStore(directory, 100);
+        for (int i = 0; i < 150; i++) {
+            store.append(measurement("AABBCCDDEEFF", i), field -> true);
+        }
+        store.close();
+        final Path file = directory.resolve("AABBCCDDEEFF.tsdb");
+        final int headOffset = 8 + 1 + 2 + 12 + 8 + headLength(file, 8 + 1 + 2 + 12);
+        final int backupOffset = headOffset + TimeSeriesStore.slotLength(100);
+
+        // a torn rewrite of the flushed block being filled is restored from its backup
+        corrupt(file, headOffset + 20);
+        store = new TimeSeriesStore(directory, 100);
+        assertEquals(150, store.query("AABBCCDDEEFF", START, Long.MAX_VALUE).size());
+        for (int i = 150; i < 160; i++) {
+            store.append(measurement("AABBCCDDEEFF", i), field -> true);
+        }
+        store.close();
+
+        // a torn write of the backup leaves the copy flushed before it
+        corrupt(file, backupOffset + 20);
+        store = new TimeSeriesStore(directory, 100);
+        assertEquals(160, store.query("AABBCCDDEEFF", START, Long.MAX_VALUE).size());
+        store.close();
+
+        // a block torn while its backup is torn as well is dropped
+        corrupt(file, headOffset + 20);
+        store = new TimeSeriesStore(directory, 100);
+        assertEquals(100, store.query("AABBCCDDEEFF", START, Long.MAX_VALUE).size());
+        store.append(measurement("AABBCCDDEEFF", 100), field -> true);
+        assertEquals(101, store.query("AABBCCDDEEFF", START, Long.MAX_VALUE).size());
+    }
+
+    private static void corrupt(final Path file, final int offset) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw")) {
+            raf.seek(offset);
+            final int b = raf.read();
+            raf.seek(offset);
+            raf.write(b ^ 0x55);
+        }
+    }
+
+    private static int headLength(final Path file, final int offset) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "r")) {
+            raf.seek(offset);
+            return raf.readInt();
+        }
+    }
+
+    private long blockBytes(final TimeSeriesStore store) throws IOException {
+        final Path file = directory.resolve("AABBCCDDEEFF.tsdb");
+        long total = 0;
+        try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "r")) {
+            long offset = 8 + 1 + 2 + 12;
+            int length;
+            while ((length = readInt(raf, offset)) > 0) {
+                total += 8 + length;
+                offset += 8 + length;
+            }
+        }
+        return total;
+    }
+
+    private static int readInt(final RandomAccessFile raf, final long offset) throws IOException {
+        raf.seek(offset);
+        return raf.readInt();
+    }
+
+    private static EnhancedRuuviMeasurement measurement(final String mac, final int i) {
+        final EnhancedRuuviMeasurement m = new EnhancedRuuviMeasurement();
+        m.setMac(mac);
+        m.setTime(START + i * 10000L + (i % 4 == 0 ? 35 : 0));
+        m.setDataFormat(5);
+        m.setTemperature(21 + (i / 20) * 0.005);
+        m.setHumidity(45.5 + (i / 30) * 0.0025);
+        m.setPressure(100120d + (i / 10));
+        m.setRssi(-70 - i % 10);
+        return m;
+    }
+}
@@ -0,0 +1,68 @@
+package fi.tkgwf.ruuvi.metrics;
+
+import fi.tkgwf.ruuvi.TestFixture;
+import fi.tkgwf.ruuvi.handler.BeaconHandler;
+import fi.tkgwf.ruuvi.pipeline.OverflowPolicy;
+import fi.tkgwf.ruuvi.pipeline.StageQueue;
+import fi.tkgwf.ruuvi.utils.HCIParser;
+import io.prometheus.client.CollectorRegistry;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class CollectorMetricsExporterTest {
+
+    @Test
+    void testParsedMeasurementsAreCountedPerDataFormat() {
+        final CollectorMetricsExporter exporter = new CollectorMetricsExporter(null);
+        try {
+            final double format3 = value("ruuvi_collector_measurements_parsed", "3");
+            final double format5 = value("ruuvi_collector_measurements_parsed", "5");
+            final double other = value("ruuvi_collector_measurements_parsed", "other");
+
+            final BeaconHandler handler = new BeaconHandler();
+            handler.handle(new HCIParser().readLine(TestFixture.getDataFormat3Message()));
+            handler.handle(new HCIParser().readLine(TestFixture.getDataFormat5Message()));
+            handler.handle(new HCIParser().readLine(TestFixture.getDataFormat5Message()));
+            handler.handle(new HCIParser().readLine(TestFixture.getIBeaconMessage()));
+
+            assertEquals(format3 + 1, value("ruuvi_collector_measurements_parsed", "3"));
+            assertEquals(format5 + 2, value("ruuvi_collector_measurements_parsed", "5"));
+            assertEquals(other + 1, value("ruuvi_collector_measurements_parsed", "other"));
+        } finally {
+            exporter.close();
+        }
+    }
+
+    @Test
+    void testLatenciesAndQueuesAreExported() {
+        final CollectorMetricsExporter exporter = new CollectorMetricsExporter(null);
+        final StageQueue<String> queue = new StageQueue<>("test", 4, OverflowPolicy.DROP);
+        CollectorMetrics.register(queue);
+        try {
+            final double count = CollectorRegistry.defaultRegistry.getSampleValue("ruuvi_collector_store_latency_seconds_count");
+            CollectorMetrics.stored(3_000_000);
+            assertEquals((Double) (count + 1), CollectorRegistry.defaultRegistry.getSampleValue("ruuvi_collector_store_latency_seconds_count"));
+            assertTrue(CollectorRegistry.defaultRegistry.getSampleValue("ruuvi_collector_store_latency_seconds_sum") >= 0.003);
+
+            queue.put("a", () -> false);
+            assertEquals((Double) 1d, CollectorRegistry.defaultRegistry.getSampleValue(
+                "ruuvi_collector_queue_depth", new String[]{"queue"}, new String[]{"test"}));
+            assertEquals((Double) 4d, CollectorRegistry.defaultRegistry.getSampleValue(
+                "ruuvi_collector_queue_capacity", new String[]{"queue"}, new String[]{"test"}));
+
+            final String lines = CollectorMetricsWriter.lines("ruuvi_collector", "gateway 1", 1000L);
+            assertTrue(lines.startsWith("ruuvi_collector,receiver=gateway\\ 1 lines_read="), lines);
+            assertTrue(lines.contains("\nruuvi_collector,receiver=gateway\\ 1,queue=test queue_depth=1i,queue_capacity=4i,queue_dropped=0i 1000"), lines);
+        } finally {
+            CollectorMetrics.unregister(queue);
+            exporter.close();
+        }
+    }
+
+    private static double value(final String name, final String dataFormat) {
+        final Double value = CollectorRegistry.defaultRegistry.getSampleValue(name, new String[]{"data_format"}, new String[]{dataFormat});
+        return value == null ? 0 : value;
+    }
+}
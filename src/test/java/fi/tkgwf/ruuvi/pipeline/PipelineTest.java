@@ -0,0 +1,158 @@
+package fi.tkgwf.ruuvi.pipeline;
+
+import fi.tkgwf.ruuvi.TestFixture;
+import fi.tkgwf.ruuvi.bean.EnhancedRuuviMeasurement;
+import fi.tkgwf.ruuvi.config.Config;
+import fi.tkgwf.ruuvi.config.ConfigTest;
+import fi.tkgwf.ruuvi.db.DBConnection;
+import fi.tkgwf.ruuvi.handler.BeaconHandler;
+import fi.tkgwf.ruuvi.service.PersistenceService;
+import fi.tkgwf.ruuvi.utils.Utils;
+import org.influxdb.InfluxDBIOException;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PipelineTest {
+
+    @BeforeEach
+    void resetConfigBefore() {
+        Config.reload(ConfigTest.configTestFileFinder());
+    }
+
+    @AfterAll
+    static void resetConfigAfter() {
+        Config.reload(ConfigTest.configTestFileFinder());
+    }
+
+    @Test
+    void testAllPacketsAreStoredInOrderWhenBlocking() {
+        final MockConnection db = new MockConnection(null);
+        final Pipeline pipeline = pipeline(db, 4, OverflowPolicy.BLOCK);
+        pipeline.start();
+        final byte[] packet = dataFormat3Packet();
+        for (int i = 0; i < 100; i++) {
+            packet[packet[2] + 2] = (byte) i; // the RSSI is the last byte
+            assertTrue(pipeline.submit(packet, packet[2] + 3));
+        }
+        pipeline.close();
+
+        assertEquals(100, db.getMeasurements().size());
+        for (int i = 0; i < 100; i++) {
+            final EnhancedRuuviMeasurement measurement = db.getMeasurements().get(i);
+            assertEquals(i, measurement.getRssi().intValue());
+            assertEquals("AABBCCDDEEFF", measurement.getMac());
+            assertTrue(measurement.getAbsoluteHumidity() != null); // the extended values are calculated
+        }
+        pipeline.queues().forEach(queue -> assertEquals(0, queue.dropped()));
+    }
+
+    @Test
+    void testPacketsAreDroppedWhenSinkIsSlow() throws InterruptedException {
+        final CountDownLatch release = new CountDownLatch(1);
+        final MockConnection db = new MockConnection(release);
+        final Pipeline pipeline = pipeline(db, 2, OverflowPolicy.DROP);
+        pipeline.start();
+        final byte[] packet = dataFormat3Packet();
+        for (int i = 0; i < 100; i++) {
+            pipeline.submit(packet, packet.length);
+        }
+        release.countDown();
+        pipeline.close();
+
+        final long dropped = pipeline.queues().stream().mapToLong(StageQueue::dropped).sum();
+        assertTrue(dropped > 0);
+        assertEquals(100, db.getMeasurements().size() + dropped);
+        pipeline.queues().forEach(queue -> assertTrue(queue.highWaterMark() <= queue.capacity()));
+    }
+
+    @Test
+    void testDuplicatesAreDroppedByThePersistenceService() {
+        final Properties properties = new Properties();
+        properties.put("deduplication.enabled", "true");
+        properties.put("deduplication.window", "60000");
+        Config.readConfigFromProperties(properties);
+        final MockConnection db = new MockConnection(null);
+        final Pipeline pipeline = pipeline(db, 4, OverflowPolicy.BLOCK);
+        pipeline.start();
+        final byte[] packet = Utils.hexToBytes(TestFixture.getDataFormat5Message().substring(2));
+        for (int i = 0; i < 3; i++) {
+            assertTrue(pipeline.submit(packet, packet.length));
+        }
+        pipeline.close();
+
+        assertEquals(1, db.getMeasurements().size());
+        assertTrue(db.getMeasurements().get(0).getAbsoluteHumidity() != null);
+    }
+
+    @Test
+    void testFailsOnInfluxDBIOExceptionWhenConfigured() throws InterruptedException {
+        final Properties properties = new Properties();
+        properties.put("exitOnInfluxDBIOException", "true");
+        Config.readConfigFromProperties(properties);
+        final Pipeline pipeline = pipeline(new MockConnection(null) {
+            @Override
+            public void save(final EnhancedRuuviMeasurement measurement) {
+                throw new InfluxDBIOException(new IOException("Connection refused"));
+            }
+        }, 4, OverflowPolicy.BLOCK);
+        pipeline.start();
+        final byte[] packet = dataFormat3Packet();
+        pipeline.submit(packet, packet.length);
+        for (int i = 0; i < 100 && !pipeline.isFailed(); i++) {
+            TimeUnit.MILLISECONDS.sleep(10);
+        }
+        assertTrue(pipeline.isFailed());
+        pipeline.close();
+    }
+
+    private static Pipeline pipeline(final DBConnection db, final int queueSize, final OverflowPolicy overflowPolicy) {
+        return new Pipeline(new PersistenceService(db, Optional::of), new BeaconHandler(), queueSize, overflowPolicy);
+    }
+
+    private static byte[] dataFormat3Packet() {
+        return Utils.hexToBytes(TestFixture.getDataFormat3Message().substring(2));
+    }
+
+    private static class MockConnection implements DBConnection {
+
+        private final List<EnhancedRuuviMeasurement> measurements = Collections.synchronizedList(new ArrayList<>());
+        private final CountDownLatch release;
+
+        MockConnection(final CountDownLatch release) {
+            this.release = release;
+        }
+
+        @Override
+        public void save(final EnhancedRuuviMeasurement measurement) {
+            if (release != null) {
+                try {
+                    release.await();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            measurements.add(measurement);
+        }
+
+        @Override
+        public void close() {
+        }
+
+        List<EnhancedRuuviMeasurement> getMeasurements() {
+            return measurements;
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package fi.tkgwf.ruuvi.pipeline;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class RingBufferTest {
+
+    @Test
+    void testCapacityIsRoundedToPowerOfTwo() {
+        assertEquals(1, new RingBuffer<>(1).capacity());
+        assertEquals(8, new RingBuffer<>(5).capacity());
+        assertEquals(1024, new RingBuffer<>(1024).capacity());
+    }
+
+    @Test
+    void testFifoOrderAndWrapAround() {
+        final RingBuffer<Integer> buffer = new RingBuffer<>(4);
+        for (int lap = 0; lap < 3; lap++) {
+            for (int i = 0; i < 4; i++) {
+                assertTrue(buffer.offer(lap * 10 + i));
+            }
+            assertFalse(buffer.offer(-1));
+            assertEquals(4, buffer.size());
+            for (int i = 0; i < 4; i++) {
+                assertEquals(lap * 10 + i, buffer.poll().intValue());
+            }
+            assertNull(buffer.poll());
+            assertTrue(buffer.isEmpty());
+        }
+    }
+
+    @Test
+    void testConcurrentProducersAndConsumers() throws InterruptedException {
+        final int threads = 4;
+        final int perProducer = 100_000;
+        final RingBuffer<Integer> buffer = new RingBuffer<>(64);
+        final AtomicLong sum = new AtomicLong();
+        final AtomicInteger count = new AtomicInteger();
+        final List<Thread> all = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            all.add(new Thread(() -> {
+                for (int i = 1; i <= perProducer; i++) {
+                    while (!buffer.offer(i)) {
+                        Thread.yield();
+                    }
+                }
+            }));
+            all.add(new Thread(() -> {
+                while (count.get() < threads * perProducer) {
+                    final Integer value = buffer.poll();
+                    if (value == null) {
+                        Thread.yield();
+                    } else {
+                        sum.addAndGet(value);
+                        count.incrementAndGet();
+                    }
+                }
+            }));
+        }
+        all.forEach(Thread::start);
+        for (Thread thread : all) {
+            thread.join();
+        }
+        assertEquals(threads * perProducer, count.get());
+        assertEquals(threads * (long) perProducer * (perProducer + 1) / 2, sum.get());
+        assertTrue(buffer.isEmpty());
+    }
+}
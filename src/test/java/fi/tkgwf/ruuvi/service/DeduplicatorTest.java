@@ -0,0 +1,157 @@
+package fi.tkgwf.ruuvi.service;
+
+import fi.tkgwf.ruuvi.TestFixture;
+import fi.tkgwf.ruuvi.bean.EnhancedRuuviMeasurement;
+import fi.tkgwf.ruuvi.config.Config;
+import fi.tkgwf.ruuvi.config.ConfigTest;
+import fi.tkgwf.ruuvi.utils.Utils;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class DeduplicatorTest {
+
+    private final AtomicLong clock = new AtomicLong();
+    private final List<EnhancedRuuviMeasurement> released = new ArrayList<>();
+    private final List<Long> releasedTimes = new ArrayList<>();
+
+    @BeforeEach
+    void resetConfigBefore() {
+        Config.reload(ConfigTest.configTestFileFinder());
+        TestFixture.setClockToMilliseconds(clock::get);
+    }
+
+    @AfterAll
+    static void resetConfigAfter() {
+        Config.reload(ConfigTest.configTestFileFinder());
+        TestFixture.setClockToMilliseconds(System::currentTimeMillis);
+    }
+
+    @Test
+    void testBestCopyIsKept() {
+        final Deduplicator deduplicator = new Deduplicator(1000, 16, this::release);
+        final EnhancedRuuviMeasurement best = measurement("AABBCCDDEEFF", 7, -60);
+        deduplicator.accept(measurement("AABBCCDDEEFF", 7, -80));
+        clock.set(100);
+        deduplicator.accept(best);
+        deduplicator.accept(measurement("AABBCCDDEEFF", 7, null));
+        deduplicator.accept(measurement("AABBCCDDEEFF", 7, -70));
+        deduplicator.accept(measurement("112233445566", 7, -90));
+        assertTrue(released.isEmpty());
+        assertEquals(2, deduplicator.getPending());
+
+        clock.set(1000); // the window of the first measurement has ended
+        deduplicator.accept(measurement("AABBCCDDEEFF", 7, -50));
+        assertEquals(1, released.size());
+        assertSame(best, released.get(0));
+
+        clock.set(1999); // still remembered for another window
+        deduplicator.accept(measurement("AABBCCDDEEFF", 7, -50));
+        assertEquals(2, released.size());
+        assertEquals("112233445566", released.get(1).getMac());
+        assertEquals(5, deduplicator.getSuppressed());
+
+        clock.set(2000);
+        deduplicator.accept(measurement("AABBCCDDEEFF", 7, -50));
+        deduplicator.flush();
+        assertEquals(3, released.size());
+        assertEquals(-50, released.get(2).getRssi().intValue());
+    }
+
+    @Test
+    void testExpiredMeasurementsAreReleasedWithoutNewMeasurements() {
+        final Deduplicator deduplicator = new Deduplicator(1000, 16, this::release);
+        deduplicator.accept(measurement("AABBCCDDEEFF", 7, -60));
+        clock.set(500);
+        deduplicator.accept(measurement("112233445566", 7, -60));
+
+        clock.set(999);
+        deduplicator.releaseExpired();
+        assertTrue(released.isEmpty());
+
+        clock.set(1000);
+        deduplicator.releaseExpired();
+        assertEquals(1, released.size());
+        assertEquals("AABBCCDDEEFF", released.get(0).getMac());
+        assertEquals(1, deduplicator.getPending());
+
+        clock.set(1500);
+        deduplicator.releaseExpired();
+        assertEquals(2, released.size());
+        assertEquals(0, deduplicator.getPending());
+        assertEquals(Arrays.asList(0L, 500L), releasedTimes); // the times they were received
+    }
+
+    @Test
+    void testMeasurementsWithoutSequenceNumberArePassedOn() {
+        final Deduplicator deduplicator = new Deduplicator(1000, 16, this::release);
+        deduplicator.accept(measurement("AABBCCDDEEFF", null, -60));
+        deduplicator.accept(measurement("AABBCCDDEEFF", null, -60));
+        deduplicator.accept(measurement(null, 7, -60));
+        deduplicator.accept(measurement("-00000000001", 7, -60)); // not a valid MAC address
+        deduplicator.accept(measurement("-00000000001", 7, -60));
+        assertEquals(5, released.size());
+        assertEquals(0, deduplicator.getSuppressed());
+    }
+
+    @Test
+    void testOldestIsReleasedWhenFull() {
+        final Deduplicator deduplicator = new Deduplicator(1000, 4, this::release);
+        for (int sequence = 0; sequence < 6; sequence++) {
+            deduplicator.accept(measurement("AABBCCDDEEFF", sequence, -60));
+        }
+        assertEquals(2, released.size());
+        assertEquals(0, released.get(0).getMeasurementSequenceNumber().intValue());
+        assertEquals(1, released.get(1).getMeasurementSequenceNumber().intValue());
+        assertEquals(4, deduplicator.getPending());
+    }
+
+    @Test
+    void testEachMeasurementIsPassedOnOnce() {
+        final Deduplicator deduplicator = new Deduplicator(100, 256, this::release);
+        int expected = 0;
+        for (int round = 0; round < 200; round++) {
+            clock.set(round * 30L);
+            for (int tag = 0; tag < 50; tag++) {
+                // every tag is heard by three receivers, the sequence number changes every third round
+                for (int receiver = 0; receiver < 3; receiver++) {
+                    deduplicator.accept(measurement(Utils.macToString(0xAABBCC000000L + tag * 4099L), round / 3, -60 - receiver));
+                }
+                if (round % 3 == 0) {
+                    expected++;
+                }
+            }
+        }
+        deduplicator.flush();
+        final Set<String> unique = new HashSet<>();
+        for (EnhancedRuuviMeasurement measurement : released) {
+            assertTrue(unique.add(measurement.getMac() + measurement.getMeasurementSequenceNumber()));
+            assertEquals(-60, measurement.getRssi().intValue());
+        }
+        assertEquals(expected, released.size());
+        assertEquals(200 * 50 * 3 - expected, deduplicator.getSuppressed());
+    }
+
+    private void release(final EnhancedRuuviMeasurement measurement, final long time) {
+        released.add(measurement);
+        releasedTimes.add(time);
+    }
+
+    private static EnhancedRuuviMeasurement measurement(final String mac, final Integer sequence, final Integer rssi) {
+        final EnhancedRuuviMeasurement measurement = new EnhancedRuuviMeasurement();
+        measurement.setMac(mac);
+        measurement.setMeasurementSequenceNumber(sequence);
+        measurement.setRssi(rssi);
+        return measurement;
+    }
+}
@@ -18,8 +18,11 @@ import java.util.Arrays;
 import java.util.List;
 import java.util.Optional;
 import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 class PersistenceServiceTest {
 
@@ -62,6 +65,26 @@ class PersistenceServiceTest {
         assertEquals(11, results.get(4).getRssi().intValue());
     }
 
+    @Test
+    void testHeldDuplicateIsSavedWhenItsWindowEnds() throws InterruptedException {
+        final Properties properties = new Properties();
+        properties.put("deduplication.enabled", "true");
+        properties.put("deduplication.window", "20");
+        Config.readConfigFromProperties(properties);
+        final HCIData hciData = new HCIParser().readLine(TestFixture.getDataFormat5Message());
+        final BeaconHandler handler = new BeaconHandler();
+        final PersistenceService service = new PersistenceService(new MockConnection(), Optional::of);
+        final CountDownLatch saved = new CountDownLatch(1);
+        service.setKeptMeasurementConsumer(measurement -> saved.countDown());
+        try {
+            service.submit(handler.handle(hciData).get());
+            service.submit(handler.handle(hciData).get());
+            assertTrue(saved.await(5, TimeUnit.SECONDS)); // without another measurement or a flush
+        } finally {
+            service.close();
+        }
+    }
+
     @Test
     void testApplyingDifferentLimitingStrategiesToDifferentDevices() {
         final Properties properties = new Properties();
@@ -0,0 +1,85 @@
+package fi.tkgwf.ruuvi.strategy;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TagStateTableTest {
+
+    @Test
+    void testInsertAndFindManyTags() {
+        final TagStateTable table = new TagStateTable(0, 60000);
+        for (long mac = 0; mac < 1000; mac++) {
+            final int slot = table.findOrInsert(0xAABBCC000000L + mac, 0);
+            assertEquals(TagStateTable.NEVER, table.getLastUpdate(slot));
+            table.setLastUpdate(slot, mac);
+        }
+        assertEquals(1000, table.size());
+        for (long mac = 0; mac < 1000; mac++) {
+            final int slot = table.find(0xAABBCC000000L + mac);
+            assertEquals(mac, table.getLastUpdate(slot));
+            assertEquals(slot, table.findOrInsert(0xAABBCC000000L + mac, 0));
+        }
+        assertEquals(-1, table.find(0xAABBCC001000L));
+        assertEquals(1000, table.size());
+    }
+
+    @Test
+    void testNullMac() {
+        final TagStateTable table = new TagStateTable(0, 60000);
+        assertEquals(TagStateTable.NULL_MAC, TagStateTable.key(null));
+        assertEquals(0xAABBCCDDEEFFL, TagStateTable.key("AABBCCDDEEFF"));
+        final int slot = table.findOrInsert(TagStateTable.key(null), 0);
+        table.setLastUpdate(slot, 123);
+        assertEquals(123, table.getLastUpdate(table.find(TagStateTable.NULL_MAC)));
+        assertEquals(-1, table.find(0));
+    }
+
+    @Test
+    void testFlagsAndSamples() {
+        final TagStateTable table = new TagStateTable(3, 60000);
+        final int slot = table.findOrInsert(1, 0);
+        assertFalse(table.isFlagSet(slot, 2));
+        table.setFlag(slot, 2, true);
+        table.setFlag(slot, 1, true);
+        table.setFlag(slot, 1, false);
+        assertTrue(table.isFlagSet(slot, 2));
+        assertFalse(table.isFlagSet(slot, 1));
+
+        assertEquals(0, table.getSampleCount(slot));
+        for (int i = 1; i <= 5; i++) {
+            table.addSample(slot, i, i * 10, Double.NaN);
+        }
+        assertEquals(3, table.getSampleCount(slot));
+        assertEquals(5, table.getSample(slot, 0, TagStateTable.X));
+        assertEquals(40, table.getSample(slot, 1, TagStateTable.Y));
+        assertEquals(3, table.getSample(slot, 2, TagStateTable.X));
+        assertTrue(Double.isNaN(table.getSample(slot, 0, TagStateTable.Z)));
+    }
+
+    @Test
+    void testTagsNotSeenAreEvicted() {
+        final TagStateTable table = new TagStateTable(2, 60000);
+        for (long mac = 0; mac < 500; mac++) {
+            final int slot = table.findOrInsert(mac, mac >= 400 ? 50000 : 0);
+            table.setLastUpdate(slot, mac);
+            table.addSample(slot, mac, 0, 0);
+        }
+        table.findOrInsert(400, 30000); // the first eviction round is due a minute after the first insert
+        assertEquals(500, table.size());
+
+        table.findOrInsert(400, 70000); // evicts the ones not seen since 10000
+        assertEquals(100, table.size());
+        for (long mac = 0; mac < 500; mac++) {
+            final int slot = table.find(mac);
+            if (mac >= 400) {
+                assertEquals(mac, table.getLastUpdate(slot));
+                assertEquals(mac, table.getSample(slot, 0, TagStateTable.X));
+            } else {
+                assertEquals(-1, slot);
+            }
+        }
+    }
+}
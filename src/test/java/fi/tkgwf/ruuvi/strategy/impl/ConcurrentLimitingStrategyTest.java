@@ -0,0 +1,156 @@
+package fi.tkgwf.ruuvi.strategy.impl;
+
+import fi.tkgwf.ruuvi.TestFixture;
+import fi.tkgwf.ruuvi.bean.EnhancedRuuviMeasurement;
+import fi.tkgwf.ruuvi.config.Config;
+import fi.tkgwf.ruuvi.config.ConfigTest;
+import fi.tkgwf.ruuvi.strategy.LimitingStrategy;
+import fi.tkgwf.ruuvi.utils.Utils;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ConcurrentLimitingStrategyTest {
+
+    private static final int THREADS = 8;
+    private static final int TAGS = 256;
+    private static final int MEASUREMENTS_PER_TAG = 500;
+    /**
+     * Each thread has its own clock, the time of the measurement it's currently limiting
+     */
+    private static final ThreadLocal<Long> CLOCK = ThreadLocal.withInitial(() -> 0L);
+
+    @BeforeEach
+    void resetConfigBefore() {
+        Config.reload(ConfigTest.configTestFileFinder());
+        TestFixture.setClockToMilliseconds(CLOCK::get);
+    }
+
+    @AfterAll
+    static void resetConfigAfter() {
+        Config.reload(ConfigTest.configTestFileFinder());
+        TestFixture.setClockToMilliseconds(System::currentTimeMillis);
+    }
+
+    @Test
+    void testTimeLimitedDecisionsMatchSequential() throws Exception {
+        assertSameDecisions(DiscardUntilEnoughTimeHasElapsedStrategy::new, new ConcurrentDiscardUntilEnoughTimeHasElapsedStrategy());
+    }
+
+    @Test
+    void testMotionSensitiveDecisionsMatchSequential() throws Exception {
+        assertSameDecisions(DefaultDiscardingWithMotionSensitivityStrategy::new, new StripedLimitingStrategy(DefaultDiscardingWithMotionSensitivityStrategy::new, 4));
+    }
+
+    @Test
+    void testOnlyOneOfSimultaneousMeasurementsIsKept() throws Exception {
+        final ConcurrentDiscardUntilEnoughTimeHasElapsedStrategy strategy = new ConcurrentDiscardUntilEnoughTimeHasElapsedStrategy();
+        final AtomicInteger kept = new AtomicInteger();
+        final CyclicBarrier barrier = new CyclicBarrier(THREADS);
+        final List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            threads.add(new Thread(() -> {
+                final EnhancedRuuviMeasurement measurement = new EnhancedRuuviMeasurement();
+                measurement.setMac("AABBCCDDEEFF");
+                for (long time = 0; time < 1000 * Config.getMeasurementUpdateLimit(); time += Config.getMeasurementUpdateLimit() / 2) {
+                    CLOCK.set(time);
+                    await(barrier);
+                    if (strategy.apply(measurement).isPresent()) {
+                        kept.incrementAndGet();
+                    }
+                }
+            }));
+        }
+        runAll(threads);
+        // every third round is more than the limit after the previous kept one
+        assertEquals(667, kept.get());
+        assertTrue(strategy.isDiscardable("AABBCCDDEEFF"));
+        assertFalse(strategy.isDiscardable("112233445566"));
+    }
+
+    /**
+     * Limits the same measurements first with a new instance of the sequential strategy per tag, then with the
+     * concurrent strategy from several threads. Each tag is assigned to one thread, so that the measurements of each
+     * tag are still limited in order, but the threads share the state of the concurrent strategy.
+     */
+    private void assertSameDecisions(final Supplier<LimitingStrategy> sequentialFactory, final LimitingStrategy concurrent) throws Exception {
+        final Random random = new Random(42);
+        final EnhancedRuuviMeasurement[][] measurements = new EnhancedRuuviMeasurement[TAGS][MEASUREMENTS_PER_TAG];
+        final long[][] times = new long[TAGS][MEASUREMENTS_PER_TAG];
+        for (int tag = 0; tag < TAGS; tag++) {
+            long time = random.nextInt(10000);
+            for (int i = 0; i < MEASUREMENTS_PER_TAG; i++) {
+                final EnhancedRuuviMeasurement measurement = new EnhancedRuuviMeasurement();
+                measurement.setMac(Utils.macToString(0xAABBCC000000L + tag));
+                final boolean moving = random.nextInt(20) == 0;
+                measurement.setAccelerationX(moving ? random.nextDouble() * 2 - 1 : 0.01 * random.nextGaussian());
+                measurement.setAccelerationY(0.01 * random.nextGaussian());
+                measurement.setAccelerationZ(1 + 0.01 * random.nextGaussian());
+                measurements[tag][i] = measurement;
+                time += random.nextInt(4000);
+                times[tag][i] = time;
+            }
+        }
+
+        final boolean[][] expected = new boolean[TAGS][MEASUREMENTS_PER_TAG];
+        for (int tag = 0; tag < TAGS; tag++) {
+            final LimitingStrategy sequential = sequentialFactory.get();
+            for (int i = 0; i < MEASUREMENTS_PER_TAG; i++) {
+                CLOCK.set(times[tag][i]);
+                expected[tag][i] = sequential.apply(measurements[tag][i]).isPresent();
+            }
+        }
+
+        final boolean[][] actual = new boolean[TAGS][MEASUREMENTS_PER_TAG];
+        final CyclicBarrier barrier = new CyclicBarrier(THREADS);
+        final List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            final int thread = t;
+            threads.add(new Thread(() -> {
+                await(barrier);
+                for (int i = 0; i < MEASUREMENTS_PER_TAG; i++) {
+                    for (int tag = thread; tag < TAGS; tag += THREADS) {
+                        CLOCK.set(times[tag][i]);
+                        actual[tag][i] = concurrent.apply(measurements[tag][i]).isPresent();
+                    }
+                }
+            }));
+        }
+        runAll(threads);
+
+        for (int tag = 0; tag < TAGS; tag++) {
+            assertArrayEquals(expected[tag], actual[tag], "Decisions differ for tag " + tag);
+        }
+    }
+
+    private static void runAll(final List<Thread> threads) throws InterruptedException {
+        final AtomicInteger failures = new AtomicInteger();
+        for (Thread thread : threads) {
+            thread.setUncaughtExceptionHandler((t, e) -> failures.incrementAndGet());
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(0, failures.get());
+    }
+
+    private static void await(final CyclicBarrier barrier) {
+        try {
+            barrier.await();
+        } catch (Exception ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+}
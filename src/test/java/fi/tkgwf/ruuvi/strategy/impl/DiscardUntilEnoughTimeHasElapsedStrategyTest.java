@@ -60,6 +60,47 @@ class DiscardUntilEnoughTimeHasElapsedStrategyTest {
         assertTrue(strategy.apply(withRssi(v3.handle(hciData2).get(), 11)).isPresent());
     }
 
+    @Test
+    void testDiscardableMeasurementsCanBeSkippedBeforeDecoding() {
+        final HCIData hciData = new HCIParser().readLine(TestFixture.getDataFormat3Message());
+        final BeaconHandler v3 = new BeaconHandler();
+        final DiscardUntilEnoughTimeHasElapsedStrategy strategy = new DiscardUntilEnoughTimeHasElapsedStrategy();
+
+        setClockToMilliseconds(0);
+        assertFalse(strategy.isDiscardable(hciData.mac)); // never seen before
+        assertTrue(strategy.apply(v3.handle(hciData).get()).isPresent());
+        setClockToMilliseconds(5000);
+        assertTrue(strategy.isDiscardable(hciData.mac));
+        assertTrue(strategy.isDiscardable(hciData.mac)); // checking does not change the state
+        assertFalse(strategy.isDiscardable("112233445566"));
+    }
+
+    @Test
+    void testGivenTimeIsUsedInsteadOfTheClock() {
+        final HCIData hciData = new HCIParser().readLine(TestFixture.getDataFormat3Message());
+        final HCIData hciData2 = new HCIParser().readLine(TestFixture.getDataFormat3Message());
+        hciData2.mac = "112233445566";
+        final BeaconHandler v3 = new BeaconHandler();
+        final DiscardUntilEnoughTimeHasElapsedStrategy strategy = new DiscardUntilEnoughTimeHasElapsedStrategy();
+        TestFixture.setClockToMilliseconds(() -> {
+            throw new AssertionError("the clock should not be read");
+        });
+
+        assertFalse(strategy.isDiscardable(hciData.mac, 0)); // never seen before
+        assertTrue(strategy.apply(v3.handle(hciData).get(), 0).isPresent());
+        assertTrue(strategy.isDiscardable(hciData.mac, 5000));
+        assertFalse(strategy.apply(v3.handle(hciData).get(), 5000).isPresent());
+
+        // the packets of different tags, or held back by the de-duplication, can be applied in any order
+        final EnhancedRuuviMeasurement heldBack = v3.handle(hciData).get();
+        assertFalse(strategy.isDiscardable(hciData.mac, 10000));
+        assertTrue(strategy.apply(v3.handle(hciData2).get(), 10500).isPresent());
+        assertTrue(strategy.apply(heldBack, 10000).isPresent());
+        assertFalse(strategy.apply(v3.handle(hciData).get(), 10000).isPresent());
+        assertTrue(strategy.isDiscardable(hciData.mac, 19900)); // 10000 + 9900 >= 19900
+        assertFalse(strategy.isDiscardable(hciData.mac, 19901));
+    }
+
     private static EnhancedRuuviMeasurement withRssi(final EnhancedRuuviMeasurement measurement, final int rssi) {
         measurement.setRssi(rssi);
         return measurement;
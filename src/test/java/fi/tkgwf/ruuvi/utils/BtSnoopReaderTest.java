@@ -0,0 +1,113 @@
+package fi.tkgwf.ruuvi.utils;
+
+import fi.tkgwf.ruuvi.TestFixture;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class BtSnoopReaderTest {
+
+    private static final long EPOCH_OFFSET_MICROS = 0x00dcddb30f2f8000L;
+    private static final long TIMESTAMP = 1540000000123L;
+
+    @Test
+    void testUnencapsulatedCapture() throws IOException {
+        final byte[] df3 = packetOf(TestFixture.getDataFormat3Message());
+        final byte[] tlm = packetOf(TestFixture.getEddystoneTMLMessage());
+        final Capture capture = new Capture(BtSnoopReader.DATALINK_HCI_UNENCAPSULATED)
+            .record(0x02, Utils.hexToBytes("0B200701100010000000")) // sent command
+            .record(0x03, Arrays.copyOfRange(df3, 1, df3.length))
+            .record(0x01, Utils.hexToBytes("0200200400")) // received ACL data
+            .record(0x03, Arrays.copyOfRange(tlm, 1, tlm.length));
+        final BtSnoopReader reader = capture.reader();
+
+        assertEquals(BtSnoopReader.PACKET, reader.next());
+        assertArrayEquals(df3, packet(reader));
+        assertEquals(TIMESTAMP, reader.timestamp());
+        assertEquals(BtSnoopReader.PACKET, reader.next());
+        assertArrayEquals(tlm, packet(reader));
+        assertEquals(BtSnoopReader.EOF, reader.next());
+    }
+
+    @Test
+    void testUartCapture() throws IOException {
+        final byte[] df3 = packetOf(TestFixture.getDataFormat3Message());
+        final Capture capture = new Capture(BtSnoopReader.DATALINK_HCI_UART)
+            .record(0x00, Utils.hexToBytes("010B200701100010000000")) // command
+            .record(0x01, df3);
+        final BtSnoopReader reader = capture.reader();
+
+        assertEquals(BtSnoopReader.PACKET, reader.next());
+        assertArrayEquals(df3, packet(reader));
+        assertEquals(BtSnoopReader.EOF, reader.next());
+    }
+
+    @Test
+    void testMonitorCaptureAndTruncatedRecord() throws IOException {
+        final byte[] uid = packetOf(TestFixture.getEddystoneUIDMessage());
+        final Capture capture = new Capture(BtSnoopReader.DATALINK_MONITOR)
+            .record(0x00000000, new byte[16]) // new index
+            .record(0x00010003, Arrays.copyOfRange(uid, 1, uid.length)) // event on hci1
+            .record(0x00000002, Utils.hexToBytes("0B200701100010000000")); // command
+        final byte[] bytes = capture.bytes();
+        final BtSnoopReader reader = new BtSnoopReader(new ByteArrayInputStream(Arrays.copyOf(bytes, bytes.length - 3)));
+
+        assertEquals(BtSnoopReader.PACKET, reader.next());
+        assertArrayEquals(uid, packet(reader));
+        assertEquals(BtSnoopReader.EOF, reader.next());
+    }
+
+    @Test
+    void testInvalidHeader() {
+        final BtSnoopReader reader = new BtSnoopReader(new ByteArrayInputStream(
+            (TestFixture.getDataFormat3Message() + "\n").getBytes()));
+        assertThrows(IOException.class, reader::next);
+    }
+
+    private static byte[] packetOf(final String message) {
+        final byte[] bytes = Utils.hexToBytes(message.substring(2));
+        return Arrays.copyOf(bytes, (bytes[2] & 0xFF) + 3);
+    }
+
+    private static byte[] packet(final BtSnoopReader reader) {
+        return Arrays.copyOf(reader.packet(), reader.packetLength());
+    }
+
+    private static class Capture {
+
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private final DataOutputStream out = new DataOutputStream(bytes);
+
+        Capture(final int datalink) throws IOException {
+            out.write(new byte[]{'b', 't', 's', 'n', 'o', 'o', 'p', 0});
+            out.writeInt(1);
+            out.writeInt(datalink);
+        }
+
+        Capture record(final int flags, final byte[] data) throws IOException {
+            out.writeInt(data.length);
+            out.writeInt(data.length);
+            out.writeInt(flags);
+            out.writeInt(0);
+            out.writeLong(TIMESTAMP * 1000 + EPOCH_OFFSET_MICROS);
+            out.write(data);
+            return this;
+        }
+
+        byte[] bytes() {
+            return bytes.toByteArray();
+        }
+
+        BtSnoopReader reader() {
+            return new BtSnoopReader(new ByteArrayInputStream(bytes()));
+        }
+    }
+}
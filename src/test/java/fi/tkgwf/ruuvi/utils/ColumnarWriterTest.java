@@ -0,0 +1,88 @@
+package fi.tkgwf.ruuvi.utils;
+
+import fi.tkgwf.ruuvi.bean.EnhancedRuuviMeasurement;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ColumnarWriterTest {
+
+    @Test
+    void testMeasurementsAreReadBackPerTag() throws IOException {
+        final List<EnhancedRuuviMeasurement> measurements = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            measurements.add(measurement(i % 2 == 0 ? "AA" : "BB", 1500000000000L + i * 1000L + i % 3, i));
+        }
+        measurements.get(4).setHumidity(null);
+        measurements.get(6).setName("Sauna");
+
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ColumnarWriter writer = new ColumnarWriter(bytes, 300)) {
+            for (final EnhancedRuuviMeasurement m : measurements) {
+                writer.write(m);
+            }
+        }
+        final List<EnhancedRuuviMeasurement> read = new ArrayList<>();
+        try (ColumnarReader reader = new ColumnarReader(new ByteArrayInputStream(bytes.toByteArray()))) {
+            List<EnhancedRuuviMeasurement> block;
+            while ((block = reader.readBlock()) != null) {
+                assertTrue(block.size() <= 300);
+                read.addAll(block);
+            }
+        }
+
+        assertEquals(measurements.size(), read.size());
+        read.sort((a, b) -> Long.compare(a.getTime(), b.getTime()));
+        for (int i = 0; i < measurements.size(); i++) {
+            assertEquals(measurements.get(i).toString(), read.get(i).toString());
+        }
+        assertNull(read.get(4).getHumidity());
+        assertEquals("Sauna", read.get(6).getName());
+        assertTrue(bytes.size() < measurements.size() * 40, "encoded into " + bytes.size() + " bytes");
+    }
+
+    @Test
+    void testDoublesAreEncodedExactly() {
+        final List<Double> values = Arrays.asList(21.5, 21.5, 21.51, -0.0, 0.0, Double.NaN, Double.MIN_VALUE,
+            Double.MAX_VALUE, Double.NEGATIVE_INFINITY, 1013.25, 3.14159, 3.14159);
+        final BitWriter bits = new BitWriter();
+        final XorEncoder encoder = new XorEncoder(bits);
+        values.forEach(encoder::write);
+        final XorDecoder decoder = new XorDecoder(new BitReader(bits.toByteArray()));
+        for (final Double value : values) {
+            assertEquals(Double.doubleToRawLongBits(value), Double.doubleToRawLongBits(decoder.read()));
+        }
+    }
+
+    @Test
+    void testOtherFilesAreRejected() {
+        assertThrows(IOException.class, () -> new ColumnarReader(new ByteArrayInputStream("RUUVI,mac=AA".getBytes())));
+    }
+
+    private static EnhancedRuuviMeasurement measurement(final String mac, final long time, final int i) {
+        final EnhancedRuuviMeasurement m = new EnhancedRuuviMeasurement();
+        m.setMac(mac);
+        m.setTime(time);
+        m.setReceiver("pi");
+        m.setDataFormat(5);
+        m.setRssi(-70 - i % 10);
+        m.setMeasurementSequenceNumber(i);
+        m.setTemperature(20 + (i / 50) * 0.005);
+        m.setHumidity(40 + (i % 7) * 0.0025);
+        m.setPressure(100000d + i % 5);
+        m.setAccelerationX(i % 2 * 0.004);
+        m.setAccelerationY(-0.004);
+        m.setAccelerationZ(1.02);
+        m.setBatteryVoltage(2.95);
+        return m;
+    }
+}
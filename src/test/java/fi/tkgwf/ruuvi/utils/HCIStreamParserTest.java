@@ -0,0 +1,119 @@
+package fi.tkgwf.ruuvi.utils;
+
+import fi.tkgwf.ruuvi.TestFixture;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class HCIStreamParserTest {
+
+    @Test
+    void testPacketsMatchLineParser() throws IOException {
+        final String[] messages = {
+            TestFixture.getDataFormat3Message(),
+            TestFixture.getIBeaconMessage(),
+            TestFixture.getEddystoneUIDMessage(),
+            TestFixture.getEddystoneTMLMessage()
+        };
+        final HCIStreamParser parser = parserFor(String.join("\n", messages) + "\n");
+        for (String message : messages) {
+            assertEquals(HCIStreamParser.PACKET, parser.next());
+            assertArrayEquals(expectedPacket(message), packet(parser));
+        }
+        assertEquals(HCIStreamParser.EOF, parser.next());
+    }
+
+    @Test
+    void testPacketSplitToMultipleLines() throws IOException {
+        final String message = TestFixture.getDataFormat3Message();
+        final String firstLine = message.substring(0, 2 + 20 * 3 - 1);
+        final String secondLine = "  " + message.substring(2 + 20 * 3);
+        final HCIStreamParser parser = parserFor(firstLine + "\n" + secondLine + "\n");
+
+        assertEquals(HCIStreamParser.PACKET, parser.next());
+        assertArrayEquals(expectedPacket(message), packet(parser));
+        assertEquals(HCIStreamParser.EOF, parser.next());
+    }
+
+    @Test
+    void testMessagesAndOutgoingPackets() throws IOException {
+        final String message = TestFixture.getDataFormat3Message();
+        final HCIStreamParser parser = parserFor("HCI sniffer - Bluetooth packet analyzer ver 5.50\r\n"
+            + "device: hci0 snap_len: 1500 filter: 0xffffffff\n"
+            + "< 01 0B 20 07 01 10 00 10 00 00 00\n"
+            + message + "\n"
+            + "\n"
+            + "> 04 3E 21 02 01 03 01 FF EE\n"
+            + "Can't open device: No such device");
+
+        assertEquals(HCIStreamParser.MESSAGE, parser.next());
+        assertEquals("HCI sniffer - Bluetooth packet analyzer ver 5.50", parser.message());
+        assertEquals(HCIStreamParser.MESSAGE, parser.next());
+        assertEquals("device: hci0 snap_len: 1500 filter: 0xffffffff", parser.message());
+        assertEquals(HCIStreamParser.PACKET, parser.next());
+        assertArrayEquals(expectedPacket(message), packet(parser));
+        assertEquals(HCIStreamParser.MESSAGE, parser.next()); // the incomplete packet is discarded
+        assertEquals("Can't open device: No such device", parser.message());
+        assertEquals(HCIStreamParser.EOF, parser.next());
+    }
+
+    @Test
+    void testOnlyIndentedLinesContinueAnIncompletePacket() throws IOException {
+        final String message = TestFixture.getDataFormat3Message();
+        final String firstLine = message.substring(0, 2 + 20 * 3 - 1);
+        final HCIStreamParser parser = parserFor(message + "\n"
+            + "Bad packet length\n" // after a complete packet
+            + firstLine + "\n"
+            + "Bad\n" // consists of hex digits, but is not indented
+            + firstLine + "\n"
+            + "  " + message.substring(2 + 20 * 3) + "\n"
+            + "  BAD\n"); // indented, but the packet is already complete
+
+        assertEquals(HCIStreamParser.PACKET, parser.next());
+        assertArrayEquals(expectedPacket(message), packet(parser));
+        assertEquals(HCIStreamParser.MESSAGE, parser.next());
+        assertEquals("Bad packet length", parser.message());
+        assertEquals(HCIStreamParser.MESSAGE, parser.next()); // the incomplete packet is discarded
+        assertEquals("Bad", parser.message());
+        assertEquals(HCIStreamParser.PACKET, parser.next());
+        assertArrayEquals(expectedPacket(message), packet(parser));
+        assertEquals(HCIStreamParser.MESSAGE, parser.next());
+        assertEquals("BAD", parser.message());
+        assertEquals(HCIStreamParser.EOF, parser.next());
+    }
+
+    @Test
+    void testSmallReadBuffer() throws IOException {
+        final String message = TestFixture.getDataFormat3Message();
+        final HCIStreamParser parser = new HCIStreamParser(new ByteArrayInputStream(
+            (message + "\n" + message + "\n").getBytes(StandardCharsets.US_ASCII)), 7);
+
+        assertEquals(HCIStreamParser.PACKET, parser.next());
+        assertArrayEquals(expectedPacket(message), packet(parser));
+        assertEquals(HCIStreamParser.PACKET, parser.next());
+        assertArrayEquals(expectedPacket(message), packet(parser));
+        assertEquals(HCIStreamParser.EOF, parser.next());
+    }
+
+    private static HCIStreamParser parserFor(final String dump) {
+        return new HCIStreamParser(new ByteArrayInputStream(dump.getBytes(StandardCharsets.US_ASCII)));
+    }
+
+    /**
+     * The packet ends where its length byte says so, anything after that is ignored
+     */
+    private static byte[] expectedPacket(final String message) {
+        final byte[] bytes = Utils.hexToBytes(message.substring(2));
+        return Arrays.copyOf(bytes, (bytes[2] & 0xFF) + 3);
+    }
+
+    private static byte[] packet(final HCIStreamParser parser) {
+        return Arrays.copyOf(parser.packet(), parser.packetLength());
+    }
+}
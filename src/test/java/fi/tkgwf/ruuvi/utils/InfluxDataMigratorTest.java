@@ -0,0 +1,118 @@
+package fi.tkgwf.ruuvi.utils;
+
+import fi.tkgwf.ruuvi.bean.EnhancedRuuviMeasurement;
+import fi.tkgwf.ruuvi.utils.InfluxDataMigrator.LegacyMeasurement;
+import fi.tkgwf.ruuvi.utils.InfluxDataMigrator.LegacySeries;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class InfluxDataMigratorTest {
+
+    @Test
+    void testValuesAreJoinedToTemperaturesOfTheSameTag() {
+        final Map<LegacySeries, List<LegacyMeasurement>> series = new EnumMap<>(LegacySeries.class);
+        series.put(LegacySeries.TEMPERATURE, Arrays.asList(
+            new LegacyMeasurement(2000, "BB", "3", 22d),
+            new LegacyMeasurement(1000, "AA", "3", 20d),
+            new LegacyMeasurement(2000, "AA", "3", 21d),
+            new LegacyMeasurement(1000, "BB", "3", 23d)
+        ));
+        series.put(LegacySeries.HUMIDITY, Arrays.asList(
+            new LegacyMeasurement(2030, "AA", "3", 41d),
+            new LegacyMeasurement(990, "BB", "3", 43d),
+            new LegacyMeasurement(1010, "AA", "3", 40d),
+            new LegacyMeasurement(1500, "AA", "3", 99d) // orphaned
+        ));
+        series.put(LegacySeries.RSSI, Arrays.asList(
+            new LegacyMeasurement(500, "CC", "3", -70d), // no temperatures of this tag
+            new LegacyMeasurement(2000, "BB", "3", -80d)
+        ));
+        final Map<LegacySeries, LongAdder> discarded = discarded();
+
+        final List<EnhancedRuuviMeasurement> joined = InfluxDataMigrator.join(series, discarded);
+
+        assertEquals(4, joined.size());
+        assertMeasurement(joined.get(0), "AA", 1000, 20d, 40d, null);
+        assertMeasurement(joined.get(1), "AA", 2000, 21d, 41d, null);
+        assertMeasurement(joined.get(2), "BB", 1000, 23d, 43d, null);
+        assertMeasurement(joined.get(3), "BB", 2000, 22d, null, -80);
+        assertEquals(3, joined.get(0).getDataFormat().intValue());
+        assertEquals(1, discarded.get(LegacySeries.HUMIDITY).sum());
+        assertEquals(1, discarded.get(LegacySeries.RSSI).sum());
+    }
+
+    @Test
+    void testInvalidDataFormatIsIgnored() {
+        final Map<LegacySeries, List<LegacyMeasurement>> series = new EnumMap<>(LegacySeries.class);
+        series.put(LegacySeries.TEMPERATURE, Arrays.asList(
+            new LegacyMeasurement(1000, "AA", "null", 20d),
+            new LegacyMeasurement(2000, "AA", "5", 21d)
+        ));
+
+        final List<EnhancedRuuviMeasurement> joined = InfluxDataMigrator.join(series, discarded());
+
+        assertEquals(2, joined.size());
+        assertNull(joined.get(0).getDataFormat());
+        assertEquals(5, joined.get(1).getDataFormat().intValue());
+    }
+
+    @Test
+    void testAccelerationIsJoinedOnlyWithAllAxes() {
+        final Map<LegacySeries, List<LegacyMeasurement>> series = new EnumMap<>(LegacySeries.class);
+        series.put(LegacySeries.TEMPERATURE, Arrays.asList(
+            new LegacyMeasurement(1000, "AA", "3", 20d),
+            new LegacyMeasurement(2000, "AA", "3", 21d)
+        ));
+        series.put(LegacySeries.ACCELERATION_X, Arrays.asList(new LegacyMeasurement(1000, "AA", "3", 0.1), new LegacyMeasurement(2000, "AA", "3", 0.4)));
+        series.put(LegacySeries.ACCELERATION_Y, Arrays.asList(new LegacyMeasurement(1000, "AA", "3", 0.2), new LegacyMeasurement(2000, "AA", "3", 0.5)));
+        series.put(LegacySeries.ACCELERATION_Z, Arrays.asList(new LegacyMeasurement(1000, "AA", "3", 0.3)));
+
+        final List<EnhancedRuuviMeasurement> joined = InfluxDataMigrator.join(series, discarded());
+
+        assertEquals((Double) 0.1, joined.get(0).getAccelerationX());
+        assertEquals((Double) 0.3, joined.get(0).getAccelerationZ());
+        assertNull(joined.get(1).getAccelerationX());
+        assertNull(joined.get(1).getAccelerationZ());
+    }
+
+    @Test
+    void testOrphanedValuesAreDiscarded() {
+        final Map<LegacySeries, List<LegacyMeasurement>> series = new EnumMap<>(LegacySeries.class);
+        series.put(LegacySeries.TEMPERATURE, Arrays.asList(new LegacyMeasurement(1000, "AA", "3", 20d)));
+        series.put(LegacySeries.PRESSURE, Arrays.asList(
+            new LegacyMeasurement(1080, "AA", "3", 100003d),
+            new LegacyMeasurement(920, "AA", "3", 100000d),
+            new LegacyMeasurement(950, "AA", "3", 100001d),
+            new LegacyMeasurement(1000, "AA", "3", 100002d)
+        ));
+        final Map<LegacySeries, LongAdder> discarded = discarded();
+
+        final List<EnhancedRuuviMeasurement> joined = InfluxDataMigrator.join(series, discarded);
+
+        assertEquals((Double) 100001d, joined.get(0).getPressure());
+        assertEquals(3, discarded.get(LegacySeries.PRESSURE).sum());
+    }
+
+    private static Map<LegacySeries, LongAdder> discarded() {
+        final Map<LegacySeries, LongAdder> discarded = new EnumMap<>(LegacySeries.class);
+        for (final LegacySeries series : LegacySeries.values()) {
+            discarded.put(series, new LongAdder());
+        }
+        return discarded;
+    }
+
+    private static void assertMeasurement(final EnhancedRuuviMeasurement m, final String mac, final long time, final Double temperature, final Double humidity, final Integer rssi) {
+        assertEquals(mac, m.getMac());
+        assertEquals(time, m.getTime().longValue());
+        assertEquals(temperature, m.getTemperature());
+        assertEquals(humidity, m.getHumidity());
+        assertEquals(rssi, m.getRssi());
+    }
+}
@@ -0,0 +1,25 @@
+package fi.tkgwf.ruuvi.utils;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class LatencyHistogramTest {
+
+    @Test
+    void testPercentiles() {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.percentileMicros(50));
+        for (int i = 0; i < 98; i++) {
+            histogram.record(3_000); // 3 us
+        }
+        histogram.record(1_000_000); // 1 ms
+        histogram.record(5_000_000_000L); // 5 s
+        assertEquals(100, histogram.count());
+        assertEquals(4, histogram.percentileMicros(50));
+        assertEquals(1024, histogram.percentileMicros(99));
+        assertEquals(8388608, histogram.percentileMicros(100));
+        assertEquals(5_000_000, histogram.maxMicros());
+        assertEquals(50_012, histogram.meanMicros());
+    }
+}
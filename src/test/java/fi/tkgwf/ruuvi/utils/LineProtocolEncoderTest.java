@@ -0,0 +1,165 @@
+package fi.tkgwf.ruuvi.utils;
+
+import fi.tkgwf.ruuvi.bean.EnhancedRuuviMeasurement;
+import fi.tkgwf.ruuvi.config.Config;
+import fi.tkgwf.ruuvi.config.ConfigTest;
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class LineProtocolEncoderTest {
+
+    @BeforeEach
+    void resetConfigBefore() {
+        Config.reload(ConfigTest.configTestFileFinder());
+    }
+
+    @AfterAll
+    static void resetConfigAfter() {
+        Config.reload(ConfigTest.configTestFileFinder());
+    }
+
+    @Test
+    void testSameAsInfluxDBConverter() {
+        final EnhancedRuuviMeasurement measurement = createMeasurement();
+        final String expected = InfluxDBConverter.toInflux(measurement).lineProtocol(TimeUnit.MILLISECONDS);
+        assertEquals(normalize(expected), normalize(new LineProtocolEncoder().encode(measurement)));
+    }
+
+    @Test
+    void testTagsAreEscaped() {
+        final EnhancedRuuviMeasurement measurement = new EnhancedRuuviMeasurement();
+        measurement.setMac("AABBCCDDEEFF");
+        measurement.setName("Living room, north=1");
+        measurement.setReceiver(" ");
+        measurement.setTemperature(21.5);
+        assertEquals("ruuvi_measurements,mac=AABBCCDDEEFF,name=Living\\ room\\,\\ north\\=1 temperature=21.5",
+            new LineProtocolEncoder().encode(measurement));
+    }
+
+    @Test
+    void testFieldsAreFilteredPerTag() {
+        final Properties props = new Properties();
+        props.put("storage.values", "whitelist");
+        props.put("storage.values.list", "pressure");
+        props.put("tag.BBBBBBBBBBBB.storage.values", "whitelist");
+        props.put("tag.BBBBBBBBBBBB.storage.values.list", "temperature,rssi");
+        Config.readConfigFromProperties(props);
+
+        final EnhancedRuuviMeasurement first = createMeasurement();
+        final EnhancedRuuviMeasurement second = createMeasurement();
+        second.setMac("BBBBBBBBBBBB");
+        final EnhancedRuuviMeasurement empty = new EnhancedRuuviMeasurement();
+        empty.setMac("BBBBBBBBBBBB");
+        empty.setHumidity(50d);
+
+        final LineProtocolEncoder encoder = new LineProtocolEncoder();
+        assertEquals("ruuvi_measurements,dataFormat=5,mac=AAAAAAAAAAAA,receiver=upstairs pressure=100044.0 1546300800123\n"
+                + "ruuvi_measurements,dataFormat=5,mac=BBBBBBBBBBBB,receiver=upstairs temperature=24.3,rssi=-73i 1546300800123",
+            encoder.encode(Arrays.asList(first, empty, second)));
+        assertNull(encoder.encode(empty));
+    }
+
+    @Test
+    void testTagsAreCachedPerReceiver() {
+        final EnhancedRuuviMeasurement upstairs = createMeasurement();
+        final EnhancedRuuviMeasurement downstairs = createMeasurement();
+        downstairs.setReceiver("downstairs");
+        final LineProtocolEncoder encoder = new LineProtocolEncoder();
+        for (int i = 0; i < 3; i++) {
+            assertTrue(encoder.encode(upstairs).startsWith("ruuvi_measurements,dataFormat=5,mac=AAAAAAAAAAAA,receiver=upstairs "));
+            assertTrue(encoder.encode(downstairs).startsWith("ruuvi_measurements,dataFormat=5,mac=AAAAAAAAAAAA,receiver=downstairs "));
+        }
+        assertEquals(2, encoder.cachedPrefixes());
+
+        upstairs.setName("Sauna");
+        assertTrue(encoder.encode(upstairs).startsWith("ruuvi_measurements,dataFormat=5,mac=AAAAAAAAAAAA,name=Sauna,receiver=upstairs "));
+        assertEquals(3, encoder.cachedPrefixes());
+    }
+
+    @Test
+    void testDoublesParseBackToTheSameValue() {
+        final Random random = new Random(42);
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 100000; i++) {
+            final double value;
+            switch (i % 4) {
+                case 0:
+                    value = Math.round(random.nextGaussian() * 100000) / 100d;
+                    break;
+                case 1:
+                    value = random.nextGaussian();
+                    break;
+                case 2:
+                    value = Double.longBitsToDouble(random.nextLong());
+                    break;
+                default:
+                    value = random.nextInt(200000) - 100000;
+            }
+            if (!Double.isFinite(value)) {
+                continue;
+            }
+            sb.setLength(0);
+            LineProtocolEncoder.appendDouble(sb, value);
+            assertEquals(value, Double.parseDouble(sb.toString()), sb.toString());
+        }
+        assertAppends("24.3", 24.3);
+        assertAppends("-0.004", -0.004);
+        assertAppends("100044.0", 100044d);
+        assertAppends("2.977", 2.977);
+        assertAppends("1.0E-7", 0.0000001);
+    }
+
+    private static void assertAppends(final String expected, final double value) {
+        final StringBuilder sb = new StringBuilder();
+        LineProtocolEncoder.appendDouble(sb, value);
+        assertEquals(expected, sb.toString());
+    }
+
+    /**
+     * Sorts the fields, as the InfluxDB client writes them in alphabetical
+     * order
+     */
+    private static String normalize(final String line) {
+        final String[] parts = line.split(" ");
+        final String[] fields = parts[1].split(",");
+        Arrays.sort(fields);
+        return parts[0] + " " + String.join(",", fields) + " " + parts[2];
+    }
+
+    private static EnhancedRuuviMeasurement createMeasurement() {
+        final EnhancedRuuviMeasurement measurement = new EnhancedRuuviMeasurement();
+        measurement.setTime(1546300800123L);
+        measurement.setMac("AAAAAAAAAAAA");
+        measurement.setReceiver("upstairs");
+        measurement.setDataFormat(5);
+        measurement.setRssi(-73);
+        measurement.setTxPower(4);
+        measurement.setMovementCounter(66);
+        measurement.setMeasurementSequenceNumber(205);
+        measurement.setTemperature(24.3);
+        measurement.setHumidity(53.49);
+        measurement.setPressure(100044d);
+        measurement.setAccelerationX(0.004);
+        measurement.setAccelerationY(-0.004);
+        measurement.setAccelerationZ(1.036);
+        measurement.setBatteryVoltage(2.977);
+        measurement.setAccelerationTotal(1.036);
+        measurement.setAccelerationAngleFromX(89.7);
+        measurement.setAccelerationAngleFromY(90.2);
+        measurement.setAccelerationAngleFromZ(0.3);
+        measurement.setAbsoluteHumidity(11.6);
+        measurement.setDewPoint(14.2);
+        measurement.setEquilibriumVaporPressure(3037.9);
+        measurement.setAirDensity(1.17);
+        return measurement;
+    }
+}
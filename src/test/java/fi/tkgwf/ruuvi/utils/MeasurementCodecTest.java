@@ -0,0 +1,83 @@
+package fi.tkgwf.ruuvi.utils;
+
+import fi.tkgwf.ruuvi.bean.EnhancedRuuviMeasurement;
+import java.nio.ByteBuffer;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class MeasurementCodecTest {
+
+    @Test
+    void testAllFieldsRoundTrip() {
+        final EnhancedRuuviMeasurement measurement = new EnhancedRuuviMeasurement();
+        measurement.setTime(1546300800123L);
+        measurement.setMac("AABBCCDDEEFF");
+        measurement.setName("Sauna ☃");
+        measurement.setReceiver("upstairs");
+        measurement.setDataFormat(5);
+        measurement.setRssi(-73);
+        measurement.setTxPower(4);
+        measurement.setMovementCounter(66);
+        measurement.setMeasurementSequenceNumber(205);
+        measurement.setTemperature(24.3);
+        measurement.setHumidity(53.49);
+        measurement.setPressure(100044d);
+        measurement.setAccelerationX(0.004);
+        measurement.setAccelerationY(-0.004);
+        measurement.setAccelerationZ(1.036);
+        measurement.setBatteryVoltage(2.977);
+        measurement.setAccelerationTotal(1.036);
+        measurement.setAccelerationAngleFromX(89.7);
+        measurement.setAccelerationAngleFromY(90.2);
+        measurement.setAccelerationAngleFromZ(0.3);
+        measurement.setAbsoluteHumidity(11.6);
+        measurement.setDewPoint(14.2);
+        measurement.setEquilibriumVaporPressure(3037.9);
+        measurement.setAirDensity(1.17);
+
+        final EnhancedRuuviMeasurement decoded = roundTrip(measurement);
+        assertEquals(measurement.toString(), decoded.toString());
+        assertEquals(measurement.getTime(), decoded.getTime());
+        assertEquals(measurement.getName(), decoded.getName());
+        assertEquals(measurement.getReceiver(), decoded.getReceiver());
+        assertEquals(measurement.getTxPower(), decoded.getTxPower());
+        assertEquals(measurement.getMovementCounter(), decoded.getMovementCounter());
+        assertEquals(measurement.getMeasurementSequenceNumber(), decoded.getMeasurementSequenceNumber());
+        assertEquals(measurement.getPressure(), decoded.getPressure());
+        assertEquals(measurement.getAccelerationAngleFromY(), decoded.getAccelerationAngleFromY());
+        assertEquals(measurement.getAirDensity(), decoded.getAirDensity());
+    }
+
+    @Test
+    void testMissingFieldsStayMissing() {
+        final EnhancedRuuviMeasurement measurement = new EnhancedRuuviMeasurement();
+        measurement.setMac("AABBCCDDEEFF");
+        measurement.setTemperature(-12.5);
+
+        final EnhancedRuuviMeasurement decoded = roundTrip(measurement);
+        assertEquals("AABBCCDDEEFF", decoded.getMac());
+        assertEquals(-12.5, decoded.getTemperature().doubleValue());
+        assertNull(decoded.getTime());
+        assertNull(decoded.getName());
+        assertNull(decoded.getRssi());
+        assertNull(decoded.getHumidity());
+        assertNull(decoded.getAirDensity());
+    }
+
+    @Test
+    void testUnknownVersionIsRejected() {
+        assertThrows(IllegalArgumentException.class, () -> MeasurementCodec.decode(ByteBuffer.wrap(new byte[]{2, 0, 0, 0, 0})));
+    }
+
+    private static EnhancedRuuviMeasurement roundTrip(final EnhancedRuuviMeasurement measurement) {
+        final ByteBuffer buffer = ByteBuffer.allocate(MeasurementCodec.MAX_LENGTH);
+        MeasurementCodec.encode(measurement, buffer);
+        buffer.flip();
+        final EnhancedRuuviMeasurement decoded = MeasurementCodec.decode(buffer);
+        assertEquals(0, buffer.remaining());
+        return decoded;
+    }
+}
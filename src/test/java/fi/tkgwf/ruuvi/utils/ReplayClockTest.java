@@ -0,0 +1,31 @@
+package fi.tkgwf.ruuvi.utils;
+
+import java.io.IOException;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ReplayClockTest {
+
+    @Test
+    void testFlatOutReplayDoesNotWait() throws IOException {
+        final ReplayClock clock = new ReplayClock(0);
+        final long start = System.nanoTime();
+        clock.advance(1_000_000L);
+        clock.advance(1_000_000L + 3_600_000L);
+        assertTrue(System.nanoTime() - start < 1_000_000_000L);
+        assertEquals(1_000_000L + 3_600_000L, clock.get().longValue());
+    }
+
+    @Test
+    void testTimeBetweenPacketsIsScaled() throws IOException {
+        final ReplayClock clock = new ReplayClock(100);
+        final long start = System.nanoTime();
+        clock.advance(1_000_000L);
+        clock.advance(1_000_000L + 10_000L); // 10 seconds at 100 times the speed
+        final long elapsedMillis = (System.nanoTime() - start) / 1_000_000L;
+        assertTrue(elapsedMillis >= 100, "replayed in " + elapsedMillis + " ms");
+        assertEquals(1_000_000L + 10_000L, clock.get().longValue());
+    }
+}
@@ -5,6 +5,7 @@ import org.junit.jupiter.api.Test;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 class UtilsTest {
@@ -36,4 +37,18 @@ class UtilsTest {
       // Check second line
       assertNull(Utils.getMacFromLine("04 3E 21 02 01 03 01 EF C0 45 EB B7 C9 15 02 01 06 11 FF 99"));
    }
+
+   @Test
+   void macToLong() {
+      assertEquals(0xC9B7EB45C0EFL, Utils.macToLong("C9B7EB45C0EF"));
+      assertEquals("C9B7EB45C0EF", Utils.macToString(Utils.macToLong("C9B7EB45C0EF")));
+      assertEquals("000000000001", Utils.macToString(Utils.macToLong("000000000001")));
+      assertEquals(0xC9B7EB45C0EFL, Utils.macToLong("c9b7eb45c0ef"));
+      assertThrows(NumberFormatException.class, () -> Utils.macToLong("C9B7EB45C0"));
+      // strings that Long.parseLong would accept
+      assertThrows(NumberFormatException.class, () -> Utils.macToLong("-00000000001"));
+      assertThrows(NumberFormatException.class, () -> Utils.macToLong("+C9B7EB45C0E"));
+      assertThrows(NumberFormatException.class, () -> Utils.macToLong("\uFF11\uFF12\uFF13\uFF14\uFF15\uFF16\uFF17\uFF18\uFF19\uFF10\uFF11\uFF12"));
+      assertThrows(NumberFormatException.class, () -> Utils.macToLong("C9:B7:EB:45:"));
+   }
 }